@@ -25,6 +25,13 @@ import com.vividsolutions.jts.geom.LineString;
 
 import models.*;
 import models.transit.Agency;
+import jobs.ProcessPackStopTimes;
+import jobs.ProcessPatternShapes;
+import jobs.ProcessSystemMap;
+import jobs.ProcessThroughputBenchmark;
+import utils.BackgroundJobs;
+import utils.ReferenceCache;
+import utils.SyntheticGtfsGenerator;
 
 @With(Secure.class)
 public class Admin extends Controller {
@@ -89,6 +96,94 @@ public class Admin extends Controller {
 	{
 		Account.resetPassword(username, newPassword);
 	}
+
+	/**
+	 * Start converting the stop times of every trip of an agency to packed storage in the background, or back to
+	 * StopTime rows if unpack is set. Poll jobStatus with the returned id for the number of trips converted.
+	 */
+	public static void packStopTimes(Long agencyId, Boolean unpack)
+	{
+		if(agencyId == null || Agency.findById(agencyId) == null)
+			badRequest();
+
+		renderJobStarted(BackgroundJobs.start(new ProcessPackStopTimes(agencyId, unpack != null && unpack)));
+	}
+
+	/**
+	 * Start recomputing the system map attributes in the background, only for routes modified since the last run if
+	 * incremental is set; poll jobStatus with the returned id.
+	 */
+	public static void processSystemMap(Boolean incremental)
+	{
+		renderJobStarted(BackgroundJobs.start(new ProcessSystemMap(incremental != null && incremental)));
+	}
+
+	/**
+	 * Report the hit rate and size of the reference cache, and empty it if clear is set.
+	 */
+	public static void referenceCache(Boolean clear)
+	{
+		if(clear != null && clear)
+			ReferenceCache.clear();
+
+		renderJSON(ReferenceCache.stats());
+	}
+
+	/**
+	 * Start generating the shapes of an agency's patterns in the background, by routing between their stops over its
+	 * GIS route segments; only patterns without a shape, unless overwrite is set. Poll jobStatus with the returned id
+	 * for the number of shapes generated.
+	 */
+	public static void generatePatternShapes(Long agencyId, Boolean overwrite)
+	{
+		if(agencyId == null || Agency.findById(agencyId) == null)
+			badRequest();
+
+		renderJobStarted(BackgroundJobs.start(new ProcessPatternShapes(agencyId, overwrite != null && overwrite)));
+	}
+
+	/**
+	 * Start importing and exporting a synthetic GTFS feed of the given size in the background; poll jobStatus with the
+	 * returned id for the throughput of each stage. See ProcessThroughputBenchmark.
+	 */
+	public static void throughputBenchmark(Integer routes, Integer patternsPerRoute, Integer tripsPerPattern, Integer stopsPerRoute, Double shapePointSpacing)
+	{
+		SyntheticGtfsGenerator generator = new SyntheticGtfsGenerator();
+
+		if(routes != null)
+			generator.routes = routes;
+		if(patternsPerRoute != null)
+			generator.patternsPerRoute = patternsPerRoute;
+		if(tripsPerPattern != null)
+			generator.tripsPerPattern = tripsPerPattern;
+		if(stopsPerRoute != null)
+			generator.stopsPerRoute = stopsPerRoute;
+		if(shapePointSpacing != null)
+			generator.shapePointSpacing = shapePointSpacing;
+
+		renderJobStarted(BackgroundJobs.start(new ProcessThroughputBenchmark(generator)));
+	}
+
+	private static void renderJobStarted(String jobId)
+	{
+		Map<String, Object> ret = new HashMap<String, Object>();
+		ret.put("jobId", jobId);
+		ret.put("status", "running");
+		renderJSON(ret);
+	}
+
+	/**
+	 * The status of a job started in the background, and its result once it is done.
+	 */
+	public static void jobStatus(String jobId)
+	{
+		Map<String, Object> status = BackgroundJobs.status(jobId);
+
+		if(status == null)
+			notFound();
+
+		renderJSON(status);
+	}
 	
 	
 
@@ -4,10 +4,11 @@ import play.*;
 import play.mvc.*;
 import play.data.binding.As;
 import play.db.jpa.JPA;
-import utils.GeoUtils;
+import utils.ApiSerializer;
+import utils.JsonReferenceResolver;
+import utils.StopShapeProjector;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.math.BigInteger;
 import java.util.*;
 
@@ -16,14 +17,9 @@ import javax.persistence.Query;
 
 import static java.util.Collections.sort;
 
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.geotools.geometry.jts.JTS;
-import org.opengis.referencing.operation.MathTransform;
+import org.codehaus.jackson.type.TypeReference;
 import org.python.google.common.collect.Collections2;
 
 import com.google.common.base.Function;
@@ -33,12 +29,10 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.PrecisionModel;
-import com.vividsolutions.jts.linearref.LengthLocationMap;
-import com.vividsolutions.jts.linearref.LinearLocation;
-import com.vividsolutions.jts.linearref.LocationIndexedLine;
 
 import models.*;
 import models.transit.Agency;
+import models.transit.PackedStopTimes;
 import models.transit.Route;
 import models.transit.RouteType;
 import models.transit.ScheduleException;
@@ -46,6 +40,7 @@ import models.transit.ServiceCalendar;
 import models.transit.ServiceCalendar.ServiceCalendarForPattern;
 import models.transit.Stop;
 import models.transit.StopTime;
+import models.transit.TimetableMatrix;
 import models.transit.Trip;
 import models.transit.TripPattern;
 import models.transit.TripPatternStop;
@@ -63,19 +58,12 @@ public class Api extends Controller {
 		
 	}
 	
-    private static ObjectMapper mapper = new ObjectMapper();
-    private static JsonFactory jf = new JsonFactory();
-
-    private static String toJson(Object pojo, boolean prettyPrint)
-            throws JsonMappingException, JsonGenerationException, IOException {
-                StringWriter sw = new StringWriter();
-                JsonGenerator jg = jf.createJsonGenerator(sw);
-                if (prettyPrint) {
-                    jg.useDefaultPrettyPrinter();
-                }
-                mapper.writeValue(jg, pojo);
-                return sw.toString();
-            }
+    private static ObjectMapper mapper = ApiSerializer.mapper;
+
+    /** render a value as JSON, or as Smile if the client asked for it */
+    private static void renderApi(Object pojo) throws IOException {
+        throw ApiSerializer.render(request, pojo);
+    }
 
     // **** agency controllers ****
 
@@ -84,13 +72,13 @@ public class Api extends Controller {
             if(id != null) {
                 Agency agency = Agency.findById(id);
                 if(agency != null)
-                    renderJSON(Api.toJson(agency, false));
+                    renderApi(agency);
                 else
                     notFound();
             }
             else {
                 List<Agency> a = Agency.find("order by name").fetch();
-                renderJSON(Api.toJson(a, false));
+                renderApi(a);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -103,7 +91,7 @@ public class Api extends Controller {
         Agency agency;
 
         try {
-            agency = mapper.readValue(params.get("body"), Agency.class);
+            agency = ApiSerializer.reader(Agency.class).readValue(params.get("body"));
             agency.save();
 
             // check if gtfsAgencyId is specified, if not create from DB id
@@ -112,7 +100,7 @@ public class Api extends Controller {
                 agency.save();
             }
 
-            renderJSON(Api.toJson(agency, false));
+            renderApi(agency);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -124,7 +112,7 @@ public class Api extends Controller {
         Agency agency;
 
         try {
-            agency = mapper.readValue(params.get("body"), Agency.class);
+            agency = ApiSerializer.reader(Agency.class).readValue(params.get("body"));
 
             if(agency.id == null || Agency.findById(agency.id) == null)
                 badRequest();
@@ -136,7 +124,7 @@ public class Api extends Controller {
             Agency updatedAgency = Agency.em().merge(agency);
             updatedAgency.save();
 
-            renderJSON(Api.toJson(updatedAgency, false));
+            renderApi(updatedAgency);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -165,12 +153,12 @@ public class Api extends Controller {
             {
             	RouteType routeType = RouteType.findById(id);
                 if(routeType != null)
-                    renderJSON(Api.toJson(routeType, false));
+                    renderApi(routeType);
                 else
                     notFound();
             }
             else
-                renderJSON(Api.toJson(RouteType.find("order by localizedvehicletype").fetch(), false));
+                renderApi(RouteType.find("order by localizedvehicletype").fetch());
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -182,10 +170,10 @@ public class Api extends Controller {
     	RouteType routeType;
 
         try {
-            routeType = mapper.readValue(params.get("body"), RouteType.class);
+            routeType = ApiSerializer.reader(RouteType.class).readValue(params.get("body"));
 
             routeType.save();
-            renderJSON(Api.toJson(routeType, false));
+            renderApi(routeType);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -197,7 +185,7 @@ public class Api extends Controller {
     	RouteType routeType;
 
         try {
-        	routeType = mapper.readValue(params.get("body"), RouteType.class);
+        	routeType = ApiSerializer.reader(RouteType.class).readValue(params.get("body"));
 
             if(routeType.id == null ||RouteType.findById(routeType.id) == null)
                 badRequest();
@@ -206,7 +194,7 @@ public class Api extends Controller {
             RouteType updatedRouteType = RouteType.em().merge(routeType);
             updatedRouteType.save();
 
-            renderJSON(Api.toJson(updatedRouteType, false));
+            renderApi(updatedRouteType);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -238,17 +226,17 @@ public class Api extends Controller {
             {
                 Route route = Route.findById(id);
                 if(route != null)
-                    renderJSON(Api.toJson(route, false));
+                    renderApi(route);
                 else
                     notFound();
             }
             else {
                 if(agencyId != null) {
                     Agency agency = Agency.findById(agencyId);
-                    renderJSON(Api.toJson(Route.find("agency = ? order by routeShortName", agency).fetch(), false));
+                    renderApi(Route.find("agency = ? order by routeShortName", agency).fetch());
                 }
                 else
-                    renderJSON(Api.toJson(Route.find("order by routeShortName").fetch(), false));   
+                    renderApi(Route.find("order by routeShortName").fetch());   
                     
             }
                 
@@ -263,7 +251,7 @@ public class Api extends Controller {
         Route route;
 
         try {
-            route = mapper.readValue(params.get("body"), Route.class);
+            route = ApiSerializer.reader(Route.class).readValue(params.get("body"));
 
             if(Agency.findById(route.agency.id) == null)
                 badRequest();
@@ -276,7 +264,7 @@ public class Api extends Controller {
                 route.save();
             }
 
-            renderJSON(Api.toJson(route, false));
+            renderApi(route);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -288,7 +276,7 @@ public class Api extends Controller {
         Route route;
 
         try {
-            route = mapper.readValue(params.get("body"), Route.class);
+            route = ApiSerializer.reader(Route.class).readValue(params.get("body"));
 
             if(route.id == null || Route.findById(route.id) == null)
                 badRequest();
@@ -300,7 +288,7 @@ public class Api extends Controller {
             Route updatedRoute = Route.em().merge(route);
             updatedRoute.save();
 
-            renderJSON(Api.toJson(updatedRoute, false));
+            renderApi(updatedRoute);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -332,16 +320,16 @@ public class Api extends Controller {
             if(id != null) {
                 Stop stop = Stop.findById(id);
                 if(stop != null)
-                    renderJSON(Api.toJson(stop, false));
+                    renderApi(stop);
                 else
                     notFound();
             }
             else if (majorStops != null && majorStops) {
 
                 if(agency != null)
-                    renderJSON(Api.toJson(Stop.find("agency = ? and majorStop = true", agency).fetch(), false));
+                    renderApi(Stop.find("agency = ? and majorStop = true", agency).fetch());
                 else
-            	   renderJSON(Api.toJson(Stop.find("majorStop = true").fetch(), false));
+            	   renderApi(Stop.find("majorStop = true").fetch());
             }
             else if (lat != null && lon != null) {
             	//GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(),4326);
@@ -350,16 +338,16 @@ public class Api extends Controller {
             	String point = "POINT(" + lon + " " + lat + ")";
             	
                 if(agency != null)
-            	    renderJSON(Api.toJson(Stop.find("agency = ? and distance(location, st_geomfromtext(?, 4326)) < 0.025", agency, point).fetch(), false));
+            	    renderApi(Stop.find("agency = ? and distance(location, st_geomfromtext(?, 4326)) < 0.025", agency, point).fetch());
                 else
-                    renderJSON(Api.toJson(Stop.find("distance(location, st_geomfromtext(?, 4326)) < 0.025", point).fetch(), false));
+                    renderApi(Stop.find("distance(location, st_geomfromtext(?, 4326)) < 0.025", point).fetch());
             }
             else {
                 
                 if(agency != null)
-                    renderJSON(Api.toJson(Stop.find("agency = ?", agency).fetch(), false));
+                    renderApi(Stop.find("agency = ?", agency).fetch());
                 else
-                    renderJSON(Api.toJson(Stop.all().fetch(), false));
+                    renderApi(Stop.all().fetch());
             }
             
         } catch (Exception e) {
@@ -372,7 +360,7 @@ public class Api extends Controller {
         Stop stop;
 
         try {
-            stop = mapper.readValue(params.get("body"), Stop.class);
+            stop = ApiSerializer.reader(Stop.class).readValue(params.get("body"));
 
             if(Agency.findById(stop.agency.id) == null)
                 badRequest();
@@ -385,7 +373,7 @@ public class Api extends Controller {
                 stop.save();
             }
 
-            renderJSON(Api.toJson(stop, false));
+            renderApi(stop);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -397,7 +385,7 @@ public class Api extends Controller {
         Stop stop;
 
         try {
-            stop = mapper.readValue(params.get("body"), Stop.class);
+            stop = ApiSerializer.reader(Stop.class).readValue(params.get("body"));
 
             if(stop.id == null || Stop.findById(stop.id) == null)
                 badRequest();
@@ -409,7 +397,7 @@ public class Api extends Controller {
             Stop updatedStop = Stop.em().merge(stop);
             updatedStop.save();
 
-            renderJSON(Api.toJson(updatedStop, false));
+            renderApi(updatedStop);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -425,18 +413,30 @@ public class Api extends Controller {
         if(stop == null)
             badRequest();
 
+        // packed stop times have no foreign key to the stop, so they'd be left pointing at nothing
+        if(StopTime.count("stop = ?", stop) > 0 || TripPatternStop.count("stop = ?", stop) > 0 || Trip.packedTripsUseStop(stop)) {
+            response.status = Http.StatusCode.BAD_REQUEST;
+            renderJSON(Arrays.asList("stop " + id + " is used by trips or patterns; merge it into another stop instead"));
+        }
+
         stop.delete();
 
         ok();
     }
     
     
-    public static void findDuplicateStops(Long agencyId) {
+    public static void findDuplicateStops(Long agencyId, Double distance) {
 
     	try {    	
     		
-    		List<List<Stop>> duplicateStopPairs = Stop.findDuplicateStops(BigInteger.valueOf(agencyId.longValue()));
-    		renderJSON(Api.toJson(duplicateStopPairs, false));
+    		List<List<Stop>> duplicateStopGroups;
+    		
+    		if (distance != null)
+    			duplicateStopGroups = Stop.findDuplicateStops(BigInteger.valueOf(agencyId.longValue()), distance);
+    		else
+    			duplicateStopGroups = Stop.findDuplicateStops(BigInteger.valueOf(agencyId.longValue()));
+    		
+    		renderApi(duplicateStopGroups);
     		
     	 } catch (Exception e) {
              e.printStackTrace();
@@ -446,22 +446,31 @@ public class Api extends Controller {
 
     public static void mergeStops(Long stop1Id, @As(",") List<String> mergedStopIds) {
         
-        if(stop1Id == null)
+        if(stop1Id == null || mergedStopIds == null)
             badRequest();
 
         Stop stop1 = Stop.findById(stop1Id);
 
-        for(String stopIdStr : mergedStopIds) {
-
-            Stop stop2 = Stop.findById(Long.parseLong(stopIdStr));
+        if(stop1 == null)
+            badRequest();
 
-            if(stop1 == null && stop2 == null)
-                badRequest();
+        List<Long> stopIds = new ArrayList<Long>(mergedStopIds.size());
 
-            stop1.merge(stop2);
+        try {
+            for(String stopIdStr : mergedStopIds) {
+                stopIds.add(Long.parseLong(stopIdStr.trim()));
+            }
+        } catch (NumberFormatException e) {
+            badRequest();
+        }
 
-            ok();
+        try {
+            stop1.merge(stopIds);
+        } catch (IllegalArgumentException e) {
+            badRequest();
         }
+
+        ok();
     }
 
     // **** trip pattern controllers ****
@@ -473,7 +482,7 @@ public class Api extends Controller {
                 TripPattern tripPattern = TripPattern.findById(id);
                 sort(tripPattern.patternStops);
                 if(tripPattern != null)
-                    renderJSON(Api.toJson(tripPattern, false));
+                    renderApi(tripPattern);
                 else
                     notFound();
             }
@@ -490,7 +499,7 @@ public class Api extends Controller {
             	    sort(pat.patternStops);
             	}
             	
-            	renderJSON(Api.toJson(ret, false));
+            	renderApi(ret);
             }
             else {
                 List<TripPattern> ret = TripPattern.all().fetch();
@@ -498,7 +507,7 @@ public class Api extends Controller {
                 for (TripPattern pat : ret) {
                     sort(pat.patternStops);
                 }
-                renderJSON(Api.toJson(ret, false));
+                renderApi(ret);
             }
             
         } catch (Exception e) {
@@ -511,7 +520,7 @@ public class Api extends Controller {
         TripPattern tripPattern;
 
         try {
-            tripPattern = mapper.readValue(params.get("body"), TripPattern.class);
+            tripPattern = JsonReferenceResolver.readValue(mapper, params.get("body"), TripPattern.class);
             
             if(tripPattern.encodedShape != null) {
             	TripShape ts = TripShape.createFromEncoded(tripPattern.encodedShape);
@@ -520,7 +529,7 @@ public class Api extends Controller {
             
             tripPattern.save();
 
-            renderJSON(Api.toJson(tripPattern, false));
+            renderApi(tripPattern);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -530,7 +539,7 @@ public class Api extends Controller {
     public static void updateTripPattern() {
         TripPattern tripPattern;
         try {
-            tripPattern = mapper.readValue(params.get("body"), TripPattern.class);
+            tripPattern = JsonReferenceResolver.readValue(mapper, params.get("body"), TripPattern.class);
             
             if(tripPattern.id == null)
                 badRequest();
@@ -557,18 +566,11 @@ public class Api extends Controller {
             }
             
             
-            // update stop times
+            // update stop times; this is done directly in the database
             originalTripPattern.reconcilePatternStops(tripPattern);
             
             TripPattern updatedTripPattern = TripPattern.em().merge(tripPattern);
             updatedTripPattern.save();
-            
-            // save updated stop times
-            for (Object trip : Trip.find("pattern = ?", updatedTripPattern).fetch()) {
-                for (StopTime st : ((Trip) trip).getStopTimes()) {
-                    st.save();
-                }
-            }
 
             Set<Long> patternStopIds = new HashSet<Long>();
             for(TripPatternStop patternStop : updatedTripPattern.patternStops) {
@@ -582,24 +584,25 @@ public class Api extends Controller {
             }
             
             if(tripPattern.shape != null) {
-                MathTransform mt = GeoUtils.getTransform(new Coordinate(tripPattern.shape.shape.getCoordinateN(0).y, tripPattern.shape.shape.getCoordinateN(0).x));
-                GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
-                Coordinate[] mCoords = tripPattern.shape.shape.getCoordinates();
-                ArrayList<Coordinate> coords = new ArrayList<Coordinate>();
-                for(Coordinate mCoord : mCoords) {
-                    coords.add(new Coordinate(mCoord.x, mCoord.y));
+                // project the pattern stops onto the shape in one pass
+                List<TripPatternStop> sortedPatternStops = new ArrayList<TripPatternStop>(updatedTripPattern.patternStops);
+                sort(sortedPatternStops);
+                
+                Coordinate[] stopCoords = new Coordinate[sortedPatternStops.size()];
+                for (int i = 0; i < stopCoords.length; i++) {
+                    stopCoords[i] = sortedPatternStops.get(i).stop.locationPoint().getCoordinate();
                 }
-                Coordinate[] coordArray = coords.toArray(new Coordinate[coords.size()]);
-                LineString ls = (LineString) JTS.transform(geometryFactory.createLineString(coordArray), mt);
-                LocationIndexedLine indexLine = new LocationIndexedLine(ls);
-                Logger.info("length: " + ls.getLength());
-                patternStops = TripPatternStop.find("pattern = ?", tripPattern).fetch();
-                for(TripPatternStop patternStop : patternStops) {
-                    Point p = (Point) JTS.transform(patternStop.stop.locationPoint(), mt);
-                    LinearLocation l = indexLine.project(p.getCoordinate());
-                    patternStop.defaultDistance = LengthLocationMap.getLength(ls, l);
-                    patternStop.save();
+                
+                StopShapeProjector projector = StopShapeProjector.create(tripPattern.shape.shape);
+                double[] distances = projector.project(stopCoords);
+                Logger.info("length: " + projector.getLength());
+                
+                for (int i = 0; i < distances.length; i++) {
+                    sortedPatternStops.get(i).defaultDistance = distances[i];
                 }
+                
+                // cascades to the pattern stops, with a single flush
+                updatedTripPattern.save();
             }
             
             // make sure that things are persisted; avoid DB race conditions
@@ -607,7 +610,7 @@ public class Api extends Controller {
             // had been flushed, either here or by GC.
             JPA.em().flush();
             
-            renderJSON(Api.toJson(updatedTripPattern, false));
+            renderApi(updatedTripPattern);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -627,8 +630,33 @@ public class Api extends Controller {
             return;
         }
 
+        // the system map for the route needs updating
+        if(tripPattern.route != null) {
+            tripPattern.route.lastModified = new Date();
+            tripPattern.route.save();
+        }
+
         tripPattern.delete();
-       	
+
+        ok();
+    }
+
+    /**
+     * Recompute which patterns of a route are the longest of their name, e.g. after editing its patterns or shapes.
+     */
+    public static void updateLongestTripPatterns(Long routeId) {
+        if(routeId == null || Route.findById(routeId) == null) {
+            badRequest();
+            return;
+        }
+
+        try {
+            TripPattern.updateLongest(Collections.singletonList(routeId));
+        } catch (Exception e) {
+            e.printStackTrace();
+            badRequest();
+        }
+
         ok();
     }
     
@@ -661,13 +689,13 @@ public class Api extends Controller {
     		if(id != null) {
     			ServiceCalendar cal = ServiceCalendar.findById(id);
     			if(cal != null)
-    				renderJSON(Api.toJson(cal, false));
+    				renderApi(cal);
     			else
     				notFound();
     		}
     		else if(agencyId != null) {
     			Agency agency = Agency.findById(agencyId);
-    			renderJSON(Api.toJson(ServiceCalendar.find("agency = ?", agency).fetch(), false));
+    			renderApi(ServiceCalendar.find("agency = ?", agency).fetch());
     		}
     		else if (patternId != null) {
     			TripPattern p = TripPattern.findById(patternId);
@@ -680,10 +708,10 @@ public class Api extends Controller {
     				ret[i] = new ServiceCalendarForPattern(c.get(i), p);
     			}
     			
-    			renderJSON(Api.toJson(ret, false));
+    			renderApi(ret);
     		}
     		else {
-    			renderJSON(Api.toJson(ServiceCalendar.all().fetch(), false));
+    			renderApi(ServiceCalendar.all().fetch());
     		}
         } catch (Exception e) {
             e.printStackTrace();
@@ -696,7 +724,7 @@ public class Api extends Controller {
     	ServiceCalendar cal;
 
         try {
-            cal = mapper.readValue(params.get("body"), ServiceCalendar.class);
+            cal = ApiSerializer.reader(ServiceCalendar.class).readValue(params.get("body"));
 
             if(Agency.findById(cal.agency.id) == null) {
                 badRequest();
@@ -712,7 +740,7 @@ public class Api extends Controller {
             }
             
 
-            renderJSON(Api.toJson(cal, false));
+            renderApi(cal);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -724,7 +752,7 @@ public class Api extends Controller {
     	ServiceCalendar cal;
 
         try {
-        	cal = mapper.readValue(params.get("body"), ServiceCalendar.class);
+        	cal = ApiSerializer.reader(ServiceCalendar.class).readValue(params.get("body"));
 
             if(cal.id == null || ServiceCalendar.findById(cal.id) == null) {
                 badRequest();
@@ -738,7 +766,7 @@ public class Api extends Controller {
             ServiceCalendar updatedCal = ServiceCalendar.em().merge(cal);
             updatedCal.save();
 
-            renderJSON(Api.toJson(updatedCal, false));
+            renderApi(updatedCal);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -767,7 +795,7 @@ public class Api extends Controller {
             {
                 Trip trip = Trip.findById(id);
                 if(trip != null)
-                    renderJSON(Api.toJson(trip, false));
+                    renderApi(trip);
                 else
                     notFound();
             }
@@ -775,21 +803,21 @@ public class Api extends Controller {
 
                 if(agencyId != null) {
                     Agency agency = Agency.findById(agencyId);
-                    renderJSON(Api.toJson(Trip.find("pattern.route.agency = ?", agency).fetch(), false));
+                    renderApi(Trip.find("pattern.route.agency = ?", agency).fetch());
                 }
                 
                 else if (patternId != null && calendarId != null) {
                     TripPattern pattern = TripPattern.findById(patternId);
                     ServiceCalendar calendar = ServiceCalendar.findById(calendarId);
-                    renderJSON(Api.toJson(Trip.find("byPatternAndServiceCalendar", pattern, calendar).fetch(), false));
+                    renderApi(Trip.find("byPatternAndServiceCalendar", pattern, calendar).fetch());
                 }
                 
                 else if(patternId != null) {
                     TripPattern pattern = TripPattern.findById(patternId);
-                    renderJSON(Api.toJson(Trip.find("pattern = ?", pattern).fetch(), false));
+                    renderApi(Trip.find("pattern = ?", pattern).fetch());
                 }
                 else {
-                    renderJSON(Api.toJson(Trip.all().fetch(), false));
+                    renderApi(Trip.all().fetch());
                 }
             }
                 
@@ -800,11 +828,53 @@ public class Api extends Controller {
 
     }
 
+    /**
+     * Get the timetable of a pattern on a calendar as a TimetableMatrix, optionally with delta-encoded times.
+     */
+    public static void getTimetable(Long patternId, Long calendarId, Boolean delta) {
+        if (patternId == null || calendarId == null)
+            badRequest();
+
+        TripPattern pattern = TripPattern.findById(patternId);
+        ServiceCalendar calendar = ServiceCalendar.findById(calendarId);
+
+        if (pattern == null || calendar == null)
+            notFound();
+
+        try {
+            renderApi(TimetableMatrix.load(pattern, calendar, Boolean.TRUE.equals(delta)));
+        } catch (Exception e) {
+            e.printStackTrace();
+            badRequest();
+        }
+    }
+
+    /**
+     * Save a TimetableMatrix, in the same shape as getTimetable returns, and return the saved timetable.
+     */
+    public static void updateTimetable() {
+        try {
+            TimetableMatrix matrix = ApiSerializer.reader(TimetableMatrix.class).readValue(params.get("body"));
+            boolean delta = matrix.delta;
+
+            matrix.save();
+
+            renderApi(TimetableMatrix.load(TripPattern.<TripPattern>findById(matrix.patternId),
+                    ServiceCalendar.<ServiceCalendar>findById(matrix.calendarId), delta));
+        } catch (Exception e) {
+            e.printStackTrace();
+            badRequest();
+        }
+    }
+
     /**
      * When trips come back over the wire, they contain stop times directly due to hierarchical serialization. 
      */
     public static class TripWithStopTimes extends Trip {
         List<StopTimeWithDeletion> stopTimes;
+
+        /** only used by bulk updates, where a trip may be deleted along with others being saved */
+        public Boolean deleted;
         
         public Trip toTrip () {
             Trip ret = new Trip();
@@ -853,21 +923,39 @@ public class Api extends Controller {
         }
     }
     
+    /** the stop times that weren't deleted */
+    private static List<StopTime> remainingStopTimes(List<StopTimeWithDeletion> stopTimes) {
+        List<StopTime> ret = new ArrayList<StopTime>(stopTimes.size());
+
+        for (StopTimeWithDeletion stopTime : stopTimes) {
+            if (!Boolean.TRUE.equals(stopTime.deleted))
+                ret.add(stopTime.toStopTime());
+        }
+
+        return ret;
+    }
+
+    /**
+     * Insert new stop times for a trip. Unlike save(), this doesn't flush each one, so Hibernate can batch the inserts
+     * when the caller flushes.
+     */
+    private static void persistStopTimes(Trip trip, List<StopTime> stopTimes) {
+        for (StopTime stopTime : stopTimes) {
+            stopTime.id = null;
+            stopTime.trip = trip;
+            StopTime.em().persist(stopTime);
+        }
+    }
+
     public static void createTrip() {
-        TripWithStopTimes tripWithStopTimes = null;
-        Trip trip = null;
+        TripWithStopTimes tripWithStopTimes;
+        Trip trip;
 
         try {
-            try {
-                tripWithStopTimes = mapper.readValue(params.get("body"), TripWithStopTimes.class);
-            } catch (Exception e) {
-                trip = mapper.readValue(params.get("body"), Trip.class);
-            }
+            // a trip without stop times is a TripWithStopTimes too, so there is no need to fall back to parsing a Trip
+            tripWithStopTimes = JsonReferenceResolver.readValue(mapper, params.get("body"), TripWithStopTimes.class);
+            trip = tripWithStopTimes.toTrip();
 
-            if (tripWithStopTimes != null) {
-                trip = tripWithStopTimes.toTrip();
-            }
-            
             if(Route.findById(trip.pattern.route.id) == null)
                 badRequest();
 
@@ -884,14 +972,18 @@ public class Api extends Controller {
                 trip.save();
             }
             
-            if (tripWithStopTimes != null && tripWithStopTimes.stopTimes != null) {
-                for (StopTimeWithDeletion stopTime: tripWithStopTimes.stopTimes) {
-                    stopTime.trip = trip;
-                    stopTime.toStopTime().save();
+            if (tripWithStopTimes.stopTimes != null) {
+                if (Trip.packNewTrips()) {
+                    trip.packedStopTimes = PackedStopTimes.fromStopTimes(remainingStopTimes(tripWithStopTimes.stopTimes)).encode();
+                    trip.save();
+                }
+                else {
+                    persistStopTimes(trip, remainingStopTimes(tripWithStopTimes.stopTimes));
+                    StopTime.em().flush();
                 }
             }
 
-            renderJSON(Api.toJson(trip, false));
+            renderApi(trip);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -902,10 +994,19 @@ public class Api extends Controller {
         TripWithStopTimes trip;
         
         try {
-            trip = mapper.readValue(params.get("body"), TripWithStopTimes.class);
+            trip = JsonReferenceResolver.readValue(mapper, params.get("body"), TripWithStopTimes.class);
 
-            if(trip.id == null || Trip.findById(trip.id) == null)
+            Trip existingTrip = trip.id != null ? Trip.<Trip>findById(trip.id) : null;
+
+            if(existingTrip == null)
                 badRequest();
+
+            // packedStopTimes isn't serialized, so merging the trip the client sent would clear it
+            byte[] packedStopTimes = existingTrip.packedStopTimes;
+
+            // a trip moved to another pattern leaves its old route to be updated in the system map
+            if(existingTrip.pattern != null && (trip.pattern == null || !existingTrip.pattern.id.equals(trip.pattern.id)))
+                TripPattern.touch(Arrays.asList(existingTrip.pattern.id));
             
             // if endtime is before start time add a day (e.g 07:00-00:30 becomes 07:00-24:30)
             if(trip.useFrequency && trip.endTime < trip.startTime) {
@@ -920,21 +1021,51 @@ public class Api extends Controller {
              Trip updatedTrip = Trip.em().merge(trip.toTrip());
              
             // update the stop times
-            for (StopTimeWithDeletion stopTime : trip.stopTimes) {
-                if (Boolean.TRUE.equals(stopTime.deleted)) {
-                    StopTime.delete("id = ? AND trip = ?", stopTime.id, updatedTrip);
+            if (packedStopTimes != null) {
+                // the client gets packed stop times decoded, without ids, and sends back all of them, so they replace
+                // the packed ones
+                if (trip.stopTimes != null)
+                    packedStopTimes = PackedStopTimes.fromStopTimes(remainingStopTimes(trip.stopTimes)).encode();
+
+                updatedTrip.packedStopTimes = packedStopTimes;
+            }
+            else if (trip.stopTimes != null) {
+                // stop times read while the trip was packed have no ids; match those to the stop times the client
+                // didn't send, by sequence, rather than inserting them again alongside
+                Set<Long> sentIds = new HashSet<Long>();
+                for (StopTimeWithDeletion stopTime : trip.stopTimes) {
+                    if (stopTime.id != null)
+                        sentIds.add(stopTime.id);
                 }
-                else {
-                    StopTime updatedStopTime = StopTime.em().merge(stopTime.toStopTime());
-                    // this was getting lost somehow
-                    updatedStopTime.trip = updatedTrip;
-                    updatedStopTime.save();
+
+                Map<Integer, Long> unsentIds = new HashMap<Integer, Long>();
+                List<Object[]> existingStopTimes = JPA.em().createQuery("SELECT st.id, st.stopSequence FROM StopTime st WHERE st.trip = :trip")
+                        .setParameter("trip", updatedTrip)
+                        .getResultList();
+                for (Object[] existingStopTime : existingStopTimes) {
+                    if (!sentIds.contains(existingStopTime[0]))
+                        unsentIds.put((Integer) existingStopTime[1], (Long) existingStopTime[0]);
+                }
+
+                for (StopTimeWithDeletion stopTime : trip.stopTimes) {
+                    if (stopTime.id == null && stopTime.stopSequence != null)
+                        stopTime.id = unsentIds.remove(stopTime.stopSequence);
+
+                    if (Boolean.TRUE.equals(stopTime.deleted)) {
+                        StopTime.delete("id = ? AND trip = ?", stopTime.id, updatedTrip);
+                    }
+                    else {
+                        StopTime updatedStopTime = StopTime.em().merge(stopTime.toStopTime());
+                        // this was getting lost somehow
+                        updatedStopTime.trip = updatedTrip;
+                        updatedStopTime.save();
+                    }
                 }
             }
             
             updatedTrip.save();
 
-            renderJSON(Api.toJson(updatedTrip, false));
+            renderApi(updatedTrip);
         } catch (Exception e) {
             e.printStackTrace();
             badRequest();
@@ -951,12 +1082,291 @@ public class Api extends Controller {
             badRequest();
 
         StopTime.delete("trip = ?", trip); 
+
+        // the system map for the pattern needs updating
+        if(trip.pattern != null)
+            TripPattern.touch(Arrays.asList(trip.pattern.id));
  
         trip.delete();
 
         ok();
     }
 
+    /**
+     * Create, update and delete many trips at once. The body is an array of trips with their stop times, as sent to
+     * createTrip and updateTrip; trips with deleted set are removed. Every trip is checked before anything is written,
+     * and a trip's stop times replace its existing ones.
+     */
+    public static void bulkTrips() {
+        List<TripWithStopTimes> trips;
+
+        try {
+            trips = JsonReferenceResolver.readValue(mapper, params.get("body"), new TypeReference<List<TripWithStopTimes>>() {});
+        } catch (Exception e) {
+            e.printStackTrace();
+            badRequest();
+            return;
+        }
+
+        // fetch everything the trips refer to up front, rather than once per trip
+        Set<Long> tripIds = new HashSet<Long>();
+        Set<Long> patternIds = new HashSet<Long>();
+
+        for (TripWithStopTimes trip : trips) {
+            if (trip.id != null)
+                tripIds.add(trip.id);
+
+            if (trip.pattern != null && trip.pattern.id != null)
+                patternIds.add(trip.pattern.id);
+        }
+
+        Map<Long, Trip> existingTrips = new HashMap<Long, Trip>();
+        if (!tripIds.isEmpty()) {
+            List<Trip> found = Trip.find("id IN (:ids)").bind("ids", tripIds).fetch();
+            for (Trip trip : found) {
+                existingTrips.put(trip.id, trip);
+            }
+        }
+
+        Map<Long, TripPattern> patterns = new HashMap<Long, TripPattern>();
+        Map<Long, Long> patternStopPatterns = new HashMap<Long, Long>();
+        if (!patternIds.isEmpty()) {
+            List<TripPattern> found = TripPattern.find("id IN (:ids)").bind("ids", patternIds).fetch();
+            for (TripPattern pattern : found) {
+                patterns.put(pattern.id, pattern);
+            }
+
+            List<Object[]> patternStops = JPA.em().createQuery("SELECT ps.id, ps.pattern.id FROM TripPatternStop ps WHERE ps.pattern.id IN (:ids)")
+                    .setParameter("ids", patternIds)
+                    .getResultList();
+            for (Object[] patternStop : patternStops) {
+                patternStopPatterns.put((Long) patternStop[0], (Long) patternStop[1]);
+            }
+        }
+
+        List<String> errors = new ArrayList<String>();
+
+        for (int i = 0; i < trips.size(); i++) {
+            TripWithStopTimes trip = trips.get(i);
+
+            if (trip.id != null && !existingTrips.containsKey(trip.id)) {
+                errors.add("trip " + i + ": no trip with id " + trip.id);
+                continue;
+            }
+
+            if (Boolean.TRUE.equals(trip.deleted)) {
+                if (trip.id == null)
+                    errors.add("trip " + i + ": only existing trips can be deleted");
+                continue;
+            }
+
+            if (trip.pattern == null || !patterns.containsKey(trip.pattern.id)) {
+                errors.add("trip " + i + ": no such trip pattern");
+                continue;
+            }
+
+            if (trip.stopTimes == null)
+                continue;
+
+            for (StopTimeWithDeletion stopTime : trip.stopTimes) {
+                if (Boolean.TRUE.equals(stopTime.deleted))
+                    continue;
+
+                if (stopTime.stop == null || stopTime.stop.id == null)
+                    errors.add("trip " + i + ": stop time " + stopTime.stopSequence + " has no stop");
+
+                else if (stopTime.patternStop != null && !trip.pattern.id.equals(patternStopPatterns.get(stopTime.patternStop.id)))
+                    errors.add("trip " + i + ": stop time " + stopTime.stopSequence + " is not part of the trip pattern");
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            response.status = Http.StatusCode.BAD_REQUEST;
+            renderJSON(errors);
+        }
+
+        List<Trip> saved = new ArrayList<Trip>();
+
+        try {
+            List<Long> deletedTripIds = new ArrayList<Long>();
+            List<Long> replacedTripIds = new ArrayList<Long>();
+            Set<TripPattern> modifiedPatterns = new HashSet<TripPattern>();
+            Map<Trip, List<StopTime>> newStopTimes = new LinkedHashMap<Trip, List<StopTime>>();
+
+            for (TripWithStopTimes trip : trips) {
+                Trip existingTrip = trip.id != null ? existingTrips.get(trip.id) : null;
+
+                if (Boolean.TRUE.equals(trip.deleted)) {
+                    deletedTripIds.add(trip.id);
+
+                    // the system map for the pattern needs updating
+                    if (existingTrip.pattern != null)
+                        modifiedPatterns.add(existingTrip.pattern);
+
+                    continue;
+                }
+
+                // stop times are replaced in bulk, and a trip may move to another pattern, leaving its old route to update
+                if (existingTrip != null && existingTrip.pattern != null)
+                    modifiedPatterns.add(existingTrip.pattern);
+
+                Trip updatedTrip = trip.toTrip();
+                updatedTrip.pattern = patterns.get(trip.pattern.id);
+                modifiedPatterns.add(updatedTrip.pattern);
+                updatedTrip.route = updatedTrip.pattern.route;
+
+                // if endtime is before start time add a day (e.g 07:00-00:30 becomes 07:00-24:30)
+                if (Boolean.TRUE.equals(updatedTrip.useFrequency) && updatedTrip.startTime != null && updatedTrip.endTime != null
+                        && updatedTrip.endTime < updatedTrip.startTime) {
+                    updatedTrip.endTime += (24 * 60 * 60);
+                }
+
+                List<StopTime> stopTimes = trip.stopTimes != null ? remainingStopTimes(trip.stopTimes) : null;
+                boolean packed = existingTrip != null ? existingTrip.packedStopTimes != null : Trip.packNewTrips();
+
+                // the client gets packed stop times decoded, without ids; like unpacked ones they are replaced
+                // whole, or kept if it didn't send any
+                if (packed)
+                    updatedTrip.packedStopTimes = stopTimes != null ? PackedStopTimes.fromStopTimes(stopTimes).encode() :
+                        existingTrip != null ? existingTrip.packedStopTimes : null;
+
+                if (existingTrip != null)
+                    updatedTrip = Trip.em().merge(updatedTrip);
+
+                updatedTrip.save();
+
+                // check if gtfsTripId is specified, if not create from DB id
+                if (updatedTrip.gtfsTripId == null) {
+                    updatedTrip.gtfsTripId = "TRIP_" + updatedTrip.id.toString();
+                    updatedTrip.save();
+                }
+
+                if (!packed && stopTimes != null) {
+                    if (existingTrip != null)
+                        replacedTripIds.add(existingTrip.id);
+
+                    newStopTimes.put(updatedTrip, stopTimes);
+                }
+
+                saved.add(updatedTrip);
+            }
+
+            List<Long> modifiedPatternIds = new ArrayList<Long>();
+            for (TripPattern pattern : modifiedPatterns) {
+                modifiedPatternIds.add(pattern.id);
+            }
+
+            TripPattern.touch(modifiedPatternIds);
+
+            StopTime.deleteByTripIds(replacedTripIds);
+            StopTime.deleteByTripIds(deletedTripIds);
+
+            for (Long tripId : deletedTripIds) {
+                Trip.em().remove(existingTrips.get(tripId));
+            }
+
+            // nothing is flushed from here on until all of the new stop times have been queued
+            for (Map.Entry<Trip, List<StopTime>> e : newStopTimes.entrySet()) {
+                persistStopTimes(e.getKey(), e.getValue());
+            }
+
+            StopTime.em().flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+            JPA.setRollbackOnly();
+            badRequest();
+        }
+
+        try {
+            renderApi(saved);
+        } catch (Exception e) {
+            e.printStackTrace();
+            badRequest();
+        }
+    }
+
+    // **** schedule operations ****
+    // these work on many trips at once, in the database, so the client doesn't have to send every trip back
+
+    /**
+     * Shift all of the trips on a pattern and calendar later by a number of seconds, or earlier if it is negative.
+     * Returns the number of trips shifted.
+     */
+    public static void shiftTrips(Long patternId, Long calendarId, Integer seconds) {
+        if (patternId == null || calendarId == null || seconds == null)
+            badRequest();
+
+        List<Long> tripIds = Trip.findIds(patternId, calendarId);
+        Trip.shiftTimes(tripIds, seconds);
+
+        renderJSON(tripIds.size());
+    }
+
+    /**
+     * Copy a trip so that it runs every headway seconds from startTime to endTime, by the time of its first stop.
+     * Returns the ids of the new trips.
+     */
+    public static void duplicateTrip(Long tripId, Integer startTime, Integer endTime, Integer headway) {
+        if (tripId == null || startTime == null || endTime == null || headway == null || headway <= 0 || endTime < startTime)
+            badRequest();
+
+        Trip trip = Trip.findById(tripId);
+
+        // frequency trips repeat already
+        if (trip == null || Boolean.TRUE.equals(trip.useFrequency))
+            badRequest();
+
+        Integer firstTime = null;
+        for (StopTime stopTime : trip.getStopTimes()) {
+            firstTime = stopTime.departureTime != null ? stopTime.departureTime : stopTime.arrivalTime;
+
+            if (firstTime != null)
+                break;
+        }
+
+        if (firstTime == null)
+            badRequest();
+
+        List<Long> sourceIds = new ArrayList<Long>();
+        List<Integer> shifts = new ArrayList<Integer>();
+
+        for (int time = startTime; time <= endTime; time += headway) {
+            // the trip itself is one of them
+            if (time == firstTime)
+                continue;
+
+            sourceIds.add(trip.id);
+            shifts.add(time - firstTime);
+        }
+
+        renderJSON(Trip.copy(sourceIds, shifts, null));
+    }
+
+    /**
+     * Copy the trips of a pattern on one calendar onto another calendar of the same agency. Returns the ids of the new
+     * trips.
+     */
+    public static void cloneCalendar(Long calendarId, Long targetCalendarId, Long patternId) {
+        if (calendarId == null || targetCalendarId == null || patternId == null)
+            badRequest();
+
+        ServiceCalendar calendar = ServiceCalendar.findById(calendarId);
+        ServiceCalendar target = ServiceCalendar.findById(targetCalendarId);
+        TripPattern pattern = TripPattern.findById(patternId);
+
+        if (calendar == null || target == null || pattern == null || calendar.equals(target))
+            badRequest();
+
+        // trips can only be copied within an agency
+        if (calendar.agency == null || target.agency == null || !calendar.agency.id.equals(target.agency.id) ||
+                pattern.route == null || pattern.route.agency == null || !calendar.agency.id.equals(pattern.route.agency.id))
+            badRequest();
+
+        List<Long> tripIds = Trip.findIds(patternId, calendar.id);
+
+        renderJSON(Trip.copy(tripIds, Collections.nCopies(tripIds.size(), 0), target.id));
+    }
+
     // ************ schedule exception controllers ***************
     
     /** Get all of the schedule exceptions for an agency */
@@ -966,7 +1376,7 @@ public class Api extends Controller {
     			Agency agency = Agency.findById(agencyId);
     			List<ScheduleException> exceptions = ScheduleException.find("agency = ?", agency).fetch();
     	
-    			renderJSON(Api.toJson(exceptions, true));
+    			renderApi(exceptions);
     		}
     		else {
     			ScheduleException e = ScheduleException.findById(exceptionId);
@@ -975,7 +1385,7 @@ public class Api extends Controller {
     				return;
     			}
     			
-    			renderJSON(Api.toJson(e, false));    				
+    			renderApi(e);    				
     		}
     	} catch (Exception e) {
     		e.printStackTrace();
@@ -985,7 +1395,7 @@ public class Api extends Controller {
     
     public static void createScheduleException () {
     	try {
-			ScheduleException ex = mapper.readValue(params.get("body"), ScheduleException.class);
+			ScheduleException ex = ApiSerializer.reader(ScheduleException.class).readValue(params.get("body"));
 			
 			if (Agency.findById(ex.agency.id) == null) {
 				badRequest();
@@ -994,7 +1404,7 @@ public class Api extends Controller {
 			
 			ex.save();
 			
-			renderJSON(Api.toJson(ex, false));			
+			renderApi(ex);			
 		} catch (Exception e) {
 			e.printStackTrace();
 			badRequest();
@@ -1003,7 +1413,7 @@ public class Api extends Controller {
     
     public static void updateScheduleException () {
     	try {
-			ScheduleException ex = mapper.readValue(params.get("body"), ScheduleException.class);
+			ScheduleException ex = ApiSerializer.reader(ScheduleException.class).readValue(params.get("body"));
 			
 			if (ex.id == null || ScheduleException.findById(ex.id) == null) {
 				badRequest();
@@ -1013,7 +1423,7 @@ public class Api extends Controller {
 			ScheduleException updated = ScheduleException.em().merge(ex);
 			updated.save();
 			
-			renderJSON(Api.toJson(updated, false));
+			renderApi(updated);
     	} catch (Exception e) {
     		e.printStackTrace();
     		badRequest();
@@ -6,28 +6,24 @@ import play.i18n.Messages;
 import play.mvc.*;
 import play.mvc.Http.Request;
 import play.mvc.Scope.Session;
-import utils.tags.TimeExtensions;
+import utils.ChunkedResponseWriter;
+import utils.CsvScheduleExporter;
+import utils.CsvScheduleImporter;
+import utils.ReferenceCache;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.InputStreamReader;
 import java.util.*;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.ArrayUtils;
-
-import au.com.bytecode.opencsv.CSVReader;
-import au.com.bytecode.opencsv.CSVWriter;
 import jobs.ProcessGisExport;
 import jobs.ProcessGtfsSnapshotExport;
 import jobs.ProcessGtfsSnapshotMerge;
 import models.*;
 import models.gis.GisExport;
+import models.gis.GisExportFormat;
 import models.gis.GisUploadType;
 import models.gtfs.GtfsSnapshot;
 import models.gtfs.GtfsSnapshotExport;
@@ -56,16 +52,17 @@ public class Application extends Controller {
     	if(Security.isConnected()) {
             renderArgs.put("user", Security.connected());
             
-            Account account = Account.find("username = ?", Security.connected()).first();
+            // these are read on every request, so they come from the reference cache
+            Account account = Account.findCached(Security.connected());
             
             if(account == null && Account.count() == 0) {
             	Bootstrap.index();
             }
             
             if(account.admin != null && account.admin)
-            	agencies = Agency.find("order by name").fetch();
+            	agencies.addAll(Agency.findAllCached());
             else {
-            	agencies.add(((Agency)Agency.findById(account.agency.id)));            	
+            	agencies.add(ReferenceCache.findById(Agency.class, account.agency.id));
             }
             
             renderArgs.put("agencies", agencies);
@@ -79,7 +76,7 @@ public class Application extends Controller {
     	        agencies.add(token.agency); 
     	    }
     	    else {
-    	        agencies = Agency.find("order by name").fetch();
+    	        agencies.addAll(Agency.findAllCached());
     	    }
     	    
     	    renderArgs.put("agencies", agencies);
@@ -338,7 +335,7 @@ public class Application extends Controller {
     }
     
     
-    public static void createGis(List<Long> agencySelect, String exportType) {
+    public static void createGis(List<Long> agencySelect, String exportType, String exportFormat) {
     	
     	List<Agency> agencyObjects = new ArrayList<Agency>(); 
         
@@ -362,7 +359,9 @@ public class Application extends Controller {
     	else
     		typeEnum = GisUploadType.STOPS;
     	
-    	GisExport gisExport = new GisExport(agencyObjects, typeEnum, "");
+    	GisExportFormat formatEnum = "geojson".equals(exportFormat) ? GisExportFormat.GEOJSON : GisExportFormat.SHAPEFILE;
+    	
+    	GisExport gisExport = new GisExport(agencyObjects, typeEnum, formatEnum, "");
     	
     	ProcessGisExport exportJob = new ProcessGisExport(gisExport.id);
     	
@@ -436,325 +435,52 @@ public class Application extends Controller {
 
     public static void createCsvSchedule(Long patternId, Long calendarId)
     {
-   	 response.setHeader("Content-Disposition", "attachment; filename=\"schedule_" + patternId + ".csv\"");
-   	 response.setHeader("Content-type", "text/csv");
-   	 
-   	 SimpleDateFormat dfTime = new SimpleDateFormat("hh:mm a");
-   	 
    	 TripPattern pattern = TripPattern.findById(patternId);
    	 ServiceCalendar calendar = ServiceCalendar.findById(calendarId);
-   	 
-   	 // ensure that the trip pattern sequence isn't broken
-   	 pattern.resequenceTripStops();
-   	 
-   	 List<Trip> trips  = Trip.find("pattern = ? and serviceCalendar = ? ORDER by id", pattern, calendar).fetch();
-   	 List<TripPatternStop> stopList  = TripPatternStop.find("pattern = ? ORDER BY stopSequence", pattern).fetch();
-   	 	
-   	 StringWriter csvString = new StringWriter();
-   	 CSVWriter csvWriter = new CSVWriter(csvString);
-   	 
-   	 String[] headerBase = "trip_id, pattern_id, block_id, headsign, short_name".split(",");
-   	 String[] headerStopNames = new String[headerBase.length + stopList.size() + 1];
-   	 String[] headerStopIds = new String[headerBase.length + stopList.size() + 1];
-   	 String[] headerStopTravelTimes = new String[headerBase.length + stopList.size() + 1];
-   	 String[] headerStopDwellTimes = new String[headerBase.length + stopList.size() + 1];
-   	 String[] headerStopTravelCumulative = new String[headerBase.length + stopList.size() + 1];
-
-   	 Integer cumulativeTravelTime = 0;
-   	 
-   	 headerStopNames[headerBase.length] = "stop_name";
-   	 headerStopIds[headerBase.length] = "stop_id";
-   	 headerStopTravelTimes[headerBase.length] = "travel_time";
-   	 headerStopDwellTimes[headerBase.length] = "dwell_time";
-   	 headerStopTravelCumulative[headerBase.length] = "cumulative_time";
-   	 
-   	 HashMap<Integer, Integer> stopColumnIndex = new HashMap<Integer, Integer>();
-   	 HashMap<Long, Integer> patternStopColumnIndex = new HashMap<Long, Integer>(); 
-   	 
-   	 for(TripPatternStop patternStop : stopList)
-   	 {	
-   		 if(patternStop.defaultDwellTime == null)
-   		 {
-   			 patternStop.defaultDwellTime = 0;
-   		 }
-   		 
-   		 cumulativeTravelTime = cumulativeTravelTime + patternStop.defaultTravelTime + patternStop.defaultDwellTime;
-   		 Logger.info(patternStop.stopSequence.toString());
-   		 headerStopNames[headerBase.length + patternStop.stopSequence + 1] = patternStop.stop.stopName;
-   		 headerStopIds[headerBase.length + patternStop.stopSequence + 1] = patternStop.stop.id.toString();
-   		 headerStopTravelTimes[headerBase.length + patternStop.stopSequence  + 1] = "=\"" + TimeExtensions.ccyAmount(patternStop.defaultTravelTime) + "\"";
-   		 headerStopDwellTimes[headerBase.length + patternStop.stopSequence  + 1] = "=\"" + TimeExtensions.ccyAmount(patternStop.defaultDwellTime) + "\"";
-   		 headerStopTravelCumulative[headerBase.length + patternStop.stopSequence  + 1] = "=\"" + TimeExtensions.ccyAmount(cumulativeTravelTime) + "\""; 
-   		 
-   		 stopColumnIndex.put(patternStop.stopSequence + 1, headerBase.length + patternStop.stopSequence);
-   		 patternStopColumnIndex.put(patternStop.id, headerBase.length + patternStop.stopSequence);
-   	 }
-   	 
-   	 String[] header = (String[]) ArrayUtils.addAll(headerBase, headerStopNames);
-   	 
-   	 csvWriter.writeNext(headerBase);
-   	 csvWriter.writeNext(headerStopNames);
-   	 csvWriter.writeNext(headerStopIds);
-   	 csvWriter.writeNext(headerStopTravelTimes);
-   	 csvWriter.writeNext(headerStopDwellTimes);
-   	 csvWriter.writeNext(headerStopTravelCumulative);
-   	 
-   	 for(Trip trip : trips)
-   	 {
-   		 String[] tripTimes = new String[headerBase.length + stopList.size() + 1];
-   		 
-   		 tripTimes[0] = trip.id.toString();
-   		 tripTimes[1] = patternId.toString();
-   		 tripTimes[2] = trip.blockId;
-   		 tripTimes[3] = trip.tripHeadsign;
-   		 tripTimes[4] = trip.tripShortName;
-   		 
-   		 List<StopTime> stopTimes  = StopTime.find("trip = ? order by stopSequence", trip).fetch();
-   		 
-   		 try
-   		 {
-   			 Date startTime = dfTime.parse("00:00 AM");
-   		 
-   			 for(StopTime stopTime : stopTimes)
-   			 {
-   				 if(stopTime.departureTime != null)
-   				 {
-   					 Date newTime = new Date(startTime.getTime() + (stopTime.departureTime * 1000));
-   					
-   					 String timeString = dfTime.format(newTime);
-   					 
-   					 if(stopTime.pickupType != null && stopTime.pickupType.equals(StopTimePickupDropOffType.NONE))
-   						 timeString += " <";
-   					 
-   					 if(stopTime.dropOffType != null && stopTime.dropOffType.equals(StopTimePickupDropOffType.NONE))
-   						 timeString += " >";
-   					 
-   					 if(stopTime.patternStop == null)
-   						 tripTimes[stopColumnIndex.get(stopTime.stopSequence) + 1] = timeString;
-   					 else
-   						 tripTimes[patternStopColumnIndex.get(stopTime.patternStop.id) + 1] = timeString;
-   				 }
-   				 else
-   				 {
-   					 String boardAlightStatus = "";
-   					 
-   					 if(stopTime.pickupType != null && stopTime.pickupType.equals(StopTimePickupDropOffType.NONE))
-   						 boardAlightStatus += " <";
-   					 
-   					 if(stopTime.dropOffType != null && stopTime.dropOffType.equals(StopTimePickupDropOffType.NONE))
-   						 boardAlightStatus += " >";
-   					 
-   					 if(stopTime.patternStop == null)
-   						 tripTimes[stopColumnIndex.get(stopTime.stopSequence) + 1] = "-" + boardAlightStatus;
-   					 else
-   						 tripTimes[patternStopColumnIndex.get(stopTime.patternStop.id) + 1] = "-" + boardAlightStatus;
-   				 }
-   			 }
-   		 }
-   		 catch(Exception e)
-   		 {
-   			 Logger.error(e.toString());
-   		 }
-   		 
-   		 csvWriter.writeNext(tripTimes);
+
+   	 if(pattern == null || calendar == null)
+   		 notFound();
+
+   	 response.setHeader("Content-Disposition", "attachment; filename=\"schedule_" + patternId + ".csv\"");
+   	 response.contentType = "text/csv";
+
+   	 // send rows as they are written rather than building the whole file first
+   	 ChunkedResponseWriter out = new ChunkedResponseWriter(response);
+
+   	 try {
+   		 new CsvScheduleExporter(pattern, calendar).write(out);
+   	 } catch (IOException e) {
+   		 Logger.error(e.toString());
    	 }
-   	 
-   	 renderText(csvString);
+
+   	 out.close();
     }
     
     public static void uploadCsvSchedule(Long patternId, Long calendarId, String qqfile)
-    {	     
-   	 
-		SimpleDateFormat dfTime = new SimpleDateFormat("hh:mm a");
-		SimpleDateFormat dfsTime = new SimpleDateFormat("hh:mm:ss a");
-		 
+    {
 		TripPattern pattern = TripPattern.findById(patternId); 
 		ServiceCalendar calendar = ServiceCalendar.findById(calendarId);
-		
-		List<Trip> trips = Trip.find("pattern = ? and serviceCalendar = ?", pattern, calendar).fetch();
 
-		for(Trip trip : trips) {
-			
-			StopTime.delete("trip = ?", trip); 
-		
-			trip.delete();
-	
+		if(pattern == null || calendar == null)
+			badRequest();
+
+		CsvScheduleImporter importer = new CsvScheduleImporter(pattern, calendar);
+
+		try {
+			// the whole file is checked before any trips are replaced, so a bad file changes nothing
+			if(!importer.read(new InputStreamReader(request.body, "UTF-8"))) {
+				response.status = Http.StatusCode.BAD_REQUEST;
+				renderJSON(importer.errors);
+			}
+		}
+		catch(IOException e) {
+			Logger.error(e.toString());
+			badRequest();
 		}
-   	 
-	   	try {
-	   		
-	   		String uploadName = "csv_" + patternId;
-	   		
-	   		File uploadedFile = new File(Play.configuration.getProperty("application.publicDataDirectory"), uploadName + ".csv");
-	   		
-	   		FileOutputStream fileOutputStream = new FileOutputStream(uploadedFile);
-	   		IOUtils.copy(request.body, fileOutputStream);
-	   		fileOutputStream.close();
-           
-           
-           CSVReader csvReader = new CSVReader(new FileReader(uploadedFile));
-           
-           int lineNum = 1;
-           
-           HashMap<Integer, TripPatternStop> columnStopIndex = new HashMap<Integer, TripPatternStop>();
-           
-           HashMap<Integer, Integer> columnStopDelta = new HashMap<Integer, Integer>();
-           
-           Integer cumulativeTime = 0;
-           
-           List<TripPatternStop> patternStops = TripPatternStop.find("pattern = ? order by stopSequence", pattern).fetch();
-           
-           for(String[] csvLine : csvReader.readAll())
-           {
-           	int columnIndex = 0;
-           
-           	if(lineNum == 3)
-           	{
-           		if(!csvLine[5].equals("stop_id"))
-           			throw new Exception("Invalid stop_id row.");
-           		
-           		for(String column : csvLine)	
-           		{
-           			if(columnIndex > 5)
-           			{
-           				Stop stop = Stop.findById(Long.parseLong(column));
-           				
-           				TripPatternStop patternStop = patternStops.get(0);
-           				patternStops = patternStops.subList(1, patternStops.size());
-           				
-           				if(!patternStop.stop.id.equals(stop.id))
-           					throw new Exception("Stop ID " + stop.id + "doesn't match pattern sequence for stop " + patternStop.stop.id);
-           				
-           				columnStopIndex.put(columnIndex, patternStop);
-           				
-           				cumulativeTime += patternStop.defaultDwellTime != null? patternStop.defaultDwellTime: 0;
-           				cumulativeTime += patternStop.defaultTravelTime != null? patternStop.defaultTravelTime: 0	;
-           				
-           				columnStopDelta.put(columnIndex, new Integer(cumulativeTime));
-           			}
-           			
-           			columnIndex++;
-           		}
-           	}
-           	else if(lineNum > 6)
-           	{
-   	        	if(!csvLine[0].isEmpty())
-   	        	{
-   	        		Trip trip = new Trip();
-   	        		
-   	        		trip.pattern = pattern;
-   	        		trip.serviceCalendar = calendar;
-   	        		
-   	        		trip.blockId = csvLine[2];
-   	        		trip.tripHeadsign = csvLine[3];
-   	        		trip.tripShortName = csvLine[4];
-   	        		
-   	        		trip.useFrequency = false;
-   	        		
-   	        		trip.save();
-   	        		
-   	        		Integer firstTimepoint = null;
-   	        		Integer columnCount = 0;
-   	        		Integer previousTime = 0;
-   	        		Integer dayOffset = 0;
-   	        		
-   	        		for(String column : csvLine)	
-   	        		{	
-   	        			if(columnIndex > 5)
-   	        			{
-   	        				if(!column.isEmpty())
-   	        				{
-   	        					StopTime stopTime = new StopTime();
-   	        					
-   	        					stopTime.trip = trip;
-   	        					
-   	        					// check for board/alight only flag
-           						if(column.contains(">")) {
-           							
-           							column = column.replace(">", "");
-           							
-           							// board only
-           							stopTime.dropOffType = StopTimePickupDropOffType.NONE;
-           						}
-           						
-           						if(column.contains("<")) {
-           							
-           							column = column.replace("<", "");
-           							
-           							// alight only
-           							stopTime.pickupType = StopTimePickupDropOffType.NONE;
-           						}
-           						
-           						column = column.trim();
-   	        					
-   	        					if(column.equals("+"))
-   	        						stopTime.departureTime = firstTimepoint + columnStopDelta.get(columnIndex);
-   	        					else if(column.equals("-"))
-   	        						stopTime.departureTime = null;
-   	        					else
-   	        					{
-   	        						Integer currentTime;
-   	        							
-   	        						
-   	        						try
-   	        						{
-   	        							currentTime = (dfTime.parse(column).getHours() * 60 * 60 ) + (dfTime.parse(column).getMinutes() * 60) + (dfTime.parse(column).getSeconds());
-   	        						}
-   	        						catch(ParseException e)
-   	        						{
-   	        							try
-   		        						{
-   	        								currentTime = (dfsTime.parse(column).getHours() * 60 * 60 ) + (dfsTime.parse(column).getMinutes() * 60) + (dfsTime.parse(column).getSeconds());
-   		        						}
-   		        						catch(ParseException e2)
-   		        						{
-   		        							continue;
-   		        						}
-   		        					}
-   	        						
-   	        						// in case of time that decreases add a day to offset for trips that cross midnight boundary
-   	        						if(previousTime > currentTime)	        							
-   	        							dayOffset += 24 * 60 * 60;
-   	        							
-   	        						stopTime.departureTime = currentTime + dayOffset;
-   	        						
-   	        						previousTime = currentTime;
-   	        						
-   	        						if(firstTimepoint == null)
-   		    	        			{
-   		        						firstTimepoint = stopTime.departureTime;
-   		    	        			}
-   	        						
-   	        					}
-   	        					
-   	        					stopTime.arrivalTime = stopTime.departureTime;
-   	        					
-   	        					stopTime.patternStop = columnStopIndex.get(columnIndex);
-   	        					stopTime.stop = columnStopIndex.get(columnIndex).stop;
-   	        					stopTime.stopSequence = columnCount + 1;
-   	        					
-   	        					stopTime.save();
-   	        					
-   	        					columnCount++;
-   	        				}
-   	        			}
-   	        				
-   	        			columnIndex++;
-   	        		}	        		
-   	        	}
-           	}
-           	
-           	lineNum++;
-           }
-           
-           csvReader.close();
-	   	}
-	   	catch(Exception e)
-	   	{
-	   		Logger.error(e.toString());
-	   	}
-	   	
-	   	ok();
+
+		importer.apply();
+
+		ok();
     }
     
     /** schedule exceptions page */
@@ -1,153 +1,72 @@
 package jobs;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.Serializable;
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.persistence.EntityManager;
-import javax.persistence.Query;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang.StringUtils;
 import org.geotools.data.DataUtilities;
-import org.geotools.data.DefaultTransaction;
-import org.geotools.data.FeatureSource;
-import org.geotools.data.FileDataStore;
-import org.geotools.data.FileDataStoreFinder;
-import org.geotools.data.Transaction;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.shapefile.ShapefileDataStore;
-import org.geotools.data.shapefile.ShapefileDataStoreFactory;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.data.simple.SimpleFeatureStore;
-import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.FeatureCollections;
-import org.geotools.feature.collection.FilteringSimpleFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.geometry.jts.JTSFactoryFinder;
-import org.geotools.referencing.CRS;
-import org.geotools.referencing.ReferencingFactoryFinder;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.hibernatespatial.readers.Feature;
-import org.onebusaway.gtfs.impl.GtfsDaoImpl;
-import org.onebusaway.gtfs.serialization.GtfsReader;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.AttributeDescriptor;
-import org.opengis.feature.type.FeatureType;
-import org.opengis.feature.type.GeometryDescriptor;
-import org.opengis.feature.type.GeometryType;
-import org.opengis.referencing.crs.CRSAuthorityFactory;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
-import org.geotools.data.FileDataStoreFinder;
-
-import com.mchange.v2.c3p0.impl.DbAuth;
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.geom.MultiLineString;
-import com.vividsolutions.jts.operation.linemerge.LineMerger;
 
 import models.gis.GisExport;
+import models.gis.GisExportFormat;
 import models.gis.GisExportStatus;
-import models.gis.GisRoute;
-import models.gis.GisStop;
 import models.gis.GisUploadType;
-import models.gtfs.GtfsSnapshotExportStatus;
-import models.gtfs.GtfsSnapshotMerge;
-import models.gtfs.GtfsSnapshotMergeTask;
-import models.gtfs.GtfsSnapshotMergeTaskStatus;
-import models.transit.Agency;
-import models.transit.Route;
-import models.transit.ServiceCalendar;
-import models.transit.ServiceCalendarDate;
-import models.transit.Stop;
-import models.transit.StopTime;
-import models.transit.TripPattern;
-import models.transit.TripShape;
-import models.transit.Trip;
+import models.transit.RouteType;
 import play.Logger;
 import play.Play;
 import play.jobs.Job;
-import play.jobs.OnApplicationStart;
-import utils.DirectoryZip;
-import utils.FeatureAttributeFormatter;
-
+import utils.GisFeatureWriter;
+
+/**
+ * Export the stops or the pattern shapes of some agencies as a shapefile or GeoJSON.
+ *
+ * Features are read with a single joined query, a page at a time in id order, and written to the output as they are
+ * read, so the size of an export isn't limited by memory.
+ */
 public class ProcessGisExport extends Job {
 
+	/** how many features to read from the database at once */
+	private static final int PAGE_SIZE = 1000;
+
 	private Long _gisExportId;
 
-	
+
 	public ProcessGisExport(Long gisExportId)
 	{
 		this._gisExportId = gisExportId;
 	}
-	
+
 	public void doJob() {
-		
-		String exportName = "gis_" + this._gisExportId;
-		
-		File outputZipFile = new File(Play.configuration.getProperty("application.publicDataDirectory"), exportName + ".zip");
-		
-		File outputDirectory = new File(Play.configuration.getProperty("application.publicDataDirectory"), exportName);
-		
-		Logger.info("outfile path:" + outputDirectory.getAbsolutePath());
-		
-		File outputShapefile = new File(outputDirectory, exportName + ".shp");
-       
+
+		File outputFile = null;
+
         try
         {
         	GisExport gisExport = null;
-        	
+
         	while(gisExport == null)
         	{
         		gisExport = GisExport.findById(this._gisExportId);
         		Thread.sleep(1000);
-        		
+
         		Logger.info("Waiting for gisExport object...");
         	}
-        	
-        	
-        	if(!outputDirectory.exists())
-        	{
-        		outputDirectory.mkdir();
-        	}
-        	
-			ShapefileDataStoreFactory dataStoreFactory = new ShapefileDataStoreFactory();
-			
-			Map<String, Serializable> params = new HashMap<String, Serializable>();
-			params.put("url", outputShapefile.toURI().toURL());
-			params.put("create spatial index", Boolean.TRUE);
-			
-			ShapefileDataStore dataStore = (ShapefileDataStore)dataStoreFactory.createNewDataStore(params);
-			dataStore.forceSchemaCRS(DefaultGeographicCRS.WGS84);
+
+        	outputFile = new File(Play.configuration.getProperty("application.publicDataDirectory"), gisExport.getFilename());
+
+        	Logger.info("outfile path:" + outputFile.getAbsolutePath());
 
         	SimpleFeatureType STOP_TYPE = DataUtilities.createType(
-                    "Stop",                 
-                    "location:Point:srid=4326," + 
+                    "Stop",
+                    "location:Point:srid=4326," +
                     "name:String," +
                     "code:String," +
                     "desc:String," +
                     "id:String," +
-                    "agency:String"     
+                    "agency:String"
             );
-        	
+
         	SimpleFeatureType ROUTE_TYPE = DataUtilities.createType(
                     "Route",                   // <- the name for our feature type
                     "route:LineString:srid=4326," +
@@ -159,125 +78,128 @@ public class ProcessGisExport extends Job {
                     "url:String," +
                     "routeColor:String," +
                     "routeTextColor:String," +
-                    "agency:String"     
+                    "agency:String"
             );
-        	
-        	SimpleFeatureCollection collection;
-        	
-        	SimpleFeatureType collectionType;
-
-            SimpleFeatureBuilder featureBuilder = null;
-            
-            List<SimpleFeature> features = new ArrayList<SimpleFeature>();
-            
+
+        	GisExportFormat format = gisExport.format != null ? gisExport.format : GisExportFormat.SHAPEFILE;
+
+        	int count = 0;
+
             if(gisExport.type.equals(GisUploadType.STOPS))
             {
-            	collectionType = STOP_TYPE;
-            	dataStore.createSchema(STOP_TYPE);
-            	featureBuilder = new SimpleFeatureBuilder(STOP_TYPE);
-            	
-            	List<Stop> stops = Stop.find("agency in (:ids)").bind("ids", gisExport.agencies).fetch();
-            	
-            	for(Stop s : stops)
+            	GisFeatureWriter writer = GisFeatureWriter.create(format, STOP_TYPE, outputFile);
+
+            	try
             	{
-            		featureBuilder.add(s.locationPoint());
-                    featureBuilder.add(s.stopName);
-                    featureBuilder.add(s.stopCode);
-                    featureBuilder.add(s.stopDesc);
-                    featureBuilder.add(s.gtfsStopId);
-                    featureBuilder.add(s.agency.name);
-                    SimpleFeature feature = featureBuilder.buildFeature(null);
-                    features.add(feature);	
+            		count = writeStops(gisExport, writer);
+            	}
+            	finally
+            	{
+            		writer.close();
             	}
             }
             else if(gisExport.type.equals(GisUploadType.ROUTES))
             {
-            	collectionType = ROUTE_TYPE;
-            	dataStore.createSchema(ROUTE_TYPE);
-            	featureBuilder = new SimpleFeatureBuilder(ROUTE_TYPE);
-            	
-                List<Route> routes = Route.find("agency in (:ids)").bind("ids", gisExport.agencies).fetch();
-            	
-                // check for duplicates
-
-                // HashMap<String, Boolean> existingRoutes = new HashMap<String,Boolean>();
-                
-            	for(Route r : routes)
+            	GisFeatureWriter writer = GisFeatureWriter.create(format, ROUTE_TYPE, outputFile);
+
+            	try
             	{
-//            		String routeId = r.routeLongName + "_" + r.routeDesc + "_ " + r.phone.id;
-//            		
-//            		if(existingRoutes.containsKey(routeId))
-//            			continue;
-//            		else
-//            			existingRoutes.put(routeId, true); 
-            		
-            		
-            		List<TripPattern> patterns = TripPattern.find("route = ?", r).fetch();
-            		for(TripPattern tp : patterns)
-                	{
-            			if(tp.shape == null)
-            				continue;
-            		
-            			featureBuilder.add(tp.shape.shape);
-	            		featureBuilder.add(tp.name);
-	            		featureBuilder.add(r.routeShortName);
-	                    featureBuilder.add(r.routeLongName);
-	                    featureBuilder.add(r.routeDesc);
-	                    
-	                    if(r.routeType != null)
-	                    	featureBuilder.add(r.routeType.toString());
-	                    else
-	                    	featureBuilder.add("");
-	                    
-	                    featureBuilder.add(r.routeUrl);
-	                    featureBuilder.add(r.routeColor);
-	                    featureBuilder.add(r.routeTextColor);
-	                    featureBuilder.add(r.agency.name);
-	                    SimpleFeature feature = featureBuilder.buildFeature(null);
-	                    features.add(feature);	
-                	}
+            		count = writeRoutes(gisExport, writer);
+            	}
+            	finally
+            	{
+            		writer.close();
             	}
             }
             else
             	throw new Exception("Unknown export type.");
 
-        	collection = new ListFeatureCollection(collectionType, features);
-            
-            Transaction transaction = new DefaultTransaction("create");
-
-            String typeName = dataStore.getTypeNames()[0];
-            SimpleFeatureSource featureSource = dataStore.getFeatureSource(typeName);
-
-            if (featureSource instanceof SimpleFeatureStore) 
-            {
-                SimpleFeatureStore featureStore = (SimpleFeatureStore) featureSource;
-
-                featureStore.setTransaction(transaction);
-               
-                featureStore.addFeatures(collection);
-                transaction.commit();
+            Logger.info("Exported " + count + " features to " + outputFile.getName());
 
-                transaction.close();
-            } 
-            else 
-            {
-            	throw new Exception(typeName + " does not support read/write access");
-            }
-            
-            DirectoryZip.zip(outputDirectory, outputZipFile);
-            FileUtils.deleteDirectory(outputDirectory);
-			
 			gisExport.status = GisExportStatus.PROCESSED;
-			
+
 			gisExport.save();
-            
+
         }
         catch(Exception e)
-        {	
+        {
         	Logger.error("Unable to process GIS export: ", e.toString());
         	e.printStackTrace();
-        } 
+
+        	// don't leave a partial export to be downloaded
+        	if(outputFile != null)
+        		outputFile.delete();
+        }
 	}
-}
 
+	private static int writeStops(GisExport gisExport, GisFeatureWriter writer) throws Exception
+	{
+		if(gisExport.agencies.isEmpty())
+			return 0;
+
+		EntityManager em = GisExport.em();
+
+		int count = 0;
+		Long lastId = 0L;
+		List<Object[]> rows;
+
+		do
+		{
+			rows = em.createQuery("SELECT s.id, s.location, s.stopName, s.stopCode, s.stopDesc, s.gtfsStopId, a.name " +
+					"FROM Stop s JOIN s.agency a WHERE a IN (:agencies) AND s.id > :lastId ORDER BY s.id")
+					.setParameter("agencies", gisExport.agencies)
+					.setParameter("lastId", lastId)
+					.setMaxResults(PAGE_SIZE)
+					.getResultList();
+
+			for(Object[] row : rows)
+			{
+				writer.write(row[1], row[2], row[3], row[4], row[5], row[6]);
+				lastId = (Long) row[0];
+				count++;
+			}
+		}
+		while(rows.size() == PAGE_SIZE);
+
+		return count;
+	}
 
+	private static int writeRoutes(GisExport gisExport, GisFeatureWriter writer) throws Exception
+	{
+		if(gisExport.agencies.isEmpty())
+			return 0;
+
+		EntityManager em = GisExport.em();
+
+		int count = 0;
+		Long lastId = 0L;
+		List<Object[]> rows;
+
+		do
+		{
+			// patterns without a shape are left out by the inner join
+			rows = em.createQuery("SELECT tp.id, sh.shape, tp.name, r.routeShortName, r.routeLongName, r.routeDesc, rt, " +
+					"r.routeUrl, r.routeColor, r.routeTextColor, a.name " +
+					"FROM TripPattern tp JOIN tp.shape sh JOIN tp.route r JOIN r.agency a LEFT JOIN r.routeType rt " +
+					"WHERE a IN (:agencies) AND tp.id > :lastId ORDER BY tp.id")
+					.setParameter("agencies", gisExport.agencies)
+					.setParameter("lastId", lastId)
+					.setMaxResults(PAGE_SIZE)
+					.getResultList();
+
+			for(Object[] row : rows)
+			{
+				RouteType routeType = (RouteType) row[6];
+
+				writer.write(row[1], row[2], row[3], row[4], row[5], routeType != null ? routeType.toString() : "",
+						row[7], row[8], row[9], row[10]);
+
+				lastId = (Long) row[0];
+				count++;
+			}
+		}
+		while(rows.size() == PAGE_SIZE);
+
+		return count;
+	}
+}
@@ -1,25 +1,22 @@
 package jobs;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
 
-import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.geotools.data.FeatureSource;
-import org.geotools.data.FileDataStore;
-import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
@@ -41,7 +38,6 @@ import org.opengis.feature.type.GeometryType;
 import org.opengis.referencing.crs.CRSAuthorityFactory;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
-import org.geotools.data.FileDataStoreFinder;
 
 import com.mchange.v2.c3p0.impl.DbAuth;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -75,9 +71,14 @@ import play.Play;
 import play.jobs.Job;
 import play.jobs.OnApplicationStart;
 import utils.FeatureAttributeFormatter;
+import utils.ZippedShapefile;
 
 public class ProcessGisUpload extends Job {
 
+	/** features written between flushes */
+	private static final int ROUTE_BATCH_SIZE = 100;
+	private static final int STOP_BATCH_SIZE = 1000;
+	
 	private Long _gisUploadId;
 	
 	public ProcessGisUpload(Long gisUploadId)
@@ -92,6 +93,10 @@ public class ProcessGisUpload extends Job {
 		File uploadedFile = new File(Play.configuration.getProperty("application.publicGisDataDirectory"), uploadName + ".zip");
 		
 		File outputPath = new File(Play.configuration.getProperty("application.publicGisDataDirectory"), uploadName);
+		
+		ZippedShapefile zippedShapefile = null;
+		ShapefileDataStore store = null;
+		SimpleFeatureIterator featureIterator = null;
        
        
         try
@@ -106,59 +111,12 @@ public class ProcessGisUpload extends Job {
         		Logger.info("Waiting for gisUpload object...");
         	}
         	
-        	File shapeFile = null;
-        	
-        	// unpack the zip if needed
-        	if(!outputPath.exists())
-        	{
-	        	outputPath.mkdir();
-	        	
-	        	FileInputStream fileInputStream = new FileInputStream(uploadedFile);            	
-	            ZipInputStream zipInput = new ZipInputStream(fileInputStream); 
-	            
-	            ZipEntry zipEntry = null; 
-	           
-	            while ((zipEntry = zipInput.getNextEntry()) != null) 
-	            {         
-	                if(zipEntry.isDirectory()) 
-	                {
-	                	Logger.info("Unexpected directory: ", zipEntry.getName()); 
-	                }
-	                else 
-	                {
-	                	Logger.info("Unzipping", zipEntry.getName()); 
-	                	
-	                	File entryFile = new File(outputPath, zipEntry.getName());
-	                	
-	                    FileOutputStream unzippedFileOut = new FileOutputStream(entryFile);
-	                    
-	                    int length;
-	                    byte[] buffer = new byte[1000];
-	                    
-	                    while ((length = zipInput.read(buffer))>0) 
-	                    {
-	                    	unzippedFileOut.write(buffer, 0, length);
-	                    }
-	                    
-	                    zipInput.closeEntry(); 
-	                    unzippedFileOut.close(); 
-	                } 
-	            }
-	           
-	            zipInput.close();
-        	}
+        	// earlier versions extracted the zip here
+        	if(outputPath.exists())
+        		FileUtils.deleteDirectory(outputPath);
         	
-        	// find the shapefile
-        	for(File dirFile : outputPath.listFiles())
-    		{
-    			if(FilenameUtils.getExtension(dirFile.getName()).toLowerCase().equals("shp"))
-            	{
-            		if(shapeFile == null)
-            			shapeFile = dirFile;
-            		else
-            			Logger.warn("Zip contains more than one shapefile--ignoring others.");
-            	}
-    		}        	
+        	zippedShapefile = new ZippedShapefile(uploadedFile);
+        	URL shapeFile = zippedShapefile.getShapefileUrl();
             
         	// (re)load the shapefile data 
             if(shapeFile != null)
@@ -166,26 +124,18 @@ public class ProcessGisUpload extends Job {
             	
             	// remove existing imports
             	if(gisUpload.type == GisUploadType.ROUTES)
-            	{
-            		List<GisRoute> routes = GisRoute.find("gisUpload = ?", gisUpload).fetch();
-            		
-            		for(GisRoute route : routes)
-            		{
-            			route.clear();
-            			route.delete();
-            		}	
-            	}
+            		GisRoute.deleteForUpload(gisUpload);
             	else if(gisUpload.type == GisUploadType.STOPS)
             		GisStop.delete("gisUpload = ?", gisUpload);
             	
             	// remove existing updload field mappings
             	GisUploadField.delete("gisUpload = ?", gisUpload);
             	
-            	FileDataStore store = FileDataStoreFinder.getDataStore(shapeFile);
+            	store = new ShapefileDataStore(shapeFile);
             	SimpleFeatureSource featureSource = store.getFeatureSource();
             	
             	SimpleFeatureCollection featureCollection = featureSource.getFeatures();
-            	SimpleFeatureIterator featureIterator = featureCollection.features();
+            	featureIterator = featureCollection.features();
             	
             	List<AttributeDescriptor> attributeDescriptors = featureSource.getSchema().getAttributeDescriptors();
             	
@@ -216,6 +166,15 @@ public class ProcessGisUpload extends Job {
     	        	
     	        boolean lenient = true; // allow for some error due to different datums
     	        MathTransform transform = CRS.findMathTransform(dataCRS, mapCRS, lenient);
+    	        
+    	        FeatureAttributeFormatter nameFormatter = gisUpload.fieldName != null ? new FeatureAttributeFormatter(gisUpload.fieldName) : null;
+    	        FeatureAttributeFormatter idFormatter = gisUpload.fieldId != null ? new FeatureAttributeFormatter(gisUpload.fieldId) : null;
+    	        FeatureAttributeFormatter descriptionFormatter = gisUpload.fieldDescription != null ? new FeatureAttributeFormatter(gisUpload.fieldDescription) : null;
+    	        
+    	        // features are read from the shapefile one at a time, and written without a flush each; every so often
+    	        // the batch is flushed and the session cleared, so that neither grows with the size of the file
+    	        EntityManager em = GisRoute.em();
+    	        int count = 0;
             	
             	while (featureIterator.hasNext()) 
             	{
@@ -243,27 +202,22 @@ public class ProcessGisUpload extends Job {
                 		route.originalShape = multiLineString;
                 		route.originalShape.setSRID(4326);
                 		
-                		if(gisUpload.fieldName != null)
-            			{
-            				FeatureAttributeFormatter attribFormatter = new FeatureAttributeFormatter(gisUpload.fieldName);
-            				route.routeName =  attribFormatter.format(feature);
-            				
-            			}
-	            		if(gisUpload.fieldId != null)
-	        			{
-	        				FeatureAttributeFormatter attribFormatter = new FeatureAttributeFormatter(gisUpload.fieldId);
-	        				route.routeId =  attribFormatter.format(feature);
-	        			}
-	        			if(gisUpload.fieldDescription != null)
-	        			{
-	        				FeatureAttributeFormatter attribFormatter = new FeatureAttributeFormatter(gisUpload.fieldDescription);
-	        				route.description =  attribFormatter.format(feature);
-	        			}
+                		if(nameFormatter != null)
+            				route.routeName =  nameFormatter.format(feature);
+	            		if(idFormatter != null)
+	        				route.routeId =  idFormatter.format(feature);
+	        			if(descriptionFormatter != null)
+	        				route.description =  descriptionFormatter.format(feature);
 	            		
-	            		route.save();
+	            		em.persist(route);
 	            		
-	            		route.processSegments();
-            			
+	            		route.createSegments();
+	            		
+	            		if(++count % ROUTE_BATCH_SIZE == 0)
+	            		{
+	            			em.flush();
+	            			em.clear();
+	            		}
             	   	}
             		else if(gisUpload.type == GisUploadType.STOPS)
             		{
@@ -281,25 +235,26 @@ public class ProcessGisUpload extends Job {
             			stop.shape = (Point)JTS.transform((Geometry)feature.getDefaultGeometry(), transform);
             			stop.shape.setSRID(4326);
                 		
-            			if(gisUpload.fieldName != null)
-            			{
-            				FeatureAttributeFormatter attribFormatter = new FeatureAttributeFormatter(gisUpload.fieldName);
-            				stop.stopName =  attribFormatter.format(feature);
-            			}
-            			if(gisUpload.fieldId != null)
-            			{
-            				FeatureAttributeFormatter attribFormatter = new FeatureAttributeFormatter(gisUpload.fieldId);
-            				stop.stopId =  attribFormatter.format(feature);
-            			}
-            			if(gisUpload.fieldDescription != null)
-            			{
-            				FeatureAttributeFormatter attribFormatter = new FeatureAttributeFormatter(gisUpload.fieldDescription);
-            				stop.description =  attribFormatter.format(feature);
-            			}
+            			if(nameFormatter != null)
+            				stop.stopName =  nameFormatter.format(feature);
+            			if(idFormatter != null)
+            				stop.stopId =  idFormatter.format(feature);
+            			if(descriptionFormatter != null)
+            				stop.description =  descriptionFormatter.format(feature);
             			
-                		stop.save();
+                		em.persist(stop);
+                		
+                		if(++count % STOP_BATCH_SIZE == 0)
+	            		{
+	            			em.flush();
+	            			em.clear();
+	            		}
             		}
-            	}	
+            	}
+            	
+            	em.flush();
+            	
+            	Logger.info("Loaded " + count + " features from GIS upload " + _gisUploadId);
             }
             else
             {
@@ -311,6 +266,25 @@ public class ProcessGisUpload extends Job {
         	Logger.error("Unable to process GIS Upload: ", e.toString());
         	e.printStackTrace();
         }
+        finally
+        {
+        	// the store reads from the extracted files, so release it before they are removed
+        	if(featureIterator != null)
+        		featureIterator.close();
+        	
+        	if(store != null)
+        		store.dispose();
+        	
+        	try
+        	{
+        		if(zippedShapefile != null)
+        			zippedShapefile.close();
+        	}
+        	catch(IOException e)
+        	{
+        		Logger.warn("Unable to close GIS upload: ", e.toString());
+        	}
+        }
 	}
 }
 
@@ -30,6 +30,7 @@ import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.serialization.GtfsReader;
 import org.onebusaway.gtfs.serialization.GtfsWriter;
+import org.opengis.referencing.operation.TransformException;
 
 import com.conveyal.gtfs.GTFSFeed;
 import com.conveyal.gtfs.model.CalendarDate;
@@ -64,6 +65,7 @@ import play.Play;
 import play.jobs.Job;
 import play.jobs.OnApplicationStart;
 import utils.DirectoryZip;
+import utils.StopShapeProjector;
 
 public class ProcessGtfsSnapshotExport extends Job {
 
@@ -99,6 +101,12 @@ public class ProcessGtfsSnapshotExport extends Job {
 			TLongSet stopList = new TLongHashSet();
 			TLongSet routeList = new TLongHashSet();
 			TLongSet shapeList = new TLongHashSet();
+			
+			// shapes are projected once and shared by all the patterns that use them;
+			// pattern stop distances along them are computed once per pattern
+			Map<Long, StopShapeProjector> shapeProjectors = new HashMap<Long, StopShapeProjector>();
+			TLongSet projectedPatterns = new TLongHashSet();
+			Map<Long, Double> patternStopDistances = new HashMap<Long, Double>();
 		
 			
 			for (Agency agency : snapshotExport.agencies) {
@@ -210,14 +218,26 @@ public class ProcessGtfsSnapshotExport extends Job {
 							routeList.add(trip.pattern.route.id);
 						}
 						
-						// save the shape
-						if (trip.pattern.shape != null && !shapeList.contains(trip.pattern.shape.id)) {
-							// TODO: this leaves feed.shapes in an undefined state. We don't really care for the time being.
-							for (Shape shp : trip.pattern.shape.toGtfs()) {
-								feed.shapePoints.put(new Tuple2<String, Integer>(shp.shape_id, shp.shape_pt_sequence), shp);
+						StopShapeProjector projector = null;
+						
+						if (trip.pattern.shape != null) {
+							projector = getProjector(trip.pattern.shape, shapeProjectors);
+						
+							// save the shape
+							if (!shapeList.contains(trip.pattern.shape.id)) {
+								// TODO: this leaves feed.shapes in an undefined state. We don't really care for the time being.
+								for (Shape shp : trip.pattern.shape.toGtfs(projector)) {
+									feed.shapePoints.put(new Tuple2<String, Integer>(shp.shape_id, shp.shape_pt_sequence), shp);
+								}
+								
+								shapeList.add(trip.pattern.shape.id);
 							}
-							
-							shapeList.add(trip.pattern.shape.id);
+						}
+						
+						// shape_dist_traveled for the pattern stops, in the same units as the shape
+						if (projector != null && !projectedPatterns.contains(trip.pattern.id)) {
+							projectPatternStops(patternStopTimes, projector, patternStopDistances);
+							projectedPatterns.add(trip.pattern.id);
 						}
 							
 						com.conveyal.gtfs.model.Trip gtfsTrip = trip.toGtfs(feed.routes.get(trip.pattern.route.getGtfsId()), service);
@@ -264,7 +284,7 @@ public class ProcessGtfsSnapshotExport extends Job {
 							    st.departure_time = cumulativeTime;
 							    st.pickup_type = stopTime.stop.pickupType != null ? stopTime.stop.pickupType.toGtfsValue() : 0;
 							    st.drop_off_type = stopTime.stop.dropOffType != null ? stopTime.stop.dropOffType.toGtfsValue() : 0;
-							    st.shape_dist_traveled = Double.NaN;
+							    st.shape_dist_traveled = projector != null && patternStopDistances.containsKey(stopTime.id) ? patternStopDistances.get(stopTime.id) : Double.NaN;
 							    st.stop_sequence = stopTime.stopSequence;
 							    st.timepoint = stopTime.timepoint != null ? (stopTime.timepoint ? 1 : 0) : st.INT_MISSING;
 								
@@ -273,7 +293,7 @@ public class ProcessGtfsSnapshotExport extends Job {
 						}
 						else {
 							// timetable based feed						
-							List<StopTime> stopTimes = StopTime.find("trip = ? order by stopSequence", trip).fetch();
+							List<StopTime> stopTimes = trip.getStopTimes();
 							
 							for(StopTime stopTime : stopTimes) {
 								if (!stopList.contains(stopTime.stop.id)) {
@@ -283,6 +303,14 @@ public class ProcessGtfsSnapshotExport extends Job {
 								}
 								
 								com.conveyal.gtfs.model.StopTime st = stopTime.toGtfs();
+								
+								// stored distances may be in whatever units the original feed used, so when we export the shape
+								// (in meters) use distances along it instead
+								if (projector != null) {
+									Double dist = stopTime.patternStop != null ? patternStopDistances.get(stopTime.patternStop.id) : null;
+									st.shape_dist_traveled = dist != null ? dist : Double.NaN;
+								}
+								
 								feed.stop_times.put(new Tuple2(st.trip_id, st.stop_sequence), st);
 							}
 						}
@@ -305,6 +333,48 @@ public class ProcessGtfsSnapshotExport extends Job {
 		}
 	}
 
+	/**
+	 * Get the projector for a shape, creating it if need be. Returns null if the shape can't be projected, in which case
+	 * distances are left out of the feed.
+	 */
+	private static StopShapeProjector getProjector(TripShape shape, Map<Long, StopShapeProjector> shapeProjectors) {
+		if (!shapeProjectors.containsKey(shape.id)) {
+			StopShapeProjector projector = null;
+			
+			try {
+				if (shape.shape != null && shape.shape.getNumPoints() > 1)
+					projector = StopShapeProjector.create(shape.shape);
+			} catch (TransformException e) {
+				Logger.warn("Unable to project shape %s, shape_dist_traveled will not be exported", shape.id);
+			}
+			
+			shapeProjectors.put(shape.id, projector);
+		}
+		
+		return shapeProjectors.get(shape.id);
+	}
+	
+	/**
+	 * Compute the distance along the shape of each of the (sorted) pattern stops, keyed by pattern stop ID.
+	 */
+	private static void projectPatternStops(List<TripPatternStop> patternStops, StopShapeProjector projector, Map<Long, Double> patternStopDistances) {
+		Coordinate[] coords = new Coordinate[patternStops.size()];
+		
+		for (int i = 0; i < coords.length; i++) {
+			coords[i] = patternStops.get(i).stop.locationPoint().getCoordinate();
+		}
+		
+		try {
+			double[] distances = projector.project(coords);
+			
+			for (int i = 0; i < distances.length; i++) {
+				patternStopDistances.put(patternStops.get(i).id, distances[i]);
+			}
+		} catch (TransformException e) {
+			Logger.warn("Unable to project pattern stops, shape_dist_traveled will not be exported");
+		}
+	}
+
 	public static int toGtfsDate(LocalDate date) {
 		return date.getYear() * 10000 +
 				date.getMonthOfYear() * 100 +
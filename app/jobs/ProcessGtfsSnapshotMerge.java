@@ -44,6 +44,7 @@ import play.Play;
 import play.jobs.Job;
 import play.jobs.OnApplicationStart;
 import utils.StopSequence;
+import utils.TripPatternLookup;
 
 
 public class ProcessGtfsSnapshotMerge extends Job {
@@ -61,8 +62,7 @@ public class ProcessGtfsSnapshotMerge extends Job {
 
 	private Map<BigInteger, ArrayList<StopSequence>> tripStopTimeMap = new HashMap<BigInteger, ArrayList<StopSequence>>();
 	
-	private Map<BigInteger, ArrayList<StopSequence>> tripPatternStopMap = new HashMap<BigInteger, ArrayList<StopSequence>>();
-	private Multimap<BigInteger, BigInteger> routeTripPatternMap = HashMultimap.create();
+	private TripPatternLookup tripPatternLookup = new TripPatternLookup();
 	private Map<BigInteger, BigInteger> tripRouteIdMap = Maps.newHashMap();
 	
 	private Map<String, List<org.onebusaway.gtfs.model.ShapePoint>> shapePointIdMap = new HashMap<String, List<org.onebusaway.gtfs.model.ShapePoint>>();
@@ -389,12 +389,6 @@ public class ProcessGtfsSnapshotMerge extends Job {
 		}
 	}
 
-	private void addTripPatternToLookup(BigInteger patternId, ArrayList<StopSequence> stopTimes, BigInteger routeId)
-	{
-		routeTripPatternMap.put(routeId, patternId);
-		tripPatternStopMap.put(patternId, stopTimes);
-	}
-			
 	private void inferTripPatterns(EntityManager em)
 	{
 		Set<BigInteger> tripIds = tripStopTimeMap.keySet();
@@ -404,48 +398,19 @@ public class ProcessGtfsSnapshotMerge extends Job {
 			
 			Collections.sort(stopTimes);
 			
-			BigInteger patternId = findExistingPattern(stopTimes, tripRouteIdMap.get(tripId));
+			BigInteger patternId = tripPatternLookup.find(stopTimes, tripRouteIdMap.get(tripId));
 			
 			if(patternId == null)
 			{
 				patternId = TripPattern.createFromTrip(em, tripId);
-				addTripPatternToLookup(patternId, stopTimes, tripRouteIdMap.get(tripId));
+				tripPatternLookup.add(patternId, stopTimes, tripRouteIdMap.get(tripId));
 			}		
 		
 			Trip.em().createNativeQuery("UPDATE trip SET pattern_id = ? WHERE id = ?").setParameter(1, patternId).setParameter(2,  tripId).executeUpdate();
 		}
 	}
 	
-	private BigInteger findExistingPattern(ArrayList<StopSequence> stopTimes, BigInteger routeId)
-	{		
-		Collection<BigInteger> candidatePatterns = routeTripPatternMap.get(routeId);
-		
-		if(candidatePatterns == null)
-			return null;
-		
-		PATTERNS: for(BigInteger candidate : candidatePatterns)
-		{
-			ArrayList<StopSequence> patternStops = tripPatternStopMap.get(candidate);
-			
-			if(patternStops.size() != stopTimes.size())
-				continue;
-			
-			int index = 0;
-			for(StopSequence patternStop : patternStops)
-			{
-				if(!patternStop.stopId.equals(stopTimes.get(index++).stopId))
-					// this is not the pattern
-					continue PATTERNS;
-			}
-			
-			return candidate;
-		}
-		
-		return null;	
-	}
-	
-	
-	
+
 
 }
 
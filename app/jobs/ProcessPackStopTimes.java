@@ -0,0 +1,46 @@
+package jobs;
+
+import java.util.List;
+
+import models.transit.Agency;
+import models.transit.Trip;
+import play.Logger;
+import play.jobs.Job;
+
+/**
+ * Convert the stop times of every trip of an agency to packed storage, or back to StopTime rows if unpack is set. The
+ * trips are converted a thousand at a time, see Trip.pack and Trip.unpack.
+ */
+public class ProcessPackStopTimes extends Job<Integer> {
+
+	private Long agencyId;
+	private boolean unpack;
+
+	public ProcessPackStopTimes(Long agencyId, boolean unpack) {
+		this.agencyId = agencyId;
+		this.unpack = unpack;
+	}
+
+	public Integer doJobWithResult() {
+
+		Agency agency = Agency.findById(agencyId);
+
+		if(agency == null)
+			return 0;
+
+		List<Long> tripIds = Trip.find("SELECT t.id FROM Trip t WHERE t.pattern.route.agency = ? AND t.packedStopTimes IS " +
+				(unpack ? "NOT NULL" : "NULL"), agency).fetch();
+
+		long start = System.currentTimeMillis();
+
+		if(unpack)
+			Trip.unpack(tripIds);
+		else
+			Trip.pack(tripIds);
+
+		Logger.info((unpack ? "Unpacked " : "Packed ") + tripIds.size() + " trips of agency " + agencyId + " in " +
+				(System.currentTimeMillis() - start) + " ms");
+
+		return tripIds.size();
+	}
+}
@@ -0,0 +1,129 @@
+package jobs;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import models.gis.GisRouteSegment;
+import models.transit.Agency;
+import models.transit.TripPattern;
+import models.transit.TripShape;
+import play.Logger;
+import play.jobs.Job;
+import utils.RoutingGraph;
+import utils.StopShapeProjector;
+
+/**
+ * Generate the shapes of the patterns of an agency by routing between their stops over the agency's GIS route
+ * segments, instead of drawing straight lines from stop to stop.
+ *
+ * The segments are loaded and built into a RoutingGraph once, and then every pattern is routed over it. Only patterns
+ * without a shape are done, unless overwrite is set. The default distances of the pattern stops are projected onto the
+ * new shapes, as when a shape is edited.
+ */
+public class ProcessPatternShapes extends Job<Integer> {
+
+	/** how many patterns to do between clearing the session */
+	private static final int BATCH_SIZE = 100;
+
+	private Long agencyId;
+	private boolean overwrite;
+
+	public ProcessPatternShapes(Long agencyId, boolean overwrite) {
+		this.agencyId = agencyId;
+		this.overwrite = overwrite;
+	}
+
+	public Integer doJobWithResult() {
+
+		Agency agency = Agency.findById(agencyId);
+
+		if(agency == null)
+			return 0;
+
+		// reverse segments are copies of forward ones, and every edge of the graph can be travelled both ways anyway
+		List<LineString> lines = GisRouteSegment.find("SELECT s.segment FROM GisRouteSegment s " +
+				"WHERE s.fromPoint.gisRoute.agency = ? AND (s.reverse = false OR s.reverse IS NULL)", agency).fetch();
+
+		long start = System.currentTimeMillis();
+		RoutingGraph graph = new RoutingGraph(lines);
+
+		Logger.info("Built routing graph for agency " + agencyId + " with " + graph.getNodeCount() + " nodes and " +
+				graph.getEdgeCount() + " edges in " + (System.currentTimeMillis() - start) + " ms");
+
+		lines = null;
+
+		List<Long> patternIds = TripPattern.find("SELECT p.id FROM TripPattern p WHERE p.route.agency = ?" +
+				(overwrite ? "" : " AND p.shape IS NULL"), agency).fetch();
+
+		EntityManager em = TripPattern.em();
+		int count = 0;
+		int processed = 0;
+
+		start = System.currentTimeMillis();
+
+		for(Long patternId : patternIds) {
+			TripPattern tp = TripPattern.findById(patternId);
+
+			if(updateShape(tp, graph))
+				count++;
+
+			if(++processed % BATCH_SIZE == 0) {
+				em.flush();
+				em.clear();
+			}
+		}
+
+		Logger.info("Generated " + count + " pattern shapes in " + (System.currentTimeMillis() - start) + " ms");
+
+		return count;
+	}
+
+	/** route a shape for a pattern, and save it on the pattern; returns false if the pattern has fewer than two stops */
+	private static boolean updateShape(TripPattern tp, RoutingGraph graph) {
+
+		LineString linestring = TripShape.shapeForPattern(tp, graph);
+
+		if(linestring == null)
+			return false;
+
+		if(tp.shape == null) {
+			BigInteger tripShapeId = TripShape.nativeInsert(TripShape.em(), "", new WKBWriter().write(linestring), 0.0);
+			tp.shape = TripShape.findById(tripShapeId.longValue());
+		}
+		else {
+			tp.shape.updateShape(linestring);
+		}
+
+		tp.encodedShape = tp.shape.generateEncoded();
+
+		// shapeForPattern has sorted the pattern stops
+		Coordinate[] stopCoords = new Coordinate[tp.patternStops.size()];
+
+		for(int i = 0; i < stopCoords.length; i++) {
+			stopCoords[i] = tp.patternStops.get(i).stop.locationPoint().getCoordinate();
+		}
+
+		try {
+			double[] distances = StopShapeProjector.create(tp.shape.shape).project(stopCoords);
+
+			for(int i = 0; i < distances.length; i++) {
+				tp.patternStops.get(i).defaultDistance = distances[i];
+			}
+		} catch (TransformException e) {
+			Logger.warn("Could not project the stops of pattern " + tp.id + " onto its shape: " + e.getMessage());
+		}
+
+		// cascades to the pattern stops
+		tp.save();
+
+		return true;
+	}
+}
@@ -1,36 +1,76 @@
 package jobs;
 
 
-import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.List;
-import java.util.Map;
+
+import javax.persistence.Query;
+
+import org.apache.commons.lang.StringUtils;
 
 import models.transit.Agency;
 import models.transit.Route;
-import models.transit.Stop;
-import models.transit.StopTime;
 import models.transit.Trip;
 import models.transit.TripPattern;
-import models.transit.TripPatternStop;
 import models.transit.TripShape;
 
 import play.Logger;
-import play.Play;
 import play.jobs.Job;
 import play.jobs.OnApplicationStart;
-import utils.StopSequence;
+import utils.ReferenceCache;
 
+/**
+ * Derive the attributes used by the system map: the routes of trips, which agencies have trips, which patterns and
+ * routes run on weekdays, Saturdays and Sundays, and the longest pattern of each name on a route.
+ *
+ * In incremental mode only the routes touched since the last run are recomputed, with their patterns. Changes are
+ * found by the lastModified timestamps of routes, patterns, trips and calendars; code that changes them with native
+ * SQL or bulk statements must set those itself (see TripPattern.touch). Agencies are always all recomputed, since a
+ * deleted or moved route leaves no timestamp behind. The first run after startup is always a full one. Imported
+ * entities are not timestamped, so run a full one after an import too.
+ */
 //@OnApplicationStart
 public class ProcessSystemMap extends Job {
 
+	/** when the last committed run started; anything saved after that is picked up by the next incremental run */
+	private static volatile Date lastRun = null;
+	
+	/** when this run started, recorded as the last run once its transaction has committed */
+	private Date runStart;
+	
+	private boolean incremental;
+	
+	/** the routes being recomputed, or null for all of them */
+	private List<Long> routeIds;
+	
+	public ProcessSystemMap() {
+		this(false);
+	}
+	
+	public ProcessSystemMap(boolean incremental) {
+		this.incremental = incremental;
+	}
 	
 	public void doJob() {
 		
-		Logger.info("Processing system map...");
+		runStart = new Date();
+		
+		if(incremental && lastRun != null) {
+			routeIds = findModifiedRoutes(lastRun);
+			
+			Logger.info("Processing system map for " + routeIds.size() + " modified routes...");
+			
+			if(routeIds.isEmpty()) {
+				findAgencies();
+				return;
+			}
+		}
+		else {
+			routeIds = null;
+			
+			Logger.info("Processing system map...");
+		}
 		
 		linkRouteTrips();
 		
@@ -46,47 +86,76 @@ public class ProcessSystemMap extends Job {
 	
 	}
 	
+	/**
+	 * Commit, and only then move lastRun on, so that a run that rolls back is done again by the next incremental one.
+	 */
+	@Override
+	public void after() {
+		super.after();
+		
+		if(runStart != null)
+			lastRun = runStart;
+	}
+	
+	/**
+	 * Find the routes saved since the given time, or with patterns, trips or trip calendars saved since then.
+	 */
+	public static List<Long> findModifiedRoutes(Date since) {
+		Query q = Route.em().createNativeQuery("SELECT id FROM route WHERE lastmodified > ?1 " +
+				"UNION SELECT route_id FROM trippattern WHERE lastmodified > ?1 " +
+				"UNION SELECT p.route_id FROM trip t JOIN trippattern p ON p.id = t.pattern_id WHERE t.lastmodified > ?1 " +
+				"UNION SELECT p.route_id FROM trip t JOIN trippattern p ON p.id = t.pattern_id " +
+				"JOIN servicecalendar c ON c.id = t.servicecalendar_id WHERE c.lastmodified > ?1");
+		q.setParameter(1, since);
+		
+		List<Long> routeIds = new ArrayList<Long>();
+		
+		for(Object id : q.getResultList()) {
+			if(id != null)
+				routeIds.add(((Number) id).longValue());
+		}
+		
+		return routeIds;
+	}
+	
+	/** a condition restricting the given route ID column to the routes being recomputed, or null for all routes */
+	private String routeCondition(String column) {
+		if(routeIds == null)
+			return null;
+		
+		return column + " IN (" + StringUtils.join(routeIds, ",") + ")";
+	}
+	
+	private String where(String condition) {
+		return condition == null ? "" : " WHERE " + condition;
+	}
+	
+	private String and(String condition) {
+		return condition == null ? "" : " AND " + condition;
+	}
+	
 	public void linkRouteTrips() {
 		
 		Logger.info("Linking routes to trips...");
 		
-		List<Trip> trips = Trip.findAll();
-	
-		for(Trip trip : trips)
-		{
-			if(trip.pattern == null)
-				continue;
-			
-			if(trip.route != null)
-				continue;
-			
-			trip.route = trip.pattern.route;
-			
-			trip.save();
-		}
+		String scope = routeIds == null ? null : "pattern_id IN (SELECT id FROM trippattern WHERE " + routeCondition("route_id") + ")";
+		
+		Trip.em().createNativeQuery("UPDATE trip SET route_id = (SELECT p.route_id FROM trippattern p WHERE p.id = trip.pattern_id) " +
+				"WHERE route_id IS NULL AND pattern_id IS NOT NULL" + and(scope))
+				.executeUpdate();
 	}
 	
 	public void findAgencies() {
 		
 		Logger.info("Finding active agencies...");
 		
-		List<Agency> agencies = Agency.findAll();
-	
-		for(Agency agency : agencies)
-		{
-			agency.systemMap = false;
-			
-			List<Route> routes = Route.find("agency = ?", agency).fetch();
-			
-			for(Route route : routes)
-			{
-				if(Trip.count("route = ?", route) > 0)
-				{
-					agency.systemMap = true;
-					agency.save();
-				}
-			}
-		}
+		// every agency, even in incremental mode: there are few of them, and each stops at its first trip
+		Agency.em().createNativeQuery("UPDATE agency SET systemmap = EXISTS " +
+				"(SELECT 1 FROM route r JOIN trip t ON t.route_id = r.id WHERE r.agency_id = agency.id)")
+				.executeUpdate();
+		
+		// cached agencies still have the old flag
+		ReferenceCache.invalidate(Agency.class);
 	}
 	
 	
@@ -94,111 +163,48 @@ public class ProcessSystemMap extends Job {
 	
 		Logger.info("Finding service calendars for trip patterns...");
 		
-		List<TripPattern> patterns = TripPattern.findAll();
+		// patterns without trips don't run at all
+		TripPattern.em().createNativeQuery("UPDATE trippattern SET weekday = FALSE, saturday = FALSE, sunday = FALSE" +
+				where(routeCondition("route_id")))
+				.executeUpdate();
 		
-		for(TripPattern pattern : patterns)
-		{
-			Boolean weekday = false;
-			Boolean saturday = false;
-			Boolean sunday = false;
-			
-			List<Trip> trips = Trip.find("pattern = ?", pattern).fetch();
-			
-			for(Trip trip : trips)
-			{ 
-				if(trip.serviceCalendar.monday == true || trip.serviceCalendar.tuesday == true || trip.serviceCalendar.wednesday == true || trip.serviceCalendar.thursday == true || trip.serviceCalendar.friday == true)
-					weekday = true;
-				if(trip.serviceCalendar.saturday == true)
-					saturday = true;
-				if(trip.serviceCalendar.sunday == true)
-					sunday = true;
-			}
-			
-			pattern.weekday = weekday;
-			pattern.saturday = saturday;
-			pattern.sunday = sunday;
-			
-			pattern.save();
-		}
+		TripPattern.em().createNativeQuery("UPDATE trippattern SET weekday = s.weekday, saturday = s.saturday, sunday = s.sunday FROM " +
+				"(SELECT t.pattern_id, " +
+				"bool_or(COALESCE(c.monday OR c.tuesday OR c.wednesday OR c.thursday OR c.friday, FALSE)) AS weekday, " +
+				"bool_or(COALESCE(c.saturday, FALSE)) AS saturday, " +
+				"bool_or(COALESCE(c.sunday, FALSE)) AS sunday " +
+				"FROM trip t JOIN servicecalendar c ON c.id = t.servicecalendar_id GROUP BY t.pattern_id) s " +
+				"WHERE trippattern.id = s.pattern_id" + and(routeCondition("trippattern.route_id")))
+				.executeUpdate();
 		
 		Logger.info("Finding service calendars for routes...");
 		
-		List<Route> routes = Route.findAll();
-		
-		for(Route route : routes)
-		{
-			List<TripPattern> routePatterns = TripPattern.find("route = ?", route).fetch();
-			
-			Boolean weekday = false;
-			Boolean saturday = false;
-			Boolean sunday = false;
-			
-			for(TripPattern pattern : routePatterns)
-			{
-				if(pattern.weekday == true)
-					weekday = true;
-				if(pattern.saturday == true)
-					saturday = true;
-				if(pattern.sunday == true)
-					sunday = true;
-			}
-			
-			route.weekday = weekday;
-			route.saturday = saturday;
-			route.sunday = sunday;
-			
-			route.save();
-		}	
+		Route.em().createNativeQuery("UPDATE route SET weekday = FALSE, saturday = FALSE, sunday = FALSE" +
+				where(routeCondition("id")))
+				.executeUpdate();
+		
+		Route.em().createNativeQuery("UPDATE route SET weekday = s.weekday, saturday = s.saturday, sunday = s.sunday FROM " +
+				"(SELECT route_id, " +
+				"bool_or(COALESCE(weekday, FALSE)) AS weekday, " +
+				"bool_or(COALESCE(saturday, FALSE)) AS saturday, " +
+				"bool_or(COALESCE(sunday, FALSE)) AS sunday " +
+				"FROM trippattern GROUP BY route_id) s " +
+				"WHERE route.id = s.route_id" + and(routeCondition("route.id")))
+				.executeUpdate();
 	}
 	
 	public void findShortestTripPatterns() {
 		Logger.info("Finding longest trip patterns...");
 		
-		Map<Route, Map<String, ArrayList<TripPattern>>> tripPatternMap = new HashMap<Route, Map<String, ArrayList<TripPattern>>>();
-		
-		List<TripPattern> patterns = TripPattern.findAll();
-		
-		for(TripPattern pattern : patterns)
-		{
-			pattern.longest = false;
-			pattern.save();
-			
-			if(!tripPatternMap.containsKey(pattern.route))
-				tripPatternMap.put(pattern.route, new HashMap<String, ArrayList<TripPattern>>());
-			
-			if(!tripPatternMap.get(pattern.route).containsKey(pattern.name))
-				tripPatternMap.get(pattern.route).put(pattern.name, new ArrayList<TripPattern>());
-			
-			tripPatternMap.get(pattern.route).get(pattern.name).add(pattern);	
-		}
-		
-		for(Map<String, ArrayList<TripPattern>> routes : tripPatternMap.values())
-		{
-			for(ArrayList<TripPattern> groupedPatterns : routes.values())
-			{
-				TripPattern longestPattern = null;
-				
-				for(TripPattern p : groupedPatterns)
-				{
-					if(longestPattern == null)
-						longestPattern = p;
-					else
-					{
-						if(longestPattern.shape.shape.getLength() < p.shape.shape.getLength())
-							longestPattern = p;
-					}
-				}
-				
-				longestPattern.longest = true;
-				longestPattern.save();
-			}
-		}
+		TripPattern.updateLongest(routeIds);
 	}
 
 	public void simplifyTripShapes() {
 		Logger.info("Simplifying trip shapes...");
 	
-		TripShape.em().createNativeQuery("UPDATE tripshape SET simpleshape = ST_Simplify(shape, 0.00001);").executeUpdate();
+		String scope = routeIds == null ? null : "id IN (SELECT shape_id FROM trippattern WHERE " + routeCondition("route_id") + ")";
+		
+		TripShape.em().createNativeQuery("UPDATE tripshape SET simpleshape = ST_Simplify(shape, 0.00001)" + where(scope)).executeUpdate();
 	}
 }
 
@@ -0,0 +1,293 @@
+package jobs;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.base.Joiner;
+
+import models.gtfs.GtfsSnapshot;
+import models.gtfs.GtfsSnapshotExport;
+import models.gtfs.GtfsSnapshotExportCalendars;
+import models.gtfs.GtfsSnapshotMerge;
+import models.gtfs.GtfsSnapshotMergeTask;
+import models.gtfs.GtfsSnapshotSource;
+import models.transit.Agency;
+import play.Logger;
+import play.Play;
+import play.db.jpa.JPA;
+import play.jobs.Job;
+import utils.ReferenceCache;
+import utils.SyntheticGtfsGenerator;
+
+/**
+ * Generate a synthetic GTFS feed, import it and export it again, timing each stage.
+ *
+ * Reports wall time, rows per second and peak heap for each stage as JSON, which is also written to
+ * tmp/benchmarks/throughput-<timestamp>.json so results can be tracked over time. The import uses PostGIS functions,
+ * so this must run against a PostgreSQL/PostGIS database. The synthetic agency, everything imported into it, the
+ * snapshot records and the feed files are deleted again when the run finishes, whether or not it succeeded; still,
+ * prefer a scratch database, as the run loads the database as heavily as a real import.
+ *
+ * Start it with .now() (see BackgroundJobs), it takes far longer than a request should.
+ */
+public class ProcessThroughputBenchmark extends Job<Map<String, Object>> {
+
+	private SyntheticGtfsGenerator generator;
+
+	public ProcessThroughputBenchmark(SyntheticGtfsGenerator generator)
+	{
+		this.generator = generator;
+	}
+
+	public Map<String, Object> doJobWithResult() throws Exception {
+
+		long timestamp = System.currentTimeMillis();
+
+		// a new agency for every run, so that runs don't merge into each other
+		generator.agencyId = "SYNTHETIC-" + timestamp;
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		List<Map<String, Object>> stages = new ArrayList<Map<String, Object>>();
+
+		GtfsSnapshot snapshot = null;
+		GtfsSnapshotMerge merge = null;
+		GtfsSnapshotExport export = null;
+		File gtfsFile = null;
+
+		try {
+			// generate
+			snapshot = new GtfsSnapshot("Synthetic throughput benchmark feed", new Date(), GtfsSnapshotSource.UPLOAD);
+			snapshot.save();
+
+			// ProcessGtfsSnapshotMerge reads the feed from the public data directory
+			gtfsFile = new File(Play.configuration.getProperty("application.publicDataDirectory"), snapshot.getFilename());
+
+			startStage();
+			generator.write(gtfsFile);
+			stages.add(endStage("generate", generator.getRowCount()));
+
+			// import
+			merge = new GtfsSnapshotMerge(snapshot);
+			merge.save();
+
+			startStage();
+			new ProcessGtfsSnapshotMerge(merge.id).doJob();
+			stages.add(endStage("import", generator.getRowCount()));
+
+			// the merge commits its own transaction
+			if (!JPA.em().getTransaction().isActive())
+				JPA.em().getTransaction().begin();
+
+			// export
+			Agency agency = Agency.find("gtfsAgencyId = ?", generator.agencyId).first();
+
+			if (agency == null)
+				throw new IllegalStateException("Synthetic feed was not imported, see the log for errors");
+
+			List<Agency> agencies = new ArrayList<Agency>();
+			agencies.add(agency);
+
+			Date now = new Date();
+			Date twoMonths = new Date(now.getTime() + 2L * 31L * 24L * 60L * 60L * 1000L);
+			export = new GtfsSnapshotExport(agencies, GtfsSnapshotExportCalendars.CURRENT_AND_FUTURE, now, twoMonths, "Synthetic throughput benchmark export");
+
+			startStage();
+			new ProcessGtfsSnapshotExport(export.id).doJob();
+			stages.add(endStage("export", generator.getRowCount()));
+
+			Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+			parameters.put("routes", generator.routes);
+			parameters.put("patternsPerRoute", generator.patternsPerRoute);
+			parameters.put("tripsPerPattern", generator.tripsPerPattern);
+			parameters.put("stopsPerRoute", generator.stopsPerRoute);
+			parameters.put("shapePointSpacing", generator.shapePointSpacing);
+
+			Map<String, Object> feed = new LinkedHashMap<String, Object>();
+			feed.put("stops", generator.stopCount);
+			feed.put("trips", generator.tripCount);
+			feed.put("stopTimes", generator.stopTimeCount);
+			feed.put("shapePoints", generator.shapePointCount);
+			feed.put("rows", generator.getRowCount());
+			feed.put("bytes", gtfsFile.length());
+
+			Map<String, Object> jvm = new LinkedHashMap<String, Object>();
+			jvm.put("version", System.getProperty("java.version"));
+			jvm.put("maxHeap", Runtime.getRuntime().maxMemory());
+			jvm.put("processors", Runtime.getRuntime().availableProcessors());
+
+			result.put("timestamp", timestamp);
+			result.put("parameters", parameters);
+			result.put("feed", feed);
+			result.put("stages", stages);
+			result.put("jvm", jvm);
+
+			// not in the public data directory, results are for admins only
+			File outDir = new File(Play.tmpDir, "benchmarks");
+			outDir.mkdirs();
+
+			File out = new File(outDir, "throughput-" + timestamp + ".json");
+			new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, result);
+
+			Logger.info("Throughput benchmark written to " + out);
+
+			return result;
+		}
+		finally {
+			cleanUp(snapshot, merge, export, gtfsFile);
+		}
+	}
+
+	/**
+	 * Delete the synthetic agency with everything imported into it, the snapshot, merge and export records, and the
+	 * feed files. Failures are logged rather than thrown, so as not to mask the result or error of the run.
+	 */
+	private void cleanUp(GtfsSnapshot snapshot, GtfsSnapshotMerge merge, GtfsSnapshotExport export, File gtfsFile) {
+		EntityTransaction tx = JPA.em().getTransaction();
+
+		// a failed stage may have left the transaction unusable
+		if (tx.isActive() && tx.getRollbackOnly())
+			tx.rollback();
+
+		if (!tx.isActive())
+			tx.begin();
+
+		try {
+			JPA.em().clear();
+
+			if (export != null) {
+				GtfsSnapshotExport exported = GtfsSnapshotExport.findById(export.id);
+
+				if (exported != null)
+					exported.delete();
+
+				new File(Play.configuration.getProperty("application.publicDataDirectory"), export.getDirectory() + ".zip").delete();
+			}
+
+			if (merge != null) {
+				GtfsSnapshotMergeTask.delete("merge.id = ?", merge.id);
+				GtfsSnapshotMerge.delete("id = ?", merge.id);
+			}
+
+			if (snapshot != null)
+				GtfsSnapshot.delete("id = ?", snapshot.id);
+
+			if (gtfsFile != null)
+				gtfsFile.delete();
+
+			// a failed import may still have committed part of the agency
+			Agency agency = Agency.find("gtfsAgencyId = ?", generator.agencyId).first();
+
+			if (agency != null)
+				deleteAgency(agency.id);
+
+			tx.commit();
+		} catch (Exception e) {
+			Logger.error(e, "Throughput benchmark: could not clean up synthetic agency " + generator.agencyId);
+
+			if (tx.isActive())
+				tx.rollback();
+		}
+		finally {
+			// the agency was deleted behind Hibernate's back
+			ReferenceCache.invalidate(Agency.class);
+
+			// leave a transaction for the job to commit
+			if (!tx.isActive())
+				tx.begin();
+		}
+	}
+
+	/** delete an agency and everything under it, children first */
+	private void deleteAgency(Long agencyId) {
+		EntityManager em = JPA.em();
+
+		String routes = "SELECT id FROM route WHERE agency_id = ?";
+		String trips = "SELECT id FROM trip WHERE route_id IN (" + routes + ")";
+		String patterns = "SELECT id FROM trippattern WHERE route_id IN (" + routes + ")";
+
+		// imported shapes aren't tied to the agency, only to its trips and patterns
+		List<Number> shapeIds = em.createNativeQuery("SELECT shape_id FROM trip WHERE route_id IN (" + routes + ") AND shape_id IS NOT NULL " +
+				"UNION SELECT shape_id FROM trippattern WHERE route_id IN (" + routes + ") AND shape_id IS NOT NULL")
+				.setParameter(1, agencyId)
+				.setParameter(2, agencyId)
+				.getResultList();
+
+		String[] deletes = new String[] {
+				"DELETE FROM stoptime WHERE trip_id IN (" + trips + ")",
+				"DELETE FROM trip WHERE route_id IN (" + routes + ")",
+				"DELETE FROM trippattern_trippatternstop WHERE trippattern_id IN (" + patterns + ")",
+				"DELETE FROM trippatternstop WHERE pattern_id IN (" + patterns + ")",
+				"DELETE FROM trippattern WHERE route_id IN (" + routes + ")",
+				"DELETE FROM route WHERE agency_id = ?",
+				"DELETE FROM stop WHERE agency_id = ?",
+				"DELETE FROM servicecalendardate WHERE calendar_id IN (SELECT id FROM servicecalendar WHERE agency_id = ?)",
+				"DELETE FROM servicecalendar WHERE agency_id = ?",
+				"DELETE FROM tripshape WHERE agency_id = ?"
+		};
+
+		for (String delete : deletes) {
+			em.createNativeQuery(delete)
+				.setParameter(1, agencyId)
+				.executeUpdate();
+		}
+
+		for (int i = 0; i < shapeIds.size(); i += 1000) {
+			em.createNativeQuery("DELETE FROM tripshape WHERE id IN (" + Joiner.on(',').join(shapeIds.subList(i, Math.min(i + 1000, shapeIds.size()))) + ")")
+				.executeUpdate();
+		}
+
+		em.createNativeQuery("DELETE FROM agency WHERE id = ?")
+			.setParameter(1, agencyId)
+			.executeUpdate();
+
+		Logger.info("Throughput benchmark: deleted synthetic agency " + generator.agencyId);
+	}
+
+	private long stageStart;
+
+	private void startStage() {
+		System.gc();
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+
+		stageStart = System.nanoTime();
+	}
+
+	/**
+	 * Peak heap is the sum of the peaks of the heap pools, which need not be simultaneous, so it is an upper bound.
+	 */
+	private Map<String, Object> endStage(String name, long rows) {
+		long elapsed = System.nanoTime() - stageStart;
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peakHeap += pool.getPeakUsage().getUsed();
+		}
+
+		Map<String, Object> stage = new LinkedHashMap<String, Object>();
+		stage.put("stage", name);
+		stage.put("wallTimeMs", elapsed / 1000000);
+		stage.put("rowsPerSecond", rows * 1e9 / elapsed);
+		stage.put("peakHeapBytes", peakHeap);
+
+		Logger.info("Throughput benchmark: " + name + " took " + elapsed / 1000000 + " ms");
+
+		return stage;
+	}
+}
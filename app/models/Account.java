@@ -5,6 +5,7 @@ import java.util.Date;
 import java.util.UUID;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.ManyToOne;
 
 //import notifications.Mails;
@@ -16,8 +17,10 @@ import org.hsqldb.lib.MD5;
 
 import play.Play;
 import play.db.jpa.Model;
+import utils.ReferenceCache;
 
 @Entity
+@EntityListeners(ReferenceCache.Invalidator.class)
 public class Account extends Model {
  
     public String username;
@@ -81,6 +84,16 @@ public class Account extends Model {
     	this.save();
     }
     
+    /** a copy of the account with a username, from the reference cache; it can't be saved */
+    public static Account findCached(final String username)
+    {
+    	return ReferenceCache.get(Account.class, username, new ReferenceCache.Loader<Account>() {
+    		public Account load() {
+    			return Account.find("username = ?", username).first();
+    		}
+    	});
+    }
+    
     public Boolean isAdmin()
     {
     	if(this.admin != null && this.admin)
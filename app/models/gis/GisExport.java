@@ -26,15 +26,25 @@ public class GisExport extends Model {
 	@Enumerated(EnumType.STRING)
 	public GisExportStatus status;
 	
+	/** null for exports made before there was a choice, which are shapefiles */
+	@Enumerated(EnumType.STRING)
+	public GisExportFormat format;
+	
     public String description;
     public Date creationDate;
     
    
     public GisExport(List<Agency> agencies, GisUploadType type, String descipriton) 
+    {
+    	this(agencies, type, GisExportFormat.SHAPEFILE, descipriton);
+    }
+    
+    public GisExport(List<Agency> agencies, GisUploadType type, GisExportFormat format, String descipriton) 
     {
     	
     	this.agencies = agencies;
     	this.type = type;
+    	this.format = format;
     	this.description = descipriton;
     
     	this.status = GisExportStatus.PROCESSING;
@@ -46,6 +56,9 @@ public class GisExport extends Model {
     
     public String getFilename()
     {
+    	if(this.format == GisExportFormat.GEOJSON)
+    		return "gis_" + this.id + ".geojson";
+    	
     	return "gis_" + this.id + ".zip";
     }
     
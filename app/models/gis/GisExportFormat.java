@@ -0,0 +1,6 @@
+package models.gis;
+
+public enum GisExportFormat {
+	SHAPEFILE,
+	GEOJSON;
+}
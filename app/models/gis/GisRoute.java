@@ -4,7 +4,12 @@ package models.gis;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
@@ -52,6 +57,11 @@ public class GisRoute extends Model {
     
     @Type(type = "org.hibernatespatial.GeometryUserType") 
     public MultiLineString originalShape;  
+    
+    /** how close, in degrees, the ends of two lines have to be to share a control point */
+    public static final double CONTROL_POINT_TOLERANCE = 0.00015;
+    
+    private static final GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
     		
     public void clear()
     {
@@ -80,11 +90,50 @@ public class GisRoute extends Model {
     	}
     }
     
+    /**
+     * Delete all of the routes of an upload along with their control points, segments and alignments, with a handful
+     * of bulk statements rather than deleting each entity in turn.
+     */
+    public static void deleteForUpload(GisUpload gisUpload)
+    {
+    	EntityManager em = GisRoute.em();
+    	String routes = "(SELECT g FROM GisRoute g WHERE g.gisUpload = :upload)";
+    	
+    	// bulk updates skip @PreUpdate, so timestamp the routes here for the system map
+    	em.createQuery("UPDATE Route r SET r.gisRoute = null, r.lastModified = :now WHERE r.gisRoute IN " + routes)
+    		.setParameter("upload", gisUpload).setParameter("now", new Date()).executeUpdate();
+    	em.createQuery("DELETE FROM GisRouteControlPointSequence s WHERE s.gisRouteAlignment IN (SELECT a FROM GisRouteAlignment a WHERE a.gisRoute IN " + routes + ")")
+			.setParameter("upload", gisUpload).executeUpdate();
+    	em.createQuery("DELETE FROM GisRouteAlignment a WHERE a.gisRoute IN " + routes)
+			.setParameter("upload", gisUpload).executeUpdate();
+    	em.createQuery("DELETE FROM GisRouteSegment s WHERE s.fromPoint IN (SELECT p FROM GisRouteControlPoint p WHERE p.gisRoute IN " + routes + ")")
+			.setParameter("upload", gisUpload).executeUpdate();
+    	em.createQuery("DELETE FROM GisRouteControlPoint p WHERE p.gisRoute IN " + routes)
+			.setParameter("upload", gisUpload).executeUpdate();
+    	em.createQuery("DELETE FROM GisRoute g WHERE g.gisUpload = :upload")
+			.setParameter("upload", gisUpload).executeUpdate();
+    }
+    
     public void processSegments()
     {	
     	clear();
     	
-    	GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
+    	createSegments();
+    }
+    
+    /**
+     * Split the original shape into segments between control points at the ends of each line, for a route that has
+     * none yet. Line ends within CONTROL_POINT_TOLERANCE of an existing control point share it.
+     * 
+     * Control points are matched in memory, and the new control points and segments are persisted without flushing,
+     * so when many routes are loaded at once they can be written in batches.
+     */
+    public void createSegments()
+    {
+    	EntityManager em = GisRoute.em();
+    	
+    	ControlPointIndex controlPoints = new ControlPointIndex();
+    	Set<String> segments = new HashSet<String>();
     	
     	int geomCount = this.originalShape.getNumGeometries();
     	int i = 0;
@@ -95,17 +144,17 @@ public class GisRoute extends Model {
     	{
     		LineString lineSegment = (LineString)this.originalShape.getGeometryN(i);
     		
-    		GisRouteControlPoint fromPoint = findControlPoint(geometryFactory.createPoint(lineSegment.getCoordinateN(0)), sequenceId);
+    		GisRouteControlPoint fromPoint = findControlPoint(controlPoints, lineSegment.getCoordinateN(0), sequenceId);
     		
     		sequenceId = fromPoint.originalSequence + 1;
     		
-     		GisRouteControlPoint toPoint = findControlPoint(geometryFactory.createPoint((lineSegment.getCoordinateN(lineSegment.getNumPoints() - 1))), sequenceId);
+     		GisRouteControlPoint toPoint = findControlPoint(controlPoints, lineSegment.getCoordinateN(lineSegment.getNumPoints() - 1), sequenceId);
      		
      		sequenceId = toPoint.originalSequence + 1;
      		
-     		if(GisRouteSegment.count("fromPoint = ? AND toPoint = ?", fromPoint, toPoint) == 0)
+     		// the reverse of an earlier segment counts as a duplicate too
+     		if(segments.add(fromPoint.id + ":" + toPoint.id))
      		{
-     		
 	     		GisRouteSegment originalSegment =  new GisRouteSegment();
 	     		
 	     		originalSegment.reverse = false;
@@ -113,7 +162,7 @@ public class GisRoute extends Model {
 	     		originalSegment.toPoint = toPoint;
 	     		originalSegment.segment = lineSegment;
 	     		originalSegment.segment.setSRID(4326);
-	     		originalSegment.save();
+	     		em.persist(originalSegment);
 	     		
 	     		// can't handle bi-directionality on loop segments (yet)
 	     		if(fromPoint != toPoint)
@@ -125,7 +174,9 @@ public class GisRoute extends Model {
 		     		reverseSegment.toPoint = fromPoint;
 		     		reverseSegment.segment = (LineString)lineSegment.reverse();
 		     		reverseSegment.segment.setSRID(4326);
-		     		reverseSegment.save();
+		     		em.persist(reverseSegment);
+		     		
+		     		segments.add(toPoint.id + ":" + fromPoint.id);
 	     		}
      		}
      		
@@ -133,22 +184,81 @@ public class GisRoute extends Model {
     	}
     }
     
-    public GisRouteControlPoint findControlPoint(Point point, Integer sequenceId)
+    private GisRouteControlPoint findControlPoint(ControlPointIndex controlPoints, Coordinate coord, Integer sequenceId)
     {
-    	List<GisRouteControlPoint> controlPoints = GisRouteControlPoint.find("gisRoute = ? and within(controlPoint, buffer(ST_GeomFromText(?, 4326), 0.00015)) = true", this, point.toText()).fetch();
+    	GisRouteControlPoint controlPoint = controlPoints.find(coord);
     	
-    	if(controlPoints.size() >= 1)
-    		return controlPoints.get(0);
-    	else
+    	if(controlPoint == null)
     	{
-    		GisRouteControlPoint controlPoint = new GisRouteControlPoint();
+    		controlPoint = new GisRouteControlPoint();
     		controlPoint.gisRoute = this;
-    		controlPoint.controlPoint = point;
+    		controlPoint.controlPoint = geometryFactory.createPoint(coord);
     		controlPoint.controlPoint.setSRID(4326);
     		controlPoint.originalSequence = sequenceId;
-    		controlPoint.save();
+    		GisRoute.em().persist(controlPoint);
     		
-    		return controlPoint;
+    		controlPoints.add(controlPoint);
+    	}
+    	
+    	return controlPoint;
+    }
+    
+    /**
+     * The control points of a route, hashed into a grid of cells CONTROL_POINT_TOLERANCE across, so that finding one
+     * near a coordinate only looks at the control points in the surrounding nine cells.
+     */
+    private static class ControlPointIndex
+    {
+    	private Map<String, List<GisRouteControlPoint>> cells = new HashMap<String, List<GisRouteControlPoint>>();
+    	
+    	public void add(GisRouteControlPoint controlPoint)
+    	{
+    		Coordinate coord = controlPoint.controlPoint.getCoordinate();
+    		String key = cell(coord.x) + ":" + cell(coord.y);
+    		
+    		List<GisRouteControlPoint> cell = cells.get(key);
+    		
+    		if(cell == null)
+    		{
+    			cell = new ArrayList<GisRouteControlPoint>(2);
+    			cells.put(key, cell);
+    		}
+    		
+    		cell.add(controlPoint);
+    	}
+    	
+    	/** the earliest control point within the tolerance of the coordinate, or null */
+    	public GisRouteControlPoint find(Coordinate coord)
+    	{
+    		GisRouteControlPoint found = null;
+    		
+    		long x = cell(coord.x);
+    		long y = cell(coord.y);
+    		
+    		for(long cx = x - 1; cx <= x + 1; cx++)
+    		{
+    			for(long cy = y - 1; cy <= y + 1; cy++)
+    			{
+    				List<GisRouteControlPoint> cell = cells.get(cx + ":" + cy);
+    				
+    				if(cell == null)
+    					continue;
+    				
+    				for(GisRouteControlPoint controlPoint : cell)
+    				{
+    					if(controlPoint.controlPoint.getCoordinate().distance(coord) < CONTROL_POINT_TOLERANCE &&
+    							(found == null || controlPoint.originalSequence < found.originalSequence))
+    						found = controlPoint;
+    				}
+    			}
+    		}
+    		
+    		return found;
+    	}
+    	
+    	private static long cell(double ordinate)
+    	{
+    		return (long) Math.floor(ordinate / CONTROL_POINT_TOLERANCE);
     	}
     }
     
@@ -46,12 +46,7 @@ public class GisRouteAlignment extends Model {
     
     public void clear()
     {
-    	List<GisRouteControlPointSequence> pointSequence = GisRouteControlPointSequence.find("gisRouteAlignment = ?", this).fetch();
-    	
-    	for(GisRouteControlPointSequence point : pointSequence)
-    	{
-    		point.delete();
-    	}
+    	GisRouteControlPointSequence.delete("gisRouteAlignment = ?", this);
     	   	
     	this.gtfsShape = null;
     	this.save();
@@ -59,60 +54,39 @@ public class GisRouteAlignment extends Model {
     
     public void createDefaultAlignement()
     {
-    	Boolean linear = true;
-    	
-    	List<GisRouteControlPoint> controlPoints = GisRouteControlPoint.find("gisRoute = ? ORDER BY originalSequence", this.gisRoute).fetch();
-    	
-    	for(GisRouteControlPoint cp : controlPoints)
-    	{
-    		if(GisRouteSegment.count("toPoint = ? AND (reverse = false OR reverse is null)", cp) > 1)
-    			linear = false;
-    		if(GisRouteSegment.count("fromPoint = ? AND (reverse = false OR reverse is null)", cp) > 1)
-    			linear = false;
-    	}
+    	createDefaultAlignement(GisSegmentGraph.load(this.gisRoute));
+    }
+    
+    /**
+     * Create the sequence for an alignment through all of the control points in order, if the route is linear, and
+     * its GTFS shape. Everything is worked out from the graph, and the sequence is written with a single flush.
+     */
+    public void createDefaultAlignement(GisSegmentGraph graph)
+    {
+    	List<GisRouteControlPointSequence> pointSequence = new ArrayList<GisRouteControlPointSequence>();
     	
-    	if(linear)
+    	if(graph.isLinear())
     	{
-    		GisRouteControlPoint cp1 = null;
-    		GisRouteControlPoint cp2 = null;
+    		EntityManager em = GisRouteAlignment.em();
     		
-    		for(GisRouteControlPoint cp : controlPoints)
-        	{
-    			cp1 = cp2;
-    			cp2 = cp;
-    			
-    			if(cp1 != null)
-    			{
-    				GisRouteSegment segment = GisRouteSegment.find("fromPoint = ? and toPoint = ?", cp1, cp2).first();
-    				
-	    			GisRouteControlPointSequence sequencePoint = new GisRouteControlPointSequence();
-	    			
-	    			sequencePoint.gisRouteAlignment = this;
-	    			sequencePoint.segment = segment;
-	    			sequencePoint.sequence = cp2.originalSequence;
-	    			
-	    			sequencePoint.save();
-    			}
-    			else
-    			{
-    				GisRouteControlPointSequence sequencePoint = new GisRouteControlPointSequence();
-	    			
-	    			sequencePoint.gisRouteAlignment = this;
-	    			sequencePoint.controlPoint = cp2;
-	    			sequencePoint.sequence = cp2.originalSequence;
-	    			
-	    			sequencePoint.save();
-    			}
-        	}
+    		pointSequence = graph.defaultSequence(this);
+    		
+    		for(GisRouteControlPointSequence sequencePoint : pointSequence)
+    		{
+    			em.persist(sequencePoint);
+    		}
     	}
     	
-    	updateGtfsRoute();
+    	updateGtfsRoute(GisSegmentGraph.assemble(pointSequence, reverseAlignment != null && reverseAlignment));
     }
     
     public void updateGtfsRoute()
     {
-    	LineString gtfsRoute = getCurrentGtfsRoute();
-    	
+    	updateGtfsRoute(getCurrentGtfsRoute());
+    }
+    
+    private void updateGtfsRoute(LineString gtfsRoute)
+    {
     	if(gtfsRoute != null)
     		gtfsRoute = (LineString)DouglasPeuckerSimplifier.simplify((Geometry)gtfsRoute, 0.00001);
     	
@@ -124,41 +98,11 @@ public class GisRouteAlignment extends Model {
     
     public LineString getCurrentGtfsRoute()
     {
-    	ArrayList<Coordinate> coords = new ArrayList<Coordinate>();
-    	
-    	List<GisRouteControlPointSequence> pointSequence = GisRouteControlPointSequence.find("gisRouteAlignment = ? order by sequence", this).fetch();
-    	
-    	for(GisRouteControlPointSequence ps : pointSequence)
-    	{
-    	
-    		if(ps.segment != null)
-			{
-				GisRouteSegment segment = GisRouteSegment.findById(ps.segment.id);		
-					
-				for(Coordinate coord : segment.segment.getCoordinates())
-				{
-					coords.add(coord);
-				}
-			}
-			else
-    		{
-    			coords.add(ps.controlPoint.controlPoint.getCoordinate());
-    		}
-    	}
+    	// the segments and control points come in the same query
+    	List<GisRouteControlPointSequence> pointSequence = GisRouteControlPointSequence.find("SELECT ps FROM GisRouteControlPointSequence ps " +
+    			"LEFT JOIN FETCH ps.segment LEFT JOIN FETCH ps.controlPoint WHERE ps.gisRouteAlignment = ? ORDER BY ps.sequence", this).fetch();
     	
-    	GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
-    	
-    	if(coords.size() > 1)
-    	{
-    		LineString geom = geometryFactory.createLineString(coords.toArray(new Coordinate[coords.size()]));
-    		
-    		if(reverseAlignment)
-    			geom = (LineString)geom.reverse();
-    		
-    		return geom; 
-    	}
-    	else 
-    		return null;
+    	return GisSegmentGraph.assemble(pointSequence, reverseAlignment != null && reverseAlignment);
     }
    
 }
@@ -0,0 +1,190 @@
+package models.gis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.geometry.jts.JTSFactoryFinder;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * The control points and segments of a GisRoute, loaded with a single query and kept in memory as lists of the segments
+ * leaving and entering each control point. Alignments are worked out from this rather than with queries per control
+ * point and segment.
+ */
+public class GisSegmentGraph {
+
+	private static final GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
+
+	public final GisRoute gisRoute;
+
+	/** the control points of the route, in their original sequence */
+	public final List<GisRouteControlPoint> controlPoints;
+
+	private final Map<Long, List<GisRouteSegment>> outgoing = new HashMap<Long, List<GisRouteSegment>>();
+	private final Map<Long, List<GisRouteSegment>> incoming = new HashMap<Long, List<GisRouteSegment>>();
+
+	private GisSegmentGraph(GisRoute gisRoute, List<GisRouteSegment> segments)
+	{
+		this.gisRoute = gisRoute;
+
+		Map<Long, GisRouteControlPoint> points = new LinkedHashMap<Long, GisRouteControlPoint>();
+
+		for(GisRouteSegment segment : segments)
+		{
+			points.put(segment.fromPoint.id, segment.fromPoint);
+			points.put(segment.toPoint.id, segment.toPoint);
+
+			add(outgoing, segment.fromPoint.id, segment);
+			add(incoming, segment.toPoint.id, segment);
+		}
+
+		controlPoints = new ArrayList<GisRouteControlPoint>(points.values());
+
+		Collections.sort(controlPoints, new Comparator<GisRouteControlPoint>() {
+			public int compare(GisRouteControlPoint o1, GisRouteControlPoint o2) {
+				int c = o1.originalSequence.compareTo(o2.originalSequence);
+				return c != 0 ? c : o1.id.compareTo(o2.id);
+			}
+		});
+	}
+
+	/**
+	 * Load all of the segments of a route, with their control points fetched in the same query. Every control point
+	 * is the end of at least one segment, so this finds all of them.
+	 */
+	public static GisSegmentGraph load(GisRoute gisRoute)
+	{
+		List<GisRouteSegment> segments = GisRouteSegment.find("SELECT s FROM GisRouteSegment s JOIN FETCH s.fromPoint f JOIN FETCH s.toPoint " +
+				"WHERE f.gisRoute = ? ORDER BY s.id", gisRoute).fetch();
+
+		return new GisSegmentGraph(gisRoute, segments);
+	}
+
+	private static void add(Map<Long, List<GisRouteSegment>> index, Long pointId, GisRouteSegment segment)
+	{
+		List<GisRouteSegment> list = index.get(pointId);
+
+		if(list == null)
+		{
+			list = new ArrayList<GisRouteSegment>(2);
+			index.put(pointId, list);
+		}
+
+		list.add(segment);
+	}
+
+	/** whether no control point has more than one segment entering or leaving it in the original direction */
+	public boolean isLinear()
+	{
+		for(GisRouteControlPoint controlPoint : controlPoints)
+		{
+			if(countForward(incoming.get(controlPoint.id)) > 1 || countForward(outgoing.get(controlPoint.id)) > 1)
+				return false;
+		}
+
+		return true;
+	}
+
+	private static int countForward(List<GisRouteSegment> segments)
+	{
+		int count = 0;
+
+		if(segments != null)
+		{
+			for(GisRouteSegment segment : segments)
+			{
+				if(segment.reverse == null || !segment.reverse)
+					count++;
+			}
+		}
+
+		return count;
+	}
+
+	/** a segment from one control point to another, preferring one in the original direction, or null if there is none */
+	public GisRouteSegment findSegment(GisRouteControlPoint from, GisRouteControlPoint to)
+	{
+		GisRouteSegment found = null;
+
+		List<GisRouteSegment> segments = outgoing.get(from.id);
+
+		if(segments != null)
+		{
+			for(GisRouteSegment segment : segments)
+			{
+				if(!segment.toPoint.id.equals(to.id))
+					continue;
+
+				if(segment.reverse == null || !segment.reverse)
+					return segment;
+
+				if(found == null)
+					found = segment;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * The (unsaved) sequence for an alignment through every control point in the original order: the first control
+	 * point, then the segment to each of the following ones.
+	 */
+	public List<GisRouteControlPointSequence> defaultSequence(GisRouteAlignment alignment)
+	{
+		List<GisRouteControlPointSequence> ret = new ArrayList<GisRouteControlPointSequence>(controlPoints.size());
+
+		GisRouteControlPoint previous = null;
+
+		for(GisRouteControlPoint controlPoint : controlPoints)
+		{
+			GisRouteControlPointSequence sequencePoint = new GisRouteControlPointSequence();
+			sequencePoint.gisRouteAlignment = alignment;
+			sequencePoint.sequence = controlPoint.originalSequence;
+
+			if(previous != null)
+				sequencePoint.segment = findSegment(previous, controlPoint);
+
+			// without a segment, at least keep the point so the shape passes through it
+			if(sequencePoint.segment == null)
+				sequencePoint.controlPoint = controlPoint;
+
+			ret.add(sequencePoint);
+			previous = controlPoint;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Concatenate the segments and control points of an alignment, in the order given, into one line, or return null
+	 * if there are fewer than two coordinates.
+	 */
+	public static LineString assemble(List<GisRouteControlPointSequence> sequence, boolean reverse)
+	{
+		List<Coordinate> coords = new ArrayList<Coordinate>();
+
+		for(GisRouteControlPointSequence ps : sequence)
+		{
+			if(ps.segment != null)
+				Collections.addAll(coords, ps.segment.segment.getCoordinates());
+			else if(ps.controlPoint != null)
+				coords.add(ps.controlPoint.controlPoint.getCoordinate());
+		}
+
+		if(coords.size() < 2)
+			return null;
+
+		LineString geom = geometryFactory.createLineString(coords.toArray(new Coordinate[coords.size()]));
+
+		return reverse ? (LineString) geom.reverse() : geom;
+	}
+}
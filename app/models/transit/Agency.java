@@ -2,9 +2,11 @@ package models.transit;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 import java.util.Set;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
@@ -15,9 +17,11 @@ import org.hibernate.annotations.Type;
 
 import play.Logger;
 import play.db.jpa.Model;
+import utils.ReferenceCache;
 
 @JsonIgnoreProperties({"entityId", "persistent"})
 @Entity
+@EntityListeners(ReferenceCache.Invalidator.class)
 public class Agency extends Model {
 	
 	public String gtfsAgencyId;
@@ -39,12 +43,21 @@ public class Agency extends Model {
 
     @JsonCreator
     public static Agency factory(long id) {
-      return Agency.findById(id);
+      return ReferenceCache.findById(Agency.class, id);
     }
 
     @JsonCreator
     public static Agency factory(String id) {
-      return Agency.findById(Long.parseLong(id));
+      return ReferenceCache.findById(Agency.class, Long.parseLong(id));
+    }
+    
+    /** copies of all agencies by name, from the reference cache */
+    public static List<Agency> findAllCached() {
+      return ReferenceCache.get(Agency.class, "all", new ReferenceCache.Loader<List<Agency>>() {
+        public List<Agency> load() {
+          return Agency.find("order by name").fetch();
+        }
+      });
     }
     
     public Agency(org.onebusaway.gtfs.model.Agency agency) {
@@ -0,0 +1,367 @@
+package models.transit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import play.db.jpa.JPA;
+import play.db.jpa.Model;
+
+/**
+ * The stop times of a trip as parallel arrays, one element per stop time in stop sequence order. This is stored
+ * packed into a single column of the trip (see Trip.packedStopTimes) rather than as a StopTime row per stop, so a
+ * trip's whole schedule is read and written along with the trip.
+ *
+ * Missing values are stored as sentinels: 0 for IDs, Integer.MIN_VALUE for times and sequences, NaN for distances and
+ * -1 for pickup/drop off types.
+ */
+public class PackedStopTimes {
+
+    private static final byte VERSION = 1;
+
+    public static final int MISSING = Integer.MIN_VALUE;
+
+    public final int size;
+
+    public final long[] stopIds;
+    public final long[] patternStopIds;
+    public final int[] stopSequences;
+    public final int[] arrivalTimes;
+    public final int[] departureTimes;
+    /** ordinals of StopTimePickupDropOffType */
+    public final byte[] pickupTypes;
+    public final byte[] dropOffTypes;
+    public final double[] shapeDistTraveled;
+    public final String[] stopHeadsigns;
+
+    public PackedStopTimes(int size) {
+        this.size = size;
+        stopIds = new long[size];
+        patternStopIds = new long[size];
+        stopSequences = new int[size];
+        arrivalTimes = new int[size];
+        departureTimes = new int[size];
+        pickupTypes = new byte[size];
+        dropOffTypes = new byte[size];
+        shapeDistTraveled = new double[size];
+        stopHeadsigns = new String[size];
+    }
+
+    public static PackedStopTimes fromStopTimes(List<StopTime> stopTimes) {
+        List<StopTime> sorted = new ArrayList<StopTime>(stopTimes);
+        Collections.sort(sorted, new TripPattern.StopTimeSequenceComparator());
+
+        PackedStopTimes ret = new PackedStopTimes(sorted.size());
+
+        for (int i = 0; i < ret.size; i++) {
+            StopTime st = sorted.get(i);
+            ret.stopIds[i] = st.stop != null ? st.stop.id : 0;
+            ret.patternStopIds[i] = st.patternStop != null ? st.patternStop.id : 0;
+            ret.stopSequences[i] = pack(st.stopSequence);
+            ret.arrivalTimes[i] = pack(st.arrivalTime);
+            ret.departureTimes[i] = pack(st.departureTime);
+            ret.pickupTypes[i] = (byte) (st.pickupType != null ? st.pickupType.ordinal() : -1);
+            ret.dropOffTypes[i] = (byte) (st.dropOffType != null ? st.dropOffType.ordinal() : -1);
+            ret.shapeDistTraveled[i] = st.shapeDistTraveled != null ? st.shapeDistTraveled : Double.NaN;
+            ret.stopHeadsigns[i] = st.stopHeadsign;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Make (unsaved) stop time entities for the given trip. The stops and pattern stops are loaded with one query each.
+     */
+    public List<StopTime> toStopTimes(Trip trip) {
+        List<StopTime> ret = new ArrayList<StopTime>(size);
+
+        StopTimePickupDropOffType[] types = StopTimePickupDropOffType.values();
+
+        Map<Long, Stop> stops = findAll(Stop.class, stopIds);
+        Map<Long, TripPatternStop> patternStops = findAll(TripPatternStop.class, patternStopIds);
+
+        for (int i = 0; i < size; i++) {
+            StopTime st = new StopTime();
+            st.trip = trip;
+            st.stop = stops.get(stopIds[i]);
+            st.patternStop = patternStops.get(patternStopIds[i]);
+            st.stopSequence = unpack(stopSequences[i]);
+            st.arrivalTime = unpack(arrivalTimes[i]);
+            st.departureTime = unpack(departureTimes[i]);
+            st.pickupType = pickupTypes[i] >= 0 ? types[pickupTypes[i]] : null;
+            st.dropOffType = dropOffTypes[i] >= 0 ? types[dropOffTypes[i]] : null;
+            st.shapeDistTraveled = Double.isNaN(shapeDistTraveled[i]) ? null : shapeDistTraveled[i];
+            st.stopHeadsign = stopHeadsigns[i];
+            ret.add(st);
+        }
+
+        return ret;
+    }
+
+    /** the entities with the given ids, ignoring missing (0) ids, by id */
+    private static <T extends Model> Map<Long, T> findAll(Class<T> type, long[] ids) {
+        Set<Long> unique = new HashSet<Long>();
+
+        for (long id : ids) {
+            if (id != 0)
+                unique.add(id);
+        }
+
+        Map<Long, T> ret = new HashMap<Long, T>();
+
+        if (unique.isEmpty())
+            return ret;
+
+        List<T> found = JPA.em().createQuery("SELECT e FROM " + type.getSimpleName() + " e WHERE e.id IN (:ids)")
+            .setParameter("ids", unique)
+            .getResultList();
+
+        for (T entity : found) {
+            ret.put(entity.id, entity);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Point stop times that aren't at one of the pattern's stops at one, as StopTime.linkToPatternStops does for stop
+     * time rows: by stop if the stop appears once in the pattern, by stop and stop sequence if it appears more than
+     * once, and otherwise by walking the trip in order, taking the next pattern stop at the same stop. Stop times at
+     * stops that are not in the pattern are left alone.
+     * @param patternStops the pattern stops, in order
+     */
+    public void linkToPatternStops(List<TripPatternStop> patternStops) {
+        Map<Long, Integer> positions = new HashMap<Long, Integer>();
+        Map<Long, Integer> stopCounts = new HashMap<Long, Integer>();
+
+        for (int j = 0; j < patternStops.size(); j++) {
+            TripPatternStop ps = patternStops.get(j);
+            positions.put(ps.id, j);
+
+            Integer count = stopCounts.get(ps.stop.id);
+            stopCounts.put(ps.stop.id, count == null ? 1 : count + 1);
+        }
+
+        int next = 0;
+
+        for (int i = 0; i < size; i++) {
+            Integer linked = positions.get(patternStopIds[i]);
+
+            if (linked != null) {
+                next = linked + 1;
+                continue;
+            }
+
+            Integer count = stopCounts.get(stopIds[i]);
+
+            if (count == null)
+                continue;
+
+            int found = -1;
+
+            for (int j = 0; j < patternStops.size() && found == -1; j++) {
+                TripPatternStop ps = patternStops.get(j);
+
+                if (ps.stop.id == stopIds[i] && (count == 1 || ps.stopSequence == stopSequences[i]))
+                    found = j;
+            }
+
+            for (int j = next; j < patternStops.size() && found == -1; j++) {
+                if (patternStops.get(j).stop.id == stopIds[i])
+                    found = j;
+            }
+
+            if (found != -1) {
+                patternStopIds[i] = patternStops.get(found).id;
+                next = found + 1;
+            }
+        }
+    }
+
+    /**
+     * Follow pattern stops to their new positions in one pass, as StopTime.deleteForPatternStops and
+     * remapPatternStops do for stop time rows: stop times at removed pattern stops are dropped, the rest at a pattern
+     * stop get its new id and stop sequence, and the result is put back in stop sequence order. Stop times that
+     * aren't at any of the pattern stops are kept as they are.
+     * @param removed the ids of the pattern stops that were removed
+     * @param newStopSequences new stop sequence, keyed by the id of the pattern stop the stop time is at now
+     * @param newPatternStopIds new pattern stop id (which may be null), keyed by the id of the pattern stop the stop time is at now
+     * @return the remapped stop times; these are left as they were
+     */
+    public PackedStopTimes remapPatternStops(Collection<Long> removed, Map<Long, Integer> newStopSequences, Map<Long, Long> newPatternStopIds) {
+        final int[] sequences = new int[size];
+        Integer[] kept = new Integer[size];
+        int count = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (removed.contains(patternStopIds[i]))
+                continue;
+
+            Integer sequence = newStopSequences.get(patternStopIds[i]);
+            sequences[i] = sequence != null ? sequence : stopSequences[i];
+            kept[count++] = i;
+        }
+
+        // a stable sort, so stop times with the same sequence keep their order
+        Integer[] order = Arrays.copyOf(kept, count);
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return sequences[a] < sequences[b] ? -1 : sequences[a] > sequences[b] ? 1 : 0;
+            }
+        });
+
+        PackedStopTimes ret = new PackedStopTimes(count);
+
+        for (int j = 0; j < count; j++) {
+            int i = order[j];
+
+            if (newStopSequences.containsKey(patternStopIds[i])) {
+                Long patternStopId = newPatternStopIds.get(patternStopIds[i]);
+                ret.patternStopIds[j] = patternStopId != null ? patternStopId : 0;
+            }
+            else {
+                ret.patternStopIds[j] = patternStopIds[i];
+            }
+
+            ret.stopIds[j] = stopIds[i];
+            ret.stopSequences[j] = sequences[i];
+            ret.arrivalTimes[j] = arrivalTimes[i];
+            ret.departureTimes[j] = departureTimes[i];
+            ret.pickupTypes[j] = pickupTypes[i];
+            ret.dropOffTypes[j] = dropOffTypes[i];
+            ret.shapeDistTraveled[j] = shapeDistTraveled[i];
+            ret.stopHeadsigns[j] = stopHeadsigns[i];
+        }
+
+        return ret;
+    }
+
+    /** whether any stop time has an arrival or departure time */
+    public boolean hasTimes() {
+        for (int i = 0; i < size; i++) {
+            if (arrivalTimes[i] != MISSING || departureTimes[i] != MISSING)
+                return true;
+        }
+
+        return false;
+    }
+
+    /** whether any stop time is at the given stop */
+    public boolean hasStop(long stopId) {
+        for (int i = 0; i < size; i++) {
+            if (stopIds[i] == stopId)
+                return true;
+        }
+
+        return false;
+    }
+
+    /** point every stop time at any of the given stops to the new stop; returns whether anything changed */
+    public boolean replaceStops(long newStopId, Collection<Long> oldStopIds) {
+        boolean changed = false;
+
+        for (int i = 0; i < size; i++) {
+            if (oldStopIds.contains(stopIds[i])) {
+                stopIds[i] = newStopId;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    /** add seconds to every time that is present */
+    public void shift(int seconds) {
+        for (int i = 0; i < size; i++) {
+            if (arrivalTimes[i] != MISSING)
+                arrivalTimes[i] += seconds;
+
+            if (departureTimes[i] != MISSING)
+                departureTimes[i] += seconds;
+        }
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size * 40 + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(size);
+
+            // column by column, so the whole schedule can be read back in a few tight loops
+            for (int i = 0; i < size; i++) out.writeLong(stopIds[i]);
+            for (int i = 0; i < size; i++) out.writeLong(patternStopIds[i]);
+            for (int i = 0; i < size; i++) out.writeInt(stopSequences[i]);
+            for (int i = 0; i < size; i++) out.writeInt(arrivalTimes[i]);
+            for (int i = 0; i < size; i++) out.writeInt(departureTimes[i]);
+            out.write(pickupTypes);
+            out.write(dropOffTypes);
+            for (int i = 0; i < size; i++) out.writeDouble(shapeDistTraveled[i]);
+
+            for (int i = 0; i < size; i++) {
+                out.writeBoolean(stopHeadsigns[i] != null);
+                if (stopHeadsigns[i] != null)
+                    out.writeUTF(stopHeadsigns[i]);
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            // can't happen writing to memory
+            throw new RuntimeException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public static PackedStopTimes decode(byte[] packed) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+
+        try {
+            byte version = in.readByte();
+            if (version != VERSION)
+                throw new IllegalArgumentException("Unknown packed stop times version " + version);
+
+            PackedStopTimes ret = new PackedStopTimes(in.readInt());
+            int size = ret.size;
+
+            for (int i = 0; i < size; i++) ret.stopIds[i] = in.readLong();
+            for (int i = 0; i < size; i++) ret.patternStopIds[i] = in.readLong();
+            for (int i = 0; i < size; i++) ret.stopSequences[i] = in.readInt();
+            for (int i = 0; i < size; i++) ret.arrivalTimes[i] = in.readInt();
+            for (int i = 0; i < size; i++) ret.departureTimes[i] = in.readInt();
+            in.readFully(ret.pickupTypes);
+            in.readFully(ret.dropOffTypes);
+            for (int i = 0; i < size; i++) ret.shapeDistTraveled[i] = in.readDouble();
+
+            for (int i = 0; i < size; i++) {
+                if (in.readBoolean())
+                    ret.stopHeadsigns[i] = in.readUTF();
+            }
+
+            return ret;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt packed stop times", e);
+        }
+    }
+
+    private static int pack(Integer value) {
+        return value != null ? value : MISSING;
+    }
+
+    private static Integer unpack(int value) {
+        return value != MISSING ? value : null;
+    }
+}
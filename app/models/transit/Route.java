@@ -4,6 +4,7 @@ import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.Date;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EnumType;
@@ -13,6 +14,8 @@ import javax.persistence.Entity;
 import javax.persistence.Query;
 import javax.persistence.Column;
 import javax.persistence.Transient;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 
 import models.gis.GisRoute;
 import models.gis.GisUpload;
@@ -27,6 +30,8 @@ import com.vividsolutions.jts.geom.MultiLineString;
 
 import play.Logger;
 import play.db.jpa.Model;
+import utils.JsonReferenceResolver;
+import utils.ReferenceCache;
 
 @JsonIgnoreProperties({"entityId", "persistent"})
 @Entity
@@ -67,18 +72,27 @@ public class Route extends Model {
 
     @ManyToOne
     public GisUpload gisUpload;
+
+    @JsonIgnore
+    public Date lastModified;
+
+    @PrePersist
+    @PreUpdate
+    void updateLastModified() {
+        lastModified = new Date();
+    }
     
     @Enumerated(EnumType.STRING)
     public AttributeAvailabilityType wheelchairBoarding;
 
     @JsonCreator
     public static Route factory(long id) {
-      return Route.findById(id);
+      return JsonReferenceResolver.findById(Route.class, id);
     }
 
     @JsonCreator
     public static Route factory(String id) {
-      return Route.findById(Long.parseLong(id));
+      return JsonReferenceResolver.findById(Route.class, Long.parseLong(id));
     }
 
     public Route(org.onebusaway.gtfs.model.Route route,  Agency agency) {	
@@ -162,7 +176,14 @@ public class Route extends Model {
     	if(type == null)
 			return null;
 		
-    	RouteType routeType = RouteType.find("gtfsRouteType = ?", type).first();
+    	final GtfsRouteType gtfsRouteType = type;
+    	
+    	// called for every route of an import, and there are only a few route types
+    	RouteType routeType = ReferenceCache.get(RouteType.class, type, new ReferenceCache.Loader<RouteType>() {
+    		public RouteType load() {
+    			return RouteType.find("gtfsRouteType = ?", gtfsRouteType).first();
+    		}
+    	});
     	
     	if(routeType != null)
     		return routeType;
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Set;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.EntityManager;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
@@ -19,11 +20,13 @@ import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.hibernate.annotations.Type;
 
 import play.db.jpa.Model;
+import utils.ReferenceCache;
 
 import models.gtfs.GtfsSnapshot;
 
 @JsonIgnoreProperties({"entityId", "persistent"})
 @Entity
+@EntityListeners(ReferenceCache.Invalidator.class)
 public class RouteType extends Model {
 	
     public String localizedVehicleType;
@@ -37,12 +40,12 @@ public class RouteType extends Model {
     
     @JsonCreator
     public static RouteType factory(long id) {
-      return RouteType.findById(id);
+      return ReferenceCache.findById(RouteType.class, id);
     }
 
     @JsonCreator
     public static RouteType factory(String id) {
-      return RouteType.findById(Long.parseLong(id));
+      return ReferenceCache.findById(RouteType.class, Long.parseLong(id));
     }
 
     
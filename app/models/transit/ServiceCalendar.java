@@ -10,23 +10,29 @@ import java.util.List;
 import java.util.Set;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.EntityManager;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
 import javax.persistence.Query;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.hibernate.annotations.Type;
 
 import com.conveyal.gtfs.model.Calendar;
 import com.conveyal.gtfs.model.Service;
 
 import play.db.jpa.Model;
+import utils.ReferenceCache;
 import models.gtfs.GtfsSnapshot;
 
 @JsonIgnoreProperties({"entityId", "persistent", "routesText"})
 @Entity
+@EntityListeners(ReferenceCache.Invalidator.class)
 public class ServiceCalendar extends Model {
 
 	@ManyToOne
@@ -45,6 +51,15 @@ public class ServiceCalendar extends Model {
     public Date startDate;
     public Date endDate;
 
+    @JsonIgnore
+    public Date lastModified;
+
+    @PrePersist
+    @PreUpdate
+    void updateLastModified() {
+        lastModified = new Date();
+    }
+
     // give the UI a little information about the content of this calendar
     public long getNumberOfTrips () {
     	return Trip.count("serviceCalendar = ?", this);
@@ -79,12 +94,12 @@ public class ServiceCalendar extends Model {
 
 	@JsonCreator
     public static ServiceCalendar factory(long id) {
-      return ServiceCalendar.findById(id);
+      return ReferenceCache.findById(ServiceCalendar.class, id);
     }
 
     @JsonCreator
     public static ServiceCalendar factory(String id) {
-      return ServiceCalendar.findById(Long.parseLong(id));
+      return ReferenceCache.findById(ServiceCalendar.class, Long.parseLong(id));
     }
 
     /**
@@ -4,9 +4,13 @@ import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.persistence.Access;
@@ -19,6 +23,7 @@ import javax.persistence.ManyToOne;
 import javax.persistence.Query;
 import javax.persistence.Transient;
 
+import com.google.common.base.Joiner;
 import com.mysql.jdbc.log.Log;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -32,7 +37,10 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import org.hibernate.annotations.Type;
 
 import play.Logger;
+import play.Play;
 import play.db.jpa.Model;
+import utils.JsonReferenceResolver;
+import utils.DuplicateStopDetector;
 
 @JsonIgnoreProperties({"entityId", "persistent"})
 @Entity
@@ -75,12 +83,12 @@ public class Stop extends Model {
 
     @JsonCreator
     public static Stop factory(long id) {
-      return Stop.findById(id);
+      return JsonReferenceResolver.findById(Stop.class, id);
     }
 
     @JsonCreator
     public static Stop factory(String id) {
-      return Stop.findById(Long.parseLong(id));
+      return JsonReferenceResolver.findById(Stop.class, Long.parseLong(id));
     }
     
     @JsonIgnore
@@ -97,6 +105,9 @@ public class Stop extends Model {
     
     public void merge(Stop mergedStop) {
    
+    	if(!sameAgency(mergedStop.agency))
+    		throw new IllegalArgumentException("Can't merge stop " + mergedStop.id + " from another agency");
+    	
     	// find replace references to mergedStop 
     	StopTime.replaceStop(this, mergedStop);
     	TripPatternStop.replaceStop(this, mergedStop);
@@ -105,6 +116,70 @@ public class Stop extends Model {
     	
     }
 
+    /**
+     * Merge many stops into this one at once: every stop time and pattern stop referencing any of them is
+     * rewritten with a single UPDATE per table, then they are all deleted with one DELETE. Any stop entities
+     * already loaded in this session are stale afterwards, so the session is cleared.
+     * @return the number of stops merged
+     * @throws IllegalArgumentException if any of the stops belongs to another agency
+     */
+    public int merge(Collection<Long> mergedStopIds) {
+
+        Set<Long> ids = new LinkedHashSet<Long>(mergedStopIds);
+        ids.remove(this.id);
+
+        if (ids.isEmpty())
+            return 0;
+
+        String idArray = "{" + Joiner.on(',').join(ids) + "}";
+
+        EntityManager em = Stop.em();
+
+        Query otherAgencies = em.createQuery("SELECT COUNT(s) FROM Stop s WHERE s.id IN (:ids) AND " +
+                (agency == null ? "s.agency IS NOT NULL" : "(s.agency IS NULL OR s.agency <> :agency)"))
+                .setParameter("ids", ids);
+
+        if (agency != null)
+            otherAgencies.setParameter("agency", agency);
+
+        if (((Number) otherAgencies.getSingleResult()).longValue() > 0)
+            throw new IllegalArgumentException("Can't merge stops from another agency into stop " + id);
+
+        // packed stop times aren't reached by the native updates; find them while the pattern stops still point
+        // at the merged stops
+        List<Trip> packedTrips = Trip.find("packedStopTimes IS NOT NULL AND pattern.id IN " +
+                "(SELECT ps.pattern.id FROM TripPatternStop ps WHERE ps.stop.id IN (:ids))")
+                .bind("ids", ids).fetch();
+
+        for (Trip trip : packedTrips) {
+            PackedStopTimes stopTimes = PackedStopTimes.decode(trip.packedStopTimes);
+
+            if (stopTimes.replaceStops(this.id, ids)) {
+                trip.packedStopTimes = stopTimes.encode();
+                trip.save();
+            }
+        }
+
+        // write out anything pending so the native updates see it
+        em.flush();
+
+        StopTime.replaceStops(this, idArray);
+        TripPatternStop.replaceStops(this, idArray);
+
+        int deleted = em.createNativeQuery("DELETE FROM stop WHERE id = ANY(CAST(? AS bigint[]));")
+            .setParameter(1, idArray)
+            .executeUpdate();
+
+        // stop times and pattern stops in the session still point at the deleted stops
+        em.clear();
+
+        return deleted;
+    }
+
+    private boolean sameAgency(Agency other) {
+        return agency == null ? other == null : other != null && agency.id.equals(other.id);
+    }
+
     public void setLocation(Hashtable<String, Double> loc) {
         GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
         this.location = geometryFactory.createPoint(new Coordinate(loc.get("lng"), loc.get("lat")));;
@@ -186,32 +261,68 @@ public class Stop extends Model {
         return geometryFactory.createPoint(new Coordinate((Double)cols[0], (Double)cols[1]));
     }
     
+    /** Default distance in meters under which stops are considered duplicates, see application.duplicateStopDistance */
+    public static final double DEFAULT_DUPLICATE_STOP_DISTANCE = 15;
+
     public static List<List<Stop>> findDuplicateStops(BigInteger agencyId) {
-    	
-    	// !!! need to autodetect proper SRID for UTM Zone
-    	Query q = Stop.em().createNativeQuery("SELECT s1_id, s2_id, dist FROM " + 
-    			"(SELECT s1.id as s1_id, s2.id as s2_id, st_distance(transform(s1.location, 32614), transform(s2.location, 32614)) as dist " + 
-    			"FROM stop as s1, stop as s2 WHERE s1.agency_id = s2.agency_id and s1.agency_id = ? and s1.id != s2.id) AS calcdist WHERE dist < 15;");
-    	
-    	q.setParameter(1, agencyId);
-    	
-    	List<Object[]> pairsResults = q.getResultList();
-    	
-    	ArrayList<List<Stop>> stopPairs = new ArrayList<List<Stop>>();
-    	
-    	for(Object[] cols : pairsResults) {
-    		Stop s1 =  Stop.findById(((BigInteger)cols[0]).longValue());
-    		Stop s2 =  Stop.findById(((BigInteger)cols[1]).longValue());
-    		
-    		if(s1 != null && s2 != null) {
-    			List<Stop> pair = new ArrayList<Stop>();
-    			pair.add(s1);
-    			pair.add(s2);
-    			stopPairs.add(pair);
-    		}
-    	}
-    	
-    	return stopPairs;
+        String configured = Play.configuration.getProperty("application.duplicateStopDistance");
+        double distance = configured != null ? Double.parseDouble(configured) : DEFAULT_DUPLICATE_STOP_DISTANCE;
+
+        return findDuplicateStops(agencyId, distance);
+    }
+
+    /**
+     * Find clusters of stops that are within the given distance (in meters) of each other, by chains of close pairs.
+     * Only stop ids and locations are read to find the clusters; the stops in them are then loaded in batches.
+     */
+    public static List<List<Stop>> findDuplicateStops(BigInteger agencyId, double distance) {
+
+        List<Object[]> locations = Stop.em().createNativeQuery("SELECT id, ST_Y(location), ST_X(location) FROM stop WHERE agency_id = ? AND location IS NOT NULL ORDER BY id;")
+          .setParameter(1, agencyId)
+          .getResultList();
+
+        DuplicateStopDetector detector = new DuplicateStopDetector(distance, locations.size());
+
+        for (Object[] cols : locations) {
+            detector.add(((Number) cols[0]).longValue(), ((Number) cols[1]).doubleValue(), ((Number) cols[2]).doubleValue());
+        }
+
+        List<long[]> clusters = detector.findClusters();
+
+        List<Long> ids = new ArrayList<Long>();
+        for (long[] cluster : clusters) {
+            for (long id : cluster) {
+                ids.add(id);
+            }
+        }
+
+        Map<Long, Stop> stops = new HashMap<Long, Stop>();
+
+        // keep the IN lists to a reasonable length
+        for (int i = 0; i < ids.size(); i += 1000) {
+            List<Stop> batch = Stop.find("id in (:ids)").bind("ids", ids.subList(i, Math.min(i + 1000, ids.size()))).fetch();
+
+            for (Stop stop : batch) {
+                stops.put(stop.id, stop);
+            }
+        }
+
+        List<List<Stop>> ret = new ArrayList<List<Stop>>(clusters.size());
+
+        for (long[] cluster : clusters) {
+            List<Stop> group = new ArrayList<Stop>(cluster.length);
+
+            for (long id : cluster) {
+                Stop stop = stops.get(id);
+                if (stop != null)
+                    group.add(stop);
+            }
+
+            if (group.size() > 1)
+                ret.add(group);
+        }
+
+        return ret;
     }
 
     public Set<Route> routesServed()
@@ -2,7 +2,12 @@ package models.transit;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
@@ -15,6 +20,8 @@ import org.codehaus.jackson.annotate.JsonBackReference;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.hibernate.annotations.Type;
 
+import com.google.common.base.Joiner;
+
 import play.db.jpa.Model;
 import models.gtfs.GtfsSnapshot;
 
@@ -72,6 +79,216 @@ public class StopTime extends Model {
     	          .setParameter(2, oldStop.id)
     	          .executeUpdate();
     }
+
+    /**
+     * Point every stop time at any of the given stops to newStop, in one statement.
+     * @param oldStopIds the stop ids as a Postgres array literal, e.g. {1,2,3}
+     */
+    public static int replaceStops(Stop newStop, String oldStopIds) {
+    	
+    	return StopTime.em().createNativeQuery("UPDATE stoptime SET stop_id = ? WHERE stop_id = ANY(CAST(? AS bigint[]));")
+    	          .setParameter(1, newStop.id)
+    	          .setParameter(2, oldStopIds)
+    	          .executeUpdate();
+    }
+    
+    /** restricts a stop time update to the trips of a pattern; takes the pattern id as its only parameter */
+    private static final String TRIPS_OF_PATTERN = "trip_id IN (SELECT id FROM trip WHERE pattern_id = ?)";
+
+    /**
+     * Make sure every stop time of every trip on the pattern points at one of its pattern stops, so that they can be
+     * updated by pattern stop. Stops that appear once in the pattern are matched by stop; stops that appear more than
+     * once are matched by stop and stop sequence, and whatever is left is matched by walking the trip in order.
+     * Stop times at stops that are not in the pattern are left alone.
+     * @param patternStops the pattern stops, in order
+     */
+    public static void linkToPatternStops(Long patternId, List<TripPatternStop> patternStops) {
+        EntityManager em = StopTime.em();
+
+        if (patternStops.isEmpty())
+            return;
+
+        Map<Long, Integer> stopCounts = new HashMap<Long, Integer>();
+        for (TripPatternStop ps : patternStops) {
+            Integer count = stopCounts.get(ps.stop.id);
+            stopCounts.put(ps.stop.id, count == null ? 1 : count + 1);
+        }
+
+        String patternStopIds = idList(patternStops);
+        String unlinked = "(patternstop_id IS NULL OR patternstop_id NOT IN (" + patternStopIds + "))";
+
+        StringBuilder link = new StringBuilder("UPDATE stoptime SET patternstop_id = CASE");
+        for (TripPatternStop ps : patternStops) {
+            link.append(" WHEN stop_id = ").append(ps.stop.id);
+
+            if (stopCounts.get(ps.stop.id) > 1)
+                link.append(" AND stopsequence = ").append(ps.stopSequence);
+
+            link.append(" THEN ").append(ps.id);
+        }
+        link.append(" ELSE patternstop_id END WHERE ").append(TRIPS_OF_PATTERN).append(" AND ").append(unlinked);
+
+        em.createNativeQuery(link.toString())
+            .setParameter(1, patternId)
+            .executeUpdate();
+
+        // anything left is at a repeated stop with a stop sequence that doesn't match the pattern. Walk those trips in
+        // order like a rider would, taking the next pattern stop at the same stop.
+        List<Object[]> stragglers = em.createNativeQuery("SELECT id, trip_id, stop_id, patternstop_id FROM stoptime WHERE trip_id IN " +
+                "(SELECT trip_id FROM stoptime WHERE " + TRIPS_OF_PATTERN + " AND " + unlinked + " AND stop_id IN (" + joinIds(stopCounts.keySet()) + ")) " +
+                "ORDER BY trip_id, stopsequence")
+            .setParameter(1, patternId)
+            .getResultList();
+
+        if (stragglers.isEmpty())
+            return;
+
+        Map<Long, Integer> patternStopIndex = new HashMap<Long, Integer>();
+        for (int i = 0; i < patternStops.size(); i++) {
+            patternStopIndex.put(patternStops.get(i).id, i);
+        }
+
+        Map<Long, Long> links = new HashMap<Long, Long>();
+        long currentTrip = -1;
+        int next = 0;
+
+        for (Object[] cols : stragglers) {
+            long stopTimeId = ((Number) cols[0]).longValue();
+            long tripId = ((Number) cols[1]).longValue();
+            long stopId = ((Number) cols[2]).longValue();
+            Integer linkedIndex = cols[3] != null ? patternStopIndex.get(((Number) cols[3]).longValue()) : null;
+
+            if (tripId != currentTrip) {
+                currentTrip = tripId;
+                next = 0;
+            }
+
+            if (linkedIndex != null) {
+                next = linkedIndex + 1;
+                continue;
+            }
+
+            for (int i = next; i < patternStops.size(); i++) {
+                if (patternStops.get(i).stop.id == stopId) {
+                    links.put(stopTimeId, patternStops.get(i).id);
+                    next = i + 1;
+                    break;
+                }
+            }
+        }
+
+        if (!links.isEmpty())
+            em.createNativeQuery(caseUpdate("patternstop_id", "id", links) + " WHERE id IN (" + joinIds(links.keySet()) + ")")
+                .executeUpdate();
+    }
+
+    /**
+     * Delete the stop times at the given pattern stops from all trips on the pattern.
+     */
+    public static int deleteForPatternStops(Long patternId, Collection<Long> patternStopIds) {
+        if (patternStopIds.isEmpty())
+            return 0;
+
+        return StopTime.em().createNativeQuery("DELETE FROM stoptime WHERE " + TRIPS_OF_PATTERN +
+                " AND patternstop_id IN (" + joinIds(patternStopIds) + ")")
+            .setParameter(1, patternId)
+            .executeUpdate();
+    }
+
+    /**
+     * Move the stop times of all trips on the pattern to new pattern stops and stop sequences, in one statement.
+     * @param stopSequences new stop sequence, keyed by the id of the pattern stop the stop time is at now
+     * @param patternStops new pattern stop id (which may be null), keyed by the id of the pattern stop the stop time is at now
+     */
+    public static int remapPatternStops(Long patternId, Map<Long, Integer> stopSequences, Map<Long, Long> patternStops) {
+        if (stopSequences.isEmpty())
+            return 0;
+
+        // both CASE expressions read the old patternstop_id, as every expression in a SET clause sees the row as it was
+        String sql = caseUpdate("stopsequence", "patternstop_id", stopSequences) + ", " +
+                caseAssignment("patternstop_id", "patternstop_id", patternStops) +
+                " WHERE " + TRIPS_OF_PATTERN + " AND patternstop_id IN (" + joinIds(stopSequences.keySet()) + ")";
+
+        return StopTime.em().createNativeQuery(sql)
+            .setParameter(1, patternId)
+            .executeUpdate();
+    }
+
+    /**
+     * Set the arrival and departure times of many stop times, with one UPDATE per thousand stop times.
+     * @param arrivalTimes new arrival time (which may be null) keyed by stop time id
+     * @param departureTimes new departure time (which may be null) keyed by stop time id, with the same keys
+     */
+    public static void updateTimes(Map<Long, Integer> arrivalTimes, Map<Long, Integer> departureTimes) {
+        List<Long> ids = new ArrayList<Long>(arrivalTimes.keySet());
+
+        for (int i = 0; i < ids.size(); i += 1000) {
+            List<Long> batch = ids.subList(i, Math.min(i + 1000, ids.size()));
+            Map<Long, Integer> arrivals = new HashMap<Long, Integer>();
+            Map<Long, Integer> departures = new HashMap<Long, Integer>();
+
+            for (Long id : batch) {
+                arrivals.put(id, arrivalTimes.get(id));
+                departures.put(id, departureTimes.get(id));
+            }
+
+            StopTime.em().createNativeQuery(caseUpdate("arrivaltime", "id", arrivals) + ", " +
+                    caseAssignment("departuretime", "id", departures) + " WHERE id IN (" + joinIds(batch) + ")")
+                .executeUpdate();
+        }
+    }
+
+    /**
+     * Delete many stop times by id, with one DELETE per thousand stop times.
+     */
+    public static void deleteByIds(Collection<Long> stopTimeIds) {
+        List<Long> ids = new ArrayList<Long>(stopTimeIds);
+
+        for (int i = 0; i < ids.size(); i += 1000) {
+            StopTime.em().createNativeQuery("DELETE FROM stoptime WHERE id IN (" + joinIds(ids.subList(i, Math.min(i + 1000, ids.size()))) + ")")
+                .executeUpdate();
+        }
+    }
+
+    /**
+     * Delete all of the stop times of many trips, with one DELETE per thousand trips.
+     */
+    public static void deleteByTripIds(Collection<Long> tripIds) {
+        List<Long> ids = new ArrayList<Long>(tripIds);
+
+        for (int i = 0; i < ids.size(); i += 1000) {
+            StopTime.em().createNativeQuery("DELETE FROM stoptime WHERE trip_id IN (" + joinIds(ids.subList(i, Math.min(i + 1000, ids.size()))) + ")")
+                .executeUpdate();
+        }
+    }
+
+    /** UPDATE stoptime SET column = CASE key WHEN ... END */
+    private static String caseUpdate(String column, String key, Map<Long, ?> values) {
+        return "UPDATE stoptime SET " + caseAssignment(column, key, values);
+    }
+
+    /** column = CASE key WHEN ... END. Values are ids, sequence numbers and times, so they are safe to inline. */
+    private static String caseAssignment(String column, String key, Map<Long, ?> values) {
+        StringBuilder sb = new StringBuilder(column).append(" = CASE ").append(key);
+
+        for (Map.Entry<Long, ?> e : values.entrySet()) {
+            sb.append(" WHEN ").append(e.getKey()).append(" THEN ").append(e.getValue() != null ? e.getValue() : "NULL");
+        }
+
+        return sb.append(" ELSE ").append(column).append(" END").toString();
+    }
+
+    private static String idList(List<TripPatternStop> patternStops) {
+        List<Long> ids = new ArrayList<Long>(patternStops.size());
+        for (TripPatternStop ps : patternStops) {
+            ids.add(ps.id);
+        }
+        return joinIds(ids);
+    }
+
+    private static String joinIds(Collection<Long> ids) {
+        return Joiner.on(',').join(ids);
+    }
     
     public static StopTimePickupDropOffType mapGtfsPickupDropOffType(Integer pickupDropOffType)
     {
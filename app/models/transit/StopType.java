@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Set;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.EntityManager;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
@@ -19,11 +20,13 @@ import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.hibernate.annotations.Type;
 
 import play.db.jpa.Model;
+import utils.ReferenceCache;
 
 import models.gtfs.GtfsSnapshot;
 
 @JsonIgnoreProperties({"entityId", "persistent"})
 @Entity
+@EntityListeners(ReferenceCache.Invalidator.class)
 public class StopType extends Model {
 	
     public String stopType;
@@ -34,12 +37,12 @@ public class StopType extends Model {
 
     @JsonCreator
     public static StopType factory(long id) {
-      return StopType.findById(id);
+      return ReferenceCache.findById(StopType.class, id);
     }
 
     @JsonCreator
     public static StopType factory(String id) {
-      return StopType.findById(Long.parseLong(id));
+      return ReferenceCache.findById(StopType.class, Long.parseLong(id));
     }
 
     
@@ -0,0 +1,520 @@
+package models.transit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+/**
+ * The timetable of one pattern on one calendar as a dense matrix: the pattern stops once, then a row of times for
+ * each trip. This is much smaller than the trips with their nested stop times, and is read and written without
+ * loading stop time entities.
+ *
+ * Each row has an arrival and a departure time for each pattern stop, in order, so times[2 * i] is the arrival at
+ * stops[i]; null means the trip doesn't stop there. If delta is set, each time is instead the difference from the
+ * previous non-null time in the row, which keeps the numbers (and so the JSON) short.
+ */
+public class TimetableMatrix {
+
+    public Long patternId;
+    public Long calendarId;
+    public boolean delta;
+
+    public List<Column> stops;
+    public List<Row> trips;
+
+    public static class Column {
+        public Long patternStopId;
+        public Long stopId;
+        public Integer stopSequence;
+    }
+
+    public static class Row {
+        /** null for a new trip */
+        public Long id;
+        public String gtfsTripId;
+        public String tripHeadsign;
+        public String tripShortName;
+        public String blockId;
+        public Boolean invalid;
+
+        /** when saving, set this to delete the trip */
+        public Boolean deleted;
+
+        public Integer[] times;
+    }
+
+    public static TimetableMatrix load(TripPattern pattern, ServiceCalendar calendar, boolean delta) {
+        TimetableMatrix ret = new TimetableMatrix();
+        ret.patternId = pattern.id;
+        ret.calendarId = calendar.id;
+        ret.delta = delta;
+
+        List<TripPatternStop> patternStops = TripPatternStop.find("pattern = ? ORDER BY stopSequence", pattern).fetch();
+        ret.stops = new ArrayList<Column>(patternStops.size());
+
+        for (TripPatternStop ps : patternStops) {
+            Column col = new Column();
+            col.patternStopId = ps.id;
+            col.stopId = ps.stop.id;
+            col.stopSequence = ps.stopSequence;
+            ret.stops.add(col);
+        }
+
+        ColumnIndex columns = new ColumnIndex(patternStops);
+
+        List<Trip> trips = Trip.find("pattern = ? AND serviceCalendar = ? ORDER BY id", pattern, calendar).fetch();
+        ret.trips = new ArrayList<Row>(trips.size());
+
+        Map<Long, Row> rows = new HashMap<Long, Row>();
+
+        for (Trip trip : trips) {
+            Row row = new Row();
+            row.id = trip.id;
+            row.gtfsTripId = trip.gtfsTripId;
+            row.tripHeadsign = trip.tripHeadsign;
+            row.tripShortName = trip.tripShortName;
+            row.blockId = trip.blockId;
+            row.invalid = trip.invalid;
+            row.times = new Integer[patternStops.size() * 2];
+            ret.trips.add(row);
+
+            if (trip.packedStopTimes != null) {
+                PackedStopTimes packed = PackedStopTimes.decode(trip.packedStopTimes);
+
+                for (int i = 0; i < packed.size; i++) {
+                    int col = columns.find(packed.patternStopIds[i], packed.stopSequences[i]);
+
+                    if (col == -1)
+                        continue;
+
+                    row.times[col * 2] = unpack(packed.arrivalTimes[i]);
+                    row.times[col * 2 + 1] = unpack(packed.departureTimes[i]);
+                }
+            }
+            else {
+                rows.put(trip.id, row);
+            }
+        }
+
+        // all the stop time rows at once, as plain values
+        if (!rows.isEmpty()) {
+            List<Object[]> stopTimes = StopTime.em().createQuery("SELECT st.trip.id, st.patternStop.id, st.stopSequence, st.arrivalTime, st.departureTime " +
+                    "FROM StopTime st WHERE st.trip.pattern = ?1 AND st.trip.serviceCalendar = ?2")
+                .setParameter(1, pattern)
+                .setParameter(2, calendar)
+                .getResultList();
+
+            for (Object[] st : stopTimes) {
+                Row row = rows.get(st[0]);
+
+                if (row == null)
+                    continue;
+
+                int col = columns.find((Long) st[1], (Integer) st[2]);
+
+                if (col == -1)
+                    continue;
+
+                row.times[col * 2] = (Integer) st[3];
+                row.times[col * 2 + 1] = (Integer) st[4];
+            }
+        }
+
+        if (delta) {
+            for (Row row : ret.trips) {
+                toDeltas(row.times);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Save the trips in this matrix: trips with an id are updated, trips without one are created and trips marked
+     * deleted are deleted. Trips on the pattern and calendar that are not in the matrix are left alone. Everything is
+     * checked before anything is written. Trips and new stop times are written with a single flush, and changed stop
+     * times and deleted trips with a few bulk statements, however many rows there are.
+     * @throws IllegalArgumentException if the matrix doesn't match the pattern, or a trip isn't on the pattern and calendar
+     */
+    public void save() {
+        TripPattern pattern = TripPattern.findById(patternId);
+        ServiceCalendar calendar = ServiceCalendar.findById(calendarId);
+
+        if (pattern == null || calendar == null)
+            throw new IllegalArgumentException("Unknown pattern or calendar");
+
+        List<TripPatternStop> patternStops = TripPatternStop.find("pattern = ? ORDER BY stopSequence", pattern).fetch();
+
+        // the columns in this matrix, in pattern stop order
+        List<TripPatternStop> columnStops = new ArrayList<TripPatternStop>(stops.size());
+        Map<Long, TripPatternStop> patternStopsById = new HashMap<Long, TripPatternStop>();
+
+        for (TripPatternStop ps : patternStops) {
+            patternStopsById.put(ps.id, ps);
+        }
+
+        for (Column col : stops) {
+            TripPatternStop ps = patternStopsById.get(col.patternStopId);
+
+            if (ps == null)
+                throw new IllegalArgumentException("Pattern stop " + col.patternStopId + " is not on pattern " + patternId);
+
+            columnStops.add(ps);
+        }
+
+        ColumnIndex columns = new ColumnIndex(columnStops);
+
+        EntityManager em = Trip.em();
+
+        List<Long> tripIds = new ArrayList<Long>();
+
+        for (Row row : trips) {
+            if (row.id != null)
+                tripIds.add(row.id);
+
+            // the times of a deleted trip don't matter
+            if (Boolean.TRUE.equals(row.deleted)) {
+                if (row.id == null)
+                    throw new IllegalArgumentException("Only existing trips can be deleted");
+
+                continue;
+            }
+
+            if (row.times == null || row.times.length != columnStops.size() * 2)
+                throw new IllegalArgumentException("Trip " + row.id + " should have " + columnStops.size() * 2 + " times");
+
+            if (delta)
+                fromDeltas(row.times);
+        }
+
+        Map<Long, Trip> existingTrips = new HashMap<Long, Trip>();
+
+        if (!tripIds.isEmpty()) {
+            List<Trip> loaded = Trip.find("id in (:ids)").bind("ids", tripIds).fetch();
+
+            for (Trip trip : loaded) {
+                if (trip.pattern == null || !pattern.id.equals(trip.pattern.id) ||
+                        trip.serviceCalendar == null || !calendar.id.equals(trip.serviceCalendar.id))
+                    throw new IllegalArgumentException("Trip " + trip.id + " is not on pattern " + patternId + " and calendar " + calendarId);
+
+                existingTrips.put(trip.id, trip);
+            }
+        }
+
+        for (Long tripId : tripIds) {
+            if (!existingTrips.containsKey(tripId))
+                throw new IllegalArgumentException("Unknown trip " + tripId);
+        }
+
+        // stop times are updated and deleted in bulk, and trips deleted, which the system map wouldn't otherwise see
+        TripPattern.touch(Arrays.asList(pattern.id));
+
+        // trips with stop time rows, which are updated with a few statements at the end
+        Map<Long, Row> rowTrips = new HashMap<Long, Row>();
+
+        // new trips are persisted and existing ones changed in the session, and all written with one flush
+        Map<Row, Trip> newTrips = new LinkedHashMap<Row, Trip>();
+        List<Long> deletedTrips = new ArrayList<Long>();
+
+        for (Row row : trips) {
+            Trip trip;
+
+            if (row.id == null) {
+                trip = new Trip();
+                trip.pattern = pattern;
+                trip.route = pattern.route;
+                trip.serviceCalendar = calendar;
+                trip.useFrequency = false;
+                copyAttributes(row, trip);
+
+                if (Trip.packNewTrips())
+                    trip.packedStopTimes = repack(null, row.times, columnStops, columns);
+
+                em.persist(trip);
+
+                if (trip.packedStopTimes == null) {
+                    for (int col = 0; col < columnStops.size(); col++) {
+                        if (row.times[col * 2] != null || row.times[col * 2 + 1] != null)
+                            em.persist(newStopTime(trip, columnStops.get(col), row.times[col * 2], row.times[col * 2 + 1]));
+                    }
+                }
+
+                newTrips.put(row, trip);
+                continue;
+            }
+
+            trip = existingTrips.get(row.id);
+
+            if (Boolean.TRUE.equals(row.deleted)) {
+                // deleted in bulk below, so keep the session from writing it
+                em.detach(trip);
+                deletedTrips.add(trip.id);
+                continue;
+            }
+
+            copyAttributes(row, trip);
+
+            if (trip.packedStopTimes != null)
+                trip.packedStopTimes = repack(PackedStopTimes.decode(trip.packedStopTimes), row.times, columnStops, columns);
+            else
+                rowTrips.put(trip.id, row);
+        }
+
+        // existing stop time rows of the trips, as plain values
+        // existing stop time rows of the trips, as plain values
+        List<Object[]> stopTimes = rowTrips.isEmpty() ? new ArrayList<Object[]>() :
+            StopTime.em().createQuery("SELECT st.id, st.trip.id, st.patternStop.id, st.stopSequence, st.arrivalTime, st.departureTime " +
+                "FROM StopTime st WHERE st.trip.id IN (:ids)")
+            .setParameter("ids", new ArrayList<Long>(rowTrips.keySet()))
+            .getResultList();
+
+        Map<Long, Integer> arrivals = new HashMap<Long, Integer>();
+        Map<Long, Integer> departures = new HashMap<Long, Integer>();
+        List<Long> deleted = new ArrayList<Long>();
+
+        // which cells already have a stop time
+        Map<Long, boolean[]> found = new HashMap<Long, boolean[]>();
+
+        for (Object[] st : stopTimes) {
+            Long tripId = (Long) st[1];
+            int col = columns.find((Long) st[2], (Integer) st[3]);
+
+            if (col == -1)
+                continue;
+
+            Integer[] times = rowTrips.get(tripId).times;
+            Integer arrival = times[col * 2];
+            Integer departure = times[col * 2 + 1];
+
+            boolean[] cells = found.get(tripId);
+            if (cells == null) {
+                cells = new boolean[columnStops.size()];
+                found.put(tripId, cells);
+            }
+
+            cells[col] = true;
+
+            if (arrival == null && departure == null) {
+                deleted.add((Long) st[0]);
+            }
+            else if (!equal(arrival, st[4]) || !equal(departure, st[5])) {
+                arrivals.put((Long) st[0], arrival);
+                departures.put((Long) st[0], departure);
+            }
+        }
+
+        // new stop times
+        for (Map.Entry<Long, Row> e : rowTrips.entrySet()) {
+            boolean[] cells = found.get(e.getKey());
+            Integer[] times = e.getValue().times;
+            Trip trip = existingTrips.get(e.getKey());
+
+            for (int col = 0; col < columnStops.size(); col++) {
+                if ((cells == null || !cells[col]) && (times[col * 2] != null || times[col * 2 + 1] != null))
+                    em.persist(newStopTime(trip, columnStops.get(col), times[col * 2], times[col * 2 + 1]));
+            }
+        }
+
+        em.flush();
+
+        // new trips have ids now; this is written along with the rest of the transaction
+        for (Map.Entry<Row, Trip> e : newTrips.entrySet()) {
+            Trip trip = e.getValue();
+
+            if (trip.gtfsTripId == null)
+                trip.gtfsTripId = "TRIP_" + trip.id;
+
+            e.getKey().id = trip.id;
+        }
+
+        if (!arrivals.isEmpty())
+            StopTime.updateTimes(arrivals, departures);
+
+        if (!deleted.isEmpty())
+            StopTime.deleteByIds(deleted);
+
+        if (!deletedTrips.isEmpty()) {
+            StopTime.deleteByTripIds(deletedTrips);
+            Trip.deleteByIds(deletedTrips);
+        }
+    }
+
+    private static void copyAttributes(Row row, Trip trip) {
+        if (row.gtfsTripId != null)
+            trip.gtfsTripId = row.gtfsTripId;
+
+        trip.tripHeadsign = row.tripHeadsign;
+        trip.tripShortName = row.tripShortName;
+        trip.blockId = row.blockId;
+    }
+
+    private static StopTime newStopTime(Trip trip, TripPatternStop ps, Integer arrival, Integer departure) {
+        StopTime st = new StopTime();
+        st.trip = trip;
+        st.patternStop = ps;
+        st.stop = ps.stop;
+        st.stopSequence = ps.stopSequence;
+        st.arrivalTime = arrival;
+        st.departureTime = departure;
+        return st;
+    }
+
+    /**
+     * Pack the times of a row, keeping the other attributes of stop times that were already there and any stop times
+     * at stops that aren't in the matrix.
+     */
+    private static byte[] repack(PackedStopTimes existing, Integer[] times, List<TripPatternStop> columnStops, ColumnIndex columns) {
+        // which existing stop time each column had, and which existing stop times are outside the matrix
+        int[] existingIndex = new int[columnStops.size()];
+        Arrays.fill(existingIndex, -1);
+        List<Integer> outside = new ArrayList<Integer>();
+
+        if (existing != null) {
+            for (int i = 0; i < existing.size; i++) {
+                int col = columns.find(existing.patternStopIds[i], existing.stopSequences[i]);
+
+                if (col == -1)
+                    outside.add(i);
+                else
+                    existingIndex[col] = i;
+            }
+        }
+
+        // entries of the new packed stop times: columns as col, outside stop times as -1 - index
+        List<Integer> entries = new ArrayList<Integer>(outside.size() + columnStops.size());
+
+        for (int col = 0; col < columnStops.size(); col++) {
+            if (times[col * 2] != null || times[col * 2 + 1] != null)
+                entries.add(col);
+        }
+
+        for (Integer i : outside) {
+            entries.add(-1 - i);
+        }
+
+        final PackedStopTimes old = existing;
+        final List<TripPatternStop> cols = columnStops;
+
+        Collections.sort(entries, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return sequence(a) - sequence(b);
+            }
+
+            private int sequence(Integer entry) {
+                return entry >= 0 ? cols.get(entry).stopSequence : old.stopSequences[-1 - entry];
+            }
+        });
+
+        PackedStopTimes ret = new PackedStopTimes(entries.size());
+
+        for (int i = 0; i < entries.size(); i++) {
+            int entry = entries.get(i);
+            int from = entry >= 0 ? existingIndex[entry] : -1 - entry;
+
+            if (from != -1) {
+                ret.stopIds[i] = existing.stopIds[from];
+                ret.patternStopIds[i] = existing.patternStopIds[from];
+                ret.stopSequences[i] = existing.stopSequences[from];
+                ret.arrivalTimes[i] = existing.arrivalTimes[from];
+                ret.departureTimes[i] = existing.departureTimes[from];
+                ret.pickupTypes[i] = existing.pickupTypes[from];
+                ret.dropOffTypes[i] = existing.dropOffTypes[from];
+                ret.shapeDistTraveled[i] = existing.shapeDistTraveled[from];
+                ret.stopHeadsigns[i] = existing.stopHeadsigns[from];
+            }
+            else {
+                ret.pickupTypes[i] = ret.dropOffTypes[i] = -1;
+                ret.shapeDistTraveled[i] = Double.NaN;
+            }
+
+            if (entry >= 0) {
+                TripPatternStop ps = columnStops.get(entry);
+                ret.stopIds[i] = ps.stop.id;
+                ret.patternStopIds[i] = ps.id;
+                ret.stopSequences[i] = ps.stopSequence;
+                ret.arrivalTimes[i] = pack(times[entry * 2]);
+                ret.departureTimes[i] = pack(times[entry * 2 + 1]);
+            }
+        }
+
+        return ret.encode();
+    }
+
+    /** replace each non-null time with its difference from the previous non-null time */
+    static void toDeltas(Integer[] times) {
+        Integer previous = null;
+
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] == null)
+                continue;
+
+            int time = times[i];
+
+            if (previous != null)
+                times[i] = time - previous;
+
+            previous = time;
+        }
+    }
+
+    /** undo toDeltas */
+    static void fromDeltas(Integer[] times) {
+        Integer previous = null;
+
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] == null)
+                continue;
+
+            if (previous != null)
+                times[i] = times[i] + previous;
+
+            previous = times[i];
+        }
+    }
+
+    private static boolean equal(Integer a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static Integer unpack(int time) {
+        return time != PackedStopTimes.MISSING ? time : null;
+    }
+
+    private static int pack(Integer time) {
+        return time != null ? time : PackedStopTimes.MISSING;
+    }
+
+    /**
+     * Finds the column of a stop time: by pattern stop if it has one, otherwise by stop sequence.
+     */
+    private static class ColumnIndex {
+        private Map<Long, Integer> byPatternStop = new HashMap<Long, Integer>();
+        private Map<Integer, Integer> bySequence = new HashMap<Integer, Integer>();
+
+        public ColumnIndex(List<TripPatternStop> patternStops) {
+            for (int i = 0; i < patternStops.size(); i++) {
+                byPatternStop.put(patternStops.get(i).id, i);
+                bySequence.put(patternStops.get(i).stopSequence, i);
+            }
+        }
+
+        /** @param patternStopId the pattern stop id, or null or 0 if there is none */
+        public int find(Long patternStopId, Integer stopSequence) {
+            Integer col = null;
+
+            if (patternStopId != null && patternStopId != 0)
+                col = byPatternStop.get(patternStopId);
+            else if (stopSequence != null)
+                col = bySequence.get(stopSequence);
+
+            return col != null ? col : -1;
+        }
+    }
+}
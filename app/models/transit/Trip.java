@@ -3,6 +3,11 @@ package models.transit;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
@@ -11,6 +16,8 @@ import javax.persistence.Enumerated;
 import javax.persistence.ManyToOne;
 import javax.persistence.Query;
 import javax.persistence.Transient;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
@@ -18,8 +25,10 @@ import org.hibernate.annotations.Type;
 
 import com.conveyal.gtfs.model.Frequency;
 import com.conveyal.gtfs.model.Service;
+import com.google.common.base.Joiner;
 
 import play.Logger;
+import play.Play;
 import play.db.jpa.Model;
 import models.gtfs.GtfsSnapshot;
 
@@ -64,6 +73,23 @@ public class Trip extends Model {
     
     public Integer headway;
     public Boolean invalid;
+
+    /**
+     * The stop times of this trip packed by PackedStopTimes, or null if they are stored as StopTime rows. Either way,
+     * use getStopTimes to read them.
+     */
+    @JsonIgnore
+    public byte[] packedStopTimes;
+
+    /** when this was last saved, so that the system map can be updated incrementally */
+    @JsonIgnore
+    public Date lastModified;
+
+    @PrePersist
+    @PreUpdate
+    void updateLastModified() {
+        lastModified = new Date();
+    }
   
     
     public static BigInteger nativeInsert(EntityManager em, org.onebusaway.gtfs.model.Trip gtfsTrip, BigInteger routeId, BigInteger shapeId, BigInteger serviceCalendarId, BigInteger serviceCalendarDateId)
@@ -147,13 +173,359 @@ Query q;
 		return nextId;
     }
   
+    /**
+     * Mark every trip on the pattern that has any times as invalid, e.g. because its stops were reordered.
+     */
+    public static int invalidateTimedTrips(Long patternId) {
+        return Trip.em().createNativeQuery("UPDATE trip SET invalid = true, lastmodified = ? WHERE pattern_id = ? AND EXISTS " +
+                "(SELECT 1 FROM stoptime WHERE stoptime.trip_id = trip.id AND (stoptime.arrivaltime IS NOT NULL OR stoptime.departuretime IS NOT NULL))")
+            .setParameter(1, new Date())
+            .setParameter(2, patternId)
+            .executeUpdate();
+    }
+
+    /**
+     * Get the ids of the trips on a pattern and calendar, in order. Either may be null to match any.
+     */
+    public static List<Long> findIds(Long patternId, Long serviceCalendarId) {
+        Query q = Trip.em().createQuery("SELECT t.id FROM Trip t WHERE " +
+                (patternId != null ? "t.pattern.id = :pattern" : "1 = 1") +
+                (serviceCalendarId != null ? " AND t.serviceCalendar.id = :calendar" : "") +
+                " ORDER BY t.id");
+
+        if (patternId != null)
+            q.setParameter("pattern", patternId);
+
+        if (serviceCalendarId != null)
+            q.setParameter("calendar", serviceCalendarId);
+
+        return q.getResultList();
+    }
+
+    /**
+     * Delete many trips by id, with one DELETE per thousand trips. Their stop times have to be deleted first, and their
+     * patterns touched (see TripPattern.touch).
+     */
+    public static void deleteByIds(List<Long> tripIds) {
+        for (int i = 0; i < tripIds.size(); i += 1000) {
+            Trip.em().createNativeQuery("DELETE FROM trip WHERE id IN (" + Joiner.on(',').join(tripIds.subList(i, Math.min(i + 1000, tripIds.size()))) + ")")
+                .executeUpdate();
+        }
+    }
+
+    /**
+     * Add seconds, which may be negative, to all of the times of the given trips: their stop times, and the start and
+     * end of frequency trips. This is done in the database a thousand trips at a time, and doesn't touch trips already
+     * loaded into the session, except packed trips.
+     */
+    public static void shiftTimes(List<Long> tripIds, int seconds) {
+        Map<Long, Integer> shifts = new HashMap<Long, Integer>();
+        for (Long tripId : tripIds) {
+            shifts.put(tripId, seconds);
+        }
+
+        // before the update below, so that saving a packed trip can't write back its old start and end times
+        shiftPackedStopTimes(shifts);
+
+        EntityManager em = Trip.em();
+
+        for (int i = 0; i < tripIds.size(); i += 1000) {
+            String ids = Joiner.on(',').join(tripIds.subList(i, Math.min(i + 1000, tripIds.size())));
+
+            em.createNativeQuery("UPDATE stoptime SET arrivaltime = arrivaltime + ?, departuretime = departuretime + ? WHERE trip_id IN (" + ids + ")")
+                .setParameter(1, seconds)
+                .setParameter(2, seconds)
+                .executeUpdate();
+
+            em.createNativeQuery("UPDATE trip SET starttime = starttime + ?, endtime = endtime + ?, lastmodified = CURRENT_TIMESTAMP WHERE id IN (" + ids + ")")
+                .setParameter(1, seconds)
+                .setParameter(2, seconds)
+                .executeUpdate();
+        }
+    }
+
+    /**
+     * Copy trips along with their stop times, in the database. Each statement copies a thousand trips, and all of their
+     * stop times at once.
+     *
+     * @param sourceIds the trip to make each copy of; a trip may be copied more than once
+     * @param shifts seconds to add to the times of each copy, in the same order as sourceIds
+     * @param serviceCalendarId the calendar of the copies, or null to keep the service of the original
+     * @return the ids of the copies, in the same order as sourceIds
+     */
+    public static List<Long> copy(List<Long> sourceIds, List<Integer> shifts, Long serviceCalendarId) {
+        EntityManager em = Trip.em();
+
+        List<Long> copyIds = new ArrayList<Long>(sourceIds.size());
+        Map<Long, Integer> packedShifts = new HashMap<Long, Integer>();
+
+        if (sourceIds.isEmpty())
+            return copyIds;
+
+        // all of the ids at once
+        List<Number> ids = em.createNativeQuery("SELECT NEXTVAL('hibernate_sequence') FROM generate_series(1, ?)")
+            .setParameter(1, sourceIds.size())
+            .getResultList();
+
+        for (int i = 0; i < sourceIds.size(); i++) {
+            Long copyId = ids.get(i).longValue();
+            copyIds.add(copyId);
+
+            if (shifts.get(i) != 0)
+                packedShifts.put(copyId, shifts.get(i));
+        }
+
+        String calendar = serviceCalendarId != null ? serviceCalendarId + ", NULL" : "t.servicecalendar_id, t.servicecalendardate_id";
+
+        for (int i = 0; i < sourceIds.size(); i += 1000) {
+            // the copies as a table: (id, source_id, shift)
+            StringBuilder copies = new StringBuilder();
+
+            for (int j = i; j < Math.min(i + 1000, sourceIds.size()); j++) {
+                if (j > i)
+                    copies.append(" UNION ALL ");
+
+                copies.append("SELECT ").append(copyIds.get(j)).append(" AS id, ")
+                    .append(sourceIds.get(j)).append(" AS source_id, ")
+                    .append(shifts.get(j)).append(" AS shift");
+            }
+
+            em.createNativeQuery("INSERT INTO trip (id, gtfstripid, tripheadsign, tripshortname, tripdescription, tripdirection, blockid, " +
+                    "route_id, shape_id, pattern_id, servicecalendar_id, servicecalendardate_id, wheelchairboarding, usefrequency, " +
+                    "starttime, endtime, headway, invalid, packedstoptimes, lastmodified) " +
+                    "SELECT c.id, CONCAT('TRIP_', c.id), t.tripheadsign, t.tripshortname, t.tripdescription, t.tripdirection, t.blockid, " +
+                    "t.route_id, t.shape_id, t.pattern_id, " + calendar + ", t.wheelchairboarding, t.usefrequency, " +
+                    "t.starttime + c.shift, t.endtime + c.shift, t.headway, t.invalid, t.packedstoptimes, CURRENT_TIMESTAMP " +
+                    "FROM trip t JOIN (" + copies + ") c ON c.source_id = t.id")
+                .executeUpdate();
+
+            em.createNativeQuery("INSERT INTO stoptime (id, trip_id, stop_id, patternstop_id, stopsequence, stopheadsign, " +
+                    "arrivaltime, departuretime, pickuptype, dropofftype, shapedisttraveled) " +
+                    "SELECT NEXTVAL('hibernate_sequence'), c.id, st.stop_id, st.patternstop_id, st.stopsequence, st.stopheadsign, " +
+                    "st.arrivaltime + c.shift, st.departuretime + c.shift, st.pickuptype, st.dropofftype, st.shapedisttraveled " +
+                    "FROM stoptime st JOIN (" + copies + ") c ON c.source_id = st.trip_id")
+                .executeUpdate();
+        }
+
+        // packed stop times were copied verbatim
+        shiftPackedStopTimes(packedShifts);
+
+        return copyIds;
+    }
+
+    /**
+     * Apply a change to a pattern's stops to the packed stop times of its trips, as TripPattern.reconcilePatternStops
+     * does to stop time rows with native statements (see PackedStopTimes.remapPatternStops for the arguments). Only
+     * the packed arrays are read and written, a thousand trips at a time.
+     * @param patternStops the pattern's stops before the change, in order
+     * @param invalidateTimed whether to mark trips with times as invalid
+     */
+    public static void remapPackedStopTimes(Long patternId, List<TripPatternStop> patternStops, Collection<Long> removed,
+            Map<Long, Integer> stopSequences, Map<Long, Long> patternStopIds, boolean invalidateTimed) {
+        EntityManager em = Trip.em();
+
+        List<Long> tripIds = em.createQuery("SELECT t.id FROM Trip t WHERE t.pattern.id = ? AND t.packedStopTimes IS NOT NULL")
+            .setParameter(1, patternId)
+            .getResultList();
+
+        Date now = new Date();
+
+        for (int i = 0; i < tripIds.size(); i += 1000) {
+            List<Object[]> packed = em.createQuery("SELECT t.id, t.packedStopTimes FROM Trip t WHERE t.id IN (:ids)")
+                .setParameter("ids", tripIds.subList(i, Math.min(i + 1000, tripIds.size())))
+                .getResultList();
+
+            for (Object[] trip : packed) {
+                PackedStopTimes stopTimes = PackedStopTimes.decode((byte[]) trip[1]);
+                stopTimes.linkToPatternStops(patternStops);
+                stopTimes = stopTimes.remapPatternStops(removed, stopSequences, patternStopIds);
+
+                boolean invalidate = invalidateTimed && stopTimes.hasTimes();
+
+                em.createNativeQuery("UPDATE trip SET packedstoptimes = ?, lastmodified = ?" + (invalidate ? ", invalid = true" : "") + " WHERE id = ?")
+                    .setParameter(1, stopTimes.encode())
+                    .setParameter(2, now)
+                    .setParameter(3, trip[0])
+                    .executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Whether any packed trip of the stop's agency has a stop time at the stop. Nothing in the database keeps a stop
+     * that packed stop times refer to from being deleted, so check this first. Only the packed arrays are read, a
+     * thousand trips at a time.
+     */
+    public static boolean packedTripsUseStop(Stop stop) {
+        EntityManager em = Trip.em();
+
+        Query q = em.createQuery("SELECT t.id FROM Trip t WHERE t.packedStopTimes IS NOT NULL" +
+                (stop.agency != null ? " AND t.route.agency = :agency" : ""));
+
+        if (stop.agency != null)
+            q.setParameter("agency", stop.agency);
+
+        List<Long> tripIds = q.getResultList();
+
+        for (int i = 0; i < tripIds.size(); i += 1000) {
+            List<byte[]> packed = em.createQuery("SELECT t.packedStopTimes FROM Trip t WHERE t.id IN (:ids)")
+                .setParameter("ids", tripIds.subList(i, Math.min(i + 1000, tripIds.size())))
+                .getResultList();
+
+            for (byte[] stopTimes : packed) {
+                if (PackedStopTimes.decode(stopTimes).hasStop(stop.id))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /** shift the stop times of those of the given trips that are packed, by the seconds given for each */
+    private static void shiftPackedStopTimes(Map<Long, Integer> shifts) {
+        List<Long> tripIds = new ArrayList<Long>(shifts.keySet());
+
+        for (int i = 0; i < tripIds.size(); i += 1000) {
+            List<Trip> packed = Trip.find("id IN (:ids) AND packedStopTimes IS NOT NULL")
+                .bind("ids", tripIds.subList(i, Math.min(i + 1000, tripIds.size())))
+                .fetch();
+
+            for (Trip trip : packed) {
+                PackedStopTimes stopTimes = PackedStopTimes.decode(trip.packedStopTimes);
+                stopTimes.shift(shifts.get(trip.id));
+                trip.packedStopTimes = stopTimes.encode();
+                trip.save();
+            }
+        }
+    }
+
     public ArrayList<StopTime> getStopTimes()
     {
+    	if (packedStopTimes != null)
+    		return new ArrayList<StopTime>(PackedStopTimes.decode(packedStopTimes).toStopTimes(this));
+    	
     	ArrayList<StopTime> stopTimes = new ArrayList(StopTime.find("trip = ? ORDER BY stopSequence", this).fetch());
     	
     	return stopTimes;
     }
 
+    /** whether new trips should store their stop times packed, rather than as StopTime rows */
+    public static boolean packNewTrips() {
+    	return Boolean.parseBoolean(Play.configuration.getProperty("application.packedStopTimes", "false"));
+    }
+
+    public boolean hasPackedStopTimes() {
+    	return packedStopTimes != null;
+    }
+
+    /**
+     * Move the StopTime rows of many trips into packedStopTimes, as pack does for one. The stop times of a thousand
+     * trips at a time are loaded with one query, and then the trips are written and the rows deleted with native
+     * statements. The session is cleared after each thousand.
+     */
+    public static void pack(List<Long> tripIds) {
+        EntityManager em = Trip.em();
+        Date now = new Date();
+
+        for (int i = 0; i < tripIds.size(); i += 1000) {
+            List<Long> batch = tripIds.subList(i, Math.min(i + 1000, tripIds.size()));
+
+            List<StopTime> stopTimes = StopTime.find("SELECT st FROM StopTime st JOIN FETCH st.trip LEFT JOIN FETCH st.stop " +
+                    "LEFT JOIN FETCH st.patternStop WHERE st.trip.id IN (:ids)")
+                .bind("ids", batch)
+                .fetch();
+
+            Map<Long, List<StopTime>> byTrip = new HashMap<Long, List<StopTime>>();
+
+            for (StopTime st : stopTimes) {
+                List<StopTime> tripStopTimes = byTrip.get(st.trip.id);
+
+                if (tripStopTimes == null) {
+                    tripStopTimes = new ArrayList<StopTime>();
+                    byTrip.put(st.trip.id, tripStopTimes);
+                }
+
+                tripStopTimes.add(st);
+            }
+
+            for (Long tripId : batch) {
+                List<StopTime> tripStopTimes = byTrip.get(tripId);
+
+                em.createNativeQuery("UPDATE trip SET packedstoptimes = ?, lastmodified = ? WHERE id = ? AND packedstoptimes IS NULL")
+                    .setParameter(1, PackedStopTimes.fromStopTimes(tripStopTimes != null ? tripStopTimes : new ArrayList<StopTime>()).encode())
+                    .setParameter(2, now)
+                    .setParameter(3, tripId)
+                    .executeUpdate();
+            }
+
+            StopTime.deleteByTripIds(batch);
+
+            // the stop times and trips loaded above are stale
+            em.clear();
+        }
+    }
+
+    /**
+     * Move the packed stop times of many trips back out into StopTime rows, as unpack does for one. The rows are
+     * inserted with one flush and the trips cleared with one statement per thousand trips, and the session is cleared
+     * after each thousand.
+     */
+    public static void unpack(List<Long> tripIds) {
+        EntityManager em = Trip.em();
+        Date now = new Date();
+
+        for (int i = 0; i < tripIds.size(); i += 1000) {
+            List<Long> batch = tripIds.subList(i, Math.min(i + 1000, tripIds.size()));
+
+            List<Object[]> packed = em.createQuery("SELECT t.id, t.packedStopTimes FROM Trip t WHERE t.id IN (:ids) AND t.packedStopTimes IS NOT NULL")
+                .setParameter("ids", batch)
+                .getResultList();
+
+            for (Object[] trip : packed) {
+                Trip ref = em.getReference(Trip.class, trip[0]);
+
+                for (StopTime stopTime : PackedStopTimes.decode((byte[]) trip[1]).toStopTimes(ref)) {
+                    em.persist(stopTime);
+                }
+            }
+
+            em.flush();
+
+            em.createNativeQuery("UPDATE trip SET packedstoptimes = NULL, lastmodified = ? WHERE id IN (" + Joiner.on(',').join(batch) + ")")
+                .setParameter(1, now)
+                .executeUpdate();
+
+            em.clear();
+        }
+    }
+
+    /** move the StopTime rows of this trip into packedStopTimes */
+    public void pack() {
+    	if (packedStopTimes != null)
+    		return;
+    	
+    	List<StopTime> stopTimes = StopTime.find("trip = ? ORDER BY stopSequence", this).fetch();
+    	packedStopTimes = PackedStopTimes.fromStopTimes(stopTimes).encode();
+    	
+    	StopTime.delete("trip = ?", this);
+    	this.save();
+    }
+
+    /** move packedStopTimes back out into StopTime rows */
+    public void unpack() {
+    	if (packedStopTimes == null)
+    		return;
+    	
+    	EntityManager em = Trip.em();
+    	
+    	for (StopTime stopTime : PackedStopTimes.decode(packedStopTimes).toStopTimes(this)) {
+    		em.persist(stopTime);
+    	}
+    	
+    	packedStopTimes = null;
+    	this.save();
+    }
+
     @Transient
     @JsonIgnore
     public String getGtfsId () {
@@ -5,11 +5,15 @@ import static java.util.Collections.sort;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Date;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
@@ -24,7 +28,10 @@ import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.OrderColumn;
 import javax.persistence.Query;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 
+import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
@@ -34,6 +41,8 @@ import org.hibernate.annotations.Type;
 
 import play.Logger;
 import play.db.jpa.Model;
+import utils.JsonReferenceResolver;
+import utils.StopSequenceDiff;
 import models.gtfs.GtfsSnapshot;
 
 @JsonIgnoreProperties({"entityId", "persistent"})
@@ -70,14 +79,23 @@ public class TripPattern extends Model {
 
     public Integer headway;
 
+    @JsonIgnore
+    public Date lastModified;
+
+    @PrePersist
+    @PreUpdate
+    void updateLastModified() {
+        lastModified = new Date();
+    }
+
     @JsonCreator
     public static TripPattern factory(long id) {
-      return TripPattern.findById(id);
+      return JsonReferenceResolver.findById(TripPattern.class, id);
     }
 
     @JsonCreator
     public static TripPattern factory(String id) {
-      return TripPattern.findById(Long.parseLong(id));
+      return JsonReferenceResolver.findById(TripPattern.class, Long.parseLong(id));
     }
 
     public TripPattern()
@@ -173,11 +191,10 @@ public class TripPattern extends Model {
     /**
      * update the trip pattern stops
      * see extensive discussion in ticket #102
-     * basically, we assume only one stop has changed---either it's been removed, added or moved
-     * this is consistent with the use of Backbone.save in the UI, and
-     * also with the principle of least magic possible
-     * of course, we check to ensure that that is the case and fail if it's not
-     * this lets us easily detect what has happened simply by length
+     * any combination of added, removed and moved stops is supported: the old and new stop sequences are diffed, and
+     * the stop times of every trip are updated to match in the database. We don't create stop times for new stops,
+     * since we have no way of knowing which trips stop there or when; those can be created in the timetable editor.
+     * If any stop moved, trips with times are marked invalid.
      * @param tripPattern the trip pattern containing the new patternstops
      */
     public void reconcilePatternStops(TripPattern tripPattern) {        
@@ -201,250 +218,93 @@ public class TripPattern extends Model {
             tripPattern.patternStops.get(i).stopSequence = i + 1;
         }
         
-        /* ADDITIONS */
-        if (originalStopIds.length == newStopIds.length - 1) {
-            // we have an addition; find it
-
-            int differenceLocation = -1;
-            for (int i = 0; i < newStopIds.length; i++) {
-                if (differenceLocation != -1) {
-                    // we've already found the addition
-                    if (i < originalStopIds.length && originalStopIds[i] != newStopIds[i + 1]) {
-                        // there's another difference, which we weren't expecting
-                        throw new IllegalStateException("Multiple differences found when trying to detect stop addition");
-                    }
-                }
-
-                // if we've reached where one trip has an extra stop, or if the stops at this position differ
-                else if (i == newStopIds.length - 1 || originalStopIds[i] != newStopIds[i]) {
-                    // we have found the difference
-                    differenceLocation = i;
-                }
-            }
-
-            // repack stop times
-            // this is super-easy; we don't need to remove or add anything, as we don't create stop times for
-            // the new stop. We would have no way of knowing which trips stop at the new stop, or at what time.
-            // Stop times can be manually created in the timetable editor.
-
-            for (Object t : Trip.find("pattern = ?", this).fetch()) {
-                Trip trip = (Trip) t;
-                
-                Iterator<TripPatternStop> pse = tripPattern.patternStops.listIterator();
-                TripPatternStop current;
-                
-                // sort the stop times by stop sequence
-                List<StopTime> stopTimes = trip.getStopTimes();
-                sort(stopTimes, new StopTimeSequenceComparator());
-                
-                for (StopTime st : stopTimes) {
-                    current = pse.next();
-                    
-                    while (!current.stop.id.equals(st.stop.id))
-                        current = pse.next();
-                    
-                    st.stopSequence = current.stopSequence;
-                    st.patternStop = current;
-                    StopTime.em().merge(st).save();
-                }
-            }                
-        }
+        // nothing to do
+        if (Arrays.equals(originalStopIds, newStopIds))
+            return;
         
-        /* DELETIONS */
-        else if (originalStopIds.length == newStopIds.length + 1) {
-            // we have an deletion; find it
-            int differenceLocation = -1;
-            for (int i = 0; i < originalStopIds.length; i++) {
-                if (differenceLocation != -1) {
-                    if (originalStopIds[i] != newStopIds[i - 1]) {
-                        // there is another difference, which we were not expecting
-                        throw new IllegalStateException("Multiple differences found when trying to detect stop removal");
-                    }
-                }
-                
-                // we've reacehd the end and the only difference is length (so the last stop is the different one)
-                // or we've found the difference
-                else if (i == originalStopIds.length -1 || originalStopIds[i] != newStopIds[i]) {
-                    differenceLocation = i;
-                }
-            }
+        // where each original pattern stop ends up in the new pattern
+        StopSequenceDiff diff = StopSequenceDiff.diff(originalStopIds, newStopIds);
+        
+        applyPatternStopMapping(tripPattern, diff.newIndex, diff.moved);
+    }
+    
+    /**
+     * Update the stop times of every trip on this pattern to follow its pattern stops to their new positions, with a
+     * handful of set-based statements rather than touching each stop time.
+     * @param tripPattern the new pattern, with its pattern stops sorted and packed
+     * @param newIndex the index in the new pattern of each of this pattern's stops (sorted), or -1 if it was removed
+     * @param invalidateTrips whether to mark trips with times as invalid, because stops were reordered
+     */
+    private void applyPatternStopMapping(TripPattern tripPattern, int[] newIndex, boolean invalidateTrips) {
+        EntityManager em = TripPattern.em();
+        
+        // make sure the native statements see everything
+        em.flush();
+        
+        StopTime.linkToPatternStops(this.id, this.patternStops);
+        
+        List<Long> removed = new ArrayList<Long>();
+        Map<Long, Integer> stopSequences = new HashMap<Long, Integer>();
+        Map<Long, Long> patternStopIds = new HashMap<Long, Long>();
+        
+        for (int i = 0; i < newIndex.length; i++) {
+            Long original = this.patternStops.get(i).id;
             
-            // renumber the stop sequences
-            int i = 1;
-            for (TripPatternStop ps : tripPattern.patternStops) {
-                ps.stopSequence = i++;
-                TripPatternStop.em().merge(ps).save();
+            if (newIndex[i] == -1) {
+                removed.add(original);
+                continue;
             }
             
-            // repack stop times and remove stop times for removed pattern stop
-            // this will NPE if the original trip pattern had a null stop sequence, but that's not supposed to happen
-            int removedStopSeq = this.patternStops.get(differenceLocation).stopSequence;
-            long removedStopId = originalStopIds[differenceLocation];
-            
-            for (Object t : Trip.find("pattern = ?", this).fetch()) {
-                Trip trip = (Trip) t;
-                
-                // sort the stop times by stop sequence
-                List<StopTime> stopTimes = trip.getStopTimes();
-                sort(stopTimes, new StopTimeSequenceComparator());
-
-                // remove the stop time we want to remove
-                StopTime toRemove = null;
-                
-                // something to get patternStops
-                Iterator<TripPatternStop> pse = tripPattern.patternStops.listIterator();
-                
-                TripPatternStop current;
-                
-                for (StopTime st : stopTimes) {
-                    if (st.stop.id.equals(removedStopId) && st.stopSequence.equals(removedStopSeq)) {
-                        toRemove = st;
-                        continue;
-                    }
-                    
-                    // ensure this happens at least once per iteration, in case the same stop occurs twice in a row
-                    // that is bad but does happen
-                    current = pse.next();
-                    
-                    // skip skipped patternstops
-                    // not every trip has to stop at every stop in a pattern
-                    while (!current.stop.id.equals(st.stop.id))
-                        current = pse.next();
-                    
-                    st.stopSequence = current.stopSequence;
-                    st.patternStop = current;
-                    StopTime.em().merge(st).save();
-                }
-                
-                toRemove.delete();
-            }
+            // always remap, even if nothing moved, since this repacks the stop sequences
+            TripPatternStop updated = tripPattern.patternStops.get(newIndex[i]);
+            stopSequences.put(original, updated.stopSequence);
+            patternStopIds.put(original, updated.id);
         }
         
-        /* TRANSPOSITIONS */
-        else if (originalStopIds.length == newStopIds.length) {
-            // Imagine the trip patterns pictured below (where . is a stop, and lines indicate the same stop)
-            // the original trip pattern is on top, the new below
-            // . . . . . . . .
-            // | |  \ \ \  | |
-            // * * * * * * * *
-            // also imagine that the two that are unmarked are the same
-            // (the limitations of ascii art, this is prettier on my whiteboard)
-            // There are three regions: the beginning and end, where stopSequences are the same, and the middle, where they are not
-            // The same is true of trips where stops were moved backwards
-            
-            // find the left bound of the changed region
-            int firstDifferentIndex = 0;
-            while (true) {
-                // we've found the first index where they differ
-                if (originalStopIds[firstDifferentIndex] != newStopIds[firstDifferentIndex])
-                    break;
-                
-                firstDifferentIndex++;
-                
-                if (firstDifferentIndex == originalStopIds.length)
-                    // trip patterns do not differ at all, nothing to do
-                    return;
-            }
-            
-            // find the right bound of the changed region
-            int lastDifferentIndex = originalStopIds.length - 1;
-            while (true) {
-                if (originalStopIds[lastDifferentIndex] != newStopIds[lastDifferentIndex])
-                    break;
-                
-                lastDifferentIndex--;
-            }
-            
-            // TODO: write a unit test for this
-            if (firstDifferentIndex == lastDifferentIndex) {
-                throw new IllegalStateException("stop substitutions are not supported, region of difference must have length > 1");
-            }
-            
-            // figure out whether a stop was moved left or right
-            // note that if the stop was only moved one position, it's impossible to tell, and also doesn't matter,
-            // because the requisite operations are equivalent
-            long movedStopId;
-            int movedStopSeq;
-            int newStopSeq;
-            TripPatternStop newPattStop;
-            
-            // TODO: ensure that this is all that happened (i.e. verify stop ID map inside changed region)
-            if (originalStopIds[firstDifferentIndex] == newStopIds[lastDifferentIndex]) {
-                movedStopId = originalStopIds[firstDifferentIndex];
-                movedStopSeq = this.patternStops.get(firstDifferentIndex).stopSequence;
-                newStopSeq = tripPattern.patternStops.get(lastDifferentIndex).stopSequence;
-                newPattStop = tripPattern.patternStops.get(lastDifferentIndex);
-            }
-
-            else if (newStopIds[firstDifferentIndex] == originalStopIds[lastDifferentIndex]) {
-                // stop was moved left
-                movedStopId = originalStopIds[lastDifferentIndex];
-                movedStopSeq = this.patternStops.get(lastDifferentIndex).stopSequence;
-                newStopSeq = tripPattern.patternStops.get(firstDifferentIndex).stopSequence;
-                newPattStop = tripPattern.patternStops.get(firstDifferentIndex);
-            }
-            
-            else {
-                throw new IllegalStateException("not a simple, single move!");
-            }
+        StopTime.deleteForPatternStops(this.id, removed);
+        StopTime.remapPatternStops(this.id, stopSequences, patternStopIds);
+        
+        if (invalidateTrips)
+            Trip.invalidateTimedTrips(this.id);
+        
+        // the native statements only see stop time rows; packed trips get the same mapping applied to their arrays
+        Trip.remapPackedStopTimes(this.id, this.patternStops, removed, stopSequences, patternStopIds, invalidateTrips);
+        
+        touch(Arrays.asList(this.id));
+        
+        // loaded trips and stop times are now stale
+        em.clear();
+    }
 
+    /**
+     * Mark patterns as modified, so that the next incremental system map run recomputes their routes. @PreUpdate only
+     * sees changes made through the entity, so call this after changing a pattern's trips or stop times with native
+     * SQL or bulk statements, and before deleting trips, which leaves nothing behind to find.
+     */
+    public static void touch(Collection<Long> patternIds) {
+        if (patternIds.isEmpty())
+            return;
 
-            for (Object t : Trip.find("pattern = ?", this).fetch()) {
-                Trip trip = (Trip) t;
-
-                List<StopTime> stopTimes = trip.getStopTimes();
-
-                // sort
-                sort(stopTimes, new StopTimeSequenceComparator());
-
-                Iterator<TripPatternStop> psi = tripPattern.patternStops.iterator();
-
-                TripPatternStop current;
-
-                // record if there were stop times
-                // if there were, invalidate the trip. 
-                boolean hadStopTimes = false;
-                
-                for (StopTime st : stopTimes) {
-                    if (st.arrivalTime != null || st.departureTime != null)
-                        hadStopTimes = true;
-                    
-                    if (st.stop.id.equals(movedStopId) && st.stopSequence.equals(movedStopSeq)) {
-                        // we are dealing with the moved stop
-                        st.stopSequence = newStopSeq;
-                        StopTime updated = StopTime.em().merge(st);
-                        updated.patternStop = newPattStop;
-                    }
-
-                    else {
-                        // we are not dealing with the moved stop
-                        current = psi.next();
-
-                        while (!current.stop.id.equals(st.stop.id) ||
-                                // skip the moved stop, in case the same stop appears twice
-                                (current.stop.id.equals(movedStopId) && current.stopSequence.equals(newStopSeq)))
-                            current = psi.next();
-
-                        st.stopSequence = current.stopSequence;
-                        StopTime updated = StopTime.em().merge(st);
-                        updated.patternStop = current;
-                    }
-                }
-                
-                if (hadStopTimes) {
-                    trip.invalid = true;
-                    trip.save();
-                }
-                
-                trip.refresh();
-            }                
-        }
+        TripPattern.em().createNativeQuery("UPDATE trippattern SET lastmodified = ? WHERE id IN (" + StringUtils.join(patternIds, ",") + ")")
+            .setParameter(1, new Date())
+            .executeUpdate();
+    }
 
-        
-        /* OTHER STUFF IS NOT SUPPORTED */
-        else {
-            throw new IllegalStateException("Changes to trip pattern stops must be made one at a time");
-        }
+    /**
+     * Flag the longest pattern of each name on a route, by the length of its shape in meters, and clear the flag on
+     * all others. Patterns without a shape count as zero length; ties go to the pattern created first.
+     *
+     * @param routeIds the routes to update, or null for all routes
+     */
+    public static void updateLongest(Collection<Long> routeIds) {
+        String routeCondition = routeIds == null ? "" : " WHERE p.route_id IN (" + StringUtils.join(routeIds, ",") + ")";
+
+        TripPattern.em().createNativeQuery("UPDATE trippattern SET longest = (ranked.place = 1) FROM " +
+                "(SELECT p.id, row_number() OVER " +
+                "(PARTITION BY p.route_id, p.name ORDER BY COALESCE(ST_Length(CAST(s.shape AS geography)), 0) DESC, p.id) AS place " +
+                "FROM trippattern p LEFT JOIN tripshape s ON s.id = p.shape_id" + routeCondition + ") ranked " +
+                "WHERE trippattern.id = ranked.id")
+                .executeUpdate();
     }
 
     public static BigInteger createFromTrip(EntityManager em, BigInteger tripId)
@@ -76,6 +76,18 @@ public class TripPatternStop extends Model implements Comparable<TripPatternStop
 		
    }
 
+	/**
+	 * Point every pattern stop at any of the given stops to newStop, in one statement.
+	 * @param oldStopIds the stop ids as a Postgres array literal, e.g. {1,2,3}
+	 */
+	public static int replaceStops(Stop newStop, String oldStopIds) {
+		
+		return TripPatternStop.em().createNativeQuery("UPDATE trippatternstop SET stop_id = ? WHERE stop_id = ANY(CAST(? AS bigint[]));")
+   	          .setParameter(1, newStop.id)
+   	          .setParameter(2, oldStopIds)
+   	          .executeUpdate();
+	}
+
 	@Override
 	public int compareTo(TripPatternStop o) {
 		// TODO Auto-generated method stub
@@ -1,9 +1,7 @@
 package models.transit;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
@@ -13,17 +11,18 @@ import javax.persistence.Transient;
 
 import com.conveyal.gtfs.model.Shape;
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.io.WKBWriter;
 
-import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.hibernate.annotations.Type;
 
 import play.db.jpa.Model;
-import utils.EncodedPolylineBean;
-import utils.PolylineEncoder;
+import utils.GeoUtils;
+import utils.PolylineCodec;
+import utils.RoutingGraph;
+import utils.StopShapeProjector;
 
 @Entity
 public class TripShape extends Model {
@@ -45,10 +44,8 @@ public class TripShape extends Model {
 
     public void updateShapeFromEncoded(String encoded) {
         
-        String linestring = generateLinestring(encoded);
-
-        TripShape.em().createNativeQuery("UPDATE tripshape SET shape = ST_GeomFromText( ?, 4326) WHERE id = ?;")
-            .setParameter(1,  linestring)
+        TripShape.em().createNativeQuery("UPDATE tripshape SET shape = ST_GeomFromWKB( ?, 4326) WHERE id = ?;")
+            .setParameter(1,  generateWkb(encoded))
             .setParameter(2,  this.id)
             .executeUpdate();
         
@@ -57,56 +54,86 @@ public class TripShape extends Model {
 
     public String generateEncoded() {
         
-        EncodedPolylineBean ecb = PolylineEncoder.createEncodings(shape);
-        
-        return ecb.getPoints();
+        return PolylineCodec.encode(shape.getCoordinateSequence());
     }
 
     public static TripShape createFromEncoded(String encoded) {
     	
         
-    	BigInteger tripShapeId = TripShape.nativeInsert(TripShape.em(), "", generateLinestring(encoded), 0.0);
+    	BigInteger tripShapeId = TripShape.nativeInsert(TripShape.em(), "", generateWkb(encoded), 0.0);
 
         return TripShape.findById(tripShapeId.longValue());
     }
 
     public static TripShape createFromPattern(TripPattern tp) {
+    	return createFromPattern(tp, null);
+    }
+
+    /**
+     * Create a shape through the stops of a pattern, following the network in the routing graph where the stops are
+     * on it, or in straight lines from stop to stop if the graph is null.
+     */
+    public static TripShape createFromPattern(TripPattern tp, RoutingGraph graph) {
+    	
+    	LineString linestring = shapeForPattern(tp, graph);
     	
-    	List<String> points = new ArrayList<String>();
+    	if(linestring == null)
+    		return null;
+    	
+    	BigInteger tripShapeId = TripShape.nativeInsert(TripShape.em(), "", new WKBWriter().write(linestring), 0.0);
+
+        return TripShape.findById(tripShapeId.longValue());
+    }
+
+    /**
+     * The line through the stops of a pattern, routed over the graph if there is one, or null if the pattern has fewer
+     * than two stops, which don't make a line.
+     */
+    public static LineString shapeForPattern(TripPattern tp, RoutingGraph graph) {
+    	
+    	if(tp.patternStops == null || tp.patternStops.size() < 2)
+    		return null;
     	
     	Collections.sort(tp.patternStops);
     	
-        for(TripPatternStop tps : tp.patternStops) {
-        
-            points.add(new Double(tps.stop.locationPoint().getX()).toString() + " " + new Double(tps.stop.locationPoint().getY()).toString());
-        }
+    	Coordinate[] coords = new Coordinate[tp.patternStops.size()];
+    	
+    	for(int i = 0; i < coords.length; i++) {
+    		coords[i] = tp.patternStops.get(i).stop.locationPoint().getCoordinate();
+    	}
+    	
+    	if(graph != null) {
+    		Coordinate[] routed = graph.routeThrough(coords, RoutingGraph.DEFAULT_SNAP_DISTANCE);
+    		
+    		// stops that all snap to one place don't make a line
+    		if(routed.length > 1)
+    			coords = routed;
+    	}
+    	
+    	return GeoUtils.geometryFactory.createLineString(coords);
+    }
+
+    /** replace the geometry of this shape in the database, and reload it */
+    public void updateShape(LineString linestring) {
         
-        if(points.size() > 0) {
-        	String linestring = "LINESTRING(" + StringUtils.join(points, ", ") + ")";
-        	
-        	
-        	BigInteger tripShapeId = TripShape.nativeInsert(TripShape.em(), "", linestring, 0.0);
-
-            return TripShape.findById(tripShapeId.longValue());
-        }
-        else 
-        	return null;
+        TripShape.em().createNativeQuery("UPDATE tripshape SET shape = ST_GeomFromWKB( ?, 4326) WHERE id = ?;")
+            .setParameter(1,  new WKBWriter().write(linestring))
+            .setParameter(2,  this.id)
+            .executeUpdate();
         
+        this.refresh();
     }
     
-    public static String generateLinestring(String encoded) {
-        
-        EncodedPolylineBean ecb = new EncodedPolylineBean(encoded, null, 0);
-        List<Coordinate> coords = PolylineEncoder.decode(ecb);
+    /**
+     * Decode an encoded polyline straight into well-known binary, so PostGIS does not have to parse WKT.
+     */
+    public static byte[] generateWkb(String encoded) {
         
-        List<String> points = new ArrayList<String>();
-        for(Coordinate coord : coords) {
-            points.add(new Double(coord.y).toString() + " " + new Double(coord.x).toString());
-        }
+        CoordinateSequence coords = PolylineCodec.decode(encoded);
+        LineString linestring = GeoUtils.geometryFactory.createLineString(coords);
         
-        String linestring = "LINESTRING(" + StringUtils.join(points, ", ") + ")";
-
-        return linestring;
+        // WKBWriter keeps internal buffers and is not thread safe, so don't share one
+        return new WKBWriter().write(linestring);
     }
 
     public static BigInteger nativeInsert(EntityManager em, String shapeId, String shape, Double distance)
@@ -125,13 +152,34 @@ public class TripShape extends Model {
         return nextId;
     }
 
-	public Shape[] toGtfs() {
+    public static BigInteger nativeInsert(EntityManager em, String shapeId, byte[] shape, Double distance)
+    {
+    	Query idQuery = em.createNativeQuery("SELECT NEXTVAL('hibernate_sequence');");
+    	BigInteger nextId = (BigInteger)idQuery.getSingleResult();
+    	
+        em.createNativeQuery("INSERT INTO tripshape (id, gtfsshapeid, shape, describeddistance)" +
+        	"  VALUES(?, ?, ST_GeomFromWKB( ?, 4326), ?);")
+          .setParameter(1,  nextId)
+          .setParameter(2,  shapeId)	            
+          .setParameter(3,  shape)
+          .setParameter(4,  distance)
+          .executeUpdate();
+        
+        return nextId;
+    }
+
+	/**
+	 * Convert to GTFS shape points. If a projector for this shape is given, shape_dist_traveled is filled in, in
+	 * meters; otherwise it is left missing.
+	 */
+	public Shape[] toGtfs(StopShapeProjector projector) {
 		Coordinate[] coords = this.shape.getCoordinates();
 		Shape[] ret = new Shape[coords.length];
 		
+		double[] distances = projector != null ? projector.getVertexDistances() : null;
+		
 		for (int i = 0; i < coords.length; i++) {
-			// TODO: shape_dist_traveled
-			ret[i] = new Shape(getGtfsId(), coords[i].y, coords[i].x, i, Double.NaN);
+			ret[i] = new Shape(getGtfsId(), coords[i].y, coords[i].x, i, distances != null ? distances[i] : Double.NaN);
 		}
 		
 		return ret;
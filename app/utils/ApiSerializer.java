@@ -0,0 +1,122 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+
+import play.exceptions.UnexpectedException;
+import play.mvc.Http;
+import play.mvc.results.Result;
+
+/**
+ * Reads and writes the JSON of the API.
+ *
+ * An ObjectWriter and ObjectReader are kept for each class, so the serializers for a type are looked up once rather
+ * than on every request, and responses are written straight to bytes rather than through a String. Clients that send
+ * Accept: application/x-jackson-smile get Smile, Jackson's binary form of JSON, instead: numbers are binary and
+ * repeated property names and short strings are sent once and then referred to by index, which makes the stop and
+ * trip lists much smaller and quicker to write. public/javascripts/smile.js decodes it.
+ */
+public class ApiSerializer {
+
+	public static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+	public static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
+	public static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final ObjectMapper smileMapper;
+
+	static {
+		SmileFactory smileFactory = new SmileFactory();
+		// route colors, agency names and the like repeat through a list
+		smileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+		smileMapper = new ObjectMapper(smileFactory);
+	}
+
+	private static final ConcurrentMap<Class<?>, ObjectWriter> jsonWriters = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+	private static final ConcurrentMap<Class<?>, ObjectWriter> smileWriters = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+	private static final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+	/** the reader for JSON bound to a type */
+	public static ObjectReader reader(Class<?> type) {
+		ObjectReader reader = readers.get(type);
+
+		if(reader == null) {
+			readers.putIfAbsent(type, mapper.reader(type));
+			reader = readers.get(type);
+		}
+
+		return reader;
+	}
+
+	/** the writer for a type, as JSON or as Smile */
+	public static ObjectWriter writer(Class<?> type, boolean smile) {
+		ConcurrentMap<Class<?>, ObjectWriter> writers = smile ? smileWriters : jsonWriters;
+		ObjectWriter writer = writers.get(type);
+
+		if(writer == null) {
+			writers.putIfAbsent(type, (smile ? smileMapper : mapper).writerWithType(type));
+			writer = writers.get(type);
+		}
+
+		return writer;
+	}
+
+	public static byte[] write(Object pojo, boolean smile) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		if(pojo == null)
+			(smile ? smileMapper : mapper).writeValue(out, null);
+		else
+			writer(pojo.getClass(), smile).writeValue(out, pojo);
+
+		return out.toByteArray();
+	}
+
+	/** whether the client asked for Smile */
+	public static boolean acceptsSmile(Http.Request request) {
+		Http.Header accept = request.headers.get("accept");
+
+		return accept != null && accept.value() != null && accept.value().contains(SMILE_CONTENT_TYPE);
+	}
+
+	/**
+	 * Serialize a value for the client that made a request, as Smile if it asked for it and as JSON otherwise. The
+	 * value is written here, rather than when the result is applied, so that a failure can still be handled by the
+	 * action.
+	 */
+	public static Render render(Http.Request request, Object pojo) throws IOException {
+		boolean smile = acceptsSmile(request);
+
+		return new Render(write(pojo, smile), smile ? SMILE_CONTENT_TYPE : JSON_CONTENT_TYPE);
+	}
+
+	/** a response of already serialized bytes */
+	public static class Render extends Result {
+		private final byte[] body;
+		private final String contentType;
+
+		public Render(byte[] body, String contentType) {
+			this.body = body;
+			this.contentType = contentType;
+		}
+
+		public void apply(Http.Request request, Http.Response response) {
+			try {
+				setContentTypeIfNotSet(response, contentType);
+				// the same URL gives JSON or Smile
+				response.setHeader("Vary", "Accept");
+				response.out.write(body);
+			} catch (Exception e) {
+				throw new UnexpectedException(e);
+			}
+		}
+	}
+}
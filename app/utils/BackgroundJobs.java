@@ -0,0 +1,102 @@
+package utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import play.Play;
+import play.jobs.Job;
+
+/**
+ * Long running admin jobs, started in the background and polled for by id, so that they don't tie up a request
+ * thread or run into the client's timeout.
+ */
+public class BackgroundJobs {
+
+	/** how long a finished job's result is kept for polling */
+	private static final long TTL = Long.parseLong(Play.configuration.getProperty("application.backgroundJobs.ttl", "3600")) * 1000;
+
+	private static final Map<String, StartedJob> jobs = new ConcurrentHashMap<String, StartedJob>();
+
+	/** start a job now and return the id to poll for it with */
+	public static String start(Job<?> job) {
+		evictFinished();
+
+		String id = UUID.randomUUID().toString();
+		jobs.put(id, new StartedJob(job.now()));
+		return id;
+	}
+
+	/**
+	 * The status of a job: "running", "done" with its result, or "failed" with the error. A finished job can be polled
+	 * until it has been finished for longer than the TTL. Returns null for an unknown or evicted id.
+	 */
+	public static Map<String, Object> status(String id) {
+		evictFinished();
+
+		StartedJob started = id != null ? jobs.get(id) : null;
+
+		if(started == null)
+			return null;
+
+		Future<?> job = started.future;
+
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("jobId", id);
+
+		if(!job.isDone()) {
+			ret.put("status", "running");
+			return ret;
+		}
+
+		try {
+			ret.put("result", job.get());
+			ret.put("status", "done");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			ret.put("status", "failed");
+			ret.put("error", cause.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ret.put("status", "failed");
+			ret.put("error", e.toString());
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Forget jobs that finished more than the TTL ago, whether or not anyone polled for them. A job's finish is noted
+	 * the first time it is seen done, which is close enough for expiring it.
+	 */
+	private static void evictFinished() {
+		long now = System.currentTimeMillis();
+
+		for(Iterator<StartedJob> it = jobs.values().iterator(); it.hasNext();) {
+			StartedJob started = it.next();
+
+			if(!started.future.isDone())
+				continue;
+
+			if(started.finished == 0)
+				started.finished = now;
+			else if(now - started.finished > TTL)
+				it.remove();
+		}
+	}
+
+	private static class StartedJob {
+		final Future<?> future;
+
+		/** when the job was first seen finished, or 0 */
+		volatile long finished;
+
+		StartedJob(Future<?> future) {
+			this.future = future;
+		}
+	}
+}
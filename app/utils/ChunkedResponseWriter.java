@@ -0,0 +1,42 @@
+package utils;
+
+import java.io.Writer;
+
+import play.mvc.Http;
+
+/**
+ * A Writer that sends what is written to it to the client as HTTP chunks, so that a large download doesn't have to be
+ * built up in memory before any of it is sent. Writes are collected into chunks of about 32k.
+ */
+public class ChunkedResponseWriter extends Writer {
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private final Http.Response response;
+    private final StringBuilder buffer = new StringBuilder(CHUNK_SIZE);
+
+    public ChunkedResponseWriter(Http.Response response) {
+        this.response = response;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        buffer.append(cbuf, off, len);
+
+        if (buffer.length() >= CHUNK_SIZE)
+            flush();
+    }
+
+    @Override
+    public void flush() {
+        if (buffer.length() == 0)
+            return;
+
+        response.writeChunk(buffer.toString());
+        buffer.setLength(0);
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
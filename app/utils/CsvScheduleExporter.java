@@ -0,0 +1,213 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+import models.transit.PackedStopTimes;
+import models.transit.ServiceCalendar;
+import models.transit.StopTimePickupDropOffType;
+import models.transit.TripPattern;
+import models.transit.TripPatternStop;
+import play.db.jpa.JPA;
+import utils.tags.TimeExtensions;
+
+/**
+ * Writes the timetable of a pattern on a calendar as the CSV the schedule editor downloads and uploads: five header rows
+ * describing the stops, then a row per trip with its departure time at each stop.
+ *
+ * The trips and their stop times are read with two forward-only cursors, both ordered by trip, and each row is written
+ * as soon as its trip is complete, so the whole timetable is never held in memory as objects or text. Only plain
+ * values are read, so the session doesn't fill up with entities either. Nothing is written to the database.
+ */
+public class CsvScheduleExporter {
+    private static final String[] HEADER = "trip_id, pattern_id, block_id, headsign, short_name".split(",");
+
+    private static final StopTimePickupDropOffType[] PICKUP_DROP_OFF_TYPES = StopTimePickupDropOffType.values();
+
+    /** how many rows the cursors fetch at a time */
+    private static final int FETCH_SIZE = 500;
+
+    private final TripPattern pattern;
+    private final ServiceCalendar calendar;
+
+    /** the number of columns in each row */
+    private int width;
+
+    /** the column of each pattern stop */
+    private Map<Long, Integer> patternStopColumns = new HashMap<Long, Integer>();
+
+    public CsvScheduleExporter(TripPattern pattern, ServiceCalendar calendar) {
+        this.pattern = pattern;
+        this.calendar = calendar;
+    }
+
+    public void write(Writer out) throws IOException {
+        CSVWriter csvWriter = new CSVWriter(out);
+
+        writeHeader(csvWriter);
+
+        Session session = (Session) JPA.em().getDelegate();
+
+        ScrollableResults trips = session.createQuery("SELECT t.id, t.blockId, t.tripHeadsign, t.tripShortName, t.packedStopTimes " +
+                "FROM Trip t WHERE t.pattern = :pattern AND t.serviceCalendar = :calendar ORDER BY t.id")
+            .setParameter("pattern", pattern)
+            .setParameter("calendar", calendar)
+            .setFetchSize(FETCH_SIZE)
+            .scroll(ScrollMode.FORWARD_ONLY);
+
+        ScrollableResults stopTimes = session.createQuery("SELECT st.trip.id, st.patternStop.id, st.stopSequence, st.departureTime, " +
+                "st.pickupType, st.dropOffType FROM StopTime st WHERE st.trip.pattern = :pattern AND st.trip.serviceCalendar = :calendar " +
+                "ORDER BY st.trip.id, st.stopSequence")
+            .setParameter("pattern", pattern)
+            .setParameter("calendar", calendar)
+            .setFetchSize(FETCH_SIZE)
+            .scroll(ScrollMode.FORWARD_ONLY);
+
+        try {
+            writeTrips(csvWriter, trips, stopTimes);
+        } finally {
+            trips.close();
+            stopTimes.close();
+        }
+
+        csvWriter.flush();
+    }
+
+    /** both cursors are ordered by trip, so walk through the stop times alongside the trips */
+    private void writeTrips(CSVWriter csvWriter, ScrollableResults trips, ScrollableResults stopTimes) {
+        boolean moreStopTimes = stopTimes.next();
+
+        while (trips.next()) {
+            Long tripId = (Long) trips.get(0);
+            byte[] packedStopTimes = (byte[]) trips.get(4);
+
+            String[] row = new String[width];
+
+            row[0] = tripId.toString();
+            row[1] = pattern.id.toString();
+            row[2] = (String) trips.get(1);
+            row[3] = (String) trips.get(2);
+            row[4] = (String) trips.get(3);
+
+            if (packedStopTimes != null) {
+                PackedStopTimes packed = PackedStopTimes.decode(packedStopTimes);
+
+                for (int i = 0; i < packed.size; i++) {
+                    setTime(row,
+                            packed.patternStopIds[i] != 0 ? packed.patternStopIds[i] : null,
+                            packed.stopSequences[i],
+                            packed.departureTimes[i] != PackedStopTimes.MISSING ? packed.departureTimes[i] : null,
+                            packed.pickupTypes[i] >= 0 ? PICKUP_DROP_OFF_TYPES[packed.pickupTypes[i]] : null,
+                            packed.dropOffTypes[i] >= 0 ? PICKUP_DROP_OFF_TYPES[packed.dropOffTypes[i]] : null);
+                }
+            }
+
+            for (; moreStopTimes && tripId.equals(stopTimes.get(0)); moreStopTimes = stopTimes.next()) {
+                setTime(row, (Long) stopTimes.get(1), (Integer) stopTimes.get(2), (Integer) stopTimes.get(3),
+                        (StopTimePickupDropOffType) stopTimes.get(4), (StopTimePickupDropOffType) stopTimes.get(5));
+            }
+
+            csvWriter.writeNext(row);
+        }
+    }
+
+    /** the stop names, ids, and travel, dwell and cumulative times, with the pattern stops in order */
+    private void writeHeader(CSVWriter csvWriter) {
+        List<TripPatternStop> patternStops = TripPatternStop.find("pattern = ? ORDER BY stopSequence", pattern).fetch();
+
+        width = HEADER.length + patternStops.size() + 1;
+
+        String[] stopNames = new String[width];
+        String[] stopIds = new String[width];
+        String[] travelTimes = new String[width];
+        String[] dwellTimes = new String[width];
+        String[] cumulativeTimes = new String[width];
+
+        stopNames[HEADER.length] = "stop_name";
+        stopIds[HEADER.length] = "stop_id";
+        travelTimes[HEADER.length] = "travel_time";
+        dwellTimes[HEADER.length] = "dwell_time";
+        cumulativeTimes[HEADER.length] = "cumulative_time";
+
+        int cumulativeTime = 0;
+
+        for (int i = 0; i < patternStops.size(); i++) {
+            TripPatternStop patternStop = patternStops.get(i);
+            int column = HEADER.length + i + 1;
+
+            int travelTime = patternStop.defaultTravelTime != null ? patternStop.defaultTravelTime : 0;
+            int dwellTime = patternStop.defaultDwellTime != null ? patternStop.defaultDwellTime : 0;
+            cumulativeTime += travelTime + dwellTime;
+
+            stopNames[column] = patternStop.stop.stopName;
+            stopIds[column] = patternStop.stop.id.toString();
+            travelTimes[column] = "=\"" + TimeExtensions.ccyAmount(travelTime) + "\"";
+            dwellTimes[column] = "=\"" + TimeExtensions.ccyAmount(dwellTime) + "\"";
+            cumulativeTimes[column] = "=\"" + TimeExtensions.ccyAmount(cumulativeTime) + "\"";
+
+            patternStopColumns.put(patternStop.id, column);
+        }
+
+        csvWriter.writeNext(HEADER);
+        csvWriter.writeNext(stopNames);
+        csvWriter.writeNext(stopIds);
+        csvWriter.writeNext(travelTimes);
+        csvWriter.writeNext(dwellTimes);
+        csvWriter.writeNext(cumulativeTimes);
+    }
+
+    /**
+     * Put a departure time in the column of its pattern stop, or by its stop sequence if it isn't linked to one, with
+     * < if there is no pickup and > if there is no drop off.
+     */
+    private void setTime(String[] row, Long patternStopId, Integer stopSequence, Integer departureTime,
+            StopTimePickupDropOffType pickupType, StopTimePickupDropOffType dropOffType) {
+        Integer column = patternStopId != null ? patternStopColumns.get(patternStopId) :
+            stopSequence != null ? HEADER.length + stopSequence : null;
+
+        if (column == null || column <= HEADER.length || column >= width)
+            return;
+
+        String time = departureTime != null ? formatTime(departureTime) : "-";
+
+        if (pickupType == StopTimePickupDropOffType.NONE)
+            time += " <";
+
+        if (dropOffType == StopTimePickupDropOffType.NONE)
+            time += " >";
+
+        row[column] = time;
+    }
+
+    /**
+     * Format seconds since midnight as hh:mm AM or PM, the way SimpleDateFormat("hh:mm a") would, wrapping around after
+     * midnight. This doesn't need a Date or a Calendar for each time.
+     */
+    public static String formatTime(int seconds) {
+        int minutes = (seconds % 86400 + 86400) % 86400 / 60;
+        int hour = minutes / 60;
+        int minute = minutes % 60;
+        int clockHour = hour % 12 == 0 ? 12 : hour % 12;
+
+        char[] chars = new char[8];
+        chars[0] = (char) ('0' + clockHour / 10);
+        chars[1] = (char) ('0' + clockHour % 10);
+        chars[2] = ':';
+        chars[3] = (char) ('0' + minute / 10);
+        chars[4] = (char) ('0' + minute % 10);
+        chars[5] = ' ';
+        chars[6] = hour < 12 ? 'A' : 'P';
+        chars[7] = 'M';
+
+        return new String(chars);
+    }
+}
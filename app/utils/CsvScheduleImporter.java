@@ -0,0 +1,332 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import models.transit.PackedStopTimes;
+import models.transit.ServiceCalendar;
+import models.transit.StopTime;
+import models.transit.StopTimePickupDropOffType;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import models.transit.TripPatternStop;
+
+/**
+ * Reads a timetable in the CSV format written by CsvScheduleExporter, and replaces the trips of a pattern on a calendar
+ * with it.
+ *
+ * The file is read a row at a time, and every row is checked before anything in the database is touched; the trips are
+ * held as PackedStopTimes until then. Each time cell is a time like 6:05 AM, + for the scheduled time from the first
+ * time in the row, or - for no time, followed by < for no pickup or > for no drop off.
+ */
+public class CsvScheduleImporter {
+    /** the column labelling the header rows; stops are in the columns after it */
+    private static final int LABEL_COLUMN = 5;
+    private static final int FIRST_STOP_COLUMN = LABEL_COLUMN + 1;
+
+    private final TripPattern pattern;
+    private final ServiceCalendar calendar;
+
+    /** the pattern stop in each stop column, from the stop_id row */
+    private TripPatternStop[] columnPatternStops;
+
+    /** the scheduled time from the first stop to the stop in each stop column */
+    private int[] columnOffsets;
+
+    private List<ImportedTrip> trips = new ArrayList<ImportedTrip>();
+
+    /** problems with the file, with line and column numbers */
+    public final List<String> errors = new ArrayList<String>();
+
+    public CsvScheduleImporter(TripPattern pattern, ServiceCalendar calendar) {
+        this.pattern = pattern;
+        this.calendar = calendar;
+    }
+
+    /**
+     * Read and check the whole file.
+     * @return whether it can be applied; if not, see errors
+     */
+    public boolean read(Reader in) throws IOException {
+        CSVReader csvReader = new CSVReader(in);
+
+        String[] line;
+        int lineNum = 0;
+
+        while ((line = csvReader.readNext()) != null) {
+            lineNum++;
+
+            if (lineNum == 3)
+                readStopIds(line);
+
+            else if (lineNum > 6 && columnPatternStops != null && !line[0].isEmpty())
+                readTrip(lineNum, line);
+        }
+
+        csvReader.close();
+
+        if (lineNum < 3)
+            errors.add("There is no stop_id row.");
+
+        return errors.isEmpty();
+    }
+
+    /** match the stop ids in the header to the pattern stops, which have to be in the same order */
+    private void readStopIds(String[] line) {
+        if (line.length <= LABEL_COLUMN || !line[LABEL_COLUMN].trim().equals("stop_id")) {
+            errors.add("Line 3: invalid stop_id row.");
+            return;
+        }
+
+        // spreadsheets sometimes leave empty columns at the end
+        int end = line.length;
+        while (end > FIRST_STOP_COLUMN && line[end - 1].trim().isEmpty())
+            end--;
+
+        List<TripPatternStop> patternStops = TripPatternStop.find("pattern = ? order by stopSequence", pattern).fetch();
+
+        if (end - FIRST_STOP_COLUMN > patternStops.size()) {
+            errors.add("Line 3: there are " + (end - FIRST_STOP_COLUMN) + " stops, but the pattern only has " + patternStops.size() + ".");
+            return;
+        }
+
+        columnPatternStops = new TripPatternStop[end - FIRST_STOP_COLUMN];
+        columnOffsets = new int[columnPatternStops.length];
+
+        int cumulativeTime = 0;
+
+        for (int i = 0; i < columnPatternStops.length; i++) {
+            TripPatternStop patternStop = patternStops.get(i);
+            String stopId = line[FIRST_STOP_COLUMN + i].trim();
+
+            if (!stopId.equals(patternStop.stop.id.toString()))
+                errors.add("Line 3, column " + (FIRST_STOP_COLUMN + i + 1) + ": stop " + stopId + " doesn't match stop " + patternStop.stop.id + " in the pattern.");
+
+            cumulativeTime += patternStop.defaultDwellTime != null ? patternStop.defaultDwellTime : 0;
+            cumulativeTime += patternStop.defaultTravelTime != null ? patternStop.defaultTravelTime : 0;
+
+            columnPatternStops[i] = patternStop;
+            columnOffsets[i] = cumulativeTime;
+        }
+    }
+
+    private void readTrip(int lineNum, String[] line) {
+        int count = 0;
+
+        for (int column = FIRST_STOP_COLUMN; column < line.length; column++) {
+            if (line[column].isEmpty())
+                continue;
+
+            if (column - FIRST_STOP_COLUMN >= columnPatternStops.length) {
+                errors.add("Line " + lineNum + ", column " + (column + 1) + ": there is a time after the last stop.");
+                return;
+            }
+
+            count++;
+        }
+
+        ImportedTrip trip = new ImportedTrip();
+        trip.blockId = cell(line, 2);
+        trip.tripHeadsign = cell(line, 3);
+        trip.tripShortName = cell(line, 4);
+        trip.stopTimes = new PackedStopTimes(count);
+
+        Integer firstTime = null;
+        int previousTime = 0;
+        int dayOffset = 0;
+        int i = 0;
+
+        for (int column = FIRST_STOP_COLUMN; column < line.length; column++) {
+            String cell = line[column];
+
+            if (cell.isEmpty())
+                continue;
+
+            byte pickupType = -1;
+            byte dropOffType = -1;
+
+            if (cell.indexOf('>') >= 0) {
+                cell = cell.replace(">", "");
+                dropOffType = (byte) StopTimePickupDropOffType.NONE.ordinal();
+            }
+
+            if (cell.indexOf('<') >= 0) {
+                cell = cell.replace("<", "");
+                pickupType = (byte) StopTimePickupDropOffType.NONE.ordinal();
+            }
+
+            cell = cell.trim();
+
+            int stopColumn = column - FIRST_STOP_COLUMN;
+            int time;
+
+            if (cell.equals("+")) {
+                if (firstTime == null) {
+                    errors.add("Line " + lineNum + ", column " + (column + 1) + ": + comes before any time.");
+                    return;
+                }
+
+                time = firstTime + columnOffsets[stopColumn];
+            }
+            else if (cell.equals("-")) {
+                time = PackedStopTimes.MISSING;
+            }
+            else {
+                int parsed = parseTime(cell);
+
+                if (parsed < 0) {
+                    errors.add("Line " + lineNum + ", column " + (column + 1) + ": can't read the time \"" + cell + "\".");
+                    return;
+                }
+
+                // a time earlier than the one before means the trip crossed midnight
+                if (previousTime > parsed)
+                    dayOffset += 24 * 60 * 60;
+
+                previousTime = parsed;
+                time = parsed + dayOffset;
+
+                if (firstTime == null)
+                    firstTime = time;
+            }
+
+            TripPatternStop patternStop = columnPatternStops[stopColumn];
+
+            trip.stopTimes.stopIds[i] = patternStop.stop.id;
+            trip.stopTimes.patternStopIds[i] = patternStop.id;
+            trip.stopTimes.stopSequences[i] = i + 1;
+            trip.stopTimes.arrivalTimes[i] = time;
+            trip.stopTimes.departureTimes[i] = time;
+            trip.stopTimes.pickupTypes[i] = pickupType;
+            trip.stopTimes.dropOffTypes[i] = dropOffType;
+            trip.stopTimes.shapeDistTraveled[i] = Double.NaN;
+
+            i++;
+        }
+
+        trips.add(trip);
+    }
+
+    private static String cell(String[] line, int column) {
+        return column < line.length ? line[column] : null;
+    }
+
+    /**
+     * Replace the trips on the pattern and calendar with the ones that were read. The old trips and their stop times
+     * are deleted in the database a thousand trips at a time, and the new ones are persisted and flushed together so
+     * that Hibernate can batch the inserts. Run this in the same transaction as read, so that nothing is left half done
+     * if it fails.
+     *
+     * @return the number of trips created
+     */
+    public int apply() {
+        List<Long> oldTripIds = Trip.findIds(pattern.id, calendar.id);
+
+        StopTime.deleteByTripIds(oldTripIds);
+        Trip.deleteByIds(oldTripIds);
+
+        // the system map for the pattern needs updating
+        TripPattern.touch(Arrays.asList(pattern.id));
+
+        boolean packed = Trip.packNewTrips();
+        EntityManager em = Trip.em();
+
+        for (ImportedTrip imported : trips) {
+            Trip trip = new Trip();
+            trip.pattern = pattern;
+            trip.route = pattern.route;
+            trip.serviceCalendar = calendar;
+            trip.blockId = imported.blockId;
+            trip.tripHeadsign = imported.tripHeadsign;
+            trip.tripShortName = imported.tripShortName;
+            trip.useFrequency = false;
+
+            if (packed)
+                trip.packedStopTimes = imported.stopTimes.encode();
+
+            em.persist(trip);
+
+            if (!packed) {
+                for (StopTime stopTime : imported.stopTimes.toStopTimes(trip)) {
+                    em.persist(stopTime);
+                }
+            }
+        }
+
+        em.flush();
+
+        return trips.size();
+    }
+
+    /**
+     * Parse a time like 6:05 AM, 06:05:30 pm or 18:05 into seconds since midnight, or return -1 if it isn't one. Without
+     * AM or PM the hours are on a 24 hour clock. This replaces trying a couple of SimpleDateFormats on every cell.
+     */
+    public static int parseTime(String time) {
+        int length = time.length();
+        int pos = 0;
+
+        int[] fields = new int[3];
+        int fieldCount = 0;
+
+        // up to three fields of one or two digits, separated by colons
+        while (fieldCount < 3) {
+            int start = pos;
+            int value = 0;
+
+            while (pos < length && time.charAt(pos) >= '0' && time.charAt(pos) <= '9') {
+                value = value * 10 + time.charAt(pos) - '0';
+                pos++;
+            }
+
+            if (pos == start || pos - start > 2)
+                return -1;
+
+            fields[fieldCount++] = value;
+
+            if (pos < length && time.charAt(pos) == ':')
+                pos++;
+            else
+                break;
+        }
+
+        if (fieldCount < 2 || fields[1] > 59 || fields[2] > 59)
+            return -1;
+
+        int hour = fields[0];
+
+        while (pos < length && time.charAt(pos) == ' ')
+            pos++;
+
+        if (pos < length) {
+            char meridiem = Character.toUpperCase(time.charAt(pos++));
+
+            if (meridiem != 'A' && meridiem != 'P')
+                return -1;
+
+            if (pos < length && Character.toUpperCase(time.charAt(pos)) == 'M')
+                pos++;
+
+            if (pos != length || hour < 1 || hour > 12)
+                return -1;
+
+            hour = hour % 12 + (meridiem == 'P' ? 12 : 0);
+        }
+
+        return hour * 3600 + fields[1] * 60 + fields[2];
+    }
+
+    private static class ImportedTrip {
+        String blockId;
+        String tripHeadsign;
+        String tripShortName;
+        PackedStopTimes stopTimes;
+    }
+}
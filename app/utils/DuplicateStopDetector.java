@@ -0,0 +1,166 @@
+package utils;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds clusters of points that are within a threshold distance of each other.
+ *
+ * Points are hashed into a grid of cells at least the threshold across, so each point only needs to be compared
+ * against the points in its own cell and the eight surrounding it. That is roughly linear in the number of points,
+ * rather than comparing every pair. Pairs within the threshold are joined with a union-find, so a cluster is every
+ * point reachable through a chain of close pairs.
+ *
+ * Cell widths in degrees of longitude are sized for the highest latitude in the input so they are never too narrow,
+ * and candidate pairs are checked with {@link GeoUtils#fastDistance}, so there is no need to pick a UTM zone.
+ */
+public class DuplicateStopDetector {
+
+    private final double threshold;
+
+    private final long[] ids;
+    private final double[] lats;
+    private final double[] lons;
+    private int size = 0;
+
+    /**
+     * @param threshold distance in meters under which two points are duplicates
+     * @param capacity number of points that will be added
+     */
+    public DuplicateStopDetector(double threshold, int capacity) {
+        if (threshold <= 0)
+            throw new IllegalArgumentException("threshold must be positive");
+
+        this.threshold = threshold;
+        this.ids = new long[capacity];
+        this.lats = new double[capacity];
+        this.lons = new double[capacity];
+    }
+
+    public void add(long id, double lat, double lon) {
+        ids[size] = id;
+        lats[size] = lat;
+        lons[size] = lon;
+        size++;
+    }
+
+    /**
+     * Get the clusters of more than one point, each as an array of ids in the order they were added.
+     */
+    public List<long[]> findClusters() {
+        List<long[]> ret = new ArrayList<long[]>();
+
+        if (size < 2)
+            return ret;
+
+        double maxAbsLat = 0;
+        for (int i = 0; i < size; i++) {
+            maxAbsLat = Math.max(maxAbsLat, Math.abs(lats[i]));
+        }
+
+        // near the poles a degree of longitude is tiny, don't let the cells get absurdly wide
+        double cellHeight = threshold / GeoUtils.METERS_PER_DEGREE_LATITUDE;
+        double cellWidth = threshold / GeoUtils.metersPerDegreeLongitude(Math.min(maxAbsLat, 89));
+
+        TLongObjectHashMap<TIntArrayList> grid = new TLongObjectHashMap<TIntArrayList>();
+        int[] cellX = new int[size];
+        int[] cellY = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            cellX[i] = (int) Math.floor(lons[i] / cellWidth);
+            cellY[i] = (int) Math.floor(lats[i] / cellHeight);
+
+            long key = cellKey(cellX[i], cellY[i]);
+            TIntArrayList cell = grid.get(key);
+
+            if (cell == null) {
+                cell = new TIntArrayList(2);
+                grid.put(key, cell);
+            }
+
+            cell.add(i);
+        }
+
+        int[] parent = new int[size];
+        for (int i = 0; i < size; i++) {
+            parent[i] = i;
+        }
+
+        for (int i = 0; i < size; i++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    TIntArrayList cell = grid.get(cellKey(cellX[i] + dx, cellY[i] + dy));
+
+                    if (cell == null)
+                        continue;
+
+                    for (int c = 0; c < cell.size(); c++) {
+                        int j = cell.get(c);
+
+                        // each pair only once
+                        if (j <= i)
+                            continue;
+
+                        if (GeoUtils.fastDistance(lats[i], lons[i], lats[j], lons[j]) < threshold)
+                            union(parent, i, j);
+                    }
+                }
+            }
+        }
+
+        // gather the clusters, in order of their first point
+        TLongObjectHashMap<TIntArrayList> clusters = new TLongObjectHashMap<TIntArrayList>();
+        List<TIntArrayList> ordered = new ArrayList<TIntArrayList>();
+
+        for (int i = 0; i < size; i++) {
+            int root = find(parent, i);
+            TIntArrayList cluster = clusters.get(root);
+
+            if (cluster == null) {
+                cluster = new TIntArrayList(2);
+                clusters.put(root, cluster);
+                ordered.add(cluster);
+            }
+
+            cluster.add(i);
+        }
+
+        for (TIntArrayList cluster : ordered) {
+            if (cluster.size() < 2)
+                continue;
+
+            long[] clusterIds = new long[cluster.size()];
+            for (int c = 0; c < clusterIds.length; c++) {
+                clusterIds[c] = ids[cluster.get(c)];
+            }
+
+            ret.add(clusterIds);
+        }
+
+        return ret;
+    }
+
+    private static long cellKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            // path halving
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j) {
+        int a = find(parent, i);
+        int b = find(parent, j);
+
+        if (a != b)
+            parent[Math.max(a, b)] = Math.min(a, b);
+    }
+}
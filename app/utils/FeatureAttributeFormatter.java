@@ -25,6 +25,9 @@ public class FeatureAttributeFormatter {
 	{
 		String output = new String(formatString);
 		
+		// so that one formatter can be used for every feature
+		matches.reset();
+		
 		while(matches.find())
 		{
 			String sub = matches.group();
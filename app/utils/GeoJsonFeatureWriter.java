@@ -0,0 +1,135 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Writes a GeoJSON FeatureCollection straight to a file with a streaming JSON generator. Attributes are written as
+ * properties named as in the feature type.
+ */
+public class GeoJsonFeatureWriter extends GisFeatureWriter {
+	
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	
+	private final JsonGenerator generator;
+	
+	private final int geometryIndex;
+	private final String[] names;
+	
+	public GeoJsonFeatureWriter(SimpleFeatureType type, File output) throws IOException
+	{
+		super(type);
+		
+		geometryIndex = type.indexOf(type.getGeometryDescriptor().getLocalName());
+		
+		names = new String[type.getAttributeCount()];
+		
+		for(int i = 0; i < names.length; i++)
+			names[i] = type.getDescriptor(i).getLocalName();
+		
+		generator = jsonFactory.createJsonGenerator(new BufferedOutputStream(new FileOutputStream(output), 64 * 1024), JsonEncoding.UTF8);
+		
+		generator.writeStartObject();
+		generator.writeStringField("type", "FeatureCollection");
+		generator.writeArrayFieldStart("features");
+	}
+	
+	public void write(Object... attributes) throws IOException
+	{
+		generator.writeStartObject();
+		generator.writeStringField("type", "Feature");
+		
+		generator.writeFieldName("geometry");
+		writeGeometry((Geometry) attributes[geometryIndex]);
+		
+		generator.writeObjectFieldStart("properties");
+		
+		for(int i = 0; i < attributes.length; i++)
+		{
+			if(i == geometryIndex)
+				continue;
+			
+			if(attributes[i] == null)
+				generator.writeNullField(names[i]);
+			else
+				generator.writeStringField(names[i], attributes[i].toString());
+		}
+		
+		generator.writeEndObject();
+		generator.writeEndObject();
+	}
+	
+	private void writeGeometry(Geometry geometry) throws IOException
+	{
+		if(geometry == null)
+		{
+			generator.writeNull();
+			return;
+		}
+		
+		generator.writeStartObject();
+		generator.writeStringField("type", geometry.getGeometryType());
+		generator.writeFieldName("coordinates");
+		
+		if(geometry instanceof Point)
+		{
+			writeCoordinate(geometry.getCoordinate());
+		}
+		else if(geometry instanceof LineString || geometry instanceof MultiPoint)
+		{
+			writeCoordinates(geometry.getCoordinates());
+		}
+		else if(geometry instanceof MultiLineString)
+		{
+			generator.writeStartArray();
+			
+			for(int i = 0; i < geometry.getNumGeometries(); i++)
+				writeCoordinates(geometry.getGeometryN(i).getCoordinates());
+			
+			generator.writeEndArray();
+		}
+		else
+			throw new IllegalArgumentException("Can't write " + geometry.getGeometryType() + " geometries as GeoJSON.");
+		
+		generator.writeEndObject();
+	}
+	
+	private void writeCoordinates(Coordinate[] coords) throws IOException
+	{
+		generator.writeStartArray();
+		
+		for(Coordinate coord : coords)
+			writeCoordinate(coord);
+		
+		generator.writeEndArray();
+	}
+	
+	private void writeCoordinate(Coordinate coord) throws IOException
+	{
+		generator.writeStartArray();
+		generator.writeNumber(coord.x);
+		generator.writeNumber(coord.y);
+		generator.writeEndArray();
+	}
+	
+	public void close() throws IOException
+	{
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.close();
+	}
+}
@@ -1,50 +1,37 @@
 package utils;
 
-import org.geotools.geometry.jts.JTS;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.geotools.referencing.CRS;
 import org.opengis.referencing.FactoryException;
-import org.opengis.referencing.NoSuchIdentifierException;
 import org.opengis.referencing.crs.CRSAuthorityFactory;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.crs.GeographicCRS;
 import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.CoordinateFilter;
-import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.PrecisionModel;
 
-import org.geotools.geometry.jts.JTS;
-import org.geotools.geometry.jts.JTSFactoryFinder;
-import org.geotools.referencing.CRS;
-import org.opengis.referencing.FactoryException;
-import org.opengis.referencing.NoSuchIdentifierException;
-import org.opengis.referencing.crs.CRSAuthorityFactory;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.crs.GeographicCRS;
-import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.NoninvertibleTransformException;
-import org.opengis.referencing.operation.TransformException;
+public class GeoUtils {
+   public static double RADIANS = 2 * Math.PI;
 
-import java.util.List;
+   /** mean radius of the earth, in meters */
+   public static final double EARTH_RADIUS = 6371008.8;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.CoordinateFilter;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineSegment;
-import com.vividsolutions.jts.geom.LineString;
+   public static final double METERS_PER_DEGREE_LATITUDE = EARTH_RADIUS * Math.PI / 180d;
 
-public class GeoUtils {
-   public static double RADIANS = 2 * Math.PI;
-   
-   public static MathTransform recentMathTransform = null;
    public static GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(),4326);
    public static GeometryFactory projectedGeometryFactory = new GeometryFactory(new PrecisionModel());
-	 
-   
+
+   /**
+    * WGS84 to UTM transforms, keyed by the EPSG code of the UTM zone. MathTransforms are immutable and thread-safe,
+    * and there are only 120 zones, so they are never evicted.
+    */
+   private static final ConcurrentMap<Integer, MathTransform> transforms =
+       new ConcurrentHashMap<Integer, MathTransform>();
+
    /**
     * From
     * http://gis.stackexchange.com/questions/28986/geotoolkit-conversion-from
@@ -64,61 +51,93 @@ public class GeoUtils {
      return epsg_code;
    }
 
- 
+
 
    public static double getMetersInAngleDegrees(
      double distance) {
      return distance / (Math.PI / 180d) / 6378137d;
    }
 
+   /**
+    * Get the transform from WGS84 to the UTM zone containing the given point. Both the input and the output are
+    * x first, i.e. (lon, lat) to (easting, northing).
+    */
    public static MathTransform getTransform(
-     Coordinate refLatLon) {
-     //    MathTransformFactory mtFactory = ReferencingFactoryFinder.getMathTransformFactory(null);
-     //    ReferencingFactoryContainer factories = new ReferencingFactoryContainer(null);
+     Coordinate refLonLat) {
+     return getTransform(getEPSGCodefromUTS(refLonLat));
+   }
+
+   /**
+    * Get the transform from WGS84 (lon, lat) to the given projected CRS, or null if it is unknown.
+    */
+   public static MathTransform getTransform(int epsgCode) {
+     MathTransform transform = transforms.get(epsgCode);
+
+     if (transform != null)
+       return transform;
 
      try {
+       // longitude first, since that's how everything in the app stores coordinates
        final CRSAuthorityFactory crsAuthorityFactory =
-           CRS.getAuthorityFactory(false);
-       
-       
+           CRS.getAuthorityFactory(true);
+
        final GeographicCRS geoCRS =
            crsAuthorityFactory.createGeographicCRS("EPSG:4326");
-//         org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
-
-       final CoordinateReferenceSystem dataCRS = 
-           crsAuthorityFactory
-               .createCoordinateReferenceSystem("EPSG:" 
-                   + getEPSGCodefromUTS(refLatLon)); //EPSG:32618
-
-       //      parameters = mtFactory.getDefaultParameters("Transverse_Mercator");
-       //
-       //      final double zoneNumber = zone;
-       //      final double utmZoneCenterLongitude = (zoneNumber - 1) * 6 - 180 + 3; // +3 puts origin
-       //      parameters.parameter("central_meridian").setValue(utmZoneCenterLongitude);
-       //      parameters.parameter("latitude_of_origin").setValue(0.0);
-       //      parameters.parameter("scale_factor").setValue(0.9996);
-       //      parameters.parameter("false_easting").setValue(500000.0);
-       //      parameters.parameter("false_northing").setValue(0.0);
-       //  
-       //      Map properties = Collections.singletonMap("name", "WGS 84 / UTM Zone " + zoneNumber);
-       //      ProjectedCRS projCRS = factories.createProjectedCRS(properties, geoCRS, null, parameters, cartCS);
-
-       final MathTransform transform =
-           CRS.findMathTransform(geoCRS, dataCRS);
-       
-       GeoUtils.recentMathTransform = transform;
-       
-       return transform;
-     } catch (final NoSuchIdentifierException e) {
-       // TODO Auto-generated catch block
-       e.printStackTrace();
+
+       final CoordinateReferenceSystem dataCRS =
+           crsAuthorityFactory.createCoordinateReferenceSystem("EPSG:" + epsgCode);
+
+       transform = CRS.findMathTransform(geoCRS, dataCRS);
      } catch (final FactoryException e) {
-       // TODO Auto-generated catch block
        e.printStackTrace();
+       return null;
      }
 
-     return null;
+     // if another thread got here first use theirs, they are equivalent
+     MathTransform existing = transforms.putIfAbsent(epsgCode, transform);
+     return existing != null ? existing : transform;
+   }
+
+   /**
+    * Great-circle distance in meters between two WGS84 points, on a spherical earth.
+    *
+    * The spherical model is within 0.5% of the distance on the WGS84 ellipsoid anywhere on earth (typically much
+    * better at mid latitudes). Use a UTM transform when that isn't good enough.
+    */
+   public static double haversineDistance(double lat1, double lon1, double lat2, double lon2) {
+     double dLat = Math.toRadians(lat2 - lat1);
+     double dLon = Math.toRadians(lon2 - lon1);
+
+     double sinLat = Math.sin(dLat / 2);
+     double sinLon = Math.sin(dLon / 2);
+
+     double a = sinLat * sinLat
+         + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
 
+     return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+   }
+
+   /**
+    * Fast approximate distance in meters between two WGS84 points, using an equirectangular projection at their
+    * mean latitude. This is one cosine and a square root, for hot loops comparing nearby points.
+    *
+    * For points less than 20 km apart and between 70 degrees south and north it differs from
+    * {@link #haversineDistance} by less than 0.001%, so the error is dominated by the spherical model (see above).
+    * The error grows with distance and towards the poles, and it is wrong across the antimeridian.
+    */
+   public static double fastDistance(double lat1, double lon1, double lat2, double lon2) {
+     double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+     double y = Math.toRadians(lat2 - lat1);
+     return EARTH_RADIUS * Math.sqrt(x * x + y * y);
+   }
+
+   /**
+    * Meters per degree of longitude at the given latitude, on a spherical earth. Along with
+    * {@link #METERS_PER_DEGREE_LATITUDE} this allows projecting many nearby points into a local metric plane once,
+    * with the same error bounds as {@link #fastDistance}.
+    */
+   public static double metersPerDegreeLongitude(double lat) {
+     return METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(lat));
    }
 
    /*
@@ -137,4 +156,4 @@ public class GeoUtils {
      return lonZone + 1;
    }
 
- }
\ No newline at end of file
+ }
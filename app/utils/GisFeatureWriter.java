@@ -0,0 +1,34 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import models.gis.GisExportFormat;
+
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Writes features to a GIS export file one at a time, as they are read from the database, so that an export never
+ * holds more than one feature in memory. The file is complete once the writer is closed.
+ */
+public abstract class GisFeatureWriter implements Closeable {
+	
+	protected final SimpleFeatureType type;
+	
+	protected GisFeatureWriter(SimpleFeatureType type)
+	{
+		this.type = type;
+	}
+	
+	public static GisFeatureWriter create(GisExportFormat format, SimpleFeatureType type, File output) throws IOException
+	{
+		if(format == GisExportFormat.GEOJSON)
+			return new GeoJsonFeatureWriter(type, output);
+		else
+			return new ShapefileFeatureWriter(type, output);
+	}
+	
+	/** write a feature, with its attributes in the same order as in the feature type */
+	public abstract void write(Object... attributes) throws IOException;
+}
@@ -0,0 +1,237 @@
+package utils;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import models.transit.Route;
+import models.transit.Stop;
+import models.transit.TripPattern;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import play.db.jpa.JPA;
+import play.db.jpa.JPABase;
+
+/**
+ * Reads JSON request bodies, loading the entities they refer to by id in batches rather than one at a time.
+ *
+ * Entities like Stop have @JsonCreator factories, so that a reference can be sent as just an id. Left to itself,
+ * Jackson calls the factory, and so runs a query, for every reference: a pattern with 80 stops is 80 queries. Here the
+ * body is first read into a tree, which is walked along with the fields of the class it will be bound to, collecting
+ * the ids referred to. Each type is then loaded with one IN query per thousand ids, and while the tree is bound the
+ * factories find their entities in what was loaded.
+ *
+ * Only types that are referred to many times in one body are batched. Agencies, route and stop types and calendars
+ * come from the ReferenceCache instead.
+ */
+public class JsonReferenceResolver {
+
+	private static final Set<Class<?>> BATCHED = new HashSet<Class<?>>();
+
+	static {
+		BATCHED.add(Stop.class);
+		BATCHED.add(TripPattern.class);
+		BATCHED.add(Route.class);
+	}
+
+	private static final int BATCH_SIZE = 1000;
+
+	/** the entities loaded for the body being read on this thread, by type and id */
+	private static final ThreadLocal<Map<Class<?>, Map<Long, Object>>> loaded = new ThreadLocal<Map<Class<?>, Map<Long, Object>>>();
+
+	/** the fields of each class bound to, by name, including inherited ones */
+	private static final Map<Class<?>, Map<String, Field>> fieldCache = new ConcurrentHashMap<Class<?>, Map<String, Field>>();
+
+	public static <T> T readValue(ObjectMapper mapper, String json, Class<T> type) throws IOException {
+		JsonNode tree = mapper.readTree(json);
+
+		load(tree, type);
+
+		try {
+			return mapper.readValue(tree, type);
+		} finally {
+			loaded.remove();
+		}
+	}
+
+	public static <T> T readValue(ObjectMapper mapper, String json, TypeReference<T> type) throws IOException {
+		JsonNode tree = mapper.readTree(json);
+
+		load(tree, type.getType());
+
+		try {
+			return mapper.readValue(tree, type);
+		} finally {
+			loaded.remove();
+		}
+	}
+
+	/**
+	 * Find an entity referred to by id, from the ones loaded for the body being read if it's there. This is for the
+	 * @JsonCreator factories of the batched types.
+	 */
+	public static <T extends JPABase> T findById(Class<T> type, Long id) {
+		Map<Class<?>, Map<Long, Object>> all = loaded.get();
+
+		if(all != null) {
+			Map<Long, Object> entities = all.get(type);
+
+			if(entities != null && entities.containsKey(id))
+				return (T) entities.get(id);
+		}
+
+		return JPA.em().find(type, id);
+	}
+
+	private static void load(JsonNode tree, Type type) {
+		Map<Class<?>, Set<Long>> ids = new HashMap<Class<?>, Set<Long>>();
+
+		collect(tree, type, ids);
+
+		Map<Class<?>, Map<Long, Object>> all = new HashMap<Class<?>, Map<Long, Object>>();
+
+		for(Map.Entry<Class<?>, Set<Long>> entry : ids.entrySet()) {
+			Map<Long, Object> entities = new HashMap<Long, Object>();
+
+			List<Long> typeIds = new ArrayList<Long>(entry.getValue());
+
+			for(int i = 0; i < typeIds.size(); i += BATCH_SIZE) {
+				List<JPABase> batch = JPA.em().createQuery("SELECT e FROM " + entry.getKey().getSimpleName() + " e WHERE e.id IN (:ids)")
+						.setParameter("ids", typeIds.subList(i, Math.min(i + BATCH_SIZE, typeIds.size())))
+						.getResultList();
+
+				for(JPABase entity : batch) {
+					entities.put((Long) entity._key(), entity);
+				}
+			}
+
+			// ids that don't exist resolve to null, as findById would, without another query
+			for(Long id : typeIds) {
+				if(!entities.containsKey(id))
+					entities.put(id, null);
+			}
+
+			all.put(entry.getKey(), entities);
+		}
+
+		loaded.set(all);
+	}
+
+	/** collect the ids in a node that will be bound to the given type */
+	private static void collect(JsonNode node, Type type, Map<Class<?>, Set<Long>> ids) {
+		if(node == null || node.isNull())
+			return;
+
+		Class<?> raw = rawClass(type);
+
+		if(raw == null)
+			return;
+
+		if(node.isArray()) {
+			Type elementType = elementType(type);
+
+			for(JsonNode element : node) {
+				collect(element, elementType, ids);
+			}
+		}
+		else if(node.isObject()) {
+			Map<String, Field> fields = fields(raw);
+
+			Iterator<Map.Entry<String, JsonNode>> it = node.getFields();
+
+			while(it.hasNext()) {
+				Map.Entry<String, JsonNode> child = it.next();
+				Field field = fields.get(child.getKey());
+
+				if(field != null)
+					collect(child.getValue(), field.getGenericType(), ids);
+			}
+		}
+		else if(BATCHED.contains(raw) && (node.isIntegralNumber() || node.isTextual())) {
+			Long id;
+
+			try {
+				id = node.isIntegralNumber() ? node.getLongValue() : Long.parseLong(node.getTextValue());
+			} catch (NumberFormatException e) {
+				// the factory will complain
+				return;
+			}
+
+			Set<Long> typeIds = ids.get(raw);
+
+			if(typeIds == null) {
+				typeIds = new HashSet<Long>();
+				ids.put(raw, typeIds);
+			}
+
+			typeIds.add(id);
+		}
+	}
+
+	private static Class<?> rawClass(Type type) {
+		if(type instanceof Class)
+			return (Class<?>) type;
+
+		if(type instanceof ParameterizedType)
+			return rawClass(((ParameterizedType) type).getRawType());
+
+		if(type instanceof GenericArrayType)
+			return Object[].class;
+
+		// type variables and wildcards aren't followed
+		return null;
+	}
+
+	private static Type elementType(Type type) {
+		if(type instanceof GenericArrayType)
+			return ((GenericArrayType) type).getGenericComponentType();
+
+		if(type instanceof Class && ((Class<?>) type).isArray())
+			return ((Class<?>) type).getComponentType();
+
+		if(type instanceof ParameterizedType && Collection.class.isAssignableFrom(rawClass(type)))
+			return ((ParameterizedType) type).getActualTypeArguments()[0];
+
+		return null;
+	}
+
+	private static Map<String, Field> fields(Class<?> type) {
+		Map<String, Field> ret = fieldCache.get(type);
+
+		if(ret != null)
+			return ret;
+
+		ret = new HashMap<String, Field>();
+
+		// nothing in the JDK refers to entities
+		if(!type.isPrimitive() && !type.getName().startsWith("java")) {
+			for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				for(Field field : c.getDeclaredFields()) {
+					if(!Modifier.isStatic(field.getModifiers()) && !ret.containsKey(field.getName()))
+						ret.put(field.getName(), field);
+				}
+			}
+		}
+
+		ret = Collections.unmodifiableMap(ret);
+		fieldCache.put(type, ret);
+
+		return ret;
+	}
+}
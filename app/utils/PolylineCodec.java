@@ -0,0 +1,132 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package utils;
+
+import java.nio.CharBuffer;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+
+/**
+ * Encoded polyline codec working directly on character buffers and JTS coordinate sequences.
+ *
+ * Decoding scans the input once to count the points and then decodes straight into a packed coordinate array, so
+ * there is no per-point allocation. Encoding appends to a single StringBuilder. Coordinates are x = longitude,
+ * y = latitude, and encoding floors to 1e-5 degrees exactly like {@link PolylineEncoder}, so the output is identical.
+ *
+ * See <a href="http://code.google.com/apis/maps/documentation/polylinealgorithm.html">Encoded
+ * polyline algorithm format</a>
+ */
+public class PolylineCodec {
+
+    public static CoordinateSequence decode(CharSequence encoded) {
+        return decode(encoded, 0, encoded.length());
+    }
+
+    public static CoordinateSequence decode(char[] encoded, int offset, int length) {
+        return decode(CharBuffer.wrap(encoded, offset, length));
+    }
+
+    /**
+     * Decode the characters between start (inclusive) and end (exclusive) into a two-dimensional packed sequence.
+     */
+    public static CoordinateSequence decode(CharSequence encoded, int start, int end) {
+
+        // every number ends with a character below 0x20 + 63, and there are two numbers per point
+        int numbers = 0;
+        for (int i = start; i < end; i++) {
+            if (encoded.charAt(i) - 63 < 0x20)
+                numbers++;
+        }
+
+        if (numbers % 2 != 0)
+            throw new IllegalArgumentException("encoded polyline is truncated");
+
+        double[] coords = new double[numbers];
+
+        int lat = 0;
+        int lon = 0;
+        int index = start;
+
+        for (int i = 0; i < numbers; i += 2) {
+            int num = 0;
+            int shift = 0;
+            int v;
+
+            do {
+                v = encoded.charAt(index++) - 63;
+                num |= (v & 0x1f) << shift;
+                shift += 5;
+            } while (v >= 0x20);
+
+            lat += (num & 0x01) > 0 ? ~num >> 1 : num >> 1;
+
+            num = 0;
+            shift = 0;
+
+            do {
+                v = encoded.charAt(index++) - 63;
+                num |= (v & 0x1f) << shift;
+                shift += 5;
+            } while (v >= 0x20);
+
+            lon += (num & 0x01) > 0 ? ~num >> 1 : num >> 1;
+
+            coords[i] = lon * 1e-5;
+            coords[i + 1] = lat * 1e-5;
+        }
+
+        return new PackedCoordinateSequence.Double(coords, 2);
+    }
+
+    public static String encode(CoordinateSequence seq) {
+        // most deltas fit in three or four characters
+        StringBuilder out = new StringBuilder(seq.size() * 8);
+        encode(seq, out);
+        return out.toString();
+    }
+
+    public static void encode(CoordinateSequence seq, StringBuilder out) {
+        int plat = 0;
+        int plng = 0;
+
+        for (int i = 0; i < seq.size(); i++) {
+            int late5 = (int) Math.floor(seq.getOrdinate(i, CoordinateSequence.Y) * 1e5);
+            int lnge5 = (int) Math.floor(seq.getOrdinate(i, CoordinateSequence.X) * 1e5);
+
+            appendSignedNumber(late5 - plat, out);
+            appendSignedNumber(lnge5 - plng, out);
+
+            plat = late5;
+            plng = lnge5;
+        }
+    }
+
+    private static void appendSignedNumber(int num, StringBuilder out) {
+        int sgn_num = num << 1;
+        if (num < 0) {
+            sgn_num = ~(sgn_num);
+        }
+        appendNumber(sgn_num, out);
+    }
+
+    private static void appendNumber(int num, StringBuilder out) {
+        while (num >= 0x20) {
+            out.append((char) ((0x20 | (num & 0x1f)) + 63));
+            num >>= 5;
+        }
+
+        out.append((char) (num + 63));
+    }
+}
@@ -0,0 +1,356 @@
+package utils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.Entity;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.proxy.HibernateProxy;
+
+import play.Play;
+import play.db.jpa.JPA;
+import play.db.jpa.JPABase;
+
+/**
+ * An in-memory cache of small, rarely changing entities that are looked up on almost every request or for every row of
+ * an import: agencies, route and stop types, service calendars and accounts.
+ *
+ * Values are cached by entity type and a key, which is usually the id but can be anything that identifies the value,
+ * like a username or "all" for a list. When any entity of a type is saved or deleted through JPA, Invalidator drops
+ * every value of that type, so lists and lookups by other fields are never left stale. It does so both when the change
+ * is flushed and again when its transaction completes, because until then other transactions still read the old row
+ * and may cache it. Changes made with native SQL are not seen; call invalidate after them. Values also expire after a
+ * while, as a last resort.
+ *
+ * Every caller gets its own copy of a cached value, so nothing is shared between requests or threads, and changes to
+ * one copy are never seen by another. The copies are detached: they can be read and referred to from other entities,
+ * but saving or deleting one fails. Load the entity again to change it.
+ */
+public class ReferenceCache {
+
+	private static final int MAX_SIZE = Integer.parseInt(Play.configuration.getProperty("application.referenceCache.maxSize", "10000"));
+	private static final long TTL = Long.parseLong(Play.configuration.getProperty("application.referenceCache.ttl", "600")) * 1000;
+
+	/** least recently used first */
+	private static final Map<Key, Value> values = new LinkedHashMap<Key, Value>(256, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+			if(size() > MAX_SIZE) {
+				evictions.incrementAndGet();
+				return true;
+			}
+
+			return false;
+		}
+	};
+
+	/** bumped whenever an entity of a type changes; values loaded in an earlier generation are stale */
+	private static final ConcurrentMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	/** the fields copied for each entity class, including inherited ones */
+	private static final ConcurrentMap<Class<?>, List<Field>> copiedFields = new ConcurrentHashMap<Class<?>, List<Field>>();
+
+	/** loads a value on a miss */
+	public interface Loader<T> {
+		public T load();
+	}
+
+	/**
+	 * Find an entity by id, from the cache if it's there.
+	 */
+	public static <T extends JPABase> T findById(final Class<T> type, final Long id) {
+		if(id == null)
+			return null;
+
+		return get(type, id, new Loader<T>() {
+			public T load() {
+				return JPA.em().find(type, id);
+			}
+		});
+	}
+
+	/**
+	 * Get a copy of the value for a key, loading and caching it on a miss. Nulls aren't cached.
+	 */
+	public static <T> T get(Class<?> type, Object key, Loader<T> loader) {
+		Key cacheKey = new Key(type, key);
+		long generation = generation(type).get();
+
+		synchronized(values) {
+			Value value = values.get(cacheKey);
+
+			if(value != null && value.generation == generation && value.expires > System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return (T) copy(value.value);
+			}
+		}
+
+		misses.incrementAndGet();
+
+		// load outside the lock; two threads may both load the same value, which is harmless
+		T loaded = loader.load();
+
+		if(loaded == null)
+			return null;
+
+		// cache a copy rather than the instance the loading request's session manages
+		Object cached = copy(loaded);
+
+		synchronized(values) {
+			values.put(cacheKey, new Value(cached, generation, System.currentTimeMillis() + TTL));
+		}
+
+		return (T) copy(cached);
+	}
+
+	private static Object copy(Object value) {
+		return copy(value, new IdentityHashMap<Object, Object>());
+	}
+
+	/**
+	 * Copy an entity, with the entities it refers to and any dates, or a list of them. Anything else is immutable and
+	 * shared. Collections inside entities are left unset, as they can only be loaded by the session they came from.
+	 */
+	private static Object copy(Object value, Map<Object, Object> copies) {
+		if(value instanceof HibernateProxy)
+			value = ((HibernateProxy) value).getHibernateLazyInitializer().getImplementation();
+
+		if(value == null)
+			return null;
+
+		if(value instanceof Date)
+			return ((Date) value).clone();
+
+		if(value instanceof List) {
+			List<Object> ret = new ArrayList<Object>(((List<?>) value).size());
+
+			for(Object item : (List<?>) value)
+				ret.add(copy(item, copies));
+
+			return ret;
+		}
+
+		if(!(value instanceof JPABase))
+			return value;
+
+		Object ret = copies.get(value);
+
+		if(ret != null)
+			return ret;
+
+		try {
+			Constructor<?> constructor = value.getClass().getDeclaredConstructor();
+			constructor.setAccessible(true);
+
+			ret = constructor.newInstance();
+			copies.put(value, ret);
+
+			for(Field field : fields(value.getClass()))
+				field.set(ret, copy(field.get(value), copies));
+		} catch (Exception e) {
+			throw new RuntimeException("could not copy " + value.getClass().getSimpleName(), e);
+		}
+
+		return ret;
+	}
+
+	/** the persistent fields of an entity class that can be copied: everything but collections */
+	private static List<Field> fields(Class<?> type) {
+		List<Field> ret = copiedFields.get(type);
+
+		if(ret != null)
+			return ret;
+
+		ret = new ArrayList<Field>();
+
+		for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			for(Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+
+				if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ||
+						Collection.class.isAssignableFrom(field.getType()) || Map.class.isAssignableFrom(field.getType()))
+					continue;
+
+				field.setAccessible(true);
+				ret.add(field);
+			}
+		}
+
+		copiedFields.putIfAbsent(type, ret);
+		return ret;
+	}
+
+	/** drop every cached value of a type */
+	public static void invalidate(Class<?> type) {
+		generation(entityClass(type)).incrementAndGet();
+		invalidations.incrementAndGet();
+	}
+
+	public static void clear() {
+		synchronized(values) {
+			values.clear();
+		}
+	}
+
+	public static Map<String, Object> stats() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+
+		synchronized(values) {
+			ret.put("size", values.size());
+		}
+
+		ret.put("maxSize", MAX_SIZE);
+		ret.put("hits", hits.get());
+		ret.put("misses", misses.get());
+
+		long requests = hits.get() + misses.get();
+		ret.put("hitRate", requests > 0 ? (double) hits.get() / requests : 0.0);
+
+		ret.put("evictions", evictions.get());
+		ret.put("invalidations", invalidations.get());
+
+		return ret;
+	}
+
+	private static AtomicLong generation(Class<?> type) {
+		AtomicLong generation = generations.get(type);
+
+		if(generation == null) {
+			generations.putIfAbsent(type, new AtomicLong());
+			generation = generations.get(type);
+		}
+
+		return generation;
+	}
+
+	/** the entity class of an instance's class, which may be a Hibernate proxy subclass */
+	private static Class<?> entityClass(Class<?> type) {
+		Class<?> ret = type;
+
+		while(ret != null && !ret.isAnnotationPresent(Entity.class))
+			ret = ret.getSuperclass();
+
+		return ret != null ? ret : type;
+	}
+
+	/**
+	 * A JPA entity listener for the cached entity types; add it with @EntityListeners.
+	 */
+	public static class Invalidator {
+		@PostPersist
+		@PostUpdate
+		@PostRemove
+		public void changed(Object entity) {
+			invalidate(entity.getClass());
+			invalidateOnCompletion(entity.getClass());
+		}
+	}
+
+	/** the types changed by the current thread's transaction, to invalidate again once it completes */
+	private static final ThreadLocal<PendingInvalidation> pending = new ThreadLocal<PendingInvalidation>();
+
+	/**
+	 * Drop every cached value of a type once the current transaction has committed or rolled back. Values cached in
+	 * the meantime by other transactions hold the row as it was before the change.
+	 */
+	public static void invalidateOnCompletion(Class<?> type) {
+		Transaction tx;
+
+		try {
+			tx = ((Session) JPA.em().getDelegate()).getTransaction();
+		} catch (RuntimeException e) {
+			// no transaction on this thread, so the change is already visible
+			return;
+		}
+
+		if(!tx.isActive())
+			return;
+
+		PendingInvalidation invalidation = pending.get();
+
+		if(invalidation == null || invalidation.tx != tx) {
+			invalidation = new PendingInvalidation(tx);
+			pending.set(invalidation);
+			tx.registerSynchronization(invalidation);
+		}
+
+		invalidation.types.add(entityClass(type));
+	}
+
+	private static class PendingInvalidation implements Synchronization {
+		final Transaction tx;
+		final Set<Class<?>> types = new HashSet<Class<?>>();
+
+		PendingInvalidation(Transaction tx) {
+			this.tx = tx;
+		}
+
+		public void beforeCompletion() {
+		}
+
+		public void afterCompletion(int status) {
+			if(pending.get() == this)
+				pending.remove();
+
+			for(Class<?> type : types)
+				invalidate(type);
+		}
+	}
+
+	private static class Key {
+		final Class<?> type;
+		final Object key;
+
+		Key(Class<?> type, Object key) {
+			this.type = type;
+			this.key = key;
+		}
+
+		public int hashCode() {
+			return type.hashCode() * 31 + key.hashCode();
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			return type.equals(other.type) && key.equals(other.key);
+		}
+	}
+
+	private static class Value {
+		final Object value;
+		final long generation;
+		final long expires;
+
+		Value(Object value, long generation, long expires) {
+			this.value = value;
+			this.generation = generation;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,569 @@
+package utils;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * A graph of network lines, such as road or rail centerlines imported as GIS route segments, for generating shapes that
+ * follow the network instead of running straight from stop to stop.
+ *
+ * Line ends within NODE_TOLERANCE degrees of each other are joined at a node, and every line is an edge that can be
+ * travelled either way. Everything is held in primitive arrays: the coordinates of all the edges end to end, and the
+ * edges at each node as one compressed adjacency array, so the network of a whole agency is cheap to hold and to
+ * search. Paths are found with A*, using the straight line distance to the destination as the heuristic.
+ *
+ * Searches reuse their working arrays, so a graph must only be used by one thread at a time.
+ */
+public class RoutingGraph {
+    /** same as the tolerance for joining GIS route segments at control points */
+    public static final double NODE_TOLERANCE = 0.00015;
+
+    /** how far in meters a stop can be from the network and still be snapped to it */
+    public static final double DEFAULT_SNAP_DISTANCE = 100;
+
+    /** size in degrees of the cells used to find the lines near a point */
+    private static final double SNAP_CELL_SIZE = 0.005;
+
+    private final int nodeCount;
+    private final double[] nodeLats;
+    private final double[] nodeLons;
+
+    private final int edgeCount;
+    private final int[] edgeFrom;
+    private final int[] edgeTo;
+    private final double[] edgeLengths;
+
+    /** the coordinates of edge e are at coordOffsets[e] up to (but not including) coordOffsets[e + 1] */
+    private final int[] coordOffsets;
+    private final double[] lats;
+    private final double[] lons;
+    /** distance in meters from the start of its edge to each coordinate */
+    private final double[] distances;
+
+    /** the edges at node n are at adjacencyOffsets[n] up to adjacencyOffsets[n + 1], as edge * 2, plus 1 if backwards */
+    private final int[] adjacencyOffsets;
+    private final int[] adjacency;
+
+    /** the edges passing through each snapping cell */
+    private final TLongObjectHashMap<TIntArrayList> snapCells = new TLongObjectHashMap<TIntArrayList>();
+
+    // search state, reset after each search
+    private final double[] costs;
+    private final int[] via;
+    private final boolean[] settled;
+    private final TIntArrayList touched = new TIntArrayList();
+    private double[] heapKeys = new double[64];
+    private int[] heapNodes = new int[64];
+    private int heapSize;
+
+    public RoutingGraph(List<LineString> lines) {
+        TDoubleArrayList nodeLatList = new TDoubleArrayList();
+        TDoubleArrayList nodeLonList = new TDoubleArrayList();
+        TLongObjectHashMap<TIntArrayList> nodeCells = new TLongObjectHashMap<TIntArrayList>();
+
+        TIntArrayList fromList = new TIntArrayList();
+        TIntArrayList toList = new TIntArrayList();
+        TDoubleArrayList lengthList = new TDoubleArrayList();
+        TIntArrayList offsetList = new TIntArrayList();
+        TDoubleArrayList latList = new TDoubleArrayList();
+        TDoubleArrayList lonList = new TDoubleArrayList();
+        TDoubleArrayList distanceList = new TDoubleArrayList();
+
+        for (LineString line : lines) {
+            if (line == null || line.getNumPoints() < 2)
+                continue;
+
+            Coordinate[] coords = line.getCoordinates();
+
+            offsetList.add(latList.size());
+
+            double distance = 0;
+
+            for (int i = 0; i < coords.length; i++) {
+                if (i > 0)
+                    distance += GeoUtils.fastDistance(coords[i - 1].y, coords[i - 1].x, coords[i].y, coords[i].x);
+
+                latList.add(coords[i].y);
+                lonList.add(coords[i].x);
+                distanceList.add(distance);
+            }
+
+            fromList.add(findOrAddNode(coords[0], nodeLatList, nodeLonList, nodeCells));
+            toList.add(findOrAddNode(coords[coords.length - 1], nodeLatList, nodeLonList, nodeCells));
+            lengthList.add(distance);
+        }
+
+        offsetList.add(latList.size());
+
+        nodeCount = nodeLatList.size();
+        nodeLats = nodeLatList.toArray();
+        nodeLons = nodeLonList.toArray();
+
+        edgeCount = fromList.size();
+        edgeFrom = fromList.toArray();
+        edgeTo = toList.toArray();
+        edgeLengths = lengthList.toArray();
+
+        coordOffsets = offsetList.toArray();
+        lats = latList.toArray();
+        lons = lonList.toArray();
+        distances = distanceList.toArray();
+
+        // count the edges at each node, then fill them in
+        adjacencyOffsets = new int[nodeCount + 1];
+
+        for (int e = 0; e < edgeCount; e++) {
+            adjacencyOffsets[edgeFrom[e] + 1]++;
+            adjacencyOffsets[edgeTo[e] + 1]++;
+        }
+
+        for (int n = 0; n < nodeCount; n++) {
+            adjacencyOffsets[n + 1] += adjacencyOffsets[n];
+        }
+
+        adjacency = new int[edgeCount * 2];
+        int[] fill = Arrays.copyOf(adjacencyOffsets, nodeCount);
+
+        for (int e = 0; e < edgeCount; e++) {
+            adjacency[fill[edgeFrom[e]]++] = e * 2;
+            adjacency[fill[edgeTo[e]]++] = e * 2 + 1;
+        }
+
+        for (int e = 0; e < edgeCount; e++) {
+            indexEdge(e);
+        }
+
+        costs = new double[nodeCount];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        via = new int[nodeCount];
+        settled = new boolean[nodeCount];
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    private static int findOrAddNode(Coordinate coord, TDoubleArrayList nodeLats, TDoubleArrayList nodeLons, TLongObjectHashMap<TIntArrayList> nodeCells) {
+        long x = (long) Math.floor(coord.x / NODE_TOLERANCE);
+        long y = (long) Math.floor(coord.y / NODE_TOLERANCE);
+
+        for (long cx = x - 1; cx <= x + 1; cx++) {
+            for (long cy = y - 1; cy <= y + 1; cy++) {
+                TIntArrayList cell = nodeCells.get(cellKey(cx, cy));
+
+                if (cell == null)
+                    continue;
+
+                for (int i = 0; i < cell.size(); i++) {
+                    int node = cell.get(i);
+                    double dx = nodeLons.get(node) - coord.x;
+                    double dy = nodeLats.get(node) - coord.y;
+
+                    if (dx * dx + dy * dy < NODE_TOLERANCE * NODE_TOLERANCE)
+                        return node;
+                }
+            }
+        }
+
+        int node = nodeLats.size();
+        nodeLats.add(coord.y);
+        nodeLons.add(coord.x);
+
+        TIntArrayList cell = nodeCells.get(cellKey(x, y));
+        if (cell == null) {
+            cell = new TIntArrayList(2);
+            nodeCells.put(cellKey(x, y), cell);
+        }
+        cell.add(node);
+
+        return node;
+    }
+
+    /** add an edge to every snapping cell its bounding box touches */
+    private void indexEdge(int edge) {
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+
+        for (int i = coordOffsets[edge]; i < coordOffsets[edge + 1]; i++) {
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+        }
+
+        for (long cx = snapCell(minLon); cx <= snapCell(maxLon); cx++) {
+            for (long cy = snapCell(minLat); cy <= snapCell(maxLat); cy++) {
+                TIntArrayList cell = snapCells.get(cellKey(cx, cy));
+
+                if (cell == null) {
+                    cell = new TIntArrayList(4);
+                    snapCells.put(cellKey(cx, cy), cell);
+                }
+
+                cell.add(edge);
+            }
+        }
+    }
+
+    private static long snapCell(double ordinate) {
+        return (long) Math.floor(ordinate / SNAP_CELL_SIZE);
+    }
+
+    private static long cellKey(long x, long y) {
+        return (x << 32) | (y & 0xffffffffL);
+    }
+
+    /** where a point is closest to the network */
+    public static class Snap {
+        public final int edge;
+        /** the index of the coordinate of the edge at or before the snapped point */
+        public final int index;
+        /** meters along the edge from its start */
+        public final double along;
+        /** meters from the point to the network */
+        public final double distance;
+        public final double lat;
+        public final double lon;
+
+        Snap(int edge, int index, double along, double distance, double lat, double lon) {
+            this.edge = edge;
+            this.index = index;
+            this.along = along;
+            this.distance = distance;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    /**
+     * Find the closest point on the network to a point, or return null if there is nothing within maxDistance meters.
+     */
+    public Snap snap(double lat, double lon, double maxDistance) {
+        double metersPerDegreeLon = GeoUtils.metersPerDegreeLongitude(lat);
+        double metersPerDegreeLat = GeoUtils.METERS_PER_DEGREE_LATITUDE;
+
+        long minX = snapCell(lon - maxDistance / metersPerDegreeLon);
+        long maxX = snapCell(lon + maxDistance / metersPerDegreeLon);
+        long minY = snapCell(lat - maxDistance / metersPerDegreeLat);
+        long maxY = snapCell(lat + maxDistance / metersPerDegreeLat);
+
+        Snap best = null;
+        double bestDistance = maxDistance;
+
+        for (long cx = minX; cx <= maxX; cx++) {
+            for (long cy = minY; cy <= maxY; cy++) {
+                TIntArrayList cell = snapCells.get(cellKey(cx, cy));
+
+                if (cell == null)
+                    continue;
+
+                for (int c = 0; c < cell.size(); c++) {
+                    int edge = cell.get(c);
+
+                    // project each piece of the edge in a local plane centered on the point
+                    for (int i = coordOffsets[edge]; i < coordOffsets[edge + 1] - 1; i++) {
+                        double ax = (lons[i] - lon) * metersPerDegreeLon;
+                        double ay = (lats[i] - lat) * metersPerDegreeLat;
+                        double bx = (lons[i + 1] - lon) * metersPerDegreeLon;
+                        double by = (lats[i + 1] - lat) * metersPerDegreeLat;
+
+                        double dx = bx - ax;
+                        double dy = by - ay;
+                        double lengthSquared = dx * dx + dy * dy;
+
+                        double t = lengthSquared > 0 ? -(ax * dx + ay * dy) / lengthSquared : 0;
+                        t = Math.max(0, Math.min(1, t));
+
+                        double px = ax + t * dx;
+                        double py = ay + t * dy;
+                        double distance = Math.sqrt(px * px + py * py);
+
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            best = new Snap(edge, i, distances[i] + t * (distances[i + 1] - distances[i]), distance,
+                                    lats[i] + t * (lats[i + 1] - lats[i]), lons[i] + t * (lons[i + 1] - lons[i]));
+                        }
+                    }
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * The coordinates of the shortest path along the network from one snapped point to another, starting and ending
+     * with the snapped points, or null if they aren't connected.
+     */
+    public List<Coordinate> route(Snap from, Snap to) {
+        // the cheapest way found so far to reach the destination, and the node it was reached from (-1 to go straight
+        // along a shared edge)
+        double best = Double.POSITIVE_INFINITY;
+        int bestNode = -1;
+
+        if (from.edge == to.edge)
+            best = Math.abs(to.along - from.along);
+
+        // leave the first edge at either end
+        double toStart = from.along;
+        double toEnd = edgeLengths[from.edge] - from.along;
+        int startNode = edgeFrom[from.edge];
+        int endNode = edgeTo[from.edge];
+
+        relax(startNode, toStart, -1, to);
+        relax(endNode, toEnd, -1, to);
+
+        while (heapSize > 0) {
+            double f = heapKeys[0];
+            int node = pop();
+
+            if (f >= best)
+                break;
+
+            if (settled[node])
+                continue;
+
+            settled[node] = true;
+
+            // reaching the last edge from either end
+            if (node == edgeFrom[to.edge] && costs[node] + to.along < best) {
+                best = costs[node] + to.along;
+                bestNode = node;
+            }
+
+            if (node == edgeTo[to.edge] && costs[node] + edgeLengths[to.edge] - to.along < best) {
+                best = costs[node] + edgeLengths[to.edge] - to.along;
+                bestNode = node;
+            }
+
+            for (int a = adjacencyOffsets[node]; a < adjacencyOffsets[node + 1]; a++) {
+                int entry = adjacency[a];
+                int edge = entry >> 1;
+                int next = (entry & 1) == 0 ? edgeTo[edge] : edgeFrom[edge];
+
+                if (!settled[next])
+                    relax(next, costs[node] + edgeLengths[edge], entry, to);
+            }
+        }
+
+        List<Coordinate> ret = null;
+
+        if (best < Double.POSITIVE_INFINITY)
+            ret = bestNode == -1 ? alongEdge(from, to) : path(from, to, bestNode, startNode, toStart, endNode, toEnd);
+
+        reset();
+
+        return ret;
+    }
+
+    private void relax(int node, double cost, int entry, Snap to) {
+        if (cost >= costs[node])
+            return;
+
+        if (costs[node] == Double.POSITIVE_INFINITY)
+            touched.add(node);
+
+        costs[node] = cost;
+        via[node] = entry;
+
+        push(cost + GeoUtils.fastDistance(nodeLats[node], nodeLons[node], to.lat, to.lon), node);
+    }
+
+    /** from one snapped point to another on the same edge */
+    private List<Coordinate> alongEdge(Snap from, Snap to) {
+        List<Coordinate> coords = new ArrayList<Coordinate>();
+        coords.add(new Coordinate(from.lon, from.lat));
+
+        if (from.along <= to.along) {
+            for (int i = from.index + 1; i <= to.index; i++)
+                add(coords, i);
+        }
+        else {
+            for (int i = from.index; i > to.index; i--)
+                add(coords, i);
+        }
+
+        add(coords, new Coordinate(to.lon, to.lat));
+
+        return coords;
+    }
+
+    private List<Coordinate> path(Snap from, Snap to, int lastNode, int startNode, double toStart, int endNode, double toEnd) {
+        // the edges taken, walking back from the last node to the first
+        TIntArrayList entries = new TIntArrayList();
+        int node = lastNode;
+
+        while (via[node] != -1) {
+            int entry = via[node];
+            entries.add(entry);
+            node = (entry & 1) == 0 ? edgeFrom[entry >> 1] : edgeTo[entry >> 1];
+        }
+
+        List<Coordinate> coords = new ArrayList<Coordinate>();
+        coords.add(new Coordinate(from.lon, from.lat));
+
+        // out of the first edge, through whichever end the path started at
+        boolean leftByEnd = node == endNode && (node != startNode || toEnd <= toStart);
+
+        if (leftByEnd) {
+            for (int i = from.index + 1; i < coordOffsets[from.edge + 1]; i++)
+                add(coords, i);
+        }
+        else {
+            for (int i = from.index; i >= coordOffsets[from.edge]; i--)
+                add(coords, i);
+        }
+
+        for (int e = entries.size() - 1; e >= 0; e--) {
+            int entry = entries.get(e);
+            int edge = entry >> 1;
+
+            if ((entry & 1) == 0) {
+                for (int i = coordOffsets[edge]; i < coordOffsets[edge + 1]; i++)
+                    add(coords, i);
+            }
+            else {
+                for (int i = coordOffsets[edge + 1] - 1; i >= coordOffsets[edge]; i--)
+                    add(coords, i);
+            }
+        }
+
+        // into the last edge, through whichever end is cheaper from the last node
+        boolean enteredByStart = lastNode == edgeFrom[to.edge] &&
+                (lastNode != edgeTo[to.edge] || to.along <= edgeLengths[to.edge] - to.along);
+
+        if (enteredByStart) {
+            for (int i = coordOffsets[to.edge]; i <= to.index; i++)
+                add(coords, i);
+        }
+        else {
+            for (int i = coordOffsets[to.edge + 1] - 1; i > to.index; i--)
+                add(coords, i);
+        }
+
+        add(coords, new Coordinate(to.lon, to.lat));
+
+        return coords;
+    }
+
+    private void add(List<Coordinate> coords, int index) {
+        add(coords, new Coordinate(lons[index], lats[index]));
+    }
+
+    /** add a coordinate, unless it repeats the last one */
+    private static void add(List<Coordinate> coords, Coordinate coord) {
+        if (!coords.isEmpty() && coords.get(coords.size() - 1).equals2D(coord))
+            return;
+
+        coords.add(coord);
+    }
+
+    /**
+     * The coordinates of a line through all of the points in order, following the network between consecutive points
+     * that are within maxSnapDistance meters of it and connected, and straight between any others. Points on the
+     * network are replaced by where they snap to it.
+     */
+    public Coordinate[] routeThrough(Coordinate[] points, double maxSnapDistance) {
+        List<Coordinate> coords = new ArrayList<Coordinate>();
+
+        Snap previous = null;
+
+        for (int i = 0; i < points.length; i++) {
+            Snap snap = snap(points[i].y, points[i].x, maxSnapDistance);
+
+            List<Coordinate> leg = previous != null && snap != null ? route(previous, snap) : null;
+
+            if (leg != null) {
+                for (Coordinate coord : leg)
+                    add(coords, coord);
+            }
+            else {
+                add(coords, snap != null ? new Coordinate(snap.lon, snap.lat) : points[i]);
+            }
+
+            previous = snap;
+        }
+
+        return coords.toArray(new Coordinate[coords.size()]);
+    }
+
+    private void reset() {
+        for (int i = 0; i < touched.size(); i++) {
+            int node = touched.get(i);
+            costs[node] = Double.POSITIVE_INFINITY;
+            settled[node] = false;
+        }
+
+        touched.resetQuick();
+        heapSize = 0;
+    }
+
+    // a binary min-heap of nodes by estimated total cost; nodes may be in it more than once, and stale entries are
+    // skipped when they come out because the node is already settled
+
+    private void push(double key, int node) {
+        if (heapSize == heapKeys.length) {
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+        }
+
+        int i = heapSize++;
+
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+
+            if (heapKeys[parent] <= key)
+                break;
+
+            heapKeys[i] = heapKeys[parent];
+            heapNodes[i] = heapNodes[parent];
+            i = parent;
+        }
+
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+    }
+
+    private int pop() {
+        int ret = heapNodes[0];
+
+        double key = heapKeys[--heapSize];
+        int node = heapNodes[heapSize];
+
+        int i = 0;
+
+        while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= heapSize)
+                break;
+
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child])
+                child++;
+
+            if (key <= heapKeys[child])
+                break;
+
+            heapKeys[i] = heapKeys[child];
+            heapNodes[i] = heapNodes[child];
+            i = child;
+        }
+
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+
+        return ret;
+    }
+}
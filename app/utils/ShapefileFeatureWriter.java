@@ -0,0 +1,106 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Writes a zipped shapefile through a GeoTools FeatureWriter.
+ *
+ * The parts of a shapefile have headers that are only known once every feature has been written, so they are written
+ * as files beside the zip and moved into it when the writer is closed.
+ */
+public class ShapefileFeatureWriter extends GisFeatureWriter {
+
+	private static final String[] PARTS = { "shp", "shx", "dbf", "prj", "qix", "fix" };
+
+	private final File output;
+	private final File shapefile;
+
+	private final ShapefileDataStore dataStore;
+	private final FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+
+	public ShapefileFeatureWriter(SimpleFeatureType type, File output) throws IOException
+	{
+		super(type);
+
+		this.output = output;
+		this.shapefile = new File(output.getParentFile(), FilenameUtils.getBaseName(output.getName()) + ".shp");
+
+		Map<String, Serializable> params = new HashMap<String, Serializable>();
+		params.put("url", shapefile.toURI().toURL());
+		params.put("create spatial index", Boolean.TRUE);
+
+		dataStore = (ShapefileDataStore) new ShapefileDataStoreFactory().createNewDataStore(params);
+		dataStore.forceSchemaCRS(DefaultGeographicCRS.WGS84);
+		dataStore.createSchema(type);
+
+		writer = dataStore.getFeatureWriterAppend(dataStore.getTypeNames()[0], Transaction.AUTO_COMMIT);
+	}
+
+	public void write(Object... attributes) throws IOException
+	{
+		SimpleFeature feature = writer.next();
+		feature.setAttributes(attributes);
+		writer.write();
+	}
+
+	public void close() throws IOException
+	{
+		writer.close();
+		dataStore.dispose();
+
+		String baseName = FilenameUtils.getBaseName(shapefile.getName());
+
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+
+		try
+		{
+			for(String extension : PARTS)
+			{
+				File part = new File(shapefile.getParentFile(), baseName + "." + extension);
+
+				if(!part.exists())
+					continue;
+
+				zip.putNextEntry(new ZipEntry(part.getName()));
+
+				InputStream in = new FileInputStream(part);
+
+				try
+				{
+					IOUtils.copy(in, zip);
+				}
+				finally
+				{
+					in.close();
+				}
+
+				zip.closeEntry();
+				part.delete();
+			}
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+}
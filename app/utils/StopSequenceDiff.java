@@ -0,0 +1,117 @@
+package utils;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+/**
+ * Diff two sequences of stop IDs, finding where each element of the original sequence ends up in the updated one.
+ *
+ * Elements are matched by a longest common subsequence, so any combination of insertions and deletions is
+ * recovered exactly. Whatever is left over is then checked for moves: an original element that was not matched is
+ * paired with an unmatched updated element for the same stop, in order. Anything still unpaired was removed.
+ *
+ * Common prefixes and suffixes are matched directly, so the quadratic part only covers the region that changed.
+ */
+public class StopSequenceDiff {
+
+    /** the index in the updated sequence of each element of the original sequence, or -1 if it was removed */
+    public final int[] newIndex;
+
+    /** whether any element changed position relative to the others, rather than just being added or removed */
+    public final boolean moved;
+
+    private StopSequenceDiff(int[] newIndex, boolean moved) {
+        this.newIndex = newIndex;
+        this.moved = moved;
+    }
+
+    public static StopSequenceDiff diff(long[] original, long[] updated) {
+        int[] newIndex = new int[original.length];
+
+        // match the common prefix and suffix
+        int start = 0;
+        while (start < original.length && start < updated.length && original[start] == updated[start]) {
+            newIndex[start] = start;
+            start++;
+        }
+
+        int originalEnd = original.length;
+        int updatedEnd = updated.length;
+        while (originalEnd > start && updatedEnd > start && original[originalEnd - 1] == updated[updatedEnd - 1]) {
+            originalEnd--;
+            updatedEnd--;
+            newIndex[originalEnd] = updatedEnd;
+        }
+
+        int n = originalEnd - start;
+        int m = updatedEnd - start;
+
+        for (int i = start; i < originalEnd; i++) {
+            newIndex[i] = -1;
+        }
+
+        if (n == 0 || m == 0)
+            return new StopSequenceDiff(newIndex, false);
+
+        // lcs[i][j] is the length of the LCS of original[start + i ..] and updated[start + j ..]
+        int[][] lcs = new int[n + 1][m + 1];
+
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                if (original[start + i] == updated[start + j])
+                    lcs[i][j] = lcs[i + 1][j + 1] + 1;
+                else
+                    lcs[i][j] = Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+
+        boolean[] updatedMatched = new boolean[m];
+
+        int i = 0, j = 0;
+        while (i < n && j < m) {
+            if (original[start + i] == updated[start + j]) {
+                newIndex[start + i] = start + j;
+                updatedMatched[j] = true;
+                i++;
+                j++;
+            }
+            else if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                i++;
+            }
+            else {
+                j++;
+            }
+        }
+
+        // pair leftover elements for the same stop; those are moves
+        TLongObjectHashMap<TIntArrayList> unmatchedUpdated = new TLongObjectHashMap<TIntArrayList>();
+        for (j = 0; j < m; j++) {
+            if (updatedMatched[j])
+                continue;
+
+            TIntArrayList positions = unmatchedUpdated.get(updated[start + j]);
+            if (positions == null) {
+                positions = new TIntArrayList(1);
+                unmatchedUpdated.put(updated[start + j], positions);
+            }
+
+            positions.add(start + j);
+        }
+
+        boolean moved = false;
+
+        for (i = start; i < originalEnd; i++) {
+            if (newIndex[i] != -1)
+                continue;
+
+            TIntArrayList positions = unmatchedUpdated.get(original[i]);
+            if (positions == null || positions.isEmpty())
+                continue;
+
+            newIndex[i] = positions.removeAt(0);
+            moved = true;
+        }
+
+        return new StopSequenceDiff(newIndex, moved);
+    }
+}
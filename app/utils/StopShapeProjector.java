@@ -0,0 +1,257 @@
+package utils;
+
+import org.geotools.geometry.jts.JTS;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Linear referencing of stops along a shape, in meters.
+ *
+ * Stops are expected to occur in order along the shape, so rather than searching the whole line for every stop
+ * (as LocationIndexedLine.project does) we keep a cursor and only walk forward from the previous stop, stopping a
+ * short lookahead distance past the best match. That makes a whole pattern O(stops + segments) instead of
+ * O(stops * segments), and it also keeps loop routes from snapping a stop to the wrong pass.
+ *
+ * The search ahead ends a few times the stop's straight line distance from the cursor. If nothing within the
+ * tolerance is found there, the stop is out of order, so we also search a short way behind the cursor, without moving
+ * the cursor back for it. Only if that fails too is the whole line searched, and only for one stop per pattern, so a
+ * stop off the line or a feed with its stops badly out of order can't make every stop cost a scan of the whole shape.
+ */
+public class StopShapeProjector {
+
+	/** how far along the line to keep looking once we have a match within the tolerance, in meters */
+	public static final double DEFAULT_LOOKAHEAD = 500;
+
+	/** how far a stop may be from the line and still count as a match ahead of the cursor, in meters */
+	public static final double DEFAULT_TOLERANCE = 100;
+
+	/** how far behind the cursor to look for an out of order stop, in meters */
+	public static final double DEFAULT_LOOKBEHIND = 1000;
+
+	/** how many times longer than the straight line from the cursor the line to the next stop may be */
+	public static final double MAX_DETOUR = 3;
+
+	private final MathTransform transform;
+
+	/** projected vertex coordinates */
+	private final double[] xs;
+	private final double[] ys;
+
+	/** distance along the line at each vertex */
+	private final double[] vertexDistances;
+
+	private final double lookahead;
+	private final double tolerance;
+
+	private StopShapeProjector(MathTransform transform, LineString projectedShape, double lookahead, double tolerance) {
+		this.transform = transform;
+		this.lookahead = lookahead;
+		this.tolerance = tolerance;
+
+		CoordinateSequence seq = projectedShape.getCoordinateSequence();
+		int n = seq.size();
+
+		xs = new double[n];
+		ys = new double[n];
+		vertexDistances = new double[n];
+
+		for (int i = 0; i < n; i++) {
+			xs[i] = seq.getX(i);
+			ys[i] = seq.getY(i);
+
+			if (i > 0)
+				vertexDistances[i] = vertexDistances[i - 1] + Math.hypot(xs[i] - xs[i - 1], ys[i] - ys[i - 1]);
+		}
+	}
+
+	/**
+	 * Create a projector for a shape in WGS84, projecting it into the UTM zone of its first point.
+	 */
+	public static StopShapeProjector create(LineString shape) throws TransformException {
+		return create(shape, DEFAULT_LOOKAHEAD, DEFAULT_TOLERANCE);
+	}
+
+	public static StopShapeProjector create(LineString shape, double lookahead, double tolerance) throws TransformException {
+		MathTransform mt = GeoUtils.getTransform(shape.getCoordinateN(0));
+
+		if (mt == null)
+			throw new TransformException("No UTM transform available for shape");
+
+		LineString projected = (LineString) JTS.transform(shape, mt);
+		return new StopShapeProjector(mt, projected, lookahead, tolerance);
+	}
+
+	/** The length of the shape, in meters */
+	public double getLength() {
+		return vertexDistances.length > 0 ? vertexDistances[vertexDistances.length - 1] : 0;
+	}
+
+	/** The distance along the shape of each of its vertices, in meters */
+	public double[] getVertexDistances() {
+		return vertexDistances;
+	}
+
+	/**
+	 * Get the distance along the shape of each stop, in meters.
+	 * @param stops stop locations in WGS84, in stop sequence order
+	 */
+	public double[] project(Coordinate[] stops) throws TransformException {
+		double[] ret = new double[stops.length];
+		int segments = xs.length - 1;
+
+		if (segments < 1)
+			return ret;
+
+		// project all of the stops in one call
+		double[] points = new double[stops.length * 2];
+		for (int i = 0; i < stops.length; i++) {
+			points[2 * i] = stops[i].x;
+			points[2 * i + 1] = stops[i].y;
+		}
+		transform.transform(points, 0, points, 0, stops.length);
+
+		// the cursor; the next stop should fall on or after this position
+		int cursorSegment = 0;
+		double cursorFraction = 0;
+
+		// the whole line may be searched once per pattern, for a stop that is nowhere near the cursor
+		boolean searchedAll = false;
+
+		Match ahead = new Match();
+		Match behind = new Match();
+
+		for (int i = 0; i < stops.length; i++) {
+			double px = points[2 * i];
+			double py = points[2 * i + 1];
+
+			double cursorAlong = along(cursorSegment, cursorFraction);
+			double cursorX = xs[cursorSegment] + cursorFraction * (xs[cursorSegment + 1] - xs[cursorSegment]);
+			double cursorY = ys[cursorSegment] + cursorFraction * (ys[cursorSegment + 1] - ys[cursorSegment]);
+
+			// the next stop can't be much further along the line than it is in a straight line from the cursor
+			double limit = cursorAlong + lookahead + MAX_DETOUR * Math.hypot(px - cursorX, py - cursorY);
+
+			ahead.clear();
+
+			for (int s = cursorSegment; s < segments && vertexDistances[s] <= limit; s++) {
+				// we've found a good match and looked far enough past it
+				if (ahead.distance <= tolerance && vertexDistances[s] - ahead.along > lookahead)
+					break;
+
+				ahead.offer(s, fraction(s, px, py, s == cursorSegment ? cursorFraction : 0), px, py);
+			}
+
+			if (ahead.distance <= tolerance) {
+				ret[i] = ahead.along;
+				cursorSegment = ahead.segment;
+				cursorFraction = ahead.fraction;
+				continue;
+			}
+
+			// out of order stop; look a short way behind the cursor, but don't move the cursor back for it
+			behind.clear();
+
+			for (int s = cursorSegment; s >= 0 && vertexDistances[s + 1] >= cursorAlong - DEFAULT_LOOKBEHIND; s--) {
+				behind.offer(s, fraction(s, px, py, 0), px, py);
+			}
+
+			if (behind.distance <= tolerance) {
+				ret[i] = behind.along;
+				continue;
+			}
+
+			if (!searchedAll) {
+				searchedAll = true;
+
+				Match all = new Match();
+
+				for (int s = 0; s < segments; s++) {
+					all.offer(s, fraction(s, px, py, 0), px, py);
+				}
+
+				if (all.distance <= tolerance) {
+					ret[i] = all.along;
+
+					if (all.along >= cursorAlong) {
+						cursorSegment = all.segment;
+						cursorFraction = all.fraction;
+					}
+
+					continue;
+				}
+			}
+
+			// the stop is off the line; use the closest point near the cursor
+			if (behind.distance < ahead.distance) {
+				ret[i] = behind.along;
+			}
+			else {
+				ret[i] = ahead.along;
+				cursorSegment = ahead.segment;
+				cursorFraction = ahead.fraction;
+			}
+		}
+
+		return ret;
+	}
+
+	/** the closest point to a stop found so far */
+	private class Match {
+		int segment;
+		double fraction;
+		double distance;
+		double along;
+
+		Match() {
+			clear();
+		}
+
+		void clear() {
+			segment = -1;
+			distance = Double.POSITIVE_INFINITY;
+		}
+
+		void offer(int s, double f, double px, double py) {
+			double d = distance(s, f, px, py);
+
+			if (d < distance) {
+				segment = s;
+				fraction = f;
+				distance = d;
+				along = along(s, f);
+			}
+		}
+	}
+
+	/** the fraction along segment s of the closest point to (px, py), no less than min */
+	private double fraction(int s, double px, double py, double min) {
+		double dx = xs[s + 1] - xs[s];
+		double dy = ys[s + 1] - ys[s];
+		double len2 = dx * dx + dy * dy;
+
+		if (len2 == 0)
+			return min;
+
+		double f = ((px - xs[s]) * dx + (py - ys[s]) * dy) / len2;
+
+		if (f < min)
+			return min;
+		if (f > 1)
+			return 1;
+		return f;
+	}
+
+	private double distance(int s, double f, double px, double py) {
+		double x = xs[s] + f * (xs[s + 1] - xs[s]);
+		double y = ys[s] + f * (ys[s + 1] - ys[s]);
+		return Math.hypot(px - x, py - y);
+	}
+
+	private double along(int s, double f) {
+		return vertexDistances[s] + f * (vertexDistances[s + 1] - vertexDistances[s]);
+	}
+}
@@ -0,0 +1,228 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Writes a synthetic but plausible GTFS feed of a given size, for throughput testing.
+ *
+ * Routes radiate from downtown Chicago, each a line of stops about 400 m apart. Each route has a number of patterns:
+ * the full route in each direction, then short turns that drop more stops at alternating ends. Every pattern has its
+ * own shape and the same number of evenly spaced trips through the day, all on one weekday service. The output only
+ * depends on the parameters, so runs with the same parameters are comparable.
+ */
+public class SyntheticGtfsGenerator {
+
+    public int routes = 20;
+    public int patternsPerRoute = 4;
+    public int tripsPerPattern = 50;
+    public int stopsPerRoute = 40;
+
+    /** GTFS agency ID; import merges feeds with the same agency ID into the same agency */
+    public String agencyId = "SYNTHETIC";
+
+    /** distance between shape points, in meters; smaller means denser shapes */
+    public double shapePointSpacing = 20;
+
+    /** counts of what was written by the last call to write */
+    public long stopCount, tripCount, stopTimeCount, shapePointCount;
+
+    private static final double STOP_SPACING = 400;
+    private static final int TRAVEL_TIME = 90;
+
+    private static final double CENTER_LAT = 41.8819;
+    private static final double CENTER_LON = -87.6278;
+
+    /** total rows in all the files written by the last call to write */
+    public long getRowCount() {
+        // agency, calendar and routes
+        return 2 + routes + stopCount + tripCount + stopTimeCount + shapePointCount;
+    }
+
+    public void write(File zip) throws IOException {
+        stopCount = tripCount = stopTimeCount = shapePointCount = 0;
+
+        ZipOutputStream zout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zip)));
+        CSVWriter csv = new CSVWriter(new OutputStreamWriter(zout, "UTF-8"));
+
+        try {
+            entry(zout, csv, "agency.txt");
+            csv.writeNext(new String[] { "agency_id", "agency_name", "agency_url", "agency_timezone" });
+            csv.writeNext(new String[] { agencyId, "Synthetic Transit", "http://www.example.com", "America/Chicago" });
+
+            entry(zout, csv, "calendar.txt");
+            csv.writeNext(new String[] { "service_id", "monday", "tuesday", "wednesday", "thursday", "friday", "saturday", "sunday", "start_date", "end_date" });
+            csv.writeNext(new String[] { "WEEKDAY", "1", "1", "1", "1", "1", "0", "0", date(-30), date(365) });
+
+            entry(zout, csv, "routes.txt");
+            csv.writeNext(new String[] { "route_id", "agency_id", "route_short_name", "route_long_name", "route_type" });
+            for (int r = 0; r < routes; r++) {
+                csv.writeNext(new String[] { routeId(r), agencyId, "" + (r + 1), "Route " + (r + 1), "3" });
+            }
+
+            entry(zout, csv, "stops.txt");
+            csv.writeNext(new String[] { "stop_id", "stop_name", "stop_lat", "stop_lon" });
+            for (int r = 0; r < routes; r++) {
+                for (int s = 0; s < stopsPerRoute; s++) {
+                    double[] latLon = stopLocation(r, s);
+                    csv.writeNext(new String[] { stopId(r, s), "Route " + (r + 1) + " stop " + (s + 1), "" + latLon[0], "" + latLon[1] });
+                    stopCount++;
+                }
+            }
+
+            entry(zout, csv, "shapes.txt");
+            csv.writeNext(new String[] { "shape_id", "shape_pt_lat", "shape_pt_lon", "shape_pt_sequence", "shape_dist_traveled" });
+            for (int r = 0; r < routes; r++) {
+                for (int p = 0; p < patternsPerRoute; p++) {
+                    writeShape(csv, r, p);
+                }
+            }
+
+            entry(zout, csv, "trips.txt");
+            csv.writeNext(new String[] { "route_id", "service_id", "trip_id", "direction_id", "shape_id" });
+            for (int r = 0; r < routes; r++) {
+                for (int p = 0; p < patternsPerRoute; p++) {
+                    for (int t = 0; t < tripsPerPattern; t++) {
+                        csv.writeNext(new String[] { routeId(r), "WEEKDAY", tripId(r, p, t), "" + (p % 2), shapeId(r, p) });
+                        tripCount++;
+                    }
+                }
+            }
+
+            entry(zout, csv, "stop_times.txt");
+            csv.writeNext(new String[] { "trip_id", "arrival_time", "departure_time", "stop_id", "stop_sequence" });
+
+            // trips every headway from 5 am to 11 pm
+            int headway = Math.max(60, 18 * 3600 / Math.max(1, tripsPerPattern));
+
+            for (int r = 0; r < routes; r++) {
+                for (int p = 0; p < patternsPerRoute; p++) {
+                    List<Integer> stops = patternStops(p);
+
+                    for (int t = 0; t < tripsPerPattern; t++) {
+                        int time = 5 * 3600 + t * headway;
+                        String tripId = tripId(r, p, t);
+
+                        for (int i = 0; i < stops.size(); i++) {
+                            String hms = time(time);
+                            csv.writeNext(new String[] { tripId, hms, hms, stopId(r, stops.get(i)), "" + (i + 1) });
+                            time += TRAVEL_TIME;
+                            stopTimeCount++;
+                        }
+                    }
+                }
+            }
+
+            csv.flush();
+            zout.closeEntry();
+        } finally {
+            csv.close();
+        }
+    }
+
+    /** the stop indices of a pattern, in order */
+    private List<Integer> patternStops(int pattern) {
+        // short turns drop 10% more of the route for every pair of patterns, at alternating ends
+        int dropped = Math.min(stopsPerRoute - 2, (pattern / 2) * stopsPerRoute / 10);
+        int first = (pattern / 2) % 2 == 1 ? dropped : 0;
+        int last = stopsPerRoute - 1 - (dropped - first);
+
+        List<Integer> ret = new ArrayList<Integer>(last - first + 1);
+
+        if (pattern % 2 == 0) {
+            for (int s = first; s <= last; s++)
+                ret.add(s);
+        }
+        else {
+            for (int s = last; s >= first; s--)
+                ret.add(s);
+        }
+
+        return ret;
+    }
+
+    private void writeShape(CSVWriter csv, int route, int pattern) {
+        List<Integer> stops = patternStops(pattern);
+        String shapeId = shapeId(route, pattern);
+        int seq = 1;
+        double dist = 0;
+
+        for (int i = 0; i < stops.size() - 1; i++) {
+            double[] from = stopLocation(route, stops.get(i));
+            double[] to = stopLocation(route, stops.get(i + 1));
+
+            int segments = Math.max(1, (int) Math.round(STOP_SPACING / shapePointSpacing));
+
+            // include the end of the last segment
+            int end = i == stops.size() - 2 ? segments : segments - 1;
+
+            for (int k = 0; k <= end; k++) {
+                double f = (double) k / segments;
+                double lat = from[0] + f * (to[0] - from[0]);
+                double lon = from[1] + f * (to[1] - from[1]);
+
+                csv.writeNext(new String[] { shapeId, "" + lat, "" + lon, "" + seq++, "" + (dist + f * STOP_SPACING) });
+                shapePointCount++;
+            }
+
+            dist += STOP_SPACING;
+        }
+    }
+
+    /** lat, lon of a stop; routes head out from the center at evenly spread angles, with a little wiggle */
+    private double[] stopLocation(int route, int stop) {
+        double angle = route * 2 * Math.PI / routes;
+        double along = 500 + stop * STOP_SPACING;
+        double across = 150 * Math.sin(stop / 3d);
+
+        double north = along * Math.cos(angle) - across * Math.sin(angle);
+        double east = along * Math.sin(angle) + across * Math.cos(angle);
+
+        return new double[] {
+            CENTER_LAT + north / GeoUtils.METERS_PER_DEGREE_LATITUDE,
+            CENTER_LON + east / GeoUtils.metersPerDegreeLongitude(CENTER_LAT)
+        };
+    }
+
+    private static void entry(ZipOutputStream zout, CSVWriter csv, String name) throws IOException {
+        csv.flush();
+        zout.putNextEntry(new ZipEntry(name));
+    }
+
+    private static String routeId(int route) {
+        return "R" + route;
+    }
+
+    private static String stopId(int route, int stop) {
+        return "R" + route + "S" + stop;
+    }
+
+    private static String shapeId(int route, int pattern) {
+        return "R" + route + "P" + pattern;
+    }
+
+    private static String tripId(int route, int pattern, int trip) {
+        return "R" + route + "P" + pattern + "T" + trip;
+    }
+
+    private static String date(int daysFromToday) {
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DAY_OF_MONTH, daysFromToday);
+        return new SimpleDateFormat("yyyyMMdd").format(cal.getTime());
+    }
+
+    private static String time(int seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,58 @@
+package utils;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Finds the pattern a trip belongs to while inferring patterns during GTFS import: a trip is on an existing pattern
+ * if it has the same route and visits exactly the same stops in the same order.
+ */
+public class TripPatternLookup {
+
+	private Map<BigInteger, List<StopSequence>> tripPatternStopMap = new HashMap<BigInteger, List<StopSequence>>();
+	private Multimap<BigInteger, BigInteger> routeTripPatternMap = HashMultimap.create();
+
+	public void add(BigInteger patternId, List<StopSequence> stopTimes, BigInteger routeId)
+	{
+		routeTripPatternMap.put(routeId, patternId);
+		tripPatternStopMap.put(patternId, stopTimes);
+	}
+
+	/**
+	 * @param stopTimes the stops of the trip, sorted by stop sequence
+	 * @return the id of the matching pattern, or null if there isn't one yet
+	 */
+	public BigInteger find(List<StopSequence> stopTimes, BigInteger routeId)
+	{
+		Collection<BigInteger> candidatePatterns = routeTripPatternMap.get(routeId);
+
+		if(candidatePatterns == null)
+			return null;
+
+		PATTERNS: for(BigInteger candidate : candidatePatterns)
+		{
+			List<StopSequence> patternStops = tripPatternStopMap.get(candidate);
+
+			if(patternStops.size() != stopTimes.size())
+				continue;
+
+			int index = 0;
+			for(StopSequence patternStop : patternStops)
+			{
+				if(!patternStop.stopId.equals(stopTimes.get(index++).stopId))
+					// this is not the pattern
+					continue PATTERNS;
+			}
+
+			return candidate;
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,116 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLStreamHandler;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FilenameUtils;
+
+import play.Logger;
+
+/**
+ * A shapefile read directly from a zip, without extracting it.
+ *
+ * The shapefile is given to GeoTools as a jar: URL whose handler streams each part (.shp, .dbf, .shx, .prj) out of the
+ * open zip as it is asked for, so reading starts as soon as the zip's directory has been read and nothing is written to
+ * disk. Parts are matched ignoring case, as zips made on Windows often have upper case extensions.
+ */
+public class ZippedShapefile implements Closeable {
+
+	private final File file;
+	private final ZipFile zipFile;
+
+	/** the entries of the zip by lower case name */
+	private final Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
+
+	private String shapefileEntry;
+
+	public ZippedShapefile(File file) throws IOException
+	{
+		this.file = file;
+		this.zipFile = new ZipFile(file);
+
+		Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+
+		while(zipEntries.hasMoreElements())
+		{
+			ZipEntry entry = zipEntries.nextElement();
+
+			if(entry.isDirectory())
+				continue;
+
+			entries.put(entry.getName().toLowerCase(), entry);
+
+			if(FilenameUtils.getExtension(entry.getName()).toLowerCase().equals("shp"))
+			{
+				if(shapefileEntry == null)
+					shapefileEntry = entry.getName();
+				else
+					Logger.warn("Zip contains more than one shapefile--ignoring others.");
+			}
+		}
+	}
+
+	/** the URL of the .shp in the zip, for a ShapefileDataStore, or null if there isn't one */
+	public URL getShapefileUrl() throws IOException
+	{
+		if(shapefileEntry == null)
+			return null;
+
+		try
+		{
+			String path = new URI(null, null, "/" + shapefileEntry, null).getRawPath();
+
+			return new URL(null, "jar:" + file.toURI().toString() + "!" + path, new EntryHandler());
+		}
+		catch(URISyntaxException e)
+		{
+			throw new MalformedURLException(e.getMessage());
+		}
+	}
+
+	public void close() throws IOException
+	{
+		zipFile.close();
+	}
+
+	/** opens the entry named after the !/ of a jar: URL in this zip */
+	private class EntryHandler extends URLStreamHandler
+	{
+		protected URLConnection openConnection(URL url) throws IOException
+		{
+			String spec = url.toExternalForm();
+			// the path was percent encoded, so a + is a plus rather than a space
+			final String name = URLDecoder.decode(spec.substring(spec.indexOf("!/") + 2).replace("+", "%2B"), "UTF-8");
+
+			return new URLConnection(url) {
+				public void connect() {
+				}
+
+				public InputStream getInputStream() throws IOException
+				{
+					ZipEntry entry = entries.get(name.toLowerCase());
+
+					if(entry == null)
+						throw new FileNotFoundException(name + " is not in " + file.getName());
+
+					return zipFile.getInputStream(entry);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,39 @@
+#!/bin/sh
+# Build and run the JMH benchmarks against the precompiled application classes.
+# Usage: benchmarks/run.sh [JMH options], e.g. benchmarks/run.sh PolylineCodec -rf json -rff out.json
+#        benchmarks/run.sh compare baseline.json current.json [threshold percent]
+# PLAY_PATH must point to the Play 1.2.x installation.
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+if [ -z "$PLAY_PATH" ]; then
+    echo "Please set PLAY_PATH to your Play framework directory" >&2
+    exit 1
+fi
+
+play deps --sync
+play precompile
+
+# JMH is kept out of the application's dependencies and vendored in benchmarks/lib; check the jars are the ones
+# published to Maven Central before putting them on the classpath
+if command -v sha256sum > /dev/null; then
+    (cd benchmarks/lib && sha256sum -c --quiet SHA256SUMS)
+else
+    (cd benchmarks/lib && shasum -a 256 -c --quiet SHA256SUMS)
+fi
+
+CP="precompiled/java:lib/*:benchmarks/lib/*:$PLAY_PATH/framework/*:$PLAY_PATH/framework/lib/*"
+
+rm -rf benchmarks/classes
+mkdir -p benchmarks/classes
+
+javac -cp "$CP" -d benchmarks/classes $(find benchmarks/src -name '*.java')
+
+if [ "$1" = "compare" ]; then
+    shift
+    exec java -cp "benchmarks/classes:$CP" benchmarks.CompareResults "$@"
+fi
+
+java -cp "benchmarks/classes:$CP" org.openjdk.jmh.Main "$@"
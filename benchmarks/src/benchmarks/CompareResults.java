@@ -0,0 +1,86 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Compare two JMH result files (written with -rf json) and flag regressions.
+ *
+ * Usage: CompareResults baseline.json current.json [threshold percent, default 10]
+ *
+ * Exits with status 1 if any benchmark got slower than the threshold, so it can be used in a build.
+ */
+public class CompareResults {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults baseline.json current.json [threshold percent]");
+            System.exit(2);
+        }
+
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        Map<String, JsonNode> baseline = read(new File(args[0]));
+        Map<String, JsonNode> current = read(new File(args[1]));
+
+        int regressions = 0;
+
+        System.out.println(String.format("%-80s %14s %14s %9s", "benchmark", "baseline", "current", "change"));
+
+        for (Map.Entry<String, JsonNode> e : current.entrySet()) {
+            JsonNode now = e.getValue();
+            JsonNode before = baseline.get(e.getKey());
+
+            double score = now.path("primaryMetric").path("score").asDouble();
+            String unit = now.path("primaryMetric").path("scoreUnit").asText();
+
+            if (before == null) {
+                System.out.println(String.format("%-80s %14s %14.3f %9s  %s", e.getKey(), "-", score, "new", unit));
+                continue;
+            }
+
+            double baselineScore = before.path("primaryMetric").path("score").asDouble();
+            double change = (score - baselineScore) / baselineScore * 100;
+
+            // for throughput higher is better, for everything else (times) lower is better
+            boolean higherIsBetter = "thrpt".equals(now.path("mode").asText());
+            boolean regression = higherIsBetter ? change < -threshold : change > threshold;
+
+            if (regression)
+                regressions++;
+
+            System.out.println(String.format("%-80s %14.3f %14.3f %+8.1f%%  %s%s", e.getKey(), baselineScore, score,
+                    change, unit, regression ? "  REGRESSION" : ""));
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    /** read a result file, keyed by benchmark name and parameters */
+    private static Map<String, JsonNode> read(File file) throws IOException {
+        Map<String, JsonNode> ret = new LinkedHashMap<String, JsonNode>();
+
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+
+            Iterator<Map.Entry<String, JsonNode>> params = result.path("params").getFields();
+            while (params.hasNext()) {
+                Map.Entry<String, JsonNode> param = params.next();
+                key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText());
+            }
+
+            ret.put(key.toString(), result);
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mapdb.Fun.Tuple2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Service;
+
+import models.transit.Agency;
+import models.transit.Route;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+
+/**
+ * Building the GTFSFeed tables in ProcessGtfsSnapshotExport from already loaded entities, for a timetable based route.
+ * This leaves out the queries, which are measured end to end elsewhere, and writing the zip file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportAssemblyBenchmark {
+
+    @Param({ "100", "1000" })
+    public int trips;
+
+    /** stops per trip */
+    @Param({ "60" })
+    public int stops;
+
+    private Agency agency;
+    private Route route;
+    private Stop[] stopEntities;
+    private List<Trip> tripEntities;
+    private List<List<StopTime>> stopTimes;
+
+    @Setup
+    public void setUp() {
+        agency = Fixtures.agency();
+        route = Fixtures.route(agency, 1);
+        stopEntities = Fixtures.stops(agency, stops);
+
+        TripPattern pattern = Fixtures.pattern(route, stopEntities);
+        tripEntities = Fixtures.trips(pattern, trips);
+
+        stopTimes = new ArrayList<List<StopTime>>(trips);
+        for (Trip trip : tripEntities) {
+            stopTimes.add(Fixtures.stopTimes(trip));
+        }
+    }
+
+    @Benchmark
+    public GTFSFeed assemble() {
+        GTFSFeed feed = new GTFSFeed();
+
+        com.conveyal.gtfs.model.Agency gtfsAgency = agency.toGtfs();
+        feed.agency.put(gtfsAgency.agency_id, gtfsAgency);
+
+        com.conveyal.gtfs.model.Route gtfsRoute = route.toGtfs(gtfsAgency);
+        feed.routes.put(gtfsRoute.route_id, gtfsRoute);
+
+        Service service = new Service("WEEKDAY");
+        feed.services.put(service.service_id, service);
+
+        for (Stop stop : stopEntities) {
+            com.conveyal.gtfs.model.Stop gtfsStop = stop.toGtfs();
+            feed.stops.put(gtfsStop.stop_id, gtfsStop);
+        }
+
+        for (int i = 0; i < tripEntities.size(); i++) {
+            com.conveyal.gtfs.model.Trip gtfsTrip = tripEntities.get(i).toGtfs(gtfsRoute, service);
+            feed.trips.put(gtfsTrip.trip_id, gtfsTrip);
+
+            for (StopTime stopTime : stopTimes.get(i)) {
+                com.conveyal.gtfs.model.StopTime st = stopTime.toGtfs();
+                feed.stop_times.put(new Tuple2(st.trip_id, st.stop_sequence), st);
+            }
+        }
+
+        return feed;
+    }
+}
@@ -0,0 +1,172 @@
+package benchmarks;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+import models.transit.Agency;
+import models.transit.Route;
+import models.transit.RouteType;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import models.transit.TripPatternStop;
+import utils.GeoUtils;
+import utils.StopSequence;
+
+/**
+ * Synthetic, deterministic inputs for the benchmarks, so they run offline without a database.
+ *
+ * Entities are never persisted; ids are assigned by hand so that anything keyed on them behaves as it would with
+ * entities loaded from the database.
+ */
+public class Fixtures {
+
+    private static long nextId = 1;
+
+    /**
+     * A wiggly line heading east from Wicker Park, Chicago, with roughly 10 m between vertices.
+     */
+    public static LineString shape(int points) {
+        Coordinate[] coords = new Coordinate[points];
+
+        for (int i = 0; i < points; i++) {
+            double lon = -87.713 + i * 0.00012;
+            double lat = 41.9100 + 0.002 * Math.sin(i / 25d);
+            coords[i] = new Coordinate(lon, lat);
+        }
+
+        return GeoUtils.geometryFactory.createLineString(coords);
+    }
+
+    public static Agency agency() {
+        Agency agency = new Agency("agency", "Agency", "http://www.example.com", "America/Chicago", "en", "5551234567");
+        agency.id = nextId++;
+        return agency;
+    }
+
+    public static Route route(Agency agency, int number) {
+        Route route = new Route("" + number, "Route " + number, new RouteType(), null, agency);
+        route.id = nextId++;
+        route.routeUrl = "http://www.example.com/routes/" + number;
+        return route;
+    }
+
+    /** stops about 250 m apart, heading east along the same line as {@link #shape(int)} */
+    public static Stop[] stops(Agency agency, int count) {
+        Stop[] stops = new Stop[count];
+
+        for (int i = 0; i < count; i++) {
+            double lon = -87.713 + i * 0.003;
+            double lat = 41.9100 + 0.002 * Math.sin(i);
+            stops[i] = new Stop(agency, "Stop " + i, "" + i, "http://www.example.com/stops/" + i, null, lat, lon);
+            stops[i].id = nextId++;
+        }
+
+        return stops;
+    }
+
+    /** a pattern stopping at every stop, two minutes apart */
+    public static TripPattern pattern(Route route, Stop[] stops) {
+        TripPattern pattern = new TripPattern();
+        pattern.id = nextId++;
+        pattern.route = route;
+        pattern.name = route.routeShortName;
+        pattern.patternStops = new ArrayList<TripPatternStop>(stops.length);
+
+        for (int i = 0; i < stops.length; i++) {
+            TripPatternStop ps = new TripPatternStop(pattern, stops[i], i + 1, i == 0 ? 0 : 120);
+            ps.id = nextId++;
+            ps.defaultDwellTime = 0;
+            pattern.patternStops.add(ps);
+        }
+
+        return pattern;
+    }
+
+    /** trips on the pattern every ten minutes from 6 am */
+    public static List<Trip> trips(TripPattern pattern, int count) {
+        List<Trip> trips = new ArrayList<Trip>(count);
+
+        for (int i = 0; i < count; i++) {
+            Trip trip = new Trip();
+            trip.id = nextId++;
+            trip.pattern = pattern;
+            trip.route = pattern.route;
+            trip.tripHeadsign = pattern.name;
+            trip.useFrequency = false;
+            trip.startTime = 6 * 3600 + i * 600;
+            trips.add(trip);
+        }
+
+        return trips;
+    }
+
+    /** the stop times of a trip made by {@link #trips(TripPattern, int)} */
+    public static List<StopTime> stopTimes(Trip trip) {
+        List<StopTime> stopTimes = new ArrayList<StopTime>(trip.pattern.patternStops.size());
+        int time = trip.startTime;
+
+        for (TripPatternStop ps : trip.pattern.patternStops) {
+            time += ps.defaultTravelTime;
+
+            StopTime st = new StopTime();
+            st.id = nextId++;
+            st.trip = trip;
+            st.stop = ps.stop;
+            st.patternStop = ps;
+            st.stopSequence = ps.stopSequence;
+            st.arrivalTime = st.departureTime = time;
+            stopTimes.add(st);
+        }
+
+        return stopTimes;
+    }
+
+    /** random stop ids, with some stops repeated as on loop routes */
+    public static long[] stopIds(int count, Random random) {
+        long[] ids = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            ids[i] = random.nextInt(count * 4);
+        }
+
+        return ids;
+    }
+
+    /**
+     * The stops of trips as seen by pattern inference during import, on the given number of routes. Each route has a
+     * handful of variants (short turns and deviations), and every trip follows one of them.
+     */
+    public static List<List<StopSequence>> tripStops(int routes, int tripsPerRoute, int stopsPerTrip, Random random) {
+        List<List<StopSequence>> ret = new ArrayList<List<StopSequence>>(routes * tripsPerRoute);
+
+        for (int r = 0; r < routes; r++) {
+            // stop ids are unique to each route
+            long base = r * stopsPerTrip * 2L;
+            int variants = 4 + random.nextInt(8);
+
+            for (int t = 0; t < tripsPerRoute; t++) {
+                int variant = random.nextInt(variants);
+                List<StopSequence> stops = new ArrayList<StopSequence>(stopsPerTrip);
+
+                // each variant skips a different stretch of the route
+                for (int s = 0, seq = 1; s < stopsPerTrip; s++) {
+                    if (variant > 0 && s >= variant * 3 && s < variant * 3 + variant)
+                        continue;
+
+                    stops.add(new StopSequence(BigInteger.valueOf(base + s), seq++));
+                }
+
+                ret.add(stops);
+            }
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,91 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import models.transit.Agency;
+import models.transit.Route;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+
+/**
+ * Serializing the entities the editor API returns most, the way Api.toJson does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    /** number of stops in the pattern, and trips on it */
+    @Param({ "60" })
+    public int stops;
+
+    @Param({ "100" })
+    public int trips;
+
+    private ObjectMapper mapper;
+
+    private List<Stop> stopEntities;
+    private TripPattern pattern;
+    private List<Trip> tripEntities;
+
+    /**
+     * Trip.getStopTimes looks like a property to Jackson but runs a query, so the API pays for one query per trip.
+     * There is no database here, so leave it out; the benchmark measures the serialization itself.
+     */
+    public static abstract class TripMixin {
+        @JsonIgnore
+        public abstract ArrayList<StopTime> getStopTimes();
+    }
+
+    @Setup
+    public void setUp() {
+        mapper = new ObjectMapper();
+        mapper.getSerializationConfig().addMixInAnnotations(Trip.class, TripMixin.class);
+
+        Agency agency = Fixtures.agency();
+        Route route = Fixtures.route(agency, 1);
+        Stop[] stopArray = Fixtures.stops(agency, stops);
+
+        stopEntities = Arrays.asList(stopArray);
+        pattern = Fixtures.pattern(route, stopArray);
+        tripEntities = Fixtures.trips(pattern, trips);
+    }
+
+    @Benchmark
+    public String stops() throws IOException {
+        return mapper.writeValueAsString(stopEntities);
+    }
+
+    @Benchmark
+    public String tripPattern() throws IOException {
+        return mapper.writeValueAsString(pattern);
+    }
+
+    @Benchmark
+    public String trips() throws IOException {
+        return mapper.writeValueAsString(tripEntities);
+    }
+}
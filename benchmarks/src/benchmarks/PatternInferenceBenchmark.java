@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.StopSequence;
+import utils.TripPatternLookup;
+
+/**
+ * Pattern inference as done during GTFS import by ProcessGtfsSnapshotMerge, without creating the patterns in the
+ * database: every trip is looked up among the patterns of its route, and becomes a new pattern if none match.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatternInferenceBenchmark {
+
+    @Param({ "50" })
+    public int routes;
+
+    @Param({ "200", "2000" })
+    public int tripsPerRoute;
+
+    @Param({ "40" })
+    public int stopsPerTrip;
+
+    private List<List<StopSequence>> tripStops;
+
+    @Setup
+    public void setUp() {
+        tripStops = Fixtures.tripStops(routes, tripsPerRoute, stopsPerTrip, new Random(42));
+    }
+
+    @Benchmark
+    public TripPatternLookup inferPatterns() {
+        TripPatternLookup lookup = new TripPatternLookup();
+        long nextPatternId = 0;
+
+        for (int i = 0; i < tripStops.size(); i++) {
+            List<StopSequence> stops = tripStops.get(i);
+            BigInteger routeId = BigInteger.valueOf(i / tripsPerRoute);
+
+            if (lookup.find(stops, routeId) == null)
+                lookup.add(BigInteger.valueOf(nextPatternId++), stops, routeId);
+        }
+
+        return lookup;
+    }
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.StopSequenceDiff;
+
+/**
+ * The in-memory part of TripPattern.reconcilePatternStops: diffing the old and new stop sequences. The rest is a
+ * handful of SQL statements whose cost depends on the database, not on this code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatternReconciliationBenchmark {
+
+    /** number of stops in the pattern */
+    @Param({ "60", "300" })
+    public int stops;
+
+    private long[] original;
+
+    /** one stop inserted in the middle, what the editor sends most of the time */
+    private long[] singleInsert;
+
+    /** a bulk edit: stops removed, added and moved throughout the pattern */
+    private long[] bulkEdit;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        original = Fixtures.stopIds(stops, random);
+
+        singleInsert = new long[stops + 1];
+        System.arraycopy(original, 0, singleInsert, 0, stops / 2);
+        singleInsert[stops / 2] = -1;
+        System.arraycopy(original, stops / 2, singleInsert, stops / 2 + 1, stops - stops / 2);
+
+        // every tenth stop removed, every seventh followed by a new one, and the second stop moved to near the end
+        long[] edited = new long[stops * 2];
+        int n = 0;
+        for (int i = 0; i < stops; i++) {
+            if (i == 1)
+                continue;
+
+            if (i % 10 != 5)
+                edited[n++] = original[i];
+
+            if (i % 7 == 3)
+                edited[n++] = -i;
+
+            if (i == stops - 3)
+                edited[n++] = original[1];
+        }
+
+        bulkEdit = new long[n];
+        System.arraycopy(edited, 0, bulkEdit, 0, n);
+    }
+
+    @Benchmark
+    public StopSequenceDiff singleInsert() {
+        return StopSequenceDiff.diff(original, singleInsert);
+    }
+
+    @Benchmark
+    public StopSequenceDiff bulkEdit() {
+        return StopSequenceDiff.diff(original, bulkEdit);
+    }
+}
@@ -0,0 +1,94 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import org.apache.commons.lang.StringUtils;
+
+import utils.EncodedPolylineBean;
+import utils.GeoUtils;
+import utils.PolylineCodec;
+import utils.PolylineEncoder;
+
+/**
+ * Compare the old polyline path (PolylineEncoder plus a WKT string for PostGIS) against PolylineCodec plus WKB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PolylineCodecBenchmark {
+
+    /** number of points in the shape; a long bus route drawn by hand is usually a few hundred to a few thousand */
+    @Param({ "200", "2000" })
+    public int points;
+
+    private String encoded;
+
+    private LineString shape;
+
+    @Setup
+    public void setUp() {
+        shape = Fixtures.shape(points);
+        encoded = PolylineCodec.encode(shape.getCoordinateSequence());
+    }
+
+    @Benchmark
+    public String decodeToWktPolylineEncoder() {
+        // what TripShape.generateLinestring used to do
+        List<Coordinate> coords = PolylineEncoder.decode(new EncodedPolylineBean(encoded, null, 0));
+
+        String[] points = new String[coords.size()];
+        int i = 0;
+        for (Coordinate coord : coords) {
+            points[i++] = new Double(coord.y).toString() + " " + new Double(coord.x).toString();
+        }
+
+        return "LINESTRING(" + StringUtils.join(points, ", ") + ")";
+    }
+
+    @Benchmark
+    public byte[] decodeToWkbPolylineCodec() {
+        CoordinateSequence seq = PolylineCodec.decode(encoded);
+        return new WKBWriter().write(GeoUtils.geometryFactory.createLineString(seq));
+    }
+
+    @Benchmark
+    public List<Coordinate> decodePolylineEncoder() {
+        return PolylineEncoder.decode(new EncodedPolylineBean(encoded, null, 0));
+    }
+
+    @Benchmark
+    public CoordinateSequence decodePolylineCodec() {
+        return PolylineCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public String encodePolylineEncoder() {
+        return PolylineEncoder.createEncodings(shape).getPoints();
+    }
+
+    @Benchmark
+    public String encodePolylineCodec() {
+        return PolylineCodec.encode(shape.getCoordinateSequence());
+    }
+}
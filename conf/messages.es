@@ -307,6 +307,10 @@ export.gis.stops=Exportar Paradas/Estaciones
 
 export.gis.routes=Exportar Rutas
 
+export.gis.format=Formato
+export.gis.shapefile=Shapefile (comprimido)
+export.gis.geojson=GeoJSON
+
 export.agencies=Exportar Organismo de Transporte
 
 
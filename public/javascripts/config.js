@@ -10,6 +10,8 @@ var GtfsEditor = GtfsEditor || {};
     mapZoom: 15, 
     showMajorStops: true,
     showStandardStops: true,
+    // ask the API for Smile, binary JSON, rather than JSON when loading models
+    useSmile: false,
     baseUrl: '/'
   };
 
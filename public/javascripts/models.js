@@ -210,15 +210,20 @@ G.RouteTypes = Backbone.Collection.extend({
       $.get(G.config.baseUrl + 'api/findDuplicateStops', {agencyId: this.agencyId}, this.loadGroups);
     },
 
-    loadGroups: function(pairs) {
+    loadGroups: function(clusters) {
 
       this.success();
 
       var _stopGroups = this;
 
-      _.each(pairs, function(pair) {
+      // each cluster is a list of stops that are all duplicates of one another
+      _.each(clusters, function(cluster) {
 
-        _stopGroups.group(new G.Stop(pair[0]), new G.Stop(pair[1]));
+        var first = new G.Stop(cluster[0]);
+
+        for(var i = 1; i < cluster.length; i++) {
+          _stopGroups.group(first, new G.Stop(cluster[i]));
+        }
 
       });
     },
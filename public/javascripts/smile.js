@@ -0,0 +1,285 @@
+var GtfsEditor = GtfsEditor || {};
+
+(function(G, $) {
+
+  // Decodes Smile, the binary JSON the API sends to clients that ask for it with
+  // Accept: application/x-jackson-smile. See http://wiki.fasterxml.com/SmileFormatSpec.
+  // Turned on with G.config.useSmile; when it's on, Backbone reads ask for Smile.
+
+  var SMILE_CONTENT_TYPE = 'application/x-jackson-smile';
+
+  // the most names or values that are shared before the tables start again
+  var MAX_SHARED = 1024;
+
+  // decode the UTF-8 in bytes[start, end)
+  var utf8 = function(bytes, start, end) {
+    var out = '', i = start, c, code;
+
+    while (i < end) {
+      c = bytes[i++];
+
+      if (c < 0x80) {
+        code = c;
+      }
+      else if (c < 0xE0) {
+        code = ((c & 0x1F) << 6) | (bytes[i++] & 0x3F);
+      }
+      else if (c < 0xF0) {
+        code = ((c & 0x0F) << 12) | ((bytes[i++] & 0x3F) << 6) | (bytes[i++] & 0x3F);
+      }
+      else {
+        code = ((c & 0x07) << 18) | ((bytes[i++] & 0x3F) << 12) | ((bytes[i++] & 0x3F) << 6) | (bytes[i++] & 0x3F);
+      }
+
+      if (code > 0xFFFF) {
+        code -= 0x10000;
+        out += String.fromCharCode(0xD800 + (code >> 10), 0xDC00 + (code & 0x3FF));
+      }
+      else {
+        out += String.fromCharCode(code);
+      }
+    }
+
+    return out;
+  };
+
+  var decode = function(bytes) {
+    var pos = 0,
+        names = [],
+        values = [];
+
+    if (bytes[0] !== 0x3A || bytes[1] !== 0x29 || bytes[2] !== 0x0A)
+      throw new Error('Not Smile: missing header');
+
+    if (bytes[3] & 0x04)
+      throw new Error('Raw binary Smile is not supported');
+
+    pos = 4;
+
+    var share = function(table, s) {
+      if (table.length === MAX_SHARED)
+        table.length = 0;
+
+      table.push(s);
+    };
+
+    var text = function(length) {
+      var s = utf8(bytes, pos, pos + length);
+      pos += length;
+      return s;
+    };
+
+    // text up to the 0xFC end marker
+    var longText = function() {
+      var end = pos;
+
+      while (bytes[end] !== 0xFC)
+        end++;
+
+      var s = utf8(bytes, pos, end);
+      pos = end + 1;
+      return s;
+    };
+
+    // the unsigned value of a VInt: 7 bits a byte, with 6 in the last byte, which has its high bit set
+    var vint = function() {
+      var value = 0, b;
+
+      while (!((b = bytes[pos++]) & 0x80))
+        value = value * 128 + b;
+
+      return value * 64 + (b & 0x3F);
+    };
+
+    var zigzag = function(value) {
+      return value % 2 === 0 ? value / 2 : -(value + 1) / 2;
+    };
+
+    // the next n bytes, holding 7 bits each
+    var groups = function(n) {
+      var g = [];
+
+      for (var i = 0; i < n; i++)
+        g.push(bytes[pos++] & 0x7F);
+
+      return g;
+    };
+
+    var view = new DataView(new ArrayBuffer(8));
+
+    var float32 = function() {
+      var g = groups(5);
+
+      view.setUint32(0, (((g[0] & 0x0F) << 28) | (g[1] << 21) | (g[2] << 14) | (g[3] << 7) | g[4]) >>> 0);
+      return view.getFloat32(0);
+    };
+
+    var float64 = function() {
+      var g = groups(10);
+
+      view.setUint32(0, (((g[0] & 0x01) << 31) | (g[1] << 24) | (g[2] << 17) | (g[3] << 10) | (g[4] << 3) | (g[5] >> 4)) >>> 0);
+      view.setUint32(4, (((g[5] & 0x0F) << 28) | (g[6] << 21) | (g[7] << 14) | (g[8] << 7) | g[9]) >>> 0);
+      return view.getFloat64(0);
+    };
+
+    var name = function(b) {
+      var s;
+
+      if (b === 0x20)
+        return '';
+
+      if (b >= 0x30 && b <= 0x33)
+        return names[((b & 0x03) << 8) | bytes[pos++]];
+
+      if (b >= 0x40 && b <= 0x7F)
+        return names[b & 0x3F];
+
+      if (b === 0x34)
+        s = longText();
+      else if (b >= 0x80 && b <= 0xBF)
+        s = text((b & 0x3F) + 1);
+      else if (b >= 0xC0 && b <= 0xF7)
+        s = text((b & 0x3F) + 2);
+      else
+        throw new Error('Unexpected Smile name token 0x' + b.toString(16) + ' at ' + (pos - 1));
+
+      share(names, s);
+      return s;
+    };
+
+    var value = function() {
+      var b = bytes[pos++], s;
+
+      if (b >= 0x01 && b <= 0x1F)
+        return values[b - 1];
+
+      switch (b) {
+        case 0x20: return '';
+        case 0x21: return null;
+        case 0x22: return false;
+        case 0x23: return true;
+        case 0x24:
+        case 0x25: return zigzag(vint());
+        case 0x28: return float32();
+        case 0x29: return float64();
+        case 0xE0:
+        case 0xE4: return longText();
+        case 0xF8:
+          var array = [];
+
+          while (bytes[pos] !== 0xF9)
+            array.push(value());
+
+          pos++;
+          return array;
+        case 0xFA:
+          var object = {}, key;
+
+          while ((b = bytes[pos++]) !== 0xFB) {
+            key = name(b);
+            object[key] = value();
+          }
+
+          return object;
+      }
+
+      if (b >= 0x40 && b <= 0x7F)
+        s = text((b & 0x3F) + 1);
+      else if (b >= 0x80 && b <= 0xBF)
+        s = text((b & 0x3F) + 2);
+      else if (b >= 0xC0 && b <= 0xDF)
+        return zigzag(b & 0x1F);
+      else if (b >= 0xEC && b <= 0xEF)
+        return values[((b & 0x03) << 8) | bytes[pos++]];
+      else
+        throw new Error('Unexpected Smile token 0x' + b.toString(16) + ' at ' + (pos - 1));
+
+      share(values, s);
+      return s;
+    };
+
+    return value();
+  };
+
+  var supported = typeof Uint8Array !== 'undefined' && typeof DataView !== 'undefined' &&
+    typeof XMLHttpRequest !== 'undefined' && 'responseType' in new XMLHttpRequest();
+
+  G.Smile = {
+    contentType: SMILE_CONTENT_TYPE,
+    supported: supported,
+    decode: decode
+  };
+
+  // requests with dataType 'smile' ask for Smile and take the response as an ArrayBuffer; a server that answers with
+  // JSON anyway is understood too
+  $.ajaxSetup({
+    accepts: {
+      smile: SMILE_CONTENT_TYPE + ', application/json;q=0.9'
+    }
+  });
+
+  $.ajaxTransport('smile', function(options) {
+    var xhr;
+
+    return {
+      send: function(headers, complete) {
+        xhr = new XMLHttpRequest();
+        xhr.open(options.type, options.url, true, options.username, options.password);
+
+        if (!options.crossDomain && !headers['X-Requested-With'])
+          headers['X-Requested-With'] = 'XMLHttpRequest';
+
+        for (var header in headers)
+          xhr.setRequestHeader(header, headers[header]);
+
+        xhr.responseType = 'arraybuffer';
+
+        xhr.onload = function() {
+          var bytes = new Uint8Array(xhr.response || new ArrayBuffer(0)),
+              contentType = xhr.getResponseHeader('Content-Type') || '',
+              responses = {};
+
+          try {
+            if (contentType.indexOf(SMILE_CONTENT_TYPE) === 0) {
+              responses.smile = decode(bytes);
+            }
+            else {
+              responses.text = utf8(bytes, 0, bytes.length);
+              responses.smile = contentType.indexOf('json') !== -1 && responses.text ? $.parseJSON(responses.text) : responses.text;
+            }
+          }
+          catch (e) {
+            complete(500, 'parsererror', responses, xhr.getAllResponseHeaders());
+            return;
+          }
+
+          complete(xhr.status, xhr.statusText, responses, xhr.getAllResponseHeaders());
+        };
+
+        xhr.onerror = function() {
+          complete(xhr.status || 0, 'error', {}, xhr.getAllResponseHeaders());
+        };
+
+        xhr.send((options.hasContent && options.data) || null);
+      },
+
+      abort: function() {
+        if (xhr) {
+          xhr.onload = xhr.onerror = null;
+          xhr.abort();
+        }
+      }
+    };
+  });
+
+  // opt in with useSmile in config.js
+  var sync = Backbone.sync;
+
+  Backbone.sync = function(method, model, options) {
+    if (method === 'read' && G.config && G.config.useSmile && supported)
+      options = _.extend({dataType: 'smile'}, options);
+
+    return sync.call(this, method, model, options);
+  };
+
+})(GtfsEditor, jQuery);
@@ -0,0 +1,76 @@
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import play.test.*;
+import utils.ApiSerializer;
+
+/**
+ * Test writing API responses as JSON and Smile.
+ */
+public class ApiSerializerTest extends UnitTest {
+
+    private List<Map<String, Object>> stops () {
+        List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> stop = new LinkedHashMap<String, Object>();
+            stop.put("id", (long) i);
+            stop.put("stopName", "Stop " + i);
+            stop.put("lat", 41.9 + i / 1000.0);
+            stop.put("lon", -87.7 - i / 1000.0);
+            stop.put("majorStop", i % 10 == 0);
+            stop.put("agency", "Agency");
+            ret.add(stop);
+        }
+
+        return ret;
+    }
+
+    @Test
+    public void testJson () throws IOException {
+        byte[] json = ApiSerializer.write(stops(), false);
+
+        JsonNode tree = new ObjectMapper().readTree(new String(json, "UTF-8"));
+        assertEquals(100, tree.size());
+        assertEquals("Stop 5", tree.get(5).get("stopName").getTextValue());
+        assertEquals(-87.705, tree.get(5).get("lon").getDoubleValue(), 1e-9);
+    }
+
+    @Test
+    public void testSmile () throws IOException {
+        List<Map<String, Object>> stops = stops();
+        byte[] smile = ApiSerializer.write(stops, true);
+
+        // the header
+        assertEquals(':', smile[0]);
+        assertEquals(')', smile[1]);
+
+        JsonNode tree = new ObjectMapper(new SmileFactory()).readTree(smile);
+        JsonNode json = new ObjectMapper().readTree(ApiSerializer.write(stops, false));
+        assertEquals(json, tree);
+
+        assertTrue(smile.length < ApiSerializer.write(stops, false).length);
+    }
+
+    @Test
+    public void testNull () throws IOException {
+        assertEquals("null", new String(ApiSerializer.write(null, false), "UTF-8"));
+    }
+
+    @Test
+    public void testWritersAreCached () {
+        assertSame(ApiSerializer.writer(ArrayList.class, false), ApiSerializer.writer(ArrayList.class, false));
+        assertSame(ApiSerializer.writer(ArrayList.class, true), ApiSerializer.writer(ArrayList.class, true));
+        assertNotSame(ApiSerializer.writer(ArrayList.class, false), ApiSerializer.writer(ArrayList.class, true));
+        assertSame(ApiSerializer.reader(Map.class), ApiSerializer.reader(Map.class));
+    }
+}
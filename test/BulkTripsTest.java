@@ -0,0 +1,91 @@
+import org.junit.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import play.db.jpa.JPA;
+import play.mvc.Http.Response;
+import play.test.*;
+import models.Account;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import models.transit.TripPatternStop;
+
+/**
+ * Test creating trips in bulk through the API: a batch is saved whole, or not at all if any trip in it is invalid.
+ */
+public class BulkTripsTest extends FunctionalTest {
+    private TransitFixtures fixtures;
+    private TripPattern pattern;
+    private TripPattern other;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        pattern = fixtures.makePattern(fixtures.makeStops(3));
+        other = fixtures.makePattern(fixtures.makeStops(3));
+        new Account("bulk", "bulk", "bulk@example.com", false, fixtures.agency.id);
+
+        // requests run in their own transactions, so they only see what has been committed
+        JPA.em().getTransaction().commit();
+        JPA.em().getTransaction().begin();
+
+        Map<String, String> login = new HashMap<String, String>();
+        login.put("username", "bulk");
+        login.put("password", "bulk");
+        POST("/secure/authenticate", login);
+    }
+
+    /** a new trip on a pattern as the client sends it, with stop times at the pattern stops of patternStopsOf */
+    private String trip (TripPattern tripPattern, TripPattern patternStopsOf, int startTime) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"pattern\":").append(tripPattern.id)
+            .append(",\"serviceCalendar\":").append(fixtures.calendar.id)
+            .append(",\"useFrequency\":false,\"stopTimes\":[");
+
+        for (TripPatternStop ps : patternStopsOf.patternStops) {
+            if (ps.stopSequence > 1)
+                json.append(',');
+
+            int arrival = startTime + (ps.stopSequence - 1) * 120;
+
+            json.append("{\"stop\":").append(ps.stop.id)
+                .append(",\"patternStop\":{\"id\":").append(ps.id).append('}')
+                .append(",\"stopSequence\":").append(ps.stopSequence)
+                .append(",\"arrivalTime\":").append(arrival)
+                .append(",\"departureTime\":").append(arrival + 30)
+                .append('}');
+        }
+
+        return json.append("]}").toString();
+    }
+
+    @Test
+    public void testValidBatch () {
+        Response response = POST("/api/trip/bulk", "application/json",
+                "[" + trip(pattern, pattern, 6 * 3600) + "," + trip(pattern, pattern, 7 * 3600) + "]");
+
+        assertIsOk(response);
+
+        assertEquals(2, Trip.count("pattern = ?", pattern));
+
+        for (Trip trip : Trip.<Trip>find("pattern = ?", pattern).fetch()) {
+            assertEquals(3, trip.getStopTimes().size());
+        }
+    }
+
+    @Test
+    public void testRejectedBatch () {
+        // the second trip's stop times are at the pattern stops of another pattern
+        Response response = POST("/api/trip/bulk", "application/json",
+                "[" + trip(pattern, pattern, 6 * 3600) + "," + trip(pattern, other, 7 * 3600) + "]");
+
+        assertStatus(400, response);
+        assertContentMatch("trip 1: stop time 1 is not part of the trip pattern", response);
+
+        // nothing was saved, not even the valid trip
+        assertEquals(0, Trip.count());
+        assertEquals(0, StopTime.count());
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import play.db.jpa.JPA;
+import play.test.*;
+import models.Account;
+import models.transit.Agency;
+import models.transit.ServiceCalendar;
+import models.transit.Trip;
+import models.transit.TripPattern;
+
+/**
+ * Test copying a pattern's trips from one calendar to another through the API, which is only allowed within an agency.
+ */
+public class CloneCalendarTest extends FunctionalTest {
+    private TransitFixtures fixtures;
+    private TripPattern pattern;
+    private ServiceCalendar target;
+    private ServiceCalendar otherAgency;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        pattern = fixtures.makePattern(fixtures.makeStops(3));
+        fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600);
+        fixtures.makeTrip(pattern, fixtures.calendar, 7 * 3600);
+
+        // another pattern with a trip on the same calendar, which isn't copied
+        fixtures.makeTrip(fixtures.makePattern(fixtures.makeStops(2)), fixtures.calendar, 6 * 3600);
+
+        target = fixtures.makeCalendar();
+
+        Agency agency = fixtures.makeAgency("other");
+        otherAgency = new ServiceCalendar();
+        otherAgency.agency = agency;
+        otherAgency.monday = otherAgency.tuesday = otherAgency.wednesday = otherAgency.thursday = otherAgency.friday = true;
+        otherAgency.saturday = otherAgency.sunday = false;
+        otherAgency.save();
+
+        new Account("clone", "clone", "clone@example.com", false, fixtures.agency.id);
+
+        // requests run in their own transactions, so they only see what has been committed
+        JPA.em().getTransaction().commit();
+        JPA.em().getTransaction().begin();
+
+        Map<String, String> login = new HashMap<String, String>();
+        login.put("username", "clone");
+        login.put("password", "clone");
+        POST("/secure/authenticate", login);
+    }
+
+    private Map<String, String> params (ServiceCalendar to, TripPattern tripPattern) {
+        Map<String, String> ret = new HashMap<String, String>();
+        ret.put("calendarId", fixtures.calendar.id.toString());
+        ret.put("targetCalendarId", to.id.toString());
+
+        if (tripPattern != null)
+            ret.put("patternId", tripPattern.id.toString());
+
+        return ret;
+    }
+
+    @Test
+    public void testClone () {
+        assertIsOk(POST("/api/schedule/clonecalendar", params(target, pattern)));
+
+        JPA.em().clear();
+        assertEquals(2, Trip.count("serviceCalendar.id = ?", target.id));
+        assertEquals(2, Trip.count("serviceCalendar.id = ? AND pattern.id = ?", target.id, pattern.id));
+        assertEquals(3, Trip.count("serviceCalendar.id = ?", fixtures.calendar.id));
+    }
+
+    @Test
+    public void testPatternRequired () {
+        assertStatus(400, POST("/api/schedule/clonecalendar", params(target, null)));
+
+        JPA.em().clear();
+        assertEquals(0, Trip.count("serviceCalendar.id = ?", target.id));
+    }
+
+    @Test
+    public void testOtherAgency () {
+        assertStatus(400, POST("/api/schedule/clonecalendar", params(otherAgency, pattern)));
+
+        JPA.em().clear();
+        assertEquals(0, Trip.count("serviceCalendar.id = ?", otherAgency.id));
+    }
+}
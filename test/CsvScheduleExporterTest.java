@@ -0,0 +1,75 @@
+import org.junit.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import play.test.*;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import utils.CsvScheduleExporter;
+
+/**
+ * Test writing the CSV schedule, and that its times are formatted the way they were with SimpleDateFormat.
+ */
+public class CsvScheduleExporterTest extends UnitTest {
+
+    @Test
+    public void testWrite () throws Exception {
+        TransitFixtures fixtures = new TransitFixtures();
+        TripPattern pattern = fixtures.makePattern(fixtures.makeStops(3));
+
+        Trip first = fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600);
+        Trip second = fixtures.makeTrip(pattern, fixtures.calendar, 7 * 3600, 2);
+        // on another calendar, so not in this timetable
+        fixtures.makeTrip(pattern, fixtures.makeCalendar(), 8 * 3600);
+
+        StringWriter out = new StringWriter();
+        new CsvScheduleExporter(pattern, fixtures.calendar).write(out);
+
+        List<String[]> rows = new CSVReader(new StringReader(out.toString())).readAll();
+
+        // five header rows after the column names, then a row per trip
+        assertEquals(8, rows.size());
+
+        String[] row = rows.get(6);
+        assertEquals(first.id.toString(), row[0]);
+        assertEquals(pattern.id.toString(), row[1]);
+        assertEquals("06:00 AM", row[6]);
+        assertEquals("06:02 AM", row[7]);
+        assertEquals("06:04 AM", row[8]);
+
+        row = rows.get(7);
+        assertEquals(second.id.toString(), row[0]);
+        assertEquals("07:00 AM", row[6]);
+        assertEquals("", row[7]);
+        assertEquals("07:04 AM", row[8]);
+    }
+
+    @Test
+    public void testFormatTime () {
+        assertEquals("12:00 AM", CsvScheduleExporter.formatTime(0));
+        assertEquals("06:05 AM", CsvScheduleExporter.formatTime(6 * 3600 + 5 * 60 + 59));
+        assertEquals("12:30 PM", CsvScheduleExporter.formatTime(12 * 3600 + 30 * 60));
+        assertEquals("11:59 PM", CsvScheduleExporter.formatTime(24 * 3600 - 1));
+
+        // past midnight wraps around
+        assertEquals("12:30 AM", CsvScheduleExporter.formatTime(24 * 3600 + 30 * 60));
+    }
+
+    @Test
+    public void testMatchesSimpleDateFormat () {
+        SimpleDateFormat format = new SimpleDateFormat("hh:mm a", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        for (int seconds = 0; seconds < 30 * 3600; seconds += 97) {
+            assertEquals(format.format(new Date(seconds * 1000L)), CsvScheduleExporter.formatTime(seconds));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import play.test.*;
+import models.transit.ServiceCalendar;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.StopTimePickupDropOffType;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import utils.CsvScheduleImporter;
+
+/**
+ * Test reading times and timetables from uploaded CSV schedules.
+ */
+public class CsvScheduleImporterTest extends UnitTest {
+    private TransitFixtures fixtures;
+    private TripPattern pattern;
+    private ServiceCalendar calendar;
+    private String stopIds;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        calendar = fixtures.calendar;
+
+        Stop[] stops = fixtures.makeStops(3);
+        pattern = fixtures.makePattern(stops);
+
+        stopIds = "";
+
+        for (Stop stop : stops) {
+            stopIds += "," + stop.id;
+        }
+    }
+
+    @Test
+    public void testParseTime () {
+        assertEquals(6 * 3600 + 5 * 60, CsvScheduleImporter.parseTime("06:05 AM"));
+        assertEquals(6 * 3600 + 5 * 60, CsvScheduleImporter.parseTime("6:05am"));
+        assertEquals(18 * 3600 + 5 * 60 + 30, CsvScheduleImporter.parseTime("06:05:30 PM"));
+        assertEquals(30 * 60, CsvScheduleImporter.parseTime("12:30 AM"));
+        assertEquals(12 * 3600 + 30 * 60, CsvScheduleImporter.parseTime("12:30 P"));
+        assertEquals(18 * 3600 + 5 * 60, CsvScheduleImporter.parseTime("18:05"));
+
+        assertEquals(-1, CsvScheduleImporter.parseTime(""));
+        assertEquals(-1, CsvScheduleImporter.parseTime("6"));
+        assertEquals(-1, CsvScheduleImporter.parseTime("6:75 AM"));
+        assertEquals(-1, CsvScheduleImporter.parseTime("13:00 PM"));
+        assertEquals(-1, CsvScheduleImporter.parseTime("6:05 XM"));
+        assertEquals(-1, CsvScheduleImporter.parseTime("6:05 AMX"));
+    }
+
+    @Test
+    public void testImport () throws IOException {
+        // a trip that will be replaced, and one on another calendar that won't
+        Trip old = fixtures.makeTrip(pattern, calendar, 5 * 3600);
+        Trip other = fixtures.makeTrip(pattern, fixtures.makeCalendar(), 5 * 3600);
+
+        String csv = header() +
+                "1,1,b1,Downtown,,06:00 AM,+,06:10 AM >\n" +
+                // crosses midnight
+                "2,1,,,,11:50 PM,12:10 AM <,-\n";
+
+        CsvScheduleImporter importer = new CsvScheduleImporter(pattern, calendar);
+        assertTrue(importer.errors.toString(), importer.read(new StringReader(csv)));
+        assertEquals(2, importer.apply());
+
+        Trip.em().clear();
+
+        assertNull(Trip.findById(old.id));
+        assertEquals(0, StopTime.count("trip.id = ?", old.id));
+        assertNotNull(Trip.findById(other.id));
+
+        List<Trip> trips = Trip.find("pattern.id = ? AND serviceCalendar.id = ? ORDER BY id", pattern.id, calendar.id).fetch();
+        assertEquals(2, trips.size());
+        assertEquals("b1", trips.get(0).blockId);
+        assertEquals("Downtown", trips.get(0).tripHeadsign);
+
+        List<StopTime> stopTimes = trips.get(0).getStopTimes();
+        assertEquals(3, stopTimes.size());
+        assertEquals((Integer) (6 * 3600), stopTimes.get(0).departureTime);
+        // + is the first time plus the scheduled time to the stop
+        assertEquals((Integer) (6 * 3600 + 240), stopTimes.get(1).departureTime);
+        assertEquals(StopTimePickupDropOffType.NONE, stopTimes.get(2).dropOffType);
+        assertEquals(pattern.patternStops.get(2).id, stopTimes.get(2).patternStop.id);
+
+        stopTimes = trips.get(1).getStopTimes();
+        assertEquals((Integer) (24 * 3600 + 10 * 60), stopTimes.get(1).departureTime);
+        assertEquals(StopTimePickupDropOffType.NONE, stopTimes.get(1).pickupType);
+        assertNull(stopTimes.get(2).departureTime);
+    }
+
+    @Test
+    public void testInvalidFileChangesNothing () throws IOException {
+        String csv = header() +
+                "1,1,,,,06:00 AM,06:05 AM\n" +
+                "2,1,,,,6 o'clock,06:05 AM\n";
+
+        CsvScheduleImporter importer = new CsvScheduleImporter(pattern, calendar);
+        assertFalse(importer.read(new StringReader(csv)));
+        assertEquals(1, importer.errors.size());
+        assertTrue(importer.errors.get(0).startsWith("Line 8, column 6"));
+
+        assertEquals(0, Trip.count());
+    }
+
+    private String header () {
+        return "trip_id, pattern_id, block_id, headsign, short_name\n" +
+                ",,,,,stop_name,a,b,c\n" +
+                ",,,,,stop_id" + stopIds + "\n" +
+                ",,,,,travel_time\n" +
+                ",,,,,dwell_time\n" +
+                ",,,,,cumulative_time\n";
+    }
+}
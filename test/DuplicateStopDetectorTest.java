@@ -0,0 +1,68 @@
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import play.test.*;
+import utils.DuplicateStopDetector;
+import utils.GeoUtils;
+
+/**
+ * Make sure the grid finds the same duplicates as comparing every pair.
+ */
+public class DuplicateStopDetectorTest extends UnitTest {
+
+    @Test
+    public void testChainsFormOneCluster () {
+        DuplicateStopDetector detector = new DuplicateStopDetector(15, 4);
+
+        // about 10 m apart in a row, so 1 and 3 are only joined through 2; 4 is far away
+        detector.add(1, 41.88, -87.63);
+        detector.add(2, 41.88, -87.63 + 0.00012);
+        detector.add(3, 41.88, -87.63 + 0.00024);
+        detector.add(4, 41.89, -87.63);
+
+        List<long[]> clusters = detector.findClusters();
+
+        assertEquals(1, clusters.size());
+        assertArrayEquals(new long[] { 1, 2, 3 }, clusters.get(0));
+    }
+
+    @Test
+    public void testMatchesAllPairs () {
+        Random random = new Random(42);
+        int n = 2000;
+
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+
+        DuplicateStopDetector detector = new DuplicateStopDetector(50, n);
+
+        // dense enough at high latitude that there are plenty of close pairs across cell boundaries
+        for (int i = 0; i < n; i++) {
+            lats[i] = 60 + random.nextDouble() * 0.05;
+            lons[i] = 10 + random.nextDouble() * 0.1;
+            detector.add(i, lats[i], lons[i]);
+        }
+
+        int[] clusterOf = new int[n];
+        Arrays.fill(clusterOf, -1);
+
+        List<long[]> clusters = detector.findClusters();
+        for (int c = 0; c < clusters.size(); c++) {
+            for (long id : clusters.get(c)) {
+                clusterOf[(int) id] = c;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (GeoUtils.fastDistance(lats[i], lons[i], lats[j], lons[j]) < 50) {
+                    assertTrue(clusterOf[i] != -1);
+                    assertEquals(clusterOf[i], clusterOf[j]);
+                }
+            }
+        }
+    }
+}
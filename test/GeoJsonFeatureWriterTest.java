@@ -0,0 +1,53 @@
+import org.junit.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.geotools.data.DataUtilities;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import play.test.*;
+import utils.GeoJsonFeatureWriter;
+import utils.GeoUtils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Test writing GIS exports as GeoJSON.
+ */
+public class GeoJsonFeatureWriterTest extends UnitTest {
+    @Test
+    public void testWrite () throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("Stop", "location:Point:srid=4326,name:String,code:String");
+
+        File file = File.createTempFile("export", ".geojson");
+
+        try {
+            GeoJsonFeatureWriter writer = new GeoJsonFeatureWriter(type, file);
+            writer.write(GeoUtils.geometryFactory.createPoint(new Coordinate(-87.7, 41.9)), "Stop \"one\"", null);
+            writer.write(GeoUtils.geometryFactory.createPoint(new Coordinate(-87.6, 41.8)), "Stop two", "2");
+            writer.close();
+
+            Map<String, Object> json = new ObjectMapper().readValue(file, Map.class);
+            assertEquals("FeatureCollection", json.get("type"));
+
+            List<Map<String, Object>> features = (List<Map<String, Object>>) json.get("features");
+            assertEquals(2, features.size());
+
+            Map<String, Object> geometry = (Map<String, Object>) features.get(0).get("geometry");
+            assertEquals("Point", geometry.get("type"));
+            assertEquals(-87.7, (Double) ((List) geometry.get("coordinates")).get(0), 1e-9);
+
+            Map<String, Object> properties = (Map<String, Object>) features.get(0).get("properties");
+            assertEquals("Stop \"one\"", properties.get("name"));
+            assertNull(properties.get("code"));
+            assertTrue(properties.containsKey("code"));
+            assertEquals("2", ((Map<String, Object>) features.get(1).get("properties")).get("code"));
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
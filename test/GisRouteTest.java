@@ -0,0 +1,252 @@
+import org.junit.*;
+
+import java.util.Date;
+import java.util.List;
+
+import play.test.*;
+import models.gis.GisRoute;
+import models.gis.GisRouteAlignment;
+import models.gis.GisRouteControlPoint;
+import models.gis.GisRouteControlPointSequence;
+import models.gis.GisRouteSegment;
+import models.gis.GisSegmentGraph;
+import models.gis.GisUpload;
+import models.gis.GisUploadType;
+import models.transit.Route;
+import utils.GeoUtils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Test splitting uploaded GIS routes into control points and segments, building alignments from them, and deleting
+ * them with their upload, on a few short lines along a street.
+ */
+public class GisRouteTest extends UnitTest {
+    private static final double LAT = 41.9;
+
+    private TransitFixtures fixtures;
+    private GisUpload upload;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        upload = new GisUpload(fixtures.agency, new Date(), GisUploadType.ROUTES, "routes");
+    }
+
+    /** a coordinate on the street at a longitude */
+    private static Coordinate at (double lon) {
+        return new Coordinate(lon, LAT);
+    }
+
+    private static LineString line (double... lons) {
+        Coordinate[] coords = new Coordinate[lons.length];
+
+        for (int i = 0; i < lons.length; i++) {
+            coords[i] = at(lons[i]);
+        }
+
+        return GeoUtils.geometryFactory.createLineString(coords);
+    }
+
+    /** a route in an upload made of some lines, split into segments */
+    private GisRoute route (GisUpload gisUpload, LineString... lines) {
+        GisRoute ret = new GisRoute();
+        ret.gisUpload = gisUpload;
+        ret.agency = fixtures.agency;
+        ret.originalShape = GeoUtils.geometryFactory.createMultiLineString(lines);
+        ret.save();
+        ret.createSegments();
+        return ret;
+    }
+
+    /** a route from A to B to C to D, a thousandth of a degree apart */
+    private GisRoute linearRoute (GisUpload gisUpload) {
+        return route(gisUpload, line(-87.700, -87.7005, -87.701), line(-87.701, -87.702), line(-87.702, -87.703));
+    }
+
+    private List<GisRouteControlPoint> controlPoints (GisRoute gisRoute) {
+        return GisRouteControlPoint.find("gisRoute = ? ORDER BY originalSequence", gisRoute).fetch();
+    }
+
+    private GisRouteAlignment alignment (GisRoute gisRoute) {
+        GisRouteAlignment ret = new GisRouteAlignment();
+        ret.gisRoute = gisRoute;
+        ret.save();
+        ret.createDefaultAlignement();
+        return ret;
+    }
+
+    @Test
+    public void testCreateSegments () {
+        GisRoute gisRoute = route(upload,
+                line(-87.700, -87.701),
+                // starts a ten-thousandth of a degree from where the last line ended
+                line(-87.7011, -87.702),
+                // the reverse of the last line
+                line(-87.702, -87.701),
+                line(-87.702, -87.703));
+
+        List<GisRouteControlPoint> controlPoints = controlPoints(gisRoute);
+        assertEquals(4, controlPoints.size());
+
+        double[] lons = { -87.700, -87.701, -87.702, -87.703 };
+
+        for (int i = 0; i < lons.length; i++) {
+            assertEquals((Integer) (i + 1), controlPoints.get(i).originalSequence);
+            assertEquals(lons[i], controlPoints.get(i).controlPoint.getX(), 1e-9);
+        }
+
+        // each line once each way, except the reversed one
+        assertEquals(6, GisRouteSegment.count());
+        assertEquals(3, GisRouteSegment.count("reverse = false"));
+
+        // the segment keeps the line as it was drawn
+        GisRouteSegment segment = GisRouteSegment.find("fromPoint = ? AND toPoint = ? AND reverse = false",
+                controlPoints.get(1), controlPoints.get(2)).first();
+        assertEquals(-87.7011, segment.segment.getStartPoint().getX(), 1e-9);
+    }
+
+    @Test
+    public void testLoop () {
+        GisRoute gisRoute = route(upload, line(-87.700, -87.701, -87.700));
+
+        assertEquals(1, controlPoints(gisRoute).size());
+
+        // a loop isn't reversed
+        assertEquals(1, GisRouteSegment.count());
+    }
+
+    @Test
+    public void testControlPointTolerance () {
+        GisRoute gisRoute = route(upload,
+                line(-87.70006, -87.7010),
+                // starts two ten-thousandths of a degree from where the last line ended
+                line(-87.7012, -87.7020),
+                // starts a ten-thousandth of a degree from the ends of both lines
+                line(-87.7011, -87.7030),
+                // ends on the other side of a grid cell boundary from where the first line started
+                line(-87.7030, -87.70004));
+
+        List<GisRouteControlPoint> controlPoints = controlPoints(gisRoute);
+        assertEquals(5, controlPoints.size());
+
+        GisRouteControlPoint first = GisRouteControlPoint.find("gisRoute = ? AND originalSequence = 1", gisRoute).first();
+        assertEquals(-87.70006, first.controlPoint.getX(), 1e-9);
+
+        GisRouteControlPoint end = null;
+        GisRouteControlPoint last = null;
+
+        for (GisRouteControlPoint controlPoint : controlPoints) {
+            if (Math.abs(controlPoint.controlPoint.getX() + 87.7010) < 1e-9)
+                end = controlPoint;
+            else if (Math.abs(controlPoint.controlPoint.getX() + 87.7030) < 1e-9)
+                last = controlPoint;
+        }
+
+        // the earlier of the two control points in reach is used
+        assertEquals(1, GisRouteSegment.count("fromPoint = ? AND toPoint = ? AND reverse = false", end, last));
+        assertEquals(1, GisRouteSegment.count("fromPoint = ? AND toPoint = ? AND reverse = false", last, first));
+    }
+
+    @Test
+    public void testSegmentGraph () {
+        GisRoute gisRoute = linearRoute(upload);
+        List<GisRouteControlPoint> controlPoints = controlPoints(gisRoute);
+
+        GisSegmentGraph graph = GisSegmentGraph.load(gisRoute);
+        assertEquals(controlPoints, graph.controlPoints);
+        assertTrue(graph.isLinear());
+
+        GisRouteControlPoint a = controlPoints.get(0);
+        GisRouteControlPoint b = controlPoints.get(1);
+        GisRouteControlPoint c = controlPoints.get(2);
+
+        assertFalse(graph.findSegment(a, b).reverse);
+        assertTrue(graph.findSegment(b, a).reverse);
+        assertNull(graph.findSegment(a, c));
+
+        List<GisRouteControlPointSequence> sequence = graph.defaultSequence(new GisRouteAlignment());
+        assertEquals(4, sequence.size());
+
+        // the first control point, then the segment to each of the others
+        assertEquals(a, sequence.get(0).controlPoint);
+        assertNull(sequence.get(0).segment);
+
+        for (int i = 1; i < sequence.size(); i++) {
+            assertNull(sequence.get(i).controlPoint);
+            assertEquals(controlPoints.get(i - 1), sequence.get(i).segment.fromPoint);
+            assertEquals(controlPoints.get(i), sequence.get(i).segment.toPoint);
+        }
+
+        LineString shape = GisSegmentGraph.assemble(sequence, false);
+        assertEquals(-87.700, shape.getStartPoint().getX(), 1e-9);
+        assertEquals(-87.703, shape.getEndPoint().getX(), 1e-9);
+
+        shape = GisSegmentGraph.assemble(sequence, true);
+        assertEquals(-87.703, shape.getStartPoint().getX(), 1e-9);
+
+        assertNull(GisSegmentGraph.assemble(sequence.subList(0, 1), false));
+    }
+
+    @Test
+    public void testDefaultAlignment () {
+        GisRouteAlignment alignment = alignment(linearRoute(upload));
+
+        assertEquals(4, GisRouteControlPointSequence.count("gisRouteAlignment = ?", alignment));
+        assertEquals(-87.700, alignment.gtfsShape.getStartPoint().getX(), 1e-9);
+        assertEquals(-87.703, alignment.gtfsShape.getEndPoint().getX(), 1e-9);
+
+        // read back from the saved sequence, before it is simplified: every point of the three segments
+        assertEquals(7, alignment.getCurrentGtfsRoute().getNumPoints());
+    }
+
+    @Test
+    public void testBranch () {
+        // two lines leave the second control point
+        GisRoute gisRoute = route(upload, line(-87.700, -87.701), line(-87.701, -87.702), line(-87.701, -87.7015));
+
+        assertFalse(GisSegmentGraph.load(gisRoute).isLinear());
+
+        GisRouteAlignment alignment = alignment(gisRoute);
+        assertEquals(0, GisRouteControlPointSequence.count("gisRouteAlignment = ?", alignment));
+        assertNull(alignment.gtfsShape);
+    }
+
+    @Test
+    public void testDeleteForUpload () throws InterruptedException {
+        GisRoute gisRoute = linearRoute(upload);
+        alignment(gisRoute);
+        alignment(route(upload, line(-87.710, -87.711)));
+
+        // in another upload
+        GisUpload other = new GisUpload(fixtures.agency, new Date(), GisUploadType.ROUTES, "other");
+        GisRoute kept = linearRoute(other);
+        GisRouteAlignment keptAlignment = alignment(kept);
+
+        fixtures.route.gisRoute = gisRoute;
+        fixtures.route.save();
+        Date saved = fixtures.route.lastModified;
+        Thread.sleep(10);
+
+        GisRoute.deleteForUpload(upload);
+        GisRoute.em().clear();
+
+        assertEquals(0, GisRoute.count("gisUpload = ?", upload));
+        assertEquals(1, GisRoute.count());
+
+        // only the other upload's route is left
+        assertEquals(4, GisRouteControlPoint.count());
+        assertEquals(4, GisRouteControlPoint.count("gisRoute.id = ?", kept.id));
+        assertEquals(6, GisRouteSegment.count());
+        assertEquals(6, GisRouteSegment.count("fromPoint.gisRoute.id = ?", kept.id));
+        assertEquals(1, GisRouteAlignment.count());
+        assertEquals(4, GisRouteControlPointSequence.count());
+        assertEquals(4, GisRouteControlPointSequence.count("gisRouteAlignment.id = ?", keptAlignment.id));
+
+        // the transit route is unlinked, and timestamped for the system map
+        Route route = Route.findById(fixtures.route.id);
+        assertNull(route.gisRoute);
+        assertTrue(route.lastModified.after(saved));
+    }
+}
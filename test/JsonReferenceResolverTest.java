@@ -0,0 +1,66 @@
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import play.test.*;
+import models.transit.Route;
+import models.transit.Stop;
+import models.transit.TripPattern;
+import utils.JsonReferenceResolver;
+
+/**
+ * Test binding JSON with references to entities loaded in batches.
+ */
+public class JsonReferenceResolverTest extends UnitTest {
+    private ObjectMapper mapper = new ObjectMapper();
+    private Route route;
+    private Stop stop1;
+    private Stop stop2;
+
+    @Before
+    public void setUp () {
+        TransitFixtures fixtures = new TransitFixtures();
+        route = fixtures.route;
+
+        Stop[] stops = fixtures.makeStops(2);
+        stop1 = stops[0];
+        stop2 = stops[1];
+    }
+
+    @Test
+    public void testReadValue () throws IOException {
+        String json = "{\"name\": \"pattern\", \"route\": " + route.id + ", \"patternStops\": [" +
+                "{\"stop\": " + stop1.id + ", \"stopSequence\": 1}," +
+                "{\"stop\": \"" + stop2.id + "\", \"stopSequence\": 2}," +
+                "{\"stop\": " + stop1.id + ", \"stopSequence\": 3}," +
+                "{\"stop\": " + (stop2.id + 1000) + ", \"stopSequence\": 4}]}";
+
+        TripPattern pattern = JsonReferenceResolver.readValue(mapper, json, TripPattern.class);
+
+        assertEquals("pattern", pattern.name);
+        assertEquals(route.id, pattern.route.id);
+        assertEquals(4, pattern.patternStops.size());
+        assertSame(stop1, pattern.patternStops.get(0).stop);
+        assertSame(stop2, pattern.patternStops.get(1).stop);
+        assertSame(stop1, pattern.patternStops.get(2).stop);
+        assertNull(pattern.patternStops.get(3).stop);
+
+        // factories called outside of a read still work
+        assertSame(stop1, Stop.factory(stop1.id));
+    }
+
+    @Test
+    public void testReadList () throws IOException {
+        String json = "[{\"route\": " + route.id + ", \"patternStops\": [{\"stop\": " + stop1.id + "}]}, {\"route\": \"" + route.id + "\"}]";
+
+        List<TripPattern> patterns = JsonReferenceResolver.readValue(mapper, json, new TypeReference<List<TripPattern>>() {});
+
+        assertEquals(2, patterns.size());
+        assertSame(patterns.get(0).route, patterns.get(1).route);
+        assertSame(stop1, patterns.get(0).patternStops.get(0).stop);
+    }
+}
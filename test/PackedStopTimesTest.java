@@ -0,0 +1,204 @@
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import play.test.*;
+import models.transit.PackedStopTimes;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.StopTimePickupDropOffType;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import models.transit.TripPatternStop;
+
+/**
+ * Test that stop times survive being packed and unpacked, including missing values, and remapping to new pattern stops.
+ */
+public class PackedStopTimesTest extends UnitTest {
+
+    @Test
+    public void testRoundTrip () {
+        List<StopTime> stopTimes = new ArrayList<StopTime>();
+
+        for (int i = 0; i < 5; i++) {
+            StopTime st = new StopTime();
+            st.stop = new Stop(null, "stop_" + i, null, null, null, 41.9100, -87.713 + i * 0.001);
+            st.stop.id = 100L + i;
+
+            if (i != 2) {
+                st.patternStop = new TripPatternStop();
+                st.patternStop.id = 200L + i;
+                st.arrivalTime = 6 * 3600 + i * 120;
+                st.departureTime = st.arrivalTime + 30;
+            }
+
+            st.stopSequence = i + 1;
+            st.pickupType = i == 0 ? StopTimePickupDropOffType.NONE : null;
+            st.dropOffType = i == 4 ? StopTimePickupDropOffType.NONE : StopTimePickupDropOffType.SCHEDULED;
+            st.shapeDistTraveled = i == 3 ? null : i * 412.5;
+            st.stopHeadsign = i == 1 ? "Downtown – Loop" : null;
+
+            // out of order, to check they come back sorted
+            stopTimes.add(0, st);
+        }
+
+        PackedStopTimes packed = PackedStopTimes.decode(PackedStopTimes.fromStopTimes(stopTimes).encode());
+
+        assertEquals(5, packed.size);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(100L + i, packed.stopIds[i]);
+            assertEquals(i == 2 ? 0 : 200L + i, packed.patternStopIds[i]);
+            assertEquals(i + 1, packed.stopSequences[i]);
+            assertEquals(i == 2 ? PackedStopTimes.MISSING : 6 * 3600 + i * 120, packed.arrivalTimes[i]);
+            assertEquals(i == 2 ? PackedStopTimes.MISSING : 6 * 3600 + i * 120 + 30, packed.departureTimes[i]);
+            assertEquals(i == 0 ? StopTimePickupDropOffType.NONE.ordinal() : -1, packed.pickupTypes[i]);
+            assertEquals(i == 4 ? StopTimePickupDropOffType.NONE.ordinal() : StopTimePickupDropOffType.SCHEDULED.ordinal(), packed.dropOffTypes[i]);
+
+            if (i == 3)
+                assertTrue(Double.isNaN(packed.shapeDistTraveled[i]));
+            else
+                assertEquals(i * 412.5, packed.shapeDistTraveled[i], 1e-9);
+
+            assertEquals(i == 1 ? "Downtown – Loop" : null, packed.stopHeadsigns[i]);
+        }
+    }
+
+    @Test
+    public void testEmpty () {
+        PackedStopTimes packed = PackedStopTimes.decode(PackedStopTimes.fromStopTimes(new ArrayList<StopTime>()).encode());
+        assertEquals(0, packed.size);
+    }
+
+    @Test
+    public void testToStopTimes () {
+        TransitFixtures fixtures = new TransitFixtures();
+        TripPattern pattern = fixtures.makePattern(fixtures.makeStops(4));
+        Trip trip = fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600, 2);
+        trip.pack();
+
+        List<StopTime> stopTimes = PackedStopTimes.decode(trip.packedStopTimes).toStopTimes(trip);
+
+        assertEquals(3, stopTimes.size());
+
+        for (StopTime st : stopTimes) {
+            TripPatternStop ps = pattern.patternStops.get(st.stopSequence - 1);
+            assertEquals(ps.id, st.patternStop.id);
+            assertEquals(ps.stop.id, st.stop.id);
+            assertEquals(trip, st.trip);
+        }
+    }
+
+    @Test
+    public void testPackMany () {
+        TransitFixtures fixtures = new TransitFixtures();
+        TripPattern pattern = fixtures.makePattern(fixtures.makeStops(3));
+        List<Long> tripIds = Arrays.asList(
+                fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600).id,
+                fixtures.makeTrip(pattern, fixtures.calendar, 7 * 3600, 2).id);
+
+        Trip.pack(tripIds);
+
+        assertEquals(0, StopTime.count());
+
+        Trip trip = Trip.findById(tripIds.get(1));
+        assertTrue(trip.hasPackedStopTimes());
+        List<StopTime> stopTimes = trip.getStopTimes();
+        assertEquals(2, stopTimes.size());
+        assertEquals((Integer) (7 * 3600 + 240), stopTimes.get(1).arrivalTime);
+        assertEquals(pattern.patternStops.get(2).id, stopTimes.get(1).patternStop.id);
+
+        Trip.unpack(tripIds);
+
+        assertEquals(5, StopTime.count());
+        assertEquals(0, Trip.count("packedStopTimes IS NOT NULL"));
+        assertEquals(3, Trip.<Trip>findById(tripIds.get(0)).getStopTimes().size());
+    }
+
+    /** pattern stops with ids from 200 and sequences from 1, at the given stops, without touching the database */
+    private List<TripPatternStop> patternStops (long... stopIds) {
+        List<TripPatternStop> ret = new ArrayList<TripPatternStop>();
+
+        for (int i = 0; i < stopIds.length; i++) {
+            TripPatternStop ps = new TripPatternStop();
+            ps.id = 200L + i;
+            ps.stop = new Stop(null, "stop_" + stopIds[i], null, null, null, 41.9100, -87.713);
+            ps.stop.id = stopIds[i];
+            ps.stopSequence = i + 1;
+            ret.add(ps);
+        }
+
+        return ret;
+    }
+
+    /** stop times at the stops of the pattern stops with the given indices, not yet linked to them, a minute apart */
+    private PackedStopTimes packed (List<TripPatternStop> patternStops, Integer... at) {
+        List<StopTime> stopTimes = new ArrayList<StopTime>();
+
+        for (int i = 0; i < at.length; i++) {
+            TripPatternStop ps = patternStops.get(at[i]);
+            StopTime st = new StopTime();
+            st.stop = ps.stop;
+            st.stopSequence = ps.stopSequence;
+            st.arrivalTime = st.departureTime = 6 * 3600 + i * 60;
+            stopTimes.add(st);
+        }
+
+        return PackedStopTimes.fromStopTimes(stopTimes);
+    }
+
+    @Test
+    public void testLinkToPatternStops () {
+        // a loop: the first and last pattern stops are at the same stop
+        List<TripPatternStop> patternStops = patternStops(101, 102, 103, 101);
+
+        PackedStopTimes packed = packed(patternStops, 0, 1, 2, 3);
+        // a stop sequence that doesn't match the pattern, so the repeated stop has to be found by walking the trip
+        packed.stopSequences[3] = 9;
+
+        packed.linkToPatternStops(patternStops);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(200L + i, packed.patternStopIds[i]);
+        }
+    }
+
+    @Test
+    public void testRemapPatternStops () {
+        List<TripPatternStop> patternStops = patternStops(101, 102, 103, 104);
+        PackedStopTimes packed = packed(patternStops, 0, 1, 2, 3);
+        packed.linkToPatternStops(patternStops);
+
+        // remove the second stop and swap the last two
+        Map<Long, Integer> stopSequences = new HashMap<Long, Integer>();
+        Map<Long, Long> patternStopIds = new HashMap<Long, Long>();
+        stopSequences.put(200L, 1);
+        patternStopIds.put(200L, 300L);
+        stopSequences.put(202L, 3);
+        patternStopIds.put(202L, 302L);
+        stopSequences.put(203L, 2);
+        patternStopIds.put(203L, 303L);
+
+        PackedStopTimes remapped = packed.remapPatternStops(Arrays.asList(201L), stopSequences, patternStopIds);
+
+        assertEquals(3, remapped.size);
+        assertTrue(Arrays.equals(new long[] { 101, 104, 103 }, remapped.stopIds));
+        assertTrue(Arrays.equals(new long[] { 300, 303, 302 }, remapped.patternStopIds));
+        assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, remapped.stopSequences));
+        assertTrue(Arrays.equals(new int[] { 6 * 3600, 6 * 3600 + 180, 6 * 3600 + 120 }, remapped.arrivalTimes));
+        assertTrue(remapped.hasTimes());
+
+        // the original is left alone
+        assertEquals(4, packed.size);
+
+        // nothing removed or moved
+        PackedStopTimes unchanged = packed.remapPatternStops(Collections.<Long>emptyList(), new HashMap<Long, Integer>(), new HashMap<Long, Long>());
+        assertTrue(Arrays.equals(packed.stopIds, unchanged.stopIds));
+        assertTrue(Arrays.equals(packed.patternStopIds, unchanged.patternStopIds));
+    }
+}
@@ -0,0 +1,105 @@
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import play.db.jpa.JPA;
+import play.mvc.Http.Response;
+import play.test.*;
+import models.Account;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+
+/**
+ * Test that a packed trip, which the API sends with decoded stop times that have no ids, can be sent back through
+ * updateTrip and bulkTrips without its stop times being duplicated or dropped, even if it was unpacked in between.
+ */
+public class PackedTripRoundTripTest extends FunctionalTest {
+    private TransitFixtures fixtures;
+    private Long tripId;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        TripPattern pattern = fixtures.makePattern(fixtures.makeStops(3));
+
+        Trip trip = fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600);
+        trip.pack();
+        tripId = trip.id;
+
+        new Account("packed", "packed", "packed@example.com", false, fixtures.agency.id);
+
+        // requests run in their own transactions, so they only see what has been committed
+        commit();
+
+        Map<String, String> login = new HashMap<String, String>();
+        login.put("username", "packed");
+        login.put("password", "packed");
+        POST("/secure/authenticate", login);
+    }
+
+    private static void commit () {
+        JPA.em().getTransaction().commit();
+        JPA.em().getTransaction().begin();
+    }
+
+    private String get () {
+        Response response = GET("/api/trip/" + tripId);
+        assertIsOk(response);
+        return getContent(response);
+    }
+
+    /** check the trip has one stop time at each of the three stops, at the times it was made with */
+    private void assertStopTimes (boolean packed) {
+        JPA.em().clear();
+        Trip trip = Trip.findById(tripId);
+
+        assertEquals(packed, trip.packedStopTimes != null);
+        assertEquals(packed ? 0 : 3, StopTime.count("trip.id = ?", tripId));
+
+        List<StopTime> stopTimes = trip.getStopTimes();
+        assertEquals(3, stopTimes.size());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals((Integer) (i + 1), stopTimes.get(i).stopSequence);
+            assertEquals((Integer) (6 * 3600 + i * 120), stopTimes.get(i).arrivalTime);
+        }
+    }
+
+    @Test
+    public void testUpdate () {
+        assertIsOk(PUT("/api/trip/" + tripId, "application/json", get()));
+        assertStopTimes(true);
+    }
+
+    @Test
+    public void testUpdateAfterUnpacking () {
+        String json = get();
+
+        Trip.unpack(Arrays.asList(tripId));
+        commit();
+
+        assertIsOk(PUT("/api/trip/" + tripId, "application/json", json));
+        assertStopTimes(false);
+    }
+
+    @Test
+    public void testBulk () {
+        assertIsOk(POST("/api/trip/bulk", "application/json", "[" + get() + "]"));
+        assertStopTimes(true);
+    }
+
+    @Test
+    public void testBulkAfterUnpacking () {
+        String json = get();
+
+        Trip.unpack(Arrays.asList(tripId));
+        commit();
+
+        assertIsOk(POST("/api/trip/bulk", "application/json", "[" + json + "]"));
+        assertStopTimes(false);
+    }
+}
@@ -0,0 +1,76 @@
+import org.junit.*;
+
+import java.util.List;
+
+import play.test.*;
+import utils.EncodedPolylineBean;
+import utils.GeoUtils;
+import utils.PolylineCodec;
+import utils.PolylineEncoder;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Make sure that PolylineCodec reads and writes exactly what PolylineEncoder does.
+ */
+public class PolylineCodecTest extends UnitTest {
+    
+    private LineString makeShape () {
+        Coordinate[] coords = new Coordinate[100];
+        
+        // wiggle east and west of the prime meridian, so we have both signs
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = new Coordinate(-0.05 + i * 0.001, 51.5 + 0.01 * Math.sin(i / 5d));
+        }
+        
+        return GeoUtils.geometryFactory.createLineString(coords);
+    }
+    
+    @Test
+    public void testEncodingMatchesPolylineEncoder () {
+        LineString shape = makeShape();
+        
+        assertEquals(PolylineEncoder.createEncodings(shape).getPoints(), PolylineCodec.encode(shape.getCoordinateSequence()));
+    }
+    
+    @Test
+    public void testDecodingMatchesPolylineEncoder () {
+        String encoded = PolylineCodec.encode(makeShape().getCoordinateSequence());
+        
+        List<Coordinate> expected = PolylineEncoder.decode(new EncodedPolylineBean(encoded, null, 0));
+        CoordinateSequence actual = PolylineCodec.decode(encoded);
+        
+        assertEquals(expected.size(), actual.size());
+        
+        // PolylineEncoder puts latitude in x
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals(expected.get(i).x, actual.getY(i), 1e-9);
+            assertEquals(expected.get(i).y, actual.getX(i), 1e-9);
+        }
+    }
+    
+    @Test
+    public void testDecodeFromCharArray () {
+        String encoded = PolylineCodec.encode(makeShape().getCoordinateSequence());
+        
+        char[] buf = ("xx" + encoded + "yy").toCharArray();
+        
+        CoordinateSequence fromArray = PolylineCodec.decode(buf, 2, encoded.length());
+        CoordinateSequence fromString = PolylineCodec.decode(encoded);
+        
+        assertEquals(fromString.size(), fromArray.size());
+        
+        for (int i = 0; i < fromString.size(); i++) {
+            assertEquals(fromString.getX(i), fromArray.getX(i), 0);
+            assertEquals(fromString.getY(i), fromArray.getY(i), 0);
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedPolyline () {
+        // a single number, latitude without longitude
+        PolylineCodec.decode("_p~iF");
+    }
+}
@@ -0,0 +1,123 @@
+import org.junit.*;
+
+import java.util.List;
+
+import javax.persistence.PersistenceException;
+
+import play.test.*;
+import models.transit.Agency;
+import models.transit.ServiceCalendar;
+import utils.ReferenceCache;
+
+/**
+ * Test caching reference entities, handing out copies of them, and dropping them when they change.
+ */
+public class ReferenceCacheTest extends UnitTest {
+    private TransitFixtures fixtures;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        ReferenceCache.clear();
+    }
+
+    @Test
+    public void testFindById () {
+        Long id = fixtures.agency.id;
+        long misses = misses();
+
+        Agency first = Agency.factory(id);
+        assertEquals(misses + 1, misses());
+
+        Agency second = Agency.factory(id);
+        assertEquals(misses + 1, misses());
+        assertEquals(id, second.id);
+        assertEquals("agency", second.name);
+
+        // every caller gets its own copy, which the session doesn't manage
+        assertNotSame(first, second);
+        assertNotSame(fixtures.agency, first);
+        assertFalse(Agency.em().contains(first));
+
+        // so changing one changes nothing else
+        first.name = "changed";
+        assertEquals("agency", Agency.factory(id).name);
+        assertEquals("agency", fixtures.agency.name);
+
+        // saving any agency drops the cached ones; change it by loading it again
+        Agency.em().clear();
+        Agency agency = Agency.findById(id);
+        agency.name = "renamed";
+        agency.save();
+
+        assertEquals("renamed", Agency.factory(id).name);
+        assertEquals(misses + 2, misses());
+
+        assertNull(Agency.factory(id + 1000));
+    }
+
+    @Test
+    public void testInvalidatedOnCommit () {
+        Long id = fixtures.agency.id;
+        long misses = misses();
+
+        Agency agency = Agency.findById(id);
+        agency.name = "renamed";
+        agency.save();
+
+        // cached after the change was flushed but before it was committed, as another transaction would still see the
+        // old row then
+        Agency.factory(id);
+        assertEquals(misses + 1, misses());
+
+        Agency.em().getTransaction().commit();
+        Agency.em().getTransaction().begin();
+
+        Agency.factory(id);
+        assertEquals(misses + 2, misses());
+    }
+
+    @Test
+    public void testReferences () {
+        ServiceCalendar first = ServiceCalendar.factory(fixtures.calendar.id);
+        ServiceCalendar second = ServiceCalendar.factory(fixtures.calendar.id);
+
+        // the entities a cached one refers to are copied along with it
+        assertEquals(fixtures.agency.id, second.agency.id);
+        assertNotSame(first.agency, second.agency);
+        assertNotSame(fixtures.agency, second.agency);
+    }
+
+    @Test
+    public void testList () {
+        long misses = misses();
+
+        List<Agency> agencies = Agency.findAllCached();
+        assertEquals(1, agencies.size());
+
+        agencies.clear();
+        assertEquals(1, Agency.findAllCached().size());
+        assertEquals(misses + 1, misses());
+
+        fixtures.makeAgency("b");
+
+        assertEquals(2, Agency.findAllCached().size());
+    }
+
+    @Test
+    public void testCopiesCannotBeSaved () {
+        Agency agency = Agency.factory(fixtures.agency.id);
+        agency.name = "changed";
+
+        try {
+            agency.save();
+            fail("saved a cached copy");
+        } catch (PersistenceException e) {
+            // expected
+        }
+    }
+
+    private static long misses () {
+        return (Long) ReferenceCache.stats().get("misses");
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import play.test.*;
+import utils.GeoUtils;
+import utils.RoutingGraph;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Test routing over a small grid of streets.
+ */
+public class RoutingGraphTest extends UnitTest {
+    private static final double LAT = 41.9;
+    private static final double LON = -87.7;
+    private static final double STEP = 0.01;
+
+    private RoutingGraph graph;
+
+    @Before
+    public void setUp () {
+        List<LineString> lines = new ArrayList<LineString>();
+
+        // a three by three grid, with a vertex halfway along each street
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 2; j++) {
+                lines.add(line(j, i, j + 0.5, i, j + 1, i));
+                lines.add(line(i, j, i, j + 0.5, i, j + 1));
+            }
+        }
+
+        // a street that doesn't connect to the others
+        lines.add(line(5, 0, 6, 0));
+
+        graph = new RoutingGraph(lines);
+    }
+
+    @Test
+    public void testBuild () {
+        assertEquals(11, graph.getNodeCount());
+        assertEquals(13, graph.getEdgeCount());
+    }
+
+    @Test
+    public void testSnap () {
+        RoutingGraph.Snap snap = graph.snap(LAT + 0.0001, LON + 0.25 * STEP, 100);
+        assertNotNull(snap);
+        assertEquals(LAT, snap.lat, 1e-9);
+        assertEquals(LON + 0.25 * STEP, snap.lon, 1e-9);
+        assertEquals(0.0001 * GeoUtils.METERS_PER_DEGREE_LATITUDE, snap.distance, 0.5);
+
+        assertNull(graph.snap(LAT + 0.005, LON + 0.005, 100));
+    }
+
+    @Test
+    public void testRoute () {
+        // along one street
+        List<Coordinate> path = graph.route(snap(0.2, 0), snap(0.8, 0));
+        assertEquals(3, path.size());
+        assertEquals(0.6 * STEP * GeoUtils.metersPerDegreeLongitude(LAT), length(path), 1);
+
+        // backwards along one street
+        path = graph.route(snap(0.8, 0), snap(0.2, 0));
+        assertEquals(LON + 0.8 * STEP, path.get(0).x, 1e-9);
+        assertEquals(LON + 0.2 * STEP, path.get(path.size() - 1).x, 1e-9);
+
+        // across the grid, which is as far as the blocks go either way
+        path = graph.route(snap(0.5, 0), snap(2, 1.5));
+        assertEquals(LON + 0.5 * STEP, path.get(0).x, 1e-9);
+        assertEquals(LAT + 1.5 * STEP, path.get(path.size() - 1).y, 1e-9);
+        double expected = 1.5 * STEP * GeoUtils.metersPerDegreeLongitude(LAT) + 1.5 * STEP * GeoUtils.METERS_PER_DEGREE_LATITUDE;
+        assertEquals(expected, length(path), 1);
+
+        // every point is on a street
+        for (Coordinate coord : path) {
+            double x = (coord.x - LON) / STEP;
+            double y = (coord.y - LAT) / STEP;
+            assertTrue(Math.abs(x - Math.round(x)) < 1e-6 || Math.abs(y - Math.round(y)) < 1e-6);
+        }
+
+        // not connected
+        assertNull(graph.route(snap(0.5, 0), snap(5.5, 0)));
+    }
+
+    @Test
+    public void testRouteThrough () {
+        Coordinate[] stops = new Coordinate[] {
+                coord(0.5, 0.0001),
+                coord(1.5, 1),
+                // too far from any street to snap
+                coord(1.5, 1.5),
+                coord(2, 2)
+        };
+
+        Coordinate[] shape = graph.routeThrough(stops, 50);
+
+        assertEquals(LAT, shape[0].y, 1e-9);
+        assertTrue(shape[shape.length - 1].equals2D(coord(2, 2)));
+
+        // the unsnapped stop is kept, with straight lines to and from it
+        assertTrue(shape[shape.length - 2].equals2D(stops[2]));
+        assertTrue(shape[shape.length - 3].equals2D(coord(1.5, 1)));
+
+        // routed from the first stop to the second, through the corner at (1, 0) and (1, 1) or (0, 1)
+        assertTrue(shape.length > 4);
+    }
+
+    private RoutingGraph.Snap snap (double x, double y) {
+        return graph.snap(LAT + y * STEP, LON + x * STEP, 10);
+    }
+
+    private static Coordinate coord (double x, double y) {
+        return new Coordinate(LON + x * STEP, LAT + y * STEP);
+    }
+
+    private static LineString line (double... xy) {
+        Coordinate[] coords = new Coordinate[xy.length / 2];
+
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = coord(xy[i * 2], xy[i * 2 + 1]);
+        }
+
+        return GeoUtils.geometryFactory.createLineString(coords);
+    }
+
+    private static double length (List<Coordinate> coords) {
+        double length = 0;
+
+        for (int i = 1; i < coords.size(); i++) {
+            length += GeoUtils.fastDistance(coords.get(i - 1).y, coords.get(i - 1).x, coords.get(i).y, coords.get(i).x);
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,89 @@
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import play.test.*;
+import models.transit.ServiceCalendar;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+
+/**
+ * Test shifting and copying trips in the database.
+ */
+public class ScheduleOperationsTest extends UnitTest {
+    private TransitFixtures fixtures;
+    private TripPattern pattern;
+    private ServiceCalendar calendar;
+    private Trip trip;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        calendar = fixtures.calendar;
+        pattern = fixtures.makePattern(fixtures.makeStops(3));
+
+        trip = fixtures.makeTrip(pattern, calendar, 6 * 3600);
+        trip.tripHeadsign = "Downtown";
+        trip.save();
+    }
+
+    private List<StopTime> stopTimes (Long tripId) {
+        return StopTime.find("trip.id = ? ORDER BY stopSequence", tripId).fetch();
+    }
+
+    @Test
+    public void testShift () {
+        List<Long> tripIds = Trip.findIds(pattern.id, calendar.id);
+        assertEquals(Arrays.asList(trip.id), tripIds);
+
+        Trip.shiftTimes(tripIds, -300);
+        Trip.em().clear();
+
+        List<StopTime> stopTimes = stopTimes(trip.id);
+        assertEquals((Integer) (6 * 3600 - 300), stopTimes.get(0).arrivalTime);
+        assertEquals((Integer) (6 * 3600 + 240 + 30 - 300), stopTimes.get(2).departureTime);
+    }
+
+    @Test
+    public void testCopy () {
+        List<Long> copyIds = Trip.copy(Arrays.asList(trip.id, trip.id), Arrays.asList(600, 1200), null);
+        Trip.em().clear();
+
+        assertEquals(2, copyIds.size());
+        assertEquals(3, Trip.count());
+        assertEquals(9, StopTime.count());
+
+        Trip copy = Trip.findById(copyIds.get(1));
+        assertEquals("Downtown", copy.tripHeadsign);
+        assertEquals("TRIP_" + copy.id, copy.gtfsTripId);
+        assertEquals(calendar.id, copy.serviceCalendar.id);
+
+        List<StopTime> stopTimes = stopTimes(copy.id);
+        assertEquals(3, stopTimes.size());
+        assertEquals((Integer) (6 * 3600 + 1200), stopTimes.get(0).arrivalTime);
+        assertEquals(pattern.patternStops.get(0).id, stopTimes.get(0).patternStop.id);
+
+        // the original is untouched
+        assertEquals((Integer) (6 * 3600), stopTimes(trip.id).get(0).arrivalTime);
+    }
+
+    @Test
+    public void testCopyToCalendar () {
+        ServiceCalendar target = fixtures.makeCalendar();
+
+        List<Long> copyIds = Trip.copy(Trip.findIds(null, calendar.id), Arrays.asList(0), target.id);
+        Trip.em().clear();
+
+        assertEquals(Arrays.asList(copyIds.get(0)), Trip.findIds(null, target.id));
+        assertEquals((Integer) (6 * 3600), stopTimes(copyIds.get(0)).get(0).arrivalTime);
+    }
+
+    @Test
+    public void testCopyNothing () {
+        assertTrue(Trip.copy(Collections.<Long>emptyList(), Collections.<Integer>emptyList(), null).isEmpty());
+        assertEquals(1, Trip.count());
+    }
+}
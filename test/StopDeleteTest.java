@@ -0,0 +1,109 @@
+import org.junit.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+import jobs.ProcessGtfsSnapshotExport;
+import play.Play;
+import play.db.jpa.JPA;
+import play.mvc.Http.Response;
+import play.test.*;
+import models.Account;
+import models.gtfs.GtfsSnapshotExport;
+import models.gtfs.GtfsSnapshotExportCalendars;
+import models.gtfs.GtfsSnapshotExportStatus;
+import models.transit.Agency;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+
+/**
+ * Test that a stop can't be deleted through the API while trips still use it, including packed trips, which have no
+ * foreign key to their stops.
+ */
+public class StopDeleteTest extends FunctionalTest {
+    private TransitFixtures fixtures;
+    private Stop detour;
+    private Stop unused;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        TripPattern pattern = fixtures.makePattern(fixtures.makeStops(3));
+        detour = fixtures.makeStops(1)[0];
+        unused = fixtures.makeStops(1)[0];
+
+        // a packed trip with a stop time at a stop that isn't on its pattern
+        Trip trip = fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600);
+
+        StopTime st = new StopTime();
+        st.trip = trip;
+        st.stop = detour;
+        st.stopSequence = 4;
+        st.arrivalTime = st.departureTime = 6 * 3600 + 600;
+        st.save();
+
+        trip.pack();
+
+        new Account("stops", "stops", "stops@example.com", false, fixtures.agency.id);
+
+        // requests run in their own transactions, so they only see what has been committed
+        JPA.em().getTransaction().commit();
+        JPA.em().getTransaction().begin();
+
+        Map<String, String> login = new HashMap<String, String>();
+        login.put("username", "stops");
+        login.put("password", "stops");
+        POST("/secure/authenticate", login);
+    }
+
+    @Test
+    public void testDeleteUnused () {
+        assertIsOk(DELETE("/api/stop/" + unused.id));
+
+        JPA.em().clear();
+        assertNull(Stop.findById(unused.id));
+    }
+
+    @Test
+    public void testDeleteUsedByPackedTrip () throws Exception {
+        Response response = DELETE("/api/stop/" + detour.id);
+        assertStatus(400, response);
+
+        JPA.em().clear();
+        assertNotNull(Stop.findById(detour.id));
+
+        // and the trip still exports
+        Agency agency = Agency.findById(fixtures.agency.id);
+        GtfsSnapshotExport export = new GtfsSnapshotExport(Arrays.asList(agency), GtfsSnapshotExportCalendars.CURRENT_AND_FUTURE,
+                new Date(), new Date(System.currentTimeMillis() + 30 * 24 * 3600 * 1000L), "stop delete test");
+
+        new ProcessGtfsSnapshotExport(export.id).doJob();
+
+        JPA.em().clear();
+        export = GtfsSnapshotExport.findById(export.id);
+        assertEquals(GtfsSnapshotExportStatus.SUCCESS, export.status);
+
+        File zip = new File(Play.configuration.getProperty("application.publicDataDirectory"), export.getZipFilename());
+
+        try {
+            ZipFile zipFile = new ZipFile(zip);
+
+            try {
+                String stopTimes = IOUtils.toString(zipFile.getInputStream(zipFile.getEntry("stop_times.txt")));
+                assertTrue(stopTimes.contains(detour.getGtfsId()));
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            zip.delete();
+        }
+    }
+}
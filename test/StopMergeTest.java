@@ -0,0 +1,72 @@
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import play.test.*;
+import models.transit.Agency;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.TripPattern;
+import models.transit.TripPatternStop;
+
+/**
+ * Test merging duplicate stops.
+ */
+public class StopMergeTest extends UnitTest {
+    private TransitFixtures fixtures;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+    }
+
+    @Test
+    public void testMerge () {
+        Stop[] stops = fixtures.makeStops(3);
+
+        // a duplicate of the first stop, used by a second pattern
+        Stop duplicate = new Stop(fixtures.agency, "stop_0 again", null, null, null, 41.9100, -87.713);
+        duplicate.save();
+
+        TripPattern pattern = fixtures.makePattern(stops);
+        TripPattern other = fixtures.makePattern(duplicate, stops[1], stops[2]);
+
+        fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600);
+        fixtures.makeTrip(other, fixtures.calendar, 7 * 3600);
+
+        Long duplicateId = duplicate.id;
+
+        assertEquals(1, stops[0].merge(Arrays.asList(duplicateId)));
+
+        assertNull(Stop.findById(duplicateId));
+
+        assertEquals(0, TripPatternStop.count("stop.id = ?", duplicateId));
+        assertEquals(2, TripPatternStop.count("stop.id = ? AND stopSequence = 1", stops[0].id));
+
+        assertEquals(0, StopTime.count("stop.id = ?", duplicateId));
+        List<StopTime> stopTimes = StopTime.find("stop.id = ?", stops[0].id).fetch();
+        assertEquals(2, stopTimes.size());
+
+        // the other stops are untouched
+        assertEquals(2, StopTime.count("stop.id = ?", stops[1].id));
+    }
+
+    @Test
+    public void testMergeAcrossAgencies () {
+        Stop[] stops = fixtures.makeStops(1);
+
+        Agency agency = fixtures.makeAgency("other");
+        Stop foreign = new Stop(agency, "foreign", null, null, null, 41.9100, -87.713);
+        foreign.save();
+
+        try {
+            stops[0].merge(Arrays.asList(foreign.id));
+            fail("merged a stop from another agency");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertNotNull(Stop.findById(foreign.id));
+    }
+}
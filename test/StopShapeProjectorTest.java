@@ -0,0 +1,123 @@
+import org.junit.*;
+
+import org.opengis.referencing.operation.TransformException;
+
+import play.test.*;
+import utils.GeoUtils;
+import utils.StopShapeProjector;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Test projecting stops onto shapes.
+ */
+public class StopShapeProjectorTest extends UnitTest {
+    private static final double LAT = 41.9;
+    private static final double WEST = -87.74;
+    private static final double EAST = -87.70;
+
+    /** a straight line east along a parallel, with a vertex every 0.01 degrees */
+    private StopShapeProjector straight () throws TransformException {
+        Coordinate[] coords = new Coordinate[5];
+
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = new Coordinate(WEST + i * 0.01, LAT);
+        }
+
+        return StopShapeProjector.create(GeoUtils.geometryFactory.createLineString(coords));
+    }
+
+    /** the expected distance along the straight line of a stop at a longitude */
+    private double along (StopShapeProjector projector, double lon) {
+        return projector.getLength() * (lon - WEST) / (EAST - WEST);
+    }
+
+    @Test
+    public void testInOrder () throws TransformException {
+        StopShapeProjector projector = straight();
+
+        double[] lons = new double[] { WEST, -87.735, -87.72, -87.705, EAST };
+        Coordinate[] stops = new Coordinate[lons.length];
+
+        for (int i = 0; i < lons.length; i++) {
+            // a little to either side of the line
+            stops[i] = new Coordinate(lons[i], LAT + (i % 2 == 0 ? 0.0002 : -0.0002));
+        }
+
+        double[] distances = projector.project(stops);
+
+        for (int i = 0; i < lons.length; i++) {
+            assertEquals(along(projector, lons[i]), distances[i], 1);
+        }
+    }
+
+    @Test
+    public void testOutOfOrder () throws TransformException {
+        StopShapeProjector projector = straight();
+
+        // the second stop is before the first; the third should still be found after the first
+        double[] lons = new double[] { -87.72, -87.725, -87.71 };
+        Coordinate[] stops = new Coordinate[lons.length];
+
+        for (int i = 0; i < lons.length; i++) {
+            stops[i] = new Coordinate(lons[i], LAT);
+        }
+
+        double[] distances = projector.project(stops);
+
+        for (int i = 0; i < lons.length; i++) {
+            assertEquals(along(projector, lons[i]), distances[i], 1);
+        }
+    }
+
+    @Test
+    public void testOffShape () throws TransformException {
+        StopShapeProjector projector = straight();
+
+        // the second stop is about 500 meters north of the line
+        Coordinate[] stops = new Coordinate[] {
+                new Coordinate(-87.73, LAT),
+                new Coordinate(-87.72, LAT + 0.0045),
+                new Coordinate(-87.71, LAT)
+        };
+
+        double[] distances = projector.project(stops);
+
+        assertEquals(along(projector, -87.73), distances[0], 1);
+        // the closest point on the line
+        assertEquals(along(projector, -87.72), distances[1], 1);
+        assertEquals(along(projector, -87.71), distances[2], 1);
+    }
+
+    @Test
+    public void testLoop () throws TransformException {
+        // a square of about 500 meters a side, starting and ending at the same corner
+        double north = LAT + 0.0045;
+        double east = WEST + 0.006;
+
+        LineString loop = GeoUtils.geometryFactory.createLineString(new Coordinate[] {
+                new Coordinate(WEST, LAT),
+                new Coordinate(east, LAT),
+                new Coordinate(east, north),
+                new Coordinate(WEST, north),
+                new Coordinate(WEST, LAT)
+        });
+
+        StopShapeProjector projector = StopShapeProjector.create(loop);
+        double[] vertexDistances = projector.getVertexDistances();
+
+        Coordinate[] stops = new Coordinate[] {
+                new Coordinate(WEST, LAT),
+                new Coordinate(east, (LAT + north) / 2),
+                new Coordinate(WEST, LAT)
+        };
+
+        double[] distances = projector.project(stops);
+
+        assertEquals(0, distances[0], 1);
+        assertEquals((vertexDistances[1] + vertexDistances[2]) / 2, distances[1], 1);
+        // the last stop is at the end of the loop, not back at the start
+        assertEquals(projector.getLength(), distances[2], 1);
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import play.test.*;
+import jobs.ProcessSystemMap;
+import models.transit.Agency;
+import models.transit.TimetableMatrix;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import utils.ReferenceCache;
+
+/**
+ * Test that changes made with native SQL and bulk statements are picked up by the incremental system map.
+ */
+public class SystemMapInvalidationTest extends UnitTest {
+    private TransitFixtures fixtures;
+    private TripPattern pattern;
+    private Date since;
+
+    @Before
+    public void setUp () throws InterruptedException {
+        fixtures = new TransitFixtures();
+        pattern = fixtures.makePattern(fixtures.makeStops(3));
+        fixtures.makeTrip(pattern, fixtures.calendar, 6 * 3600);
+        fixtures.makeTrip(pattern, fixtures.calendar, 7 * 3600);
+
+        // as if the system map had just run; timestamps are in milliseconds
+        Thread.sleep(10);
+        since = new Date();
+        Thread.sleep(10);
+    }
+
+    private List<Long> modifiedRoutes () {
+        return ProcessSystemMap.findModifiedRoutes(since);
+    }
+
+    @Test
+    public void testUnchanged () {
+        assertTrue(modifiedRoutes().isEmpty());
+    }
+
+    @Test
+    public void testInvalidateTimedTrips () {
+        Trip.invalidateTimedTrips(pattern.id);
+
+        assertEquals(Arrays.asList(fixtures.route.id), modifiedRoutes());
+    }
+
+    @Test
+    public void testTimetableTimes () {
+        // only stop times change, which are updated in bulk
+        TimetableMatrix matrix = TimetableMatrix.load(pattern, fixtures.calendar, false);
+        matrix.trips.get(0).times[0] += 60;
+        matrix.save();
+
+        assertEquals(Arrays.asList(fixtures.route.id), modifiedRoutes());
+    }
+
+    @Test
+    public void testTimetableDelete () {
+        TimetableMatrix matrix = TimetableMatrix.load(pattern, fixtures.calendar, false);
+        matrix.trips.get(0).deleted = true;
+        matrix.save();
+
+        assertEquals(Arrays.asList(fixtures.route.id), modifiedRoutes());
+    }
+
+    @Test
+    public void testAgencies () {
+        Agency idle = fixtures.makeAgency("idle");
+
+        // cache both agencies before the flags are set
+        assertNull(ReferenceCache.findById(Agency.class, fixtures.agency.id).systemMap);
+        assertNull(ReferenceCache.findById(Agency.class, idle.id).systemMap);
+
+        new ProcessSystemMap(true).findAgencies();
+        Agency.em().clear();
+
+        assertEquals(Boolean.TRUE, ReferenceCache.findById(Agency.class, fixtures.agency.id).systemMap);
+        assertEquals(Boolean.FALSE, ReferenceCache.findById(Agency.class, idle.id).systemMap);
+    }
+}
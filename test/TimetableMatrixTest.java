@@ -0,0 +1,165 @@
+import org.junit.*;
+
+import java.util.ArrayList;
+
+import play.test.*;
+import models.transit.ServiceCalendar;
+import models.transit.StopTime;
+import models.transit.TimetableMatrix;
+import models.transit.Trip;
+import models.transit.TripPattern;
+
+/**
+ * Test that timetables survive the trip through a TimetableMatrix, with and without delta encoding.
+ */
+public class TimetableMatrixTest extends UnitTest {
+    private TransitFixtures fixtures;
+    private TripPattern pattern;
+    private ServiceCalendar calendar;
+
+    @Before
+    public void setUp () {
+        fixtures = new TransitFixtures();
+        calendar = fixtures.calendar;
+        pattern = fixtures.makePattern(fixtures.makeStops(5));
+
+        // three trips, ten minutes apart; the second skips the middle stop
+        fixtures.makeTrip(pattern, calendar, 6 * 3600);
+        fixtures.makeTrip(pattern, calendar, 6 * 3600 + 600, 3);
+        fixtures.makeTrip(pattern, calendar, 6 * 3600 + 1200);
+    }
+
+    @Test
+    public void testLoad () {
+        TimetableMatrix matrix = TimetableMatrix.load(pattern, calendar, false);
+
+        assertEquals(5, matrix.stops.size());
+        assertEquals(3, matrix.trips.size());
+
+        for (int t = 0; t < 3; t++) {
+            Integer[] times = matrix.trips.get(t).times;
+            assertEquals(10, times.length);
+
+            for (int i = 0; i < 5; i++) {
+                if (t == 1 && i == 2) {
+                    assertNull(times[i * 2]);
+                    assertNull(times[i * 2 + 1]);
+                }
+                else {
+                    assertEquals((Integer) (6 * 3600 + t * 600 + i * 120), times[i * 2]);
+                    assertEquals((Integer) (6 * 3600 + t * 600 + i * 120 + 30), times[i * 2 + 1]);
+                }
+            }
+        }
+
+        // delta encoding: the first time is absolute, then alternating dwell and travel
+        TimetableMatrix deltas = TimetableMatrix.load(pattern, calendar, true);
+        Integer[] times = deltas.trips.get(0).times;
+
+        assertEquals((Integer) (6 * 3600), times[0]);
+        assertEquals((Integer) 30, times[1]);
+        assertEquals((Integer) 90, times[2]);
+
+        // the skipped stop is skipped in the deltas too
+        times = deltas.trips.get(1).times;
+        assertNull(times[4]);
+        assertEquals((Integer) 210, times[6]);
+    }
+
+    @Test
+    public void testSave () {
+        TimetableMatrix matrix = TimetableMatrix.load(pattern, calendar, true);
+
+        Long deletedTrip = matrix.trips.get(2).id;
+
+        // delay the first trip by a minute; with deltas, only the first time changes
+        matrix.trips.get(0).times[0] += 60;
+
+        // the second trip stops at the middle stop but no longer at the last one
+        matrix.trips.get(1).times[4] = 90;
+        matrix.trips.get(1).times[5] = 30;
+        matrix.trips.get(1).times[6] = 90;
+        matrix.trips.get(1).times[8] = null;
+        matrix.trips.get(1).times[9] = null;
+
+        matrix.trips.get(2).deleted = true;
+
+        // and a new trip, an hour after the first
+        TimetableMatrix.Row row = new TimetableMatrix.Row();
+        row.tripHeadsign = "new";
+        row.times = new Integer[] { 7 * 3600, 0, 120, 0, 120, 0, 120, 0, 120, 0 };
+        matrix.trips.add(row);
+
+        matrix.save();
+
+        assertNull(Trip.findById(deletedTrip));
+
+        // the new row gets the id of its trip, and a GTFS id from it
+        assertNotNull(row.id);
+        assertEquals("TRIP_" + row.id, Trip.<Trip>findById(row.id).gtfsTripId);
+
+        TimetableMatrix saved = TimetableMatrix.load(pattern, calendar, false);
+        assertEquals(3, saved.trips.size());
+
+        Integer[] times = saved.trips.get(0).times;
+        assertEquals((Integer) (6 * 3600 + 60), times[0]);
+        assertEquals((Integer) (6 * 3600 + 4 * 120 + 30 + 60), times[9]);
+
+        times = saved.trips.get(1).times;
+        assertEquals((Integer) (6 * 3600 + 600 + 2 * 120), times[4]);
+        assertEquals((Integer) (6 * 3600 + 600 + 2 * 120 + 30), times[5]);
+        assertNull(times[8]);
+        assertNull(times[9]);
+
+        times = saved.trips.get(2).times;
+        assertEquals("new", saved.trips.get(2).tripHeadsign);
+        assertEquals((Integer) (7 * 3600 + 4 * 120), times[9]);
+
+        // five stop times for the first and last trips, and four for the second
+        assertEquals(14, StopTime.count());
+    }
+
+    @Test
+    public void testDeleteWithoutTimes () {
+        TimetableMatrix matrix = TimetableMatrix.load(pattern, calendar, false);
+
+        // a deleted row only needs its id
+        TimetableMatrix.Row row = new TimetableMatrix.Row();
+        row.id = matrix.trips.get(0).id;
+        row.deleted = true;
+
+        matrix.trips = new ArrayList<TimetableMatrix.Row>();
+        matrix.trips.add(row);
+        matrix.save();
+
+        assertNull(Trip.findById(row.id));
+        assertEquals(2, TimetableMatrix.load(pattern, calendar, false).trips.size());
+    }
+
+    @Test
+    public void testRejectOtherCalendar () {
+        ServiceCalendar otherCalendar = fixtures.makeCalendar();
+        Trip other = fixtures.makeTrip(pattern, otherCalendar, 8 * 3600);
+
+        TimetableMatrix matrix = TimetableMatrix.load(pattern, calendar, false);
+
+        // a trip on the same pattern but another calendar
+        TimetableMatrix.Row row = new TimetableMatrix.Row();
+        row.id = other.id;
+        row.times = matrix.trips.get(0).times.clone();
+        matrix.trips.add(row);
+
+        matrix.trips.get(0).times[0] += 60;
+
+        try {
+            matrix.save();
+            fail("saved a trip from another calendar");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // nothing was written, not even the valid row
+        assertEquals((Integer) (6 * 3600), TimetableMatrix.load(pattern, calendar, false).trips.get(0).times[0]);
+        assertEquals(otherCalendar.id, Trip.<Trip>findById(other.id).serviceCalendar.id);
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import play.test.Fixtures;
+import models.transit.Agency;
+import models.transit.Route;
+import models.transit.RouteType;
+import models.transit.ServiceCalendar;
+import models.transit.Stop;
+import models.transit.StopTime;
+import models.transit.Trip;
+import models.transit.TripPattern;
+import models.transit.TripPatternStop;
+
+/**
+ * The small transit network the unit tests build on: an agency with one route and a weekday calendar, and helpers to
+ * add stops, patterns and trips to it.
+ *
+ * Creating it clears the database, which has to be the PostGIS test database (see INSTALL.md): the models and the
+ * code under test use Postgres SQL such as sequences, arrays and generate_series, and geometry columns. Clearing it
+ * also empties the unmanaged spatial_ref_sys table, because deleteAllModels() has a bug with sequences. That's
+ * harmless here, as nothing under test transforms between coordinate systems in the database.
+ */
+public class TransitFixtures {
+    public final Agency agency;
+    public final RouteType routeType;
+    public final Route route;
+    public final ServiceCalendar calendar;
+
+    public TransitFixtures () {
+        Fixtures.deleteDatabase();
+
+        agency = makeAgency("agency");
+        routeType = new RouteType();
+        routeType.save();
+        route = new Route("1", "One", routeType, null, agency);
+        route.save();
+        calendar = makeCalendar();
+    }
+
+    public Agency makeAgency (String name) {
+        Agency ret = new Agency(name, name, "http://www.example.com", "America/New_York", "en", "5551234567");
+        ret.save();
+        return ret;
+    }
+
+    /** a calendar running on weekdays */
+    public ServiceCalendar makeCalendar () {
+        ServiceCalendar ret = new ServiceCalendar();
+        ret.agency = agency;
+        ret.monday = ret.tuesday = ret.wednesday = ret.thursday = ret.friday = true;
+        ret.saturday = ret.sunday = false;
+        ret.save();
+        return ret;
+    }
+
+    /** some stops proceeding east along North Ave west of Wicker Park, Chicago, Ill. */
+    public Stop[] makeStops (int count) {
+        Stop[] ret = new Stop[count];
+
+        for (int i = 0; i < count; i++) {
+            ret[i] = new Stop(agency, "stop_" + i, null, null, null, 41.9100, -87.713 + i * 0.001);
+            ret[i].save();
+        }
+
+        return ret;
+    }
+
+    /** a pattern on the route stopping at every stop, two minutes apart */
+    public TripPattern makePattern (Stop... stops) {
+        TripPattern ret = new TripPattern();
+        ret.route = route;
+        ret.patternStops = new ArrayList<TripPatternStop>();
+
+        for (int i = 0; i < stops.length; i++) {
+            ret.patternStops.add(new TripPatternStop(ret, stops[i], i + 1, 120));
+        }
+
+        ret.save();
+        return ret;
+    }
+
+    /**
+     * A trip on a pattern, leaving the first stop at startTime, taking two minutes between stops and waiting thirty
+     * seconds at each.
+     * @param skippedStopSequences pattern stops the trip doesn't stop at
+     */
+    public Trip makeTrip (TripPattern pattern, ServiceCalendar calendar, int startTime, Integer... skippedStopSequences) {
+        List<Integer> skipped = Arrays.asList(skippedStopSequences);
+
+        Trip ret = new Trip();
+        ret.route = pattern.route;
+        ret.pattern = pattern;
+        ret.serviceCalendar = calendar;
+        ret.useFrequency = false;
+        ret.save();
+
+        for (TripPatternStop ps : pattern.patternStops) {
+            if (skipped.contains(ps.stopSequence))
+                continue;
+
+            StopTime st = new StopTime();
+            st.arrivalTime = startTime + (ps.stopSequence - 1) * 120;
+            st.departureTime = st.arrivalTime + 30;
+            st.stopSequence = ps.stopSequence;
+            st.stop = ps.stop;
+            st.patternStop = ps;
+            st.trip = ret;
+            st.save();
+        }
+
+        return ret;
+    }
+}
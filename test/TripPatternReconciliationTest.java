@@ -448,6 +448,57 @@ public class TripPatternReconciliationTest extends UnitTest {
         }
     }
     
+    /** packed trips are remapped in place, without being unpacked */
+    @Test
+    public void testPackedTrips () {
+        Stop[] stops = makeStops();
+        
+        TripPattern tp = makePattern(stops);
+        createStopTimesForTripPattern(tp);
+        
+        for (Trip t : Trip.<Trip>find("pattern = ?", tp).fetch()) {
+            t.pack();
+        }
+        
+        assertEquals(0, StopTime.count());
+        
+        TripPattern tp2 = makePattern(stops);
+        
+        // remove the second stop, and move the fifth to the end
+        TripPatternStop removed = tp2.patternStops.remove(1);
+        TripPatternStop toMove = tp2.patternStops.remove(3);
+        tp2.patternStops.add(toMove);
+        
+        tp.reconcilePatternStops(tp2);
+        
+        // still packed
+        assertEquals(0, StopTime.count());
+        
+        Collection<Trip> trips = Trip.find("pattern = ?", tp).fetch();
+        assertEquals(5, trips.size());
+        
+        for (Trip t : trips) {
+            assertNotNull(t.packedStopTimes);
+            // stops moved, and the trip has times
+            assertTrue(t.invalid);
+            
+            List<StopTime> stopTimes = t.getStopTimes();
+            
+            assertEquals(7, stopTimes.size());
+            
+            for (int i = 0; i < 7; i++) {
+                StopTime st = stopTimes.get(i);
+                
+                assertEquals(i + 1, (int) st.stopSequence);
+                assertEquals(tp2.patternStops.get(i).id, st.patternStop.id);
+                assertEquals(tp2.patternStops.get(i).stop.id, st.stop.id);
+                assertFalse(removed.stop.id.equals(st.stop.id));
+            }
+            
+            assertEquals(toMove.stop.id, stopTimes.get(6).stop.id);
+        }
+    }
+    
     @Test
     public void testStopRemovalWhenAStopIsSkipped () {
        Stop[] stops = makeStops();
@@ -947,4 +998,58 @@ public class TripPatternReconciliationTest extends UnitTest {
             }
         }
     }
+    
+    @Test
+    public void testMultipleChanges () {
+        Stop[] stops = makeStops();
+        
+        // build a pattern with a trip and a few stoptimes
+        TripPattern tp = makePattern(stops);
+        createStopTimesForTripPattern(tp);
+        
+        assertEquals(40, StopTime.count());
+        
+        TripPattern tp2 = makePattern(stops);
+        
+        // remove stop 4, move stop 12 to second and add stop 5 after stop 8, all at once
+        TripPatternStop removed = tp2.patternStops.remove(2);
+        assertEquals(stops[4].id, removed.stop.id);
+        
+        TripPatternStop toMove = tp2.patternStops.remove(5);
+        assertEquals(stops[12].id, toMove.stop.id);
+        tp2.patternStops.add(1, toMove);
+        
+        tp2.patternStops.add(5, new TripPatternStop(tp2, stops[5], 0, 180));
+        
+        for (int i = 0; i < tp2.patternStops.size(); i++) {
+            tp2.patternStops.get(i).stopSequence = i + 1;
+        }
+        
+        tp.reconcilePatternStops(tp2);
+        
+        // the stop times at the removed stop are gone, and none were created for the new one
+        assertEquals(35, StopTime.count());
+        
+        Collection<Trip> trips = Trip.find("pattern = ?", tp).fetch();
+        
+        // stop 5 is at stop sequence 6, and has no stop times
+        int[] expectedStops = new int[] { 0, 12, 2, 6, 8, 10, 14 };
+        int[] expectedSequences = new int[] { 1, 2, 3, 4, 5, 7, 8 };
+        
+        for (Trip t : trips) {
+            List<StopTime> stopTimes = t.getStopTimes();
+            
+            assertEquals(7, stopTimes.size());
+            
+            sort(stopTimes, new StopTimeSequenceComparator());
+            
+            for (int i = 0; i < stopTimes.size(); i++) {
+                assertEquals(stops[expectedStops[i]].id, stopTimes.get(i).stop.id);
+                assertEquals(expectedSequences[i], (int) stopTimes.get(i).stopSequence);
+            }
+            
+            // a stop moved, so the times no longer make sense
+            assertTrue(t.invalid);
+        }
+    }
 }
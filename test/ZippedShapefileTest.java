@@ -0,0 +1,72 @@
+import org.junit.*;
+
+import java.io.File;
+import java.net.URL;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import play.test.*;
+import utils.GeoUtils;
+import utils.ShapefileFeatureWriter;
+import utils.ZippedShapefile;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Test reading a shapefile straight out of a zip.
+ */
+public class ZippedShapefileTest extends UnitTest {
+    @Test
+    public void testRead () throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "zipped-shapefile-test-" + System.nanoTime());
+        directory.mkdir();
+
+        try {
+            File zip = new File(directory, "stops + more.zip");
+
+            SimpleFeatureType type = DataUtilities.createType("Stop", "location:Point:srid=4326,name:String");
+            ShapefileFeatureWriter writer = new ShapefileFeatureWriter(type, zip);
+            writer.write(GeoUtils.geometryFactory.createPoint(new Coordinate(-87.7, 41.9)), "one");
+            writer.write(GeoUtils.geometryFactory.createPoint(new Coordinate(-87.6, 41.8)), "two");
+            writer.close();
+
+            // only the zip is left
+            assertEquals(1, directory.list().length);
+
+            ZippedShapefile zippedShapefile = new ZippedShapefile(zip);
+
+            try {
+                URL url = zippedShapefile.getShapefileUrl();
+                assertNotNull(url);
+
+                ShapefileDataStore store = new ShapefileDataStore(url);
+                SimpleFeatureIterator features = store.getFeatureSource().getFeatures().features();
+
+                assertTrue(features.hasNext());
+                SimpleFeature feature = features.next();
+                assertEquals(-87.7, ((Point) feature.getDefaultGeometry()).getX(), 1e-9);
+                assertEquals("one", feature.getAttribute("name"));
+
+                assertTrue(features.hasNext());
+                assertEquals("two", features.next().getAttribute("name"));
+                assertFalse(features.hasNext());
+
+                features.close();
+                store.dispose();
+            } finally {
+                zippedShapefile.close();
+            }
+
+            // nothing was extracted
+            assertEquals(1, directory.list().length);
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+}